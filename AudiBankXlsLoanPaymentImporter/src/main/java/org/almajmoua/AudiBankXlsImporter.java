@@ -20,23 +20,33 @@
 
 package org.almajmoua;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.poi.hssf.usermodel.HSSFSheet;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
 import org.joda.time.LocalDate;
+import org.mifos.AsyncAccountService;
+import org.mifos.DaemonThreads;
+import org.mifos.ImportCancelledException;
+import org.mifos.MinorUnits;
+import org.mifos.RunningTotalByAccount;
 import org.mifos.accounts.api.InvalidPaymentReason;
 import org.mifos.dto.domain.AccountPaymentParametersDto;
 import org.mifos.dto.domain.AccountReferenceDto;
@@ -46,7 +56,14 @@ public class AudiBankXlsImporter extends AudiBankImporter {
 
     private static final String LANGUAGECODE = "Localization.LanguageCode";
     private static final String COUNTRYCODE = "Localization.CountryCode";
-    
+    private static final String DIGITS_AFTER_DECIMAL = "AccountingRules.DigitsAfterDecimal";
+    private static final String GROUP_LOAN_MEMBER_CACHE_SECONDS = "GroupLoanMemberCacheSeconds";
+    private static final String AGGREGATED_VALIDATION = "AggregatedValidation";
+    private static final String VALIDATION_THREADS = "ValidationThreads";
+
+    /** Local file header signature, which an Excel 2007 workbook starts with as any zip file does. */
+    private static final byte[] ZIP_SIGNATURE = { 'P', 'K', 3, 4 };
+
     @Override
     public String getDisplayName() {
         return "Audi Bank (Excel 2007)";
@@ -54,6 +71,7 @@ public class AudiBankXlsImporter extends AudiBankImporter {
 
     @Override
     public ParseResultDto parse(final InputStream input) {
+        parseStarted();
         String language = getAccountService().getMifosConfiguration(LANGUAGECODE).toString();
         String country = getAccountService().getMifosConfiguration(COUNTRYCODE).toString();
         int numberOfOverpayments = 0;
@@ -62,30 +80,30 @@ public class AudiBankXlsImporter extends AudiBankImporter {
         
         final List<String> errorsList = new ArrayList<String>();
         final List<AccountPaymentParametersDto> pmts = new ArrayList<AccountPaymentParametersDto>();
-        int friendlyRowNum = 0;
-        Map<AccountReferenceDto, BigDecimal> cumulativeAmountByAccount = new HashMap<AccountReferenceDto, BigDecimal>();
+        String friendlyRowNum = "0";
+        RunningTotalByAccount cumulativeAmountByAccount = new RunningTotalByAccount();
 
+        final InputStream digestingInput = digesting(input);
+        StatementSheet sheet = null;
         try {
-            final HSSFWorkbook workbook = new HSSFWorkbook(input);
-            final HSSFSheet sheet = workbook.getSheetAt(0);
+            sheet = openStatement(digestingInput);
 
-            Row row = sheet.getRow(0);
+            SheetRow row = sheet.getFirstRow();
             if (null == row) {
                 errorsList.add(messages.getString(AudiBankConstants.NOT_ENOUGH_INPOUT_ROW));
             }
 
-            final Cell topLeftCell = row.getCell(0);
-            if (errorsList.isEmpty() && null == topLeftCell) {
+            if (errorsList.isEmpty() && !row.hasCell(0)) {
                 errorsList.add(messages.getString(AudiBankConstants.NOT_ENOUGH_INPOUT_CELL));
             }
 
-            if (errorsList.isEmpty() && topLeftCell.getCellType() != Cell.CELL_TYPE_STRING) {
+            if (errorsList.isEmpty() && !row.isText(0)) {
                 errorsList.add(messages.getString(AudiBankConstants.INVALID_CELL_TYPE));
             }
 
             String topLeftCellAsString = "";
             if (errorsList.isEmpty()) {
-                topLeftCellAsString = topLeftCell.getStringCellValue();
+                topLeftCellAsString = row.getString(0);
                 if (StringUtils.isBlank(topLeftCellAsString)) {
                     errorsList.add(messages.getString(AudiBankConstants.PAYMENT_TYPE_NOT_FOUND));
                 }
@@ -99,143 +117,71 @@ public class AudiBankXlsImporter extends AudiBankImporter {
             }
             row = null;
 
-            final Iterator<Row> rowIterator = sheet.iterator();
-
-            while (errorsList.isEmpty()) {
-                if (!rowIterator.hasNext()) {
-                    errorsList.add(messages.getString(AudiBankConstants.NO_ROWS_FOUND_WITH_IMPORT_DATA));
-                    break;
-                }
-                row = rowIterator.next();
-                // skip first 5 lines
-                if (row.getRowNum() >= 4) {
-                    break;
-                }
+            Iterator<SheetRow> rowIterator = sheet.iterator();
+            if (errorsList.isEmpty() && !skipHeadings(rowIterator)) {
+                errorsList.add(messages.getString(AudiBankConstants.NO_ROWS_FOUND_WITH_IMPORT_DATA));
             }
 
             if (errorsList.isEmpty()) {
-                row = null;
-
-                while (true) {
-                    if (rowIterator.hasNext()) {
-                        row = rowIterator.next();
-                    } else {
-                        break;
-                    }
-                    friendlyRowNum = (row.getRowNum() + 1);
-
-                    Cell firstCell = row.getCell(0);
-                    if (null == firstCell || StringUtils.isBlank(firstCell.toString())) {
-                        /*
-                         * Justification: this is similar to skipping blank input lines in a text file.
-                         */
-                        continue;
-                    }
-
-                    if (row.getLastCellNum() < MAX_CELL_NUM) {
-                        errorsList.add(String.format(messages.getString(AudiBankConstants.NOT_ENOUGH_FIELDS), friendlyRowNum));
-                        continue;
-                    }
-
-                    final Cell debitOrCreditCell = row.getCell(DEBIT_OR_CREDIT);
-                    String debitOrCredit = null;
-                    if (null != debitOrCreditCell) {
-                        debitOrCredit = debitOrCreditCell.getStringCellValue().trim();
-                        if (StringUtils.isBlank(debitOrCredit)) {
-                            debitOrCredit = null;
-                        } else {
-                            if (!debitOrCredit.equalsIgnoreCase("C")) {
-                                /* not a credit: ignore */
-                                continue;
-                            }
-                        }
-                    }
-                    if (null == debitOrCredit) {
-                        errorsList.add(String.format(messages.getString(AudiBankConstants.DEBIT_CREDIT_NOT_SPECIFIED), friendlyRowNum));
-                        continue;
-                    }
-
-                    final Cell descriptionCell = row.getCell(DESCRIPTION);
-                    String accountId = "";
-                    if (null != descriptionCell) {
-                        accountId = getAccountId(descriptionCell.getStringCellValue());
-                    }
-
-                    if ("".equals(accountId)) {
-                        errorsList.add(messages.getString(AudiBankConstants.LOAN_ACCOUNT_ID_COULD_NOT_BE_EXTRACTED) + " " + friendlyRowNum);
-                        continue;
+                final MinorUnits minorUnits = new MinorUnits(Integer.parseInt(getAccountService().getMifosConfiguration(
+                        DIGITS_AFTER_DECIMAL).toString()));
+                final AsyncAccountService lookups = newAsyncAccountService();
+                final AccountResolver accountResolver = new AccountResolver(getAccountService(), groupLoanMembers(),
+                        lookups);
+                final List<StatementRow> statementRows = new ArrayList<StatementRow>();
+                try {
+                    String sheetName = null;
+                    while (readCredits(rowIterator, sheetName, minorUnits, accountResolver, messages, statementRows)
+                            && (rowIterator = nextDataSheet(sheet, topLeftCellAsString)) != null) {
+                        sheetName = sheet.getName();
                     }
+                    accountResolver.resolve();
+                } finally {
+                    lookups.close();
+                }
+                final boolean aggregatedValidation = isAggregatedValidationEnabled();
+                final int validationThreads = validationThreads();
+                if (aggregatedValidation || validationThreads > 1) {
+                    validateByAccount(statementRows, accountResolver, minorUnits, cumulativeAmountByAccount,
+                            aggregatedValidation, validationThreads);
+                }
 
-                    final Cell serialCell = row.getCell(SERIAL);
-                    String serial = null;
-                    if (null != serialCell) {
-                        serialCell.setCellType(1);
-                        String serialNumericValue = serialCell.getStringCellValue();
-                        if (null != serialNumericValue) {
-                            serial = "" + serialNumericValue;
-                        }
+                for (StatementRow statementRow : statementRows) {
+                    checkCancelled();
+                    friendlyRowNum = statementRow.friendlyRowNum;
+                    if (statementRow.exception != null) {
+                        throw statementRow.exception;
                     }
-                    if (null == serial) {
-                        errorsList.add(String.format(messages.getString(AudiBankConstants.INVALID_FORMAT_SERIAL), friendlyRowNum));
+                    if (statementRow.error != null) {
+                        errorsList.add(statementRow.error);
                         continue;
                     }
+                    rowValidated();
+                    final String accountId = statementRow.accountId;
 
-                    final Cell amountCell = row.getCell(AMOUNT);
-                    BigDecimal paymentAmount = null;
-                    if (null == amountCell) {
-                        errorsList.add(messages.getString(AudiBankConstants.INVALID_AMOUNT) + " " + friendlyRowNum);
+                    if (!accountResolver.isResolved(accountId)) {
+                        errorsList.add(messages.getString(AudiBankConstants.INVALID_ACCOUNT_ID) + " " + friendlyRowNum
+                                + ": " + accountResolver.getFailure(accountId));
                         continue;
-                    } else {
-                        // FIXME: possible data loss converting double to BigDecimal?
-                        paymentAmount = BigDecimal.valueOf(amountCell.getNumericCellValue());
-                        int acceptableScale = Integer.parseInt(getAccountService().getMifosConfiguration("AccountingRules.DigitsAfterDecimal").toString());
-                        if (paymentAmount.scale() > acceptableScale){
-                            errorsList.add(messages.getString(AudiBankConstants.INVALID_NUMBER_OF_DECIMALS) + " " + friendlyRowNum);
-                            continue;
-                        }
                     }
+                    final AccountReferenceDto account = accountResolver.getAccount(accountId);
 
-                    final AccountReferenceDto account;
-
-                    try {
-                        if (accountIdIsAnInternalId(accountId)) {
-                            account = getAccountService().lookupLoanAccountReferenceFromId(Integer.valueOf(accountId));
-                        } else if (accountIdIsAnExternalId(accountId)) {
-                            account = getAccountService().lookupLoanAccountReferenceFromExternalId(accountId);
-                        } else {
-                            account = getAccountService().lookupLoanAccountReferenceFromGlobalAccountNumber(accountId);
-                        }
-                    } catch (Exception e) {
-                        errorsList
-                                .add(messages.getString(AudiBankConstants.INVALID_ACCOUNT_ID) + " " + friendlyRowNum + ": " + e.getMessage());
-                        continue;
-                    }
-
-                    if (getAccountService().isAccountGroupLoanMember(account.getAccountId())){
+                    if (accountResolver.isGroupLoanMember(account)) {
                         errorsList.add(String.format(messages.getString(AudiBankConstants.ACCOUNT_IS_GROUP_LOAN_ACCOUNT_MEMBER), friendlyRowNum));
                         continue;
                     }
 
-                    final Cell transDateCell = row.getCell(TRANS_DATE);
-                    if (null == transDateCell) {
+                    if (!statementRow.hasTransDate) {
                         errorsList.add(messages.getString(AudiBankConstants.NO_VALID_TRANSACTION_DATE) + " " + friendlyRowNum);
                         continue;
                     }
-                    final Date transDate = transDateCell.getDateCellValue();
-                    final LocalDate paymentDate = LocalDate.fromDateFields(transDate);
-                    final BigDecimal totalPaymentAmountForAccount = addToRunningTotalForAccount(paymentAmount,
-                            cumulativeAmountByAccount, account);
-
-                    AccountPaymentParametersDto cumulativePayment = new AccountPaymentParametersDto(
-                            getUserReferenceDto(), account, totalPaymentAmountForAccount, paymentDate,
-                            getPaymentTypeDto(), "serial=" + serial, serial);
-
-                    AccountPaymentParametersDto payment = new AccountPaymentParametersDto(getUserReferenceDto(),
-                            account, paymentAmount, paymentDate, getPaymentTypeDto(), "serial=" + serial, serial);
+                    if (statementRow.payment == null) {
+                        preparePayment(statementRow, account, minorUnits, cumulativeAmountByAccount);
+                    }
+                    final AccountPaymentParametersDto cumulativePayment = statementRow.cumulativePayment;
 
-                    payment.addPaymentOption(AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS);
-                    cumulativePayment.addPaymentOption(AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS);
-                    List<InvalidPaymentReason> errors = getAccountService().validatePayment(cumulativePayment);
+                    List<InvalidPaymentReason> errors = statementRow.errors != null ? statementRow.errors
+                            : getAccountService().validatePayment(cumulativePayment);
                     if (!errors.isEmpty()) {
                         for (InvalidPaymentReason error : errors) {
                             switch (error) {
@@ -259,25 +205,468 @@ public class AudiBankXlsImporter extends AudiBankImporter {
 
                         continue;
                     }
-                    if (getAccountService().doesTransactionIntroduceOverpayment(cumulativePayment)){
+                    if (statementRow.overpayment != null ? statementRow.overpayment.booleanValue()
+                            : getAccountService().doesTransactionIntroduceOverpayment(cumulativePayment)) {
                         numberOfOverpayments++;
                     }
 
-                    pmts.add(payment);
+                    pmts.add(statementRow.payment);
                 }
             }
 
         } catch (Exception e) {
+            final ImportCancelledException cancelled = ImportCancelledException.causing(e);
+            if (cancelled != null) {
+                throw cancelled;
+            }
             e.printStackTrace(System.err);
             errorsList.add(e + "." + messages.getString(AudiBankConstants.INPUT_LINE_NUMBER) + " " + friendlyRowNum);
+        } finally {
+            if (sheet != null) {
+                sheet.close();
+            }
         }
+        parseFinished();
 
-        return new ParseResultDto(errorsList, pmts, numberOfOverpayments);
+        return rememberParseResult(digestingInput, new ParseResultDto(errorsList, pmts, numberOfOverpayments));
     }
 
-    @Override
-    public void store(InputStream input) throws Exception {
-        // TODO Auto-generated method stub
-        
+    /**
+     * Opens a statement at its first sheet, which is read as an Excel 2007 workbook if it is a zip file and as an Excel
+     * 97 one otherwise.
+     */
+    private StatementSheet openStatement(final InputStream input) throws IOException {
+        final PushbackInputStream pushbackInput = new PushbackInputStream(input, ZIP_SIGNATURE.length);
+        final byte[] signature = new byte[ZIP_SIGNATURE.length];
+        int length = 0;
+        int read;
+        while (length < signature.length
+                && (read = pushbackInput.read(signature, length, signature.length - length)) != -1) {
+            length += read;
+        }
+        pushbackInput.unread(signature, 0, length);
+        if (Arrays.equals(signature, ZIP_SIGNATURE)) {
+            return XlsxStatementSheet.open(pushbackInput);
+        }
+        return new HssfStatementSheet(new HSSFWorkbook(pushbackInput));
+    }
+
+    /**
+     * Whether a loan account belongs to a member of a group loan is looked up once per import. Setting
+     * <code>org.almajmoua.AudiBankXlsImporter.GroupLoanMemberCacheSeconds</code> keeps the answers for that many seconds
+     * instead, in a memo shared by the imports of every importer, until payments to the account are stored.
+     */
+    private GroupLoanMembers groupLoanMembers() {
+        final Object seconds = getAccountService().getMifosConfiguration(
+                AudiBankXlsImporter.class.getCanonicalName() + "." + GROUP_LOAN_MEMBER_CACHE_SECONDS);
+        final long timeToLiveMillis = seconds == null ? 0 : Long.parseLong(seconds.toString().trim()) * 1000;
+        if (timeToLiveMillis <= 0) {
+            return new GroupLoanMembers(0);
+        }
+        return GroupLoanMembers.shared(timeToLiveMillis);
+    }
+
+    private boolean isAggregatedValidationEnabled() {
+        return Boolean.parseBoolean(String.valueOf(getAccountService().getMifosConfiguration(
+                AudiBankXlsImporter.class.getCanonicalName() + "." + AGGREGATED_VALIDATION)).trim());
+    }
+
+    /**
+     * Payments are validated on the thread importing the statement, unless
+     * <code>org.almajmoua.AudiBankXlsImporter.ValidationThreads</code> is more than one. The account service must then
+     * be safe to call from that many threads at once, and should have a database connection for each.
+     */
+    private int validationThreads() {
+        final Object threads = getAccountService().getMifosConfiguration(
+                AudiBankXlsImporter.class.getCanonicalName() + "." + VALIDATION_THREADS);
+        return threads == null ? 1 : Integer.parseInt(threads.toString().trim());
+    }
+
+    /**
+     * Builds the payment for a credit, and the payment of the running total for the account which it is validated as.
+     */
+    private void preparePayment(final StatementRow statementRow, final AccountReferenceDto account,
+            final MinorUnits minorUnits, final RunningTotalByAccount cumulativeAmountByAccount) {
+        if (statementRow.transDateFailure != null) {
+            throw statementRow.transDateFailure;
+        }
+        final LocalDate paymentDate = LocalDate.fromDateFields(statementRow.transDate);
+        final String serial = statementRow.serial;
+        final BigDecimal paymentAmount = minorUnits.toBigDecimal(statementRow.amount);
+        final BigDecimal totalPaymentAmountForAccount = minorUnits.toBigDecimal(cumulativeAmountByAccount.add(
+                account.getAccountId(), statementRow.amount));
+
+        AccountPaymentParametersDto cumulativePayment = new AccountPaymentParametersDto(
+                getUserReferenceDto(), account, totalPaymentAmountForAccount, paymentDate,
+                getPaymentTypeDto(), "serial=" + serial, serial);
+
+        AccountPaymentParametersDto payment = new AccountPaymentParametersDto(getUserReferenceDto(),
+                account, paymentAmount, paymentDate, getPaymentTypeDto(), "serial=" + serial, serial);
+
+        payment.addPaymentOption(AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS);
+        cumulativePayment.addPaymentOption(AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS);
+        statementRow.cumulativePayment = cumulativePayment;
+        statementRow.payment = payment;
+    }
+
+    /**
+     * Validates the payments of a statement account by account rather than row by row, when
+     * <code>org.almajmoua.AudiBankXlsImporter.AggregatedValidation</code> is <code>true</code> or validation is spread
+     * over several threads. Rows which would fail before validation are left alone, as are all rows from the first one
+     * which can not be read.
+     * <p>
+     * Payments to one account only depend on each other through the running total, which is worked out here in row
+     * order, so the accounts can then be validated in any order and at the same time. The outcome is kept on each row,
+     * and read back in row order as the statement is imported.
+     */
+    private void validateByAccount(final List<StatementRow> statementRows, final AccountResolver accountResolver,
+            final MinorUnits minorUnits, final RunningTotalByAccount cumulativeAmountByAccount,
+            final boolean aggregated, final int threads) throws Exception {
+        final Map<Integer, List<StatementRow>> rowsByAccount = new LinkedHashMap<Integer, List<StatementRow>>();
+        for (StatementRow statementRow : statementRows) {
+            if (statementRow.exception != null) {
+                break;
+            }
+            if (statementRow.error != null || !accountResolver.isResolved(statementRow.accountId)) {
+                continue;
+            }
+            final AccountReferenceDto account = accountResolver.getAccount(statementRow.accountId);
+            if (account == null) {
+                break;
+            }
+            if (accountResolver.isGroupLoanMember(account) || !statementRow.hasTransDate) {
+                continue;
+            }
+            try {
+                preparePayment(statementRow, account, minorUnits, cumulativeAmountByAccount);
+            } catch (Exception e) {
+                // reported when the row is imported
+                break;
+            }
+            List<StatementRow> rows = rowsByAccount.get(account.getAccountId());
+            if (rows == null) {
+                rows = new ArrayList<StatementRow>();
+                rowsByAccount.put(account.getAccountId(), rows);
+            }
+            rows.add(statementRow);
+        }
+        if (threads > 1 && rowsByAccount.size() > 1) {
+            validateInParallel(rowsByAccount.values(), aggregated, threads);
+            return;
+        }
+        for (List<StatementRow> rows : rowsByAccount.values()) {
+            checkCancelled();
+            validateAccountOrLeaveIt(rows, aggregated);
+        }
+    }
+
+    /**
+     * Validates each account on a pool of at most the given number of threads, which is shut down once all are done.
+     */
+    private void validateInParallel(final Collection<List<StatementRow>> rowsByAccount, final boolean aggregated,
+            final int threads) throws InterruptedException, ExecutionException {
+        final ExecutorService executor = DaemonThreads.newFixedPool("audi-bank-validation",
+                Math.min(threads, rowsByAccount.size()));
+        try {
+            final List<Future<?>> validations = new ArrayList<Future<?>>(rowsByAccount.size());
+            for (final List<StatementRow> rows : rowsByAccount) {
+                validations.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        checkCancelled();
+                        validateAccountOrLeaveIt(rows, aggregated);
+                    }
+                }));
+            }
+            for (Future<?> validation : validations) {
+                // also makes what the validation stored on the rows visible to this thread
+                validation.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * If the account service fails while validating an account, its rows are left to be validated one at a time as the
+     * statement is imported, so that the failure is reported against the row it happens on.
+     */
+    private void validateAccountOrLeaveIt(final List<StatementRow> rows, final boolean aggregated) {
+        try {
+            validateAccount(rows, aggregated);
+        } catch (Exception e) {
+            for (StatementRow statementRow : rows) {
+                statementRow.errors = null;
+                statementRow.overpayment = null;
+            }
+        }
+    }
+
+    /**
+     * Validates the payments to one account. The final total is validated at the earliest and the latest date paid on,
+     * and checked for overpayment once. Only if it fails validation is every running total validated in turn, so that
+     * each error is reported against the row which causes it.
+     * <p>
+     * This relies on the account service accepting a smaller total whenever it accepts a larger one on the same date,
+     * and any date between two it accepts. Statements with credits of zero or less are validated row by row, as are all
+     * statements unless validation is aggregated.
+     */
+    private void validateAccount(final List<StatementRow> rows, final boolean aggregated) throws Exception {
+        final StatementRow last = rows.get(rows.size() - 1);
+        if (aggregated && rows.size() > 1 && allAmountsArePositive(rows) && finalTotalIsValid(rows)) {
+            for (StatementRow statementRow : rows) {
+                statementRow.errors = Collections.emptyList();
+                statementRow.overpayment = Boolean.FALSE;
+            }
+            if (getAccountService().doesTransactionIntroduceOverpayment(last.cumulativePayment)) {
+                // running totals only grow, so every payment from the first one which overpays does too
+                int low = 0;
+                int high = rows.size() - 1;
+                while (low < high) {
+                    int middle = (low + high) >>> 1;
+                    if (getAccountService().doesTransactionIntroduceOverpayment(rows.get(middle).cumulativePayment)) {
+                        high = middle;
+                    } else {
+                        low = middle + 1;
+                    }
+                }
+                for (int i = low; i < rows.size(); i++) {
+                    rows.get(i).overpayment = Boolean.TRUE;
+                }
+            }
+            return;
+        }
+        for (StatementRow statementRow : rows) {
+            statementRow.errors = getAccountService().validatePayment(statementRow.cumulativePayment);
+            statementRow.overpayment = statementRow.errors.isEmpty()
+                    && getAccountService().doesTransactionIntroduceOverpayment(statementRow.cumulativePayment);
+        }
+    }
+
+    private boolean allAmountsArePositive(final List<StatementRow> rows) {
+        for (StatementRow statementRow : rows) {
+            if (statementRow.amount <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean finalTotalIsValid(final List<StatementRow> rows) throws Exception {
+        final AccountPaymentParametersDto finalTotal = rows.get(rows.size() - 1).cumulativePayment;
+        LocalDate earliest = finalTotal.getPaymentDate();
+        LocalDate latest = finalTotal.getPaymentDate();
+        for (StatementRow statementRow : rows) {
+            final LocalDate paymentDate = statementRow.cumulativePayment.getPaymentDate();
+            if (paymentDate.isBefore(earliest)) {
+                earliest = paymentDate;
+            }
+            if (paymentDate.isAfter(latest)) {
+                latest = paymentDate;
+            }
+        }
+        for (LocalDate paymentDate : Arrays.asList(earliest, latest)) {
+            final AccountPaymentParametersDto payment;
+            if (paymentDate.equals(finalTotal.getPaymentDate())) {
+                payment = finalTotal;
+            } else {
+                payment = new AccountPaymentParametersDto(getUserReferenceDto(), finalTotal.getAccount(),
+                        finalTotal.getPaymentAmount(), paymentDate, getPaymentTypeDto(), finalTotal.getComment(),
+                        finalTotal.getReceiptId());
+                payment.addPaymentOption(AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS);
+            }
+            if (!getAccountService().validatePayment(payment).isEmpty()) {
+                return false;
+            }
+            if (earliest.equals(latest)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips the five rows at the top of a sheet, which come before the transactions.
+     *
+     * @return <code>false</code> if the sheet has no more rows than that
+     */
+    private static boolean skipHeadings(final Iterator<SheetRow> rowIterator) {
+        while (rowIterator.hasNext()) {
+            if (rowIterator.next().getRowNum() >= 4) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Statements of several branches or days may come as one workbook with a sheet for each. Sheets after the first
+     * are read if they name the same payment type in their top left cell, and skipped otherwise, so that sheets of
+     * totals or notes do not stop the import.
+     *
+     * @return the rows of the transactions of the next sheet holding some, with the statement moved on to that sheet,
+     *         or <code>null</code> if there are no more
+     */
+    private static Iterator<SheetRow> nextDataSheet(final StatementSheet sheet, final String paymentTypeName) {
+        while (sheet.nextSheet()) {
+            final SheetRow firstRow = sheet.getFirstRow();
+            if (firstRow == null || !firstRow.hasCell(0) || !firstRow.isText(0)
+                    || !paymentTypeName.equals(firstRow.getString(0))) {
+                continue;
+            }
+            final Iterator<SheetRow> rowIterator = sheet.iterator();
+            if (skipHeadings(rowIterator)) {
+                return rowIterator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the credits of a sheet into the rows of the statement. Rows of the first sheet are numbered as in a
+     * statement of a single sheet; rows of later sheets are numbered after the name of their sheet, such as
+     * <code>Branch 2:7</code>, so that errors tell the sheet they were found on. The account ids of the credits are
+     * queued with the resolver, and problems found on the way are kept on the row, so that they are reported in row
+     * order along with those found once the accounts are known.
+     * <p>
+     * The rows of a sheet are streamed, but a {@link StatementRow} is kept for each credit read until the statement
+     * has been validated, so the memory taken still grows with the number of credits, if more slowly than the sheet.
+     *
+     * @param sheetName
+     *            name of the sheet, or <code>null</code> for the first sheet
+     * @return <code>false</code> if a row could not be read, in which case no more rows of the statement are
+     */
+    private boolean readCredits(final Iterator<SheetRow> rowIterator, final String sheetName,
+            final MinorUnits minorUnits, final AccountResolver accountResolver, final ResourceBundle messages,
+            final List<StatementRow> statementRows) {
+        while (rowIterator.hasNext()) {
+            rowRead();
+            final SheetRow row = rowIterator.next();
+            final String rowNum = String.valueOf(row.getRowNum() + 1);
+            final StatementRow statementRow = new StatementRow(sheetName == null ? rowNum : sheetName + ":" + rowNum);
+            try {
+                if (!readCredit(row, statementRow, minorUnits, messages) || !isRowSampled()) {
+                    continue;
+                }
+            } catch (Exception e) {
+                // reported once the rows before this one have been validated, as if read in a single pass
+                statementRow.exception = e;
+                statementRows.add(statementRow);
+                return false;
+            }
+            statementRows.add(statementRow);
+            if (statementRow.error == null) {
+                accountResolver.add(statementRow.accountId);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>false</code> if the row is blank or not a credit
+     */
+    private boolean readCredit(final SheetRow row, final StatementRow statementRow, final MinorUnits minorUnits,
+            final ResourceBundle messages) {
+        final String friendlyRowNum = statementRow.friendlyRowNum;
+
+        if (row.isBlank(0)) {
+            /*
+             * Justification: this is similar to skipping blank input lines in a text file.
+             */
+            return false;
+        }
+
+        if (row.getLastCellNum() < MAX_CELL_NUM) {
+            statementRow.error = String.format(messages.getString(AudiBankConstants.NOT_ENOUGH_FIELDS), friendlyRowNum);
+            return true;
+        }
+
+        String debitOrCredit = null;
+        if (row.hasCell(DEBIT_OR_CREDIT)) {
+            debitOrCredit = row.getString(DEBIT_OR_CREDIT).trim();
+            if (StringUtils.isBlank(debitOrCredit)) {
+                debitOrCredit = null;
+            } else {
+                if (!debitOrCredit.equalsIgnoreCase("C")) {
+                    /* not a credit: ignore */
+                    return false;
+                }
+            }
+        }
+        if (null == debitOrCredit) {
+            statementRow.error = String.format(messages.getString(AudiBankConstants.DEBIT_CREDIT_NOT_SPECIFIED), friendlyRowNum);
+            return true;
+        }
+
+        String accountId = "";
+        if (row.hasCell(DESCRIPTION)) {
+            accountId = getAccountId(row.getString(DESCRIPTION));
+        }
+
+        if ("".equals(accountId)) {
+            statementRow.error = messages.getString(AudiBankConstants.LOAN_ACCOUNT_ID_COULD_NOT_BE_EXTRACTED) + " " + friendlyRowNum;
+            return true;
+        }
+
+        String serial = null;
+        if (row.hasCell(SERIAL)) {
+            String serialNumericValue = row.getText(SERIAL);
+            if (null != serialNumericValue) {
+                serial = "" + serialNumericValue;
+            }
+        }
+        if (null == serial) {
+            statementRow.error = String.format(messages.getString(AudiBankConstants.INVALID_FORMAT_SERIAL), friendlyRowNum);
+            return true;
+        }
+
+        if (!row.hasCell(AMOUNT)) {
+            statementRow.error = messages.getString(AudiBankConstants.INVALID_AMOUNT) + " " + friendlyRowNum;
+            return true;
+        }
+        final long paymentAmount = minorUnits.fromDouble(row.getNumber(AMOUNT));
+        if (paymentAmount == MinorUnits.INVALID) {
+            statementRow.error = messages.getString(AudiBankConstants.INVALID_NUMBER_OF_DECIMALS) + " " + friendlyRowNum;
+            return true;
+        }
+
+        statementRow.accountId = accountId;
+        statementRow.serial = serial;
+        statementRow.amount = paymentAmount;
+        statementRow.hasTransDate = row.hasCell(TRANS_DATE);
+        if (statementRow.hasTransDate) {
+            try {
+                statementRow.transDate = row.getDate(TRANS_DATE);
+            } catch (RuntimeException e) {
+                // reported when the payment is prepared, once the account is known
+                statementRow.transDateFailure = e;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A credit as read from the statement, or the problem which prevents it from being imported. Only what is needed
+     * from the row is kept, so that rows streamed from an Excel 2007 statement need not be held.
+     */
+    private static class StatementRow {
+        final String friendlyRowNum;
+        String error;
+        Exception exception;
+        String accountId;
+        String serial;
+        long amount;
+        boolean hasTransDate;
+        Date transDate;
+        RuntimeException transDateFailure;
+        AccountPaymentParametersDto cumulativePayment;
+        AccountPaymentParametersDto payment;
+        /** Outcome of validating {@link #cumulativePayment}, if already known. */
+        List<InvalidPaymentReason> errors;
+        Boolean overpayment;
+
+        StatementRow(String friendlyRowNum) {
+            this.friendlyRowNum = friendlyRowNum;
+        }
     }
 }
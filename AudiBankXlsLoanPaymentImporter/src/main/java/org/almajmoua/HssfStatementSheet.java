@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+
+package org.almajmoua;
+
+import java.util.Date;
+import java.util.Iterator;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+
+/**
+ * A statement in the Excel 97 (.xls) format, read into memory as a whole by HSSF.
+ */
+final class HssfStatementSheet implements StatementSheet {
+
+    private final HSSFWorkbook workbook;
+    private int sheetIndex;
+    private HSSFSheet sheet;
+
+    HssfStatementSheet(HSSFWorkbook workbook) {
+        this.workbook = workbook;
+        this.sheet = workbook.getSheetAt(0);
+    }
+
+    @Override
+    public SheetRow getFirstRow() {
+        final Row row = sheet.getRow(0);
+        return row == null ? null : new HssfRow(row);
+    }
+
+    @Override
+    public String getName() {
+        return workbook.getSheetName(sheetIndex);
+    }
+
+    @Override
+    public boolean nextSheet() {
+        if (sheetIndex + 1 >= workbook.getNumberOfSheets()) {
+            return false;
+        }
+        sheet = workbook.getSheetAt(++sheetIndex);
+        return true;
+    }
+
+    @Override
+    public Iterator<SheetRow> iterator() {
+        final Iterator<Row> rows = sheet.iterator();
+        return new Iterator<SheetRow>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public SheetRow next() {
+                return new HssfRow(rows.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+    private static final class HssfRow implements SheetRow {
+        private final Row row;
+
+        HssfRow(Row row) {
+            this.row = row;
+        }
+
+        @Override
+        public int getRowNum() {
+            return row.getRowNum();
+        }
+
+        @Override
+        public int getLastCellNum() {
+            return row.getLastCellNum();
+        }
+
+        @Override
+        public boolean hasCell(int column) {
+            return row.getCell(column) != null;
+        }
+
+        @Override
+        public boolean isText(int column) {
+            return row.getCell(column).getCellType() == Cell.CELL_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isBlank(int column) {
+            final Cell cell = row.getCell(column);
+            return null == cell || StringUtils.isBlank(cell.toString());
+        }
+
+        @Override
+        public String getString(int column) {
+            return row.getCell(column).getStringCellValue();
+        }
+
+        @Override
+        public String getText(int column) {
+            final Cell cell = row.getCell(column);
+            cell.setCellType(Cell.CELL_TYPE_STRING);
+            return cell.getStringCellValue();
+        }
+
+        @Override
+        public double getNumber(int column) {
+            return row.getCell(column).getNumericCellValue();
+        }
+
+        @Override
+        public Date getDate(int column) {
+            return row.getCell(column).getDateCellValue();
+        }
+    }
+}
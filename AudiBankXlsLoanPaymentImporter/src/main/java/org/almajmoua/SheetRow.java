@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+
+package org.almajmoua;
+
+import java.util.Date;
+
+/**
+ * A row of a {@link StatementSheet}. Cells are addressed by their zero based column, and read the way the POI
+ * usermodel reads them: asking a text cell for a number, for instance, throws an {@link IllegalStateException}.
+ */
+interface SheetRow {
+
+    /**
+     * @return zero based index of the row in the sheet
+     */
+    int getRowNum();
+
+    /**
+     * @return one more than the column of the last cell in the row, or -1 if the row has no cells
+     */
+    int getLastCellNum();
+
+    boolean hasCell(int column);
+
+    /**
+     * @return whether the cell holds text, as opposed to a number, a formula or nothing
+     */
+    boolean isText(int column);
+
+    /**
+     * @return whether the cell is missing or shows nothing but white space
+     */
+    boolean isBlank(int column);
+
+    /**
+     * @return the text held by the cell, or that of the formula result
+     */
+    String getString(int column);
+
+    /**
+     * @return whatever the cell holds, as text, in the way Excel shows a number in a cell formatted as text
+     */
+    String getText(int column);
+
+    double getNumber(int column);
+
+    /**
+     * @return the date held by the cell, or <code>null</code> if the cell is blank
+     */
+    Date getDate(int column);
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+
+package org.almajmoua;
+
+/**
+ * The sheets of a Bank Audi statement, read from either an Excel 97 (.xls) or an Excel 2007 (.xlsx) file one after
+ * another, starting with the first. Rows come in the order they are stored in, and only rows holding something are
+ * returned.
+ */
+interface StatementSheet extends Iterable<SheetRow> {
+
+    /**
+     * @return the first row of the current sheet, or <code>null</code> if the sheet has nothing in it
+     */
+    SheetRow getFirstRow();
+
+    /**
+     * @return the name of the current sheet
+     */
+    String getName();
+
+    /**
+     * Moves on to the next sheet of the workbook, whose rows are then returned by {@link #getFirstRow()} and
+     * {@link #iterator()}.
+     *
+     * @return <code>false</code> if the current sheet was the last one
+     */
+    boolean nextSheet();
+
+    /**
+     * Releases whatever was needed to read the sheets.
+     */
+    void close();
+}
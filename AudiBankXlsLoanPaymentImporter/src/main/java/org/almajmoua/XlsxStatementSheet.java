@@ -0,0 +1,559 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+
+package org.almajmoua;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.poi.POIXMLException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+
+/**
+ * A statement in the Excel 2007 (.xlsx) format, read a row at a time from the XML of the sheet rather than through
+ * <code>XSSFWorkbook</code>, which would hold every cell of the workbook in memory. Of the sheet, only the current row
+ * and the shared strings of the workbook are kept; the statement is copied to a temporary file on disk, so that its
+ * parts can be read from the zip file in whatever order they were stored. What the importer keeps of the rows it is
+ * handed is up to it.
+ * <p>
+ * Cells read the way the POI usermodel reads them, so that a statement gives the same payments and errors in either
+ * format.
+ */
+final class XlsxStatementSheet implements StatementSheet {
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+    /** Kinds of cell. Formula results are kinds of their own, since the usermodel treats them differently. */
+    private static final char MISSING = 0;
+    private static final char BLANK = 'z';
+    private static final char NUMBER = 'n';
+    private static final char TEXT = 's';
+    private static final char BOOLEAN = 'b';
+    private static final char ERROR = 'e';
+    private static final char NUMBER_FORMULA = 'N';
+    private static final char TEXT_FORMULA = 'S';
+    private static final char BOOLEAN_FORMULA = 'B';
+    private static final char ERROR_FORMULA = 'E';
+
+    private final File file;
+    private OPCPackage zip;
+    private XSSFReader.SheetIterator sheets;
+    private String sheetName;
+    private InputStream sheetData;
+    private XMLStreamReader sheet;
+    private boolean date1904;
+    private List<String> sharedStrings;
+
+    private XlsxRow pending;
+    private int lastRowNum = -1;
+    private boolean iterated;
+
+    /**
+     * Statements are uploaded by users, so their XML may not declare a document type, let alone entities that would
+     * read files or URLs of the server.
+     */
+    private static XMLInputFactory newXmlInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    private XlsxStatementSheet(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Copies the statement to a temporary file, which is deleted when the sheet is closed.
+     */
+    static XlsxStatementSheet open(InputStream input) throws IOException {
+        final File file = File.createTempFile("statement", ".xlsx");
+        final XlsxStatementSheet statement = new XlsxStatementSheet(file);
+        try {
+            final OutputStream output = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+            statement.open();
+        } catch (IOException e) {
+            statement.close();
+            throw e;
+        } catch (RuntimeException e) {
+            statement.close();
+            throw e;
+        } catch (Exception e) {
+            statement.close();
+            throw new POIXMLException(e);
+        }
+        return statement;
+    }
+
+    private void open() throws Exception {
+        zip = OPCPackage.open(file.getPath(), PackageAccess.READ);
+        final XSSFReader reader = new XSSFReader(zip);
+        date1904 = readDate1904(reader.getWorkbookData());
+        sharedStrings = readSharedStrings(reader.getSharedStringsData());
+        sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+        if (!nextSheet()) {
+            throw new POIXMLException("The workbook has no sheets");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return sheetName;
+    }
+
+    /**
+     * Rows of the sheets before are no longer read, even if they were not all asked for.
+     */
+    @Override
+    public boolean nextSheet() {
+        if (sheets == null || !sheets.hasNext()) {
+            return false;
+        }
+        closeSheet();
+        sheetData = sheets.next();
+        sheetName = sheets.getSheetName();
+        try {
+            sheet = XML_INPUT_FACTORY.createXMLStreamReader(sheetData);
+        } catch (XMLStreamException e) {
+            throw new POIXMLException(e);
+        }
+        pending = null;
+        lastRowNum = -1;
+        iterated = false;
+        return true;
+    }
+
+    @Override
+    public SheetRow getFirstRow() {
+        if (pending == null && !iterated) {
+            pending = readRow();
+        }
+        return pending != null && pending.getRowNum() == 0 ? pending : null;
+    }
+
+    /**
+     * Rows can only be read once, so only one iterator may be asked for.
+     */
+    @Override
+    public Iterator<SheetRow> iterator() {
+        if (iterated) {
+            throw new IllegalStateException("The rows of the statement have already been read");
+        }
+        iterated = true;
+        return new Iterator<SheetRow>() {
+            @Override
+            public boolean hasNext() {
+                if (pending == null) {
+                    pending = readRow();
+                }
+                return pending != null;
+            }
+
+            @Override
+            public SheetRow next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final XlsxRow row = pending;
+                pending = null;
+                return row;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        closeSheet();
+        if (zip != null) {
+            zip.revert();
+        }
+        sheets = null;
+        zip = null;
+        file.delete();
+    }
+
+    private void closeSheet() {
+        try {
+            if (sheet != null) {
+                sheet.close();
+            }
+            if (sheetData != null) {
+                sheetData.close();
+            }
+        } catch (Exception e) {
+            // nothing more to read
+        }
+        sheet = null;
+        sheetData = null;
+    }
+
+    /**
+     * @return the next row of the sheet, or <code>null</code> after the last one
+     */
+    private XlsxRow readRow() {
+        if (sheet == null) {
+            return null;
+        }
+        try {
+            while (sheet.hasNext()) {
+                if (sheet.next() == XMLStreamConstants.START_ELEMENT && "row".equals(sheet.getLocalName())) {
+                    final String reference = sheet.getAttributeValue(null, "r");
+                    lastRowNum = reference == null ? lastRowNum + 1 : Integer.parseInt(reference) - 1;
+                    return readCells(new XlsxRow(lastRowNum));
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new POIXMLException(e);
+        }
+    }
+
+    private XlsxRow readCells(XlsxRow row) throws XMLStreamException {
+        int column = -1;
+        while (sheet.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!"c".equals(sheet.getLocalName())) {
+                skipElement();
+                continue;
+            }
+            final String reference = sheet.getAttributeValue(null, "r");
+            column = reference == null ? column + 1 : column(reference);
+            final String type = sheet.getAttributeValue(null, "t");
+            boolean formula = false;
+            String value = null;
+            while (sheet.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                final String name = sheet.getLocalName();
+                if ("v".equals(name)) {
+                    value = sheet.getElementText();
+                } else if ("is".equals(name)) {
+                    value = readString();
+                } else {
+                    if ("f".equals(name)) {
+                        formula = true;
+                    }
+                    skipElement();
+                }
+            }
+            row.add(column, value, type, formula);
+        }
+        return row;
+    }
+
+    /**
+     * Reads the text of a shared or inline string, which is either a single <code>t</code> or runs of them, leaving
+     * out any phonetic reading.
+     */
+    private static String readString(XMLStreamReader xml) throws XMLStreamException {
+        final StringBuilder text = new StringBuilder();
+        int depth = 1;
+        boolean phonetic = false;
+        while (depth > 0) {
+            switch (xml.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                if ("rPh".equals(xml.getLocalName())) {
+                    phonetic = true;
+                } else if (!phonetic && "t".equals(xml.getLocalName())) {
+                    text.append(xml.getElementText());
+                    depth--;
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                if ("rPh".equals(xml.getLocalName())) {
+                    phonetic = false;
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return text.toString();
+    }
+
+    private String readString() throws XMLStreamException {
+        return readString(sheet);
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (sheet.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static List<String> readSharedStrings(InputStream input) throws IOException, XMLStreamException {
+        final List<String> strings = new ArrayList<String>();
+        if (input == null) {
+            return strings;
+        }
+        try {
+            final XMLStreamReader xml = XML_INPUT_FACTORY.createXMLStreamReader(input);
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && "si".equals(xml.getLocalName())) {
+                    strings.add(readString(xml));
+                }
+            }
+            xml.close();
+        } finally {
+            input.close();
+        }
+        return strings;
+    }
+
+    private static boolean readDate1904(InputStream input) throws IOException, XMLStreamException {
+        try {
+            final XMLStreamReader xml = XML_INPUT_FACTORY.createXMLStreamReader(input);
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT) {
+                    if ("workbookPr".equals(xml.getLocalName())) {
+                        final String date1904 = xml.getAttributeValue(null, "date1904");
+                        return "1".equals(date1904) || "true".equals(date1904);
+                    }
+                    if ("sheets".equals(xml.getLocalName())) {
+                        break;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @return zero based column of a cell reference such as <code>AB12</code>
+     */
+    static int column(String reference) {
+        int column = 0;
+        for (int i = 0; i < reference.length(); i++) {
+            final char c = reference.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            column = column * 26 + c - 'A' + 1;
+        }
+        return column - 1;
+    }
+
+    private final class XlsxRow implements SheetRow {
+        private final int rowNum;
+        private char[] kinds = new char[0];
+        private String[] values = new String[0];
+        private int lastCellNum = -1;
+
+        XlsxRow(int rowNum) {
+            this.rowNum = rowNum;
+        }
+
+        void add(int column, String value, String type, boolean formula) {
+            if (column >= kinds.length) {
+                final int length = Math.max(column + 1, kinds.length * 2);
+                final char[] moreKinds = new char[length];
+                System.arraycopy(kinds, 0, moreKinds, 0, kinds.length);
+                kinds = moreKinds;
+                final String[] moreValues = new String[length];
+                System.arraycopy(values, 0, moreValues, 0, values.length);
+                values = moreValues;
+            }
+            char kind;
+            if ("s".equals(type)) {
+                kind = value == null ? BLANK : TEXT;
+                if (value != null) {
+                    value = sharedStrings.get(Integer.parseInt(value.trim()));
+                }
+            } else if ("inlineStr".equals(type)) {
+                kind = value == null ? BLANK : TEXT;
+            } else if ("str".equals(type)) {
+                kind = TEXT_FORMULA;
+            } else if ("b".equals(type)) {
+                kind = formula ? BOOLEAN_FORMULA : BOOLEAN;
+            } else if ("e".equals(type)) {
+                kind = formula ? ERROR_FORMULA : ERROR;
+            } else if (formula) {
+                kind = NUMBER_FORMULA;
+            } else {
+                kind = value == null ? BLANK : NUMBER;
+            }
+            if (value == null && kind != BLANK) {
+                // formula never calculated
+                value = kind == TEXT_FORMULA ? "" : "0";
+            }
+            kinds[column] = kind;
+            values[column] = value;
+            lastCellNum = Math.max(lastCellNum, column + 1);
+        }
+
+        @Override
+        public int getRowNum() {
+            return rowNum;
+        }
+
+        @Override
+        public int getLastCellNum() {
+            return lastCellNum;
+        }
+
+        @Override
+        public boolean hasCell(int column) {
+            return kind(column) != MISSING;
+        }
+
+        @Override
+        public boolean isText(int column) {
+            return kind(column) == TEXT;
+        }
+
+        @Override
+        public boolean isBlank(int column) {
+            final char kind = kind(column);
+            return kind == MISSING || kind == BLANK || (kind == TEXT && StringUtils.isBlank(values[column]));
+        }
+
+        @Override
+        public String getString(int column) {
+            switch (kind(column)) {
+            case BLANK:
+                return "";
+            case TEXT:
+            case TEXT_FORMULA:
+                return values[column];
+            default:
+                throw typeMismatch("text", column);
+            }
+        }
+
+        @Override
+        public String getText(int column) {
+            switch (kind(column)) {
+            case BLANK:
+                return "";
+            case NUMBER:
+            case NUMBER_FORMULA:
+                return NumberToTextConverter.toText(Double.parseDouble(values[column]));
+            case BOOLEAN:
+            case BOOLEAN_FORMULA:
+                return "1".equals(values[column]) ? "TRUE" : "FALSE";
+            case MISSING:
+                throw new NullPointerException("No cell in column " + column + " of row " + (rowNum + 1));
+            default:
+                return values[column];
+            }
+        }
+
+        @Override
+        public double getNumber(int column) {
+            switch (kind(column)) {
+            case BLANK:
+                return 0;
+            case NUMBER:
+            case NUMBER_FORMULA:
+                return Double.parseDouble(values[column]);
+            default:
+                throw typeMismatch("numeric", column);
+            }
+        }
+
+        @Override
+        public Date getDate(int column) {
+            switch (kind(column)) {
+            case BLANK:
+                return null;
+            case NUMBER:
+            case NUMBER_FORMULA:
+                return DateUtil.getJavaDate(Double.parseDouble(values[column]), date1904);
+            default:
+                throw typeMismatch("numeric", column);
+            }
+        }
+
+        private char kind(int column) {
+            return column < kinds.length ? kinds[column] : MISSING;
+        }
+
+        private RuntimeException typeMismatch(String wanted, int column) {
+            final String actual;
+            switch (kind(column)) {
+            case MISSING:
+                return new NullPointerException("No cell in column " + column + " of row " + (rowNum + 1));
+            case NUMBER:
+                actual = "numeric";
+                break;
+            case TEXT:
+                actual = "text";
+                break;
+            case BOOLEAN:
+                actual = "boolean";
+                break;
+            case ERROR:
+                actual = "error";
+                break;
+            case TEXT_FORMULA:
+                actual = "text formula";
+                break;
+            default:
+                actual = "formula";
+                break;
+            }
+            return new IllegalStateException("Cannot get a " + wanted + " value from a " + actual + " cell");
+        }
+    }
+}
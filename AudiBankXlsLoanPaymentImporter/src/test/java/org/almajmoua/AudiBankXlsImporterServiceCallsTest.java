@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.almajmoua;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.LookupCache;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.accounts.api.TransactionImport;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Upper bounds on the number of service round trips made while importing the Audi Bank fixtures. Every budget is
+ * expressed per data row or per import; a change which adds a call to the per-row path fails here just like a
+ * functional regression would. Lower a budget when a change removes calls, so that they stay removed.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AudiBankXlsImporterServiceCallsTest {
+    /** Number of credit rows in <code>audi_test.xls</code> and <code>audi_test_mifos_id.xls</code>. */
+    private static final int ROWS = 3;
+
+    TransactionImport transactionImport;
+    @Mock
+    AccountService accountService;
+    @Mock
+    AccountReferenceDto account;
+    @Mock
+    AccountReferenceDto accountFromGlobalAccountNum;
+    @Mock
+    UserReferenceDto userReferenceDto;
+    @Mock
+    PaymentTypeDto paymentTypeDto;
+
+    List<InvalidPaymentReason> noErrors = new ArrayList<InvalidPaymentReason>();
+
+    /**
+     * Would rather use {@link BeforeClass}, but this causes Mockito to throw an exception insisting that
+     * "MockitoRunner can only be used with Junit 4.4 or higher."
+     */
+    @Before
+    public void setUpBeforeMethod() throws Exception {
+        transactionImport = new AudiBankXlsImporter();
+        transactionImport.setAccountService(accountService);
+        transactionImport.setUserReferenceDto(userReferenceDto);
+        when(accountService.validatePayment(any(AccountPaymentParametersDto.class))).thenReturn(noErrors);
+        when(accountService.lookupLoanAccountReferenceFromId(anyInt())).thenReturn(account);
+        when(accountService.lookupLoanAccountReferenceFromExternalId(anyString())).thenReturn(account);
+        when(accountService.lookupLoanAccountReferenceFromGlobalAccountNumber(anyString())).thenReturn(
+                accountFromGlobalAccountNum);
+        when(accountService.getMifosConfiguration("Localization.LanguageCode")).thenReturn("EN");
+        when(accountService.getMifosConfiguration("Localization.CountryCode")).thenReturn("GB");
+        when(accountService.getMifosConfiguration("AccountingRules.DigitsAfterDecimal")).thenReturn("2");
+        when(accountFromGlobalAccountNum.getAccountId()).thenReturn(2);
+        when(paymentTypeDto.getName()).thenReturn("Bank Audi sal");
+        List<PaymentTypeDto> paymentTypeList = new ArrayList<PaymentTypeDto>();
+        paymentTypeList.add(paymentTypeDto);
+        when(accountService.getLoanPaymentTypes()).thenReturn(paymentTypeList);
+    }
+
+    /**
+     * Would rather use {@link AfterClass}, but this causes Mockito to throw an exception insisting that
+     * "MockitoRunner can only be used with Junit 4.4 or higher."
+     */
+    @After
+    public void tearDownAfterMethod() {
+        transactionImport = null;
+    }
+
+    private static int perRow(int calls) {
+        return calls * ROWS;
+    }
+
+    private ParseResultDto parse(String fixture) throws Exception {
+        String testDataFilename = this.getClass().getResource(fixture).getFile();
+        ParseResultDto result = transactionImport.parse(new FileInputStream(testDataFilename));
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(result.getSuccessfullyParsedPayments().size(), is(ROWS));
+        return result;
+    }
+
+    @Test
+    public void perImportLookupsAreMadeOnce() throws Exception {
+        parse("/audi_test.xls");
+        verify(accountService, atMost(1)).getMifosConfiguration("Localization.LanguageCode");
+        verify(accountService, atMost(1)).getMifosConfiguration("Localization.CountryCode");
+        verify(accountService, atMost(1)).getLoanPaymentTypes();
+    }
+
+    @Test
+    public void perRowLookupsStayWithinBudgetForExternalIds() throws Exception {
+        parse("/audi_test.xls");
+        verify(accountService, atMost(1)).getMifosConfiguration("AccountingRules.DigitsAfterDecimal");
+        verify(accountService, atMost(perRow(1))).lookupLoanAccountReferenceFromExternalId(anyString());
+        verify(accountService, never()).lookupLoanAccountReferenceFromId(anyInt());
+        verify(accountService, never()).lookupLoanAccountReferenceFromGlobalAccountNumber(anyString());
+        // every external ID resolves to the same mocked account
+        verify(accountService, atMost(1)).isAccountGroupLoanMember(anyInt());
+        verify(accountService, atMost(perRow(1))).validatePayment(any(AccountPaymentParametersDto.class));
+        verify(accountService, atMost(perRow(1))).doesTransactionIntroduceOverpayment(any(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void perRowLookupsStayWithinBudgetForMifosIds() throws Exception {
+        parse("/audi_test_mifos_id.xls");
+        // one row each for an external ID, a global account number and an internal ID
+        verify(accountService, atMost(1)).lookupLoanAccountReferenceFromExternalId(anyString());
+        verify(accountService, atMost(1)).lookupLoanAccountReferenceFromGlobalAccountNumber(anyString());
+        verify(accountService, atMost(1)).lookupLoanAccountReferenceFromId(anyInt());
+        // the global account number resolves to a second mocked account
+        verify(accountService, atMost(2)).isAccountGroupLoanMember(anyInt());
+        verify(accountService, atMost(perRow(1))).validatePayment(any(AccountPaymentParametersDto.class));
+        verify(accountService, atMost(perRow(1))).doesTransactionIntroduceOverpayment(any(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void eachDistinctAccountIsLookedUpOnce() throws Exception {
+        // two payments to each of 500 loans
+        ParseResultDto result = transactionImport.parse(new ByteArrayInputStream(
+                AudiBankXlsImporterAllocationTest.generateStatement(1000)));
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(result.getSuccessfullyParsedPayments().size(), is(1000));
+        verify(accountService, times(500)).lookupLoanAccountReferenceFromExternalId(anyString());
+    }
+
+    @Test
+    public void failedLookupIsReportedOnEveryRowButMadeOnce() throws Exception {
+        when(accountService.lookupLoanAccountReferenceFromExternalId(anyString())).thenThrow(
+                new RuntimeException("loan not found"));
+        ParseResultDto result = transactionImport.parse(new ByteArrayInputStream(
+                AudiBankXlsImporterAllocationTest.generateStatement(1000)));
+        assertThat(result.getParseErrors().size(), is(1000));
+        assertThat(result.getParseErrors().get(999).endsWith(" 1005: loan not found"), is(true));
+        assertThat(result.getSuccessfullyParsedPayments().size(), is(0));
+        verify(accountService, times(500)).lookupLoanAccountReferenceFromExternalId(anyString());
+    }
+
+    @Test
+    public void groupLoanMembershipIsCheckedAgainForEachImport() throws Exception {
+        parse("/audi_test.xls");
+        parse("/audi_test.xls");
+        verify(accountService, times(2)).isAccountGroupLoanMember(anyInt());
+    }
+
+    @Test
+    public void groupLoanMembershipCanBeRememberedAcrossImports() throws Exception {
+        when(accountService.getMifosConfiguration("org.almajmoua.AudiBankXlsImporter.GroupLoanMemberCacheSeconds"))
+                .thenReturn("600");
+        final List<Integer> accountIds = Arrays.asList(account.getAccountId(),
+                accountFromGlobalAccountNum.getAccountId());
+        LookupCache.shared().invalidateAccounts(accountIds);
+        parse("/audi_test.xls");
+        transactionImport = new AudiBankXlsImporter();
+        transactionImport.setAccountService(accountService);
+        transactionImport.setUserReferenceDto(userReferenceDto);
+        parse("/audi_test.xls");
+        verify(accountService, times(1)).isAccountGroupLoanMember(anyInt());
+
+        // storing payments to the account may change its membership
+        LookupCache.shared().invalidateAccounts(accountIds);
+        parse("/audi_test.xls");
+        verify(accountService, times(2)).isAccountGroupLoanMember(anyInt());
+    }
+
+    @Test
+    public void aggregatedValidationValidatesEachAccountOnce() throws Exception {
+        when(accountService.getMifosConfiguration("org.almajmoua.AudiBankXlsImporter.AggregatedValidation"))
+                .thenReturn("true");
+        // every row pays the one mocked account, on the same day
+        ParseResultDto result = transactionImport.parse(new ByteArrayInputStream(
+                AudiBankXlsImporterAllocationTest.generateStatement(1000)));
+        assertThat(result.getSuccessfullyParsedPayments().size(), is(1000));
+        verify(accountService, times(1)).validatePayment(any(AccountPaymentParametersDto.class));
+        verify(accountService, times(1)).doesTransactionIntroduceOverpayment(any(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void storeReusesTheParseAndPostsPaymentsInBatches() throws Exception {
+        when(accountService.getMifosConfiguration("org.almajmoua.AudiBankXlsImporter.PaymentBatchSize")).thenReturn("300");
+        byte[] statement = AudiBankXlsImporterAllocationTest.generateStatement(1000);
+        transactionImport.parse(new ByteArrayInputStream(statement));
+        transactionImport.storeForUndoImport(new ByteArrayInputStream(statement));
+        // lookups were only made while parsing
+        verify(accountService, times(500)).lookupLoanAccountReferenceFromExternalId(anyString());
+        verify(accountService, times(4)).makePaymentsForImport(anyListOf(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void storeParsesAFileNotParsedBefore() throws Exception {
+        byte[] statement = AudiBankXlsImporterAllocationTest.generateStatement(1000);
+        transactionImport.parse(new ByteArrayInputStream(AudiBankXlsImporterAllocationTest.generateStatement(10)));
+        transactionImport.store(new ByteArrayInputStream(statement));
+        verify(accountService, times(10 + 500)).lookupLoanAccountReferenceFromExternalId(anyString());
+        verify(accountService, times(2)).makePayments(anyListOf(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void parsingNeverWrites() throws Exception {
+        parse("/audi_test.xls");
+        verify(accountService, never()).makePayments(anyListOf(AccountPaymentParametersDto.class));
+        verify(accountService, never()).makePaymentsForImport(anyListOf(AccountPaymentParametersDto.class));
+        verify(accountService, never()).disburseLoans(anyListOf(AccountPaymentParametersDto.class), any(Locale.class));
+    }
+}
@@ -21,6 +21,7 @@
 package org.almajmoua;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
@@ -28,10 +29,26 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -47,7 +64,9 @@ import org.mifos.dto.domain.ParseResultDto;
 import org.mifos.dto.domain.PaymentTypeDto;
 import org.mifos.dto.domain.UserReferenceDto;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AudiBankXlsImporterTest {
@@ -135,4 +154,248 @@ public class AudiBankXlsImporterTest {
         assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(1));
         assertThat(result.getParseErrors().toString(), result.getParseErrors().get(0), containsString("Invalid number of decimal in amount in row"));
     }
+
+    @Test
+    public void aggregatedValidationGivesTheSameResultAsPerRowValidation() throws Exception {
+        byte[] statement = AudiBankXlsImporterAllocationTest.generateStatement(2000);
+        refuseLargeTotalsToEveryThirdLoan();
+        ParseResultDto perRow = transactionImport.parse(new ByteArrayInputStream(statement));
+
+        when(accountService.getMifosConfiguration("org.almajmoua.AudiBankXlsImporter.AggregatedValidation"))
+                .thenReturn("true");
+        ParseResultDto aggregated = transactionImport.parse(new ByteArrayInputStream(statement));
+
+        assertThat(perRow.getParseErrors().isEmpty(), is(false));
+        assertThat(perRow.getNumberOfOverpayments() > 0, is(true));
+        assertSameResult(aggregated, perRow);
+    }
+
+    @Test
+    public void parallelValidationGivesTheSameResultAsSequentialValidation() throws Exception {
+        byte[] statement = AudiBankXlsImporterAllocationTest.generateStatement(2000);
+        refuseLargeTotalsToEveryThirdLoan();
+        ParseResultDto sequential = transactionImport.parse(new ByteArrayInputStream(statement));
+
+        when(accountService.getMifosConfiguration("org.almajmoua.AudiBankXlsImporter.ValidationThreads"))
+                .thenReturn("4");
+        assertSameResult(transactionImport.parse(new ByteArrayInputStream(statement)), sequential);
+
+        when(accountService.getMifosConfiguration("org.almajmoua.AudiBankXlsImporter.AggregatedValidation"))
+                .thenReturn("true");
+        assertSameResult(transactionImport.parse(new ByteArrayInputStream(statement)), sequential);
+    }
+
+    /**
+     * Four payments to each of 500 loans: the accounts of every third loan refuse totals over 500, and totals over 400
+     * overpay.
+     */
+    private void refuseLargeTotalsToEveryThirdLoan() throws Exception {
+        when(accountService.lookupLoanAccountReferenceFromExternalId(anyString())).thenAnswer(
+                new Answer<AccountReferenceDto>() {
+                    @Override
+                    public AccountReferenceDto answer(InvocationOnMock invocation) {
+                        return new AccountReferenceDto(Integer.parseInt((String) invocation.getArguments()[0]));
+                    }
+                });
+        when(accountService.validatePayment(any(AccountPaymentParametersDto.class))).thenAnswer(
+                new Answer<List<InvalidPaymentReason>>() {
+                    @Override
+                    public List<InvalidPaymentReason> answer(InvocationOnMock invocation) {
+                        AccountPaymentParametersDto payment = (AccountPaymentParametersDto) invocation.getArguments()[0];
+                        if (payment.getAccount().getAccountId() % 3 == 0
+                                && payment.getPaymentAmount().compareTo(new BigDecimal("500")) > 0) {
+                            return Arrays.asList(InvalidPaymentReason.INVALID_PAYMENT_AMOUNT);
+                        }
+                        return noErrors;
+                    }
+                });
+        when(accountService.doesTransactionIntroduceOverpayment(any(AccountPaymentParametersDto.class))).thenAnswer(
+                new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        AccountPaymentParametersDto payment = (AccountPaymentParametersDto) invocation.getArguments()[0];
+                        return payment.getPaymentAmount().compareTo(new BigDecimal("400")) > 0;
+                    }
+                });
+    }
+
+    private static void assertSameResult(ParseResultDto actual, ParseResultDto expected) {
+        assertThat(actual.getParseErrors(), is(expected.getParseErrors()));
+        assertThat(actual.getNumberOfOverpayments(), is(expected.getNumberOfOverpayments()));
+        assertThat(actual.getSuccessfullyParsedPayments().size(), is(expected.getSuccessfullyParsedPayments().size()));
+        for (int i = 0; i < expected.getSuccessfullyParsedPayments().size(); i++) {
+            assertThat(actual.getSuccessfullyParsedPayments().get(i).getReceiptId(), is(expected
+                    .getSuccessfullyParsedPayments().get(i).getReceiptId()));
+            assertThat(actual.getSuccessfullyParsedPayments().get(i).getPaymentAmount(), is(expected
+                    .getSuccessfullyParsedPayments().get(i).getPaymentAmount()));
+        }
+    }
+
+    @Test
+    public void xlsxStatementGivesTheSameResultAsXls() throws Exception {
+        for (String statement : Arrays.asList("/audi_test.xls", "/audi_test_mifos_id.xls", "/missing_serial.xls",
+                "/invalid_number_of_decimals.xls")) {
+            String testDataFilename = this.getClass().getResource(statement).getFile();
+            ParseResultDto xls = transactionImport.parse(new FileInputStream(testDataFilename));
+            ParseResultDto xlsx = transactionImport.parse(new ByteArrayInputStream(toXlsx(new FileInputStream(
+                    testDataFilename))));
+
+            assertThat(statement, xlsx.getParseErrors(), is(xls.getParseErrors()));
+            assertThat(statement, xlsx.getSuccessfullyParsedPayments().size(), is(xls.getSuccessfullyParsedPayments()
+                    .size()));
+            for (int i = 0; i < xls.getSuccessfullyParsedPayments().size(); i++) {
+                AccountPaymentParametersDto expected = xls.getSuccessfullyParsedPayments().get(i);
+                AccountPaymentParametersDto actual = xlsx.getSuccessfullyParsedPayments().get(i);
+                assertThat(statement, actual.getReceiptId(), is(expected.getReceiptId()));
+                assertThat(statement, actual.getPaymentAmount(), is(expected.getPaymentAmount()));
+                assertThat(statement, actual.getPaymentDate(), is(expected.getPaymentDate()));
+                assertThat(statement, actual.getAccount(), is(expected.getAccount()));
+            }
+        }
+    }
+
+    @Test
+    public void xlsxStatementWithoutPaymentTypeIsRejected() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        workbook.createSheet().createRow(0).createCell(0).setCellValue(42);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        workbook.write(output);
+        ParseResultDto result = transactionImport.parse(new ByteArrayInputStream(output.toByteArray()));
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(1));
+        assertThat(result.getSuccessfullyParsedPayments().isEmpty(), is(true));
+    }
+
+    @Test
+    public void everySheetNamingThePaymentTypeIsImported() throws Exception {
+        String testDataFilename = this.getClass().getResource("/missing_serial.xls").getFile();
+        ParseResultDto single = transactionImport.parse(new FileInputStream(testDataFilename));
+        Sheet statement = new HSSFWorkbook(new FileInputStream(testDataFilename)).getSheetAt(0);
+        for (Workbook workbook : Arrays.<Workbook> asList(new HSSFWorkbook(), new XSSFWorkbook())) {
+            copySheet(statement, workbook.createSheet("Branch 1"));
+            workbook.createSheet("Notes").createRow(0).createCell(0).setCellValue("Totals");
+            copySheet(statement, workbook.createSheet("Branch 2"));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            workbook.write(output);
+            ParseResultDto result = transactionImport.parse(new ByteArrayInputStream(output.toByteArray()));
+
+            int errors = single.getParseErrors().size();
+            assertThat(errors > 0, is(true));
+            assertThat(result.getSuccessfullyParsedPayments().size(), is(2 * single.getSuccessfullyParsedPayments()
+                    .size()));
+            assertThat(result.getParseErrors().size(), is(2 * errors));
+            assertThat(result.getParseErrors().subList(0, errors), is(single.getParseErrors()));
+            for (String error : result.getParseErrors().subList(errors, 2 * errors)) {
+                assertThat(error, containsString("Branch 2:"));
+            }
+        }
+    }
+
+    @Test
+    public void emptyStatementIsAnError() throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        workbook.createSheet();
+        ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+        workbook.write(xlsx);
+        ParseResultDto result = transactionImport.parse(new ByteArrayInputStream(xlsx.toByteArray()));
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(1));
+        assertThat(result.getSuccessfullyParsedPayments().isEmpty(), is(true));
+    }
+
+    @Test
+    public void xlsxStatementDoesNotReadExternalEntities() throws Exception {
+        File secret = File.createTempFile("secret", ".txt");
+        try {
+            FileOutputStream output = new FileOutputStream(secret);
+            output.write("SECRET-4242".getBytes("UTF-8"));
+            output.close();
+            XSSFWorkbook workbook = new XSSFWorkbook();
+            workbook.createSheet().createRow(0).createCell(0).setCellValue("PLACEHOLDER");
+            ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+            workbook.write(xlsx);
+            byte[] statement = withEntity(xlsx.toByteArray(), "xl/sharedStrings.xml", "sst", "PLACEHOLDER",
+                    secret.toURI().toString());
+
+            StatementSheet sheet;
+            try {
+                sheet = XlsxStatementSheet.open(new ByteArrayInputStream(statement));
+            } catch (RuntimeException e) {
+                // refusing the document type is as good as ignoring it
+                assertThat(String.valueOf(e.getMessage()), not(containsString("SECRET")));
+                return;
+            }
+            try {
+                assertThat(sheet.getFirstRow().getText(0), not(containsString("SECRET")));
+            } finally {
+                sheet.close();
+            }
+        } finally {
+            secret.delete();
+        }
+    }
+
+    /**
+     * Rewrites a part of an Excel 2007 workbook to declare an external entity, and refer to it in place of the text.
+     */
+    private static byte[] withEntity(byte[] xlsx, String part, String rootElement, String text, String entityUri)
+            throws Exception {
+        ZipInputStream input = new ZipInputStream(new ByteArrayInputStream(xlsx));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream output = new ZipOutputStream(bytes);
+        for (ZipEntry entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
+            ByteArrayOutputStream contents = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                contents.write(buffer, 0, read);
+            }
+            byte[] data = contents.toByteArray();
+            if (entry.getName().equals(part)) {
+                String xml = new String(data, "UTF-8");
+                int prolog = xml.startsWith("<?xml") ? xml.indexOf("?>") + 2 : 0;
+                xml = xml.substring(0, prolog) + "<!DOCTYPE " + rootElement + " [<!ENTITY xxe SYSTEM \"" + entityUri
+                        + "\">]>" + xml.substring(prolog).replace(text, "&xxe;");
+                data = xml.getBytes("UTF-8");
+            }
+            output.putNextEntry(new ZipEntry(entry.getName()));
+            output.write(data);
+            output.closeEntry();
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Saves the first sheet of an Excel 97 statement as an Excel 2007 one.
+     */
+    private static byte[] toXlsx(InputStream xls) throws Exception {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        copySheet(new HSSFWorkbook(xls).getSheetAt(0), workbook.createSheet());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        workbook.write(output);
+        return output.toByteArray();
+    }
+
+    private static void copySheet(Sheet from, Sheet to) {
+        for (Row row : from) {
+            Row copy = to.createRow(row.getRowNum());
+            for (Cell cell : row) {
+                Cell cellCopy = copy.createCell(cell.getColumnIndex(), cell.getCellType());
+                switch (cell.getCellType()) {
+                case Cell.CELL_TYPE_NUMERIC:
+                    cellCopy.setCellValue(cell.getNumericCellValue());
+                    break;
+                case Cell.CELL_TYPE_STRING:
+                    cellCopy.setCellValue(cell.getStringCellValue());
+                    break;
+                case Cell.CELL_TYPE_BOOLEAN:
+                    cellCopy.setCellValue(cell.getBooleanCellValue());
+                    break;
+                case Cell.CELL_TYPE_FORMULA:
+                    cellCopy.setCellFormula(cell.getCellFormula());
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+    }
 }
@@ -14,12 +14,14 @@ def lineNum = 2 // since we skipped the first line
 def errorsList = []
 def payments = []
 input.each { line ->
+    monitor.rowRead()
     def (dateString, accountId, amount, serial) = line.split(",")
     def paymentDate = LocalDate.fromDateFields(Date.parse("yyyy-MM-dd", dateString))
     def account = parent.accountService.lookupLoanAccountReferenceFromGlobalAccountNumber(accountId)
     def paymentAmount = new BigDecimal(amount)
     def payment = new AccountPaymentParametersDto(parent.userReferenceDto,
         account, paymentAmount, paymentDate, paymentType, "serial=" + serial)
+    monitor.rowValidated()
     def errors = parent.accountService.validatePayment(payment)
     if (!errors.isEmpty()) {
         errors.each { error -> errorsList.add("error on line " + lineNum + ": " + error) }
@@ -27,6 +27,17 @@ import java.util.List;
 
 import groovy.lang.Binding;
 import groovy.util.GroovyScriptEngine;
+import org.mifos.BatchedStore;
+import org.mifos.CachedServices;
+import org.mifos.CancellationToken;
+import org.mifos.ImportCancelledException;
+import org.mifos.ImportMonitor;
+import org.mifos.ImportProgressListener;
+import org.mifos.ImportUndo;
+import org.mifos.PartiallyStoredImportException;
+import org.mifos.SpooledUpload;
+import org.mifos.TransactionReverser;
+import org.mifos.UndoJournal;
 import org.mifos.accounts.api.TransactionImport;
 import org.mifos.accounts.api.AccountService;
 import org.mifos.dto.domain.AccountTrxDto;
@@ -39,31 +50,70 @@ public class GroovyPluginRunner extends TransactionImport {
     public static final String mifosGroovyPluginDir = System.getProperty("user.home") + "/.mifos/groovy";
     public static final String examplePlugin = "examplePlugin.groovy";
 
+    private final CachedServices cachedServices = new CachedServices();
+
+    private final ImportMonitor monitor = new ImportMonitor();
+
+    private final ImportUndo undo = new ImportUndo(getClass());
+
     @Override
     public String getDisplayName() {
         return "Example Groovy Mifos Plugin";
     }
 
+    /**
+     * @param listener
+     *            told how imports are getting on, as far as the script counts its rows with <code>monitor</code>
+     */
+    public void setProgressListener(ImportProgressListener listener) {
+        monitor.setListener(listener);
+    }
+
+    /**
+     * @param cancellationToken
+     *            stops imports once cancelled, between the rows the script counts and before the payments are made
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        monitor.setCancellationToken(cancellationToken);
+    }
+
+    /**
+     * The script is given the {@link ImportMonitor} of the plugin as <code>monitor</code>, to count each row it reads
+     * and validates.
+     */
     @Override
     public ParseResultDto parse(final InputStream input) {
         String[] roots = new String[] { mifosGroovyPluginDir };
         Binding binding = new Binding();
+        monitor.parseStarted();
         try {
             GroovyScriptEngine gse = new GroovyScriptEngine(roots);
             binding.setVariable("rawInput", input);
             binding.setVariable("parent", this);
+            binding.setVariable("monitor", monitor);
             gse.run(examplePlugin, binding);
         } catch (Exception e) {
+            ImportCancelledException cancelled = ImportCancelledException.causing(e);
+            if (cancelled != null) {
+                throw cancelled;
+            }
             e.printStackTrace(System.err);
             return new ParseResultDto(Arrays.asList(new String[] { "error running Groovy: " + e.getMessage() }),
                     new ArrayList<AccountPaymentParametersDto>());
         }
+        monitor.parseFinished();
         return (ParseResultDto) binding.getVariable("parseResultDto");
     }
 
+    /**
+     * Payments are made in batches of <code>org.example.GroovyPluginRunner.PaymentBatchSize</code> (500 unless
+     * configured), each one committed on its own, and loan disbursals after them, by a {@link BatchedStore}. If a later
+     * batch fails, or the import is cancelled before it, the batches before it stay committed and a
+     * {@link PartiallyStoredImportException} says how many payments they held.
+     */
     @Override
     public void store(InputStream input) throws Exception {
-        getAccountService().makePayments(parse(input).getSuccessfullyParsedPayments());
+        batchedStore().store(parse(input).getSuccessfullyParsedPayments(), null, null);
     }
 
     @Override
@@ -73,15 +123,64 @@ public class GroovyPluginRunner extends TransactionImport {
 
     @Override
     public AccountService getAccountService() {
-        return super.getAccountService();
+        return cachedServices.accountService(super.getAccountService());
     }
 
     /**
-     * method used by StandardImport 
-     * */
+     * Like {@link #store(InputStream)}, returning the transactions made. If
+     * <code>org.example.GroovyPluginRunner.UndoJournalDirectory</code> is configured, each batch committed, loan
+     * disbursals included, is also recorded in the {@link UndoJournal} of the import, for {@link #undoImport(String)}.
+     * Should a batch committed fail to be recorded, the store stops there.
+     */
     @Override
     public List<AccountTrxDto> storeForUndoImport(InputStream input) throws Exception {
-        // TODO Auto-generated method stub
-        return null;
+        final SpooledUpload upload = SpooledUpload.spool(input);
+        try {
+            final UndoJournal journal = undo.storeStarted(getAccountService(), upload);
+            List<AccountTrxDto> transactions = new ArrayList<AccountTrxDto>();
+            batchedStore().store(upload.parse(this).getSuccessfullyParsedPayments(), transactions, journal);
+            return transactions;
+        } finally {
+            upload.close();
+        }
+    }
+
+    private BatchedStore batchedStore() {
+        return new BatchedStore(getAccountService(), monitor, paymentBatchSize());
+    }
+
+    /**
+     * @param importId
+     *            id which the next {@link #storeForUndoImport(InputStream)} is recorded under, or <code>null</code> for
+     *            the SHA-1 of the file stored
+     */
+    public void setImportId(String importId) {
+        undo.setImportId(importId);
+    }
+
+    /**
+     * @return id which the last {@link #storeForUndoImport(InputStream)} was recorded under
+     */
+    public String getImportId() {
+        return undo.getImportId();
+    }
+
+    public void setTransactionReverser(TransactionReverser transactionReverser) {
+        undo.setTransactionReverser(transactionReverser);
+    }
+
+    /**
+     * Reverses what an import recorded in its {@link UndoJournal}, in batches of
+     * <code>org.example.GroovyPluginRunner.PaymentBatchSize</code> (500 unless configured). Calling it again after a
+     * failure or a cancellation carries on from the last batch reversed.
+     *
+     * @return number of payments and disbursals reversed by this call
+     */
+    public int undoImport(String importId) throws Exception {
+        return undo.undoImport(getAccountService(), importId, paymentBatchSize(), monitor);
+    }
+
+    private int paymentBatchSize() {
+        return BatchedStore.configuredBatchSize(getAccountService(), getClass());
     }
 }
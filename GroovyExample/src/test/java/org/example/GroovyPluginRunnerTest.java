@@ -22,8 +22,13 @@ package org.example;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -40,6 +45,9 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mifos.CancellationToken;
+import org.mifos.ImportCancelledException;
+import org.mifos.PartiallyStoredImportException;
 import org.mifos.accounts.api.AccountService;
 import org.mifos.accounts.api.InvalidPaymentReason;
 import org.mifos.accounts.api.TransactionImport;
@@ -49,7 +57,9 @@ import org.mifos.dto.domain.PaymentTypeDto;
 import org.mifos.dto.domain.AccountPaymentParametersDto;
 import org.mifos.dto.domain.ParseResultDto;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 @RunWith(MockitoJUnitRunner.class)
 public class GroovyPluginRunnerTest {
@@ -125,4 +135,27 @@ public class GroovyPluginRunnerTest {
         assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
         assertThat(result.getSuccessfullyParsedPayments().toString(), result.getSuccessfullyParsedPayments().size(), is(2));
     }
+
+    @Test
+    public void storeStopsBetweenBatchesOnceCancelled() throws Exception {
+        when(accountService.getMifosConfiguration("org.example.GroovyPluginRunner.PaymentBatchSize")).thenReturn("1");
+        final CancellationToken token = new CancellationToken();
+        concreteImporter.setCancellationToken(token);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                token.cancel();
+                return null;
+            }
+        }).when(accountService).makePayments(anyListOf(AccountPaymentParametersDto.class));
+        String testDataFilename = this.getClass().getResource("/test.csv").getFile();
+        try {
+            transactionImport.store(new FileInputStream(testDataFilename));
+            fail("store should have been cancelled");
+        } catch (PartiallyStoredImportException e) {
+            assertThat(e.getStoredPayments(), is(1));
+            assertThat(e.getCause() instanceof ImportCancelledException, is(true));
+        }
+        verify(accountService, times(1)).makePayments(anyListOf(AccountPaymentParametersDto.class));
+    }
 }
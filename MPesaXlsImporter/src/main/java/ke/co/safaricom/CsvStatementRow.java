@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.util.Date;
+import java.util.Iterator;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.mifos.CsvRecord;
+
+/**
+ * A record of an M-PESA statement saved as CSV. Every field is text, as a cell typed in by hand would be; amounts may
+ * be written with thousands separators. Empty fields are missing cells, as they are in a workbook.
+ */
+final class CsvStatementRow implements StatementRow {
+    private final CsvRecord record;
+    private final int lastCellNum;
+
+    CsvStatementRow(CsvRecord record) {
+        this.record = record;
+        int last = record.size() - 1;
+        while (last >= 0 && record.isEmpty(last)) {
+            last--;
+        }
+        this.lastCellNum = last < 0 ? -1 : last + 1;
+    }
+
+    static Iterator<StatementRow> rows(final Iterator<CsvRecord> records) {
+        return new Iterator<StatementRow>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public StatementRow next() {
+                return new CsvStatementRow(records.next());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int getRowNum() {
+        return record.getRecordNum();
+    }
+
+    @Override
+    public String getSheetName() {
+        return null;
+    }
+
+    @Override
+    public int getLastCellNum() {
+        return lastCellNum;
+    }
+
+    @Override
+    public StatementCell getCell(int column) {
+        return record.isEmpty(column) ? null : new CsvStatementCell(record.get(column));
+    }
+
+    /**
+     * The reader fills the same record with each line, so the copy has a record of its own.
+     */
+    @Override
+    public StatementRow copy() {
+        return new CsvStatementRow(record.copy());
+    }
+
+    private static final class CsvStatementCell implements StatementCell {
+        private final String text;
+
+        CsvStatementCell(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int getCellType() {
+            return Cell.CELL_TYPE_STRING;
+        }
+
+        @Override
+        public String getStringCellValue() {
+            return text;
+        }
+
+        @Override
+        public double getNumericCellValue() {
+            final String number = text.trim().replace(",", "");
+            try {
+                return Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Cannot get a numeric value from '" + text + "'");
+            }
+        }
+
+        @Override
+        public Date getDateCellValue() {
+            throw new IllegalStateException("Cannot get a date value from a text cell");
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.mifos.AsyncAccountService;
+import org.mifos.dto.domain.AccountReferenceDto;
+
+/**
+ * The approved loans which the disbursals of a statement may be paid out of, by phone number of the client and amount
+ * withdrawn. The disbursal rows are counted first, then {@link #load(AsyncAccountService)} asks for the loans of each
+ * distinct phone number and amount once, however many rows share them, making as many of the lookups at once as the
+ * {@link AsyncAccountService} allows. Each row then claims a loan of its own, so
+ * that a client who took several loans of the same amount gets each of them disbursed once.
+ * <p>
+ * The account service has no way to ask about several clients in one call, so each distinct phone number and amount
+ * costs one round trip.
+ */
+final class DisbursementCandidates {
+
+    private final Map<String, Integer> expectedRows = new LinkedHashMap<String, Integer>();
+    private final Map<String, Integer> loaded = new HashMap<String, Integer>();
+    private final Map<String, LinkedList<AccountReferenceDto>> candidates = new HashMap<String, LinkedList<AccountReferenceDto>>();
+    private final Map<String, String> failures = new HashMap<String, String>();
+
+    /**
+     * Counts a disbursal row, to be loaded by the next {@link #load(AsyncAccountService)}.
+     */
+    void expect(String phoneNumber, BigDecimal amount) {
+        final String key = key(phoneNumber, amount);
+        final Integer rows = expectedRows.get(key);
+        expectedRows.put(key, rows == null ? 1 : rows + 1);
+    }
+
+    /**
+     * Looks up the loans of every phone number and amount counted since the last call.
+     */
+    void load(AsyncAccountService accountService) {
+        final Map<String, Future<List<AccountReferenceDto>>> lookups = new LinkedHashMap<String, Future<List<AccountReferenceDto>>>();
+        for (String key : expectedRows.keySet()) {
+            if (loaded.containsKey(key) || failures.containsKey(key)) {
+                continue;
+            }
+            final int separator = key.indexOf(' ');
+            lookups.put(key, accountService.lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(
+                    key.substring(0, separator), new BigDecimal(key.substring(separator + 1))));
+        }
+        for (Map.Entry<String, Future<List<AccountReferenceDto>>> lookup : lookups.entrySet()) {
+            final String key = lookup.getKey();
+            try {
+                final LinkedList<AccountReferenceDto> loans = new LinkedList<AccountReferenceDto>(lookup.getValue()
+                        .get());
+                candidates.put(key, loans);
+                loaded.put(key, loans.size());
+            } catch (ExecutionException e) {
+                failures.put(key, e.getCause().getMessage());
+            } catch (Exception e) {
+                failures.put(key, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return whether the loans of the phone number and amount have been looked up, or failed to be
+     */
+    boolean isLoaded(String phoneNumber, BigDecimal amount) {
+        final String key = key(phoneNumber, amount);
+        return loaded.containsKey(key) || failures.containsKey(key);
+    }
+
+    /**
+     * @return whether there are more loans than rows disbursing them, in which case it can not be told which loans the
+     *         rows are for
+     */
+    boolean isAmbiguous(String phoneNumber, BigDecimal amount) {
+        final String key = key(phoneNumber, amount);
+        final Integer loans = loaded.get(key);
+        return loans != null && loans > expectedRows.get(key);
+    }
+
+    /**
+     * @return the next loan of the client for the amount which no row has claimed yet, or null if there is none left
+     */
+    AccountReferenceDto claim(String phoneNumber, BigDecimal amount) {
+        final LinkedList<AccountReferenceDto> loans = candidates.get(key(phoneNumber, amount));
+        return loans == null || loans.isEmpty() ? null : loans.removeFirst();
+    }
+
+    /**
+     * @return message of the exception thrown when looking up the loans, or null if they were found
+     */
+    String getFailure(String phoneNumber, BigDecimal amount) {
+        return failures.get(key(phoneNumber, amount));
+    }
+
+    private static String key(String phoneNumber, BigDecimal amount) {
+        return phoneNumber + " " + amount.toPlainString();
+    }
+}
@@ -76,4 +76,5 @@ public interface MPesaConstants {
     String LOAN_NOT_FOUND = "LoanNotFound";
     String INVALID_STATUS = "InvalidStatus";
     String INVALID_PAYMENT_REASON_UNKNOWN = "InvalidPaymentReasonUnknown";
+    String ROWS_IMPORTED_BEFORE = "RowsImportedBefore";
 }
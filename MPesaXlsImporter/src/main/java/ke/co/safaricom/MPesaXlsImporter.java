@@ -19,36 +19,49 @@
  */
 package ke.co.safaricom;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.Future;
 import org.apache.commons.io.IOUtils;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.joda.time.LocalDate;
+import org.mifos.AsyncAccountService;
+import org.mifos.ImportCancelledException;
+import org.mifos.MinorUnits;
+import org.mifos.PaymentBuffer;
+import org.mifos.PaymentWaterfall;
+import org.mifos.RunningTotalByAccount;
 import org.mifos.StandardImport;
 import org.mifos.accounts.api.InvalidPaymentReason;
 import org.mifos.dto.domain.AccountPaymentParametersDto;
 import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
 import org.mifos.dto.domain.CustomerDto;
 import org.mifos.dto.domain.ParseResultDto;
 import org.mifos.dto.domain.PaymentTypeDto;
@@ -65,10 +78,14 @@ public class MPesaXlsImporter extends StandardImport {
 
     private static final String DIGITS_AFTER_DECIMAL = "AccountingRules.DigitsAfterDecimal";
     private static final String IMPORT_TRANSACTION_ORDER = "ImportTransactionOrder";
+    private static final String INCREMENTAL_IMPORT = "IncrementalImport";
+    private static final String WATERMARK_DIRECTORY = "WatermarkDirectory";
+    private static final String RECEIPT_INDEX_FILE = "ReceiptIndexFile";
     private static final String MAX_MPESA_DISBURSAL_LIMIT = "MPESA.DisbursalMax";
     private static final String LANGUAGECODE = "Localization.LanguageCode";
     private static final String COUNTRYCODE = "Localization.CountryCode";
     private static final String EXPECTED_STATUS = "Completed";
+    private static final String ACCOUNT_NUMBER = "Account Number";
     protected static final String PAYMENT_TYPE = "MPESA";
     protected static final String PAYMENT_TRANSACTION_TYPE = "Pay Utility";
     protected static final String DISBURSAL_TRANSACTION_TYPE = "Business Payment to Customer";
@@ -85,19 +102,35 @@ public class MPesaXlsImporter extends StandardImport {
     protected static final int OTHER_PARTY_INFO = 9;
     protected static final int TRANSACTION_PARTY_DETAILS = 10;
     protected static final int MAX_CELL_NUM = 11;
-    private static Map<AccountReferenceDto, BigDecimal> cumulativeAmountByAccount;
-    private static Map<String, BigDecimal> disbursals;
-    private static List<AccountPaymentParametersDto> pmts;
-    private static List<String> errorsList;
-    private static List<String> importTransactionOrder;
-    private static Double maxMPESADisbursalLimit;
-    private static int successfullyParsedRows;
-    private List<String> ReceiptIDList;
-    private Set<Integer> ignoredRowNums;
-    private Set<Integer> errorRowNums;
+    private List<String> errorsList;
+    private List<String> importTransactionOrder;
+    private Double maxMPESADisbursalLimit;
+    private int successfullyParsedRows;
+    /** Receipts of the rows parsed so far, so that rows repeating them are ignored. */
+    private Set<String> receiptIds;
+    private Set<String> ignoredRowNums;
+    private Set<String> errorRowNums;
+    private Map<String, CustomerDto> customersByPhoneNumber;
     private BigDecimal totalAmountOfErrorRows;
+    private MinorUnits minorUnits;
+    private RunningTotalByAccount cumulativeAmountByAccount;
     private PaymentTypeDto paymentTypeForLoanDisbursals;
     private ResourceBundle messages;
+    private PaymentBuffer pmts;
+    private String paybillAccount;
+    private ReceiptWatermark watermark;
+    private Map<String, ReceiptWatermark> watermarks;
+    private Map<String, Boolean> receiptsFound;
+    private Map<String, List<CustomerDto>> customersFound;
+    private ReceiptIndex receiptIndex;
+    /** Index of the store under way, which the receipts of each batch committed are added to. */
+    private ReceiptIndex receiptIndexUpdated;
+    private boolean receiptIndexUpdating;
+    private int rowsImportedBefore;
+    private DisbursementCandidates disbursementCandidates;
+    private List<PendingDisbursal> pendingDisbursals;
+    /** Receipts of the disbursal rows waiting in {@link #pendingDisbursals}, so that rows repeating them are ignored. */
+    private Set<String> pendingDisbursalReceipts;
 
     @Override
     public String getDisplayName() {
@@ -112,7 +145,7 @@ public class MPesaXlsImporter extends StandardImport {
         
         messages = ResourceBundle.getBundle("MessagesBundle", currentLocale);
         
-        Map<String, String> properties = new HashMap<String, String>();
+        Map<String, String> properties = new HashMap<String, String>(super.getPropertiesForAdminDisplay());
         List<String> order = getImportTransactionOrder();
 
         String key = messages.getString(MPesaConstants.MPESA_TRANSACTION_ORDER);
@@ -164,7 +197,7 @@ public class MPesaXlsImporter extends StandardImport {
         return maxMPESADisbursalLimit;
     }
 
-    private String cellStringValue(Cell cell) {
+    private String cellStringValue(StatementCell cell) {
         if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
             return Double.toString(cell.getNumericCellValue());
         } else {
@@ -172,7 +205,7 @@ public class MPesaXlsImporter extends StandardImport {
         }
     }
 
-    private String formatErrorMessage(Row row, String message) {
+    private String formatErrorMessage(ProjectedRow row, String message) {
         String sRow = messages.getString(MPesaConstants.ROW);
         String sError = messages.getString(MPesaConstants.ERROR);
         String serror = messages.getString(MPesaConstants.ERROR_LOWERCASE);
@@ -180,69 +213,79 @@ public class MPesaXlsImporter extends StandardImport {
             return String.format(sError + " - %s", message);
         }
         if (row.getCell(RECEIPT) == null) {
-            return String.format(sRow + " <%d> "+ serror +" - %s",
-                    row.getRowNum() + 1,
+            return String.format(sRow + " <%s> "+ serror +" - %s",
+                    rowLabel(row),
                     message);
         }
-        return String.format(sRow + " <%d> "+ serror +" - %s - %s",
-                row.getRowNum() + 1,
-                cellStringValue(row.getCell(RECEIPT)),
+        return String.format(sRow + " <%s> "+ serror +" - %s - %s",
+                rowLabel(row),
+                row.text(RECEIPT),
                 message);
     }
 
-    private String formatIgnoredErrorMessage(Row row, String message) {
-        return String.format(messages.getString(MPesaConstants.ROW)+" <%d> "+ messages.getString(MPesaConstants.IGNORED) +" - %s - %s",
-                row.getRowNum() + 1,
-                cellStringValue(row.getCell(RECEIPT)),
+    private String formatIgnoredErrorMessage(ProjectedRow row, String message) {
+        return String.format(messages.getString(MPesaConstants.ROW)+" <%s> "+ messages.getString(MPesaConstants.IGNORED) +" - %s - %s",
+                rowLabel(row),
+                row.text(RECEIPT),
                 message);
     }
 
-    private void addError(Row row, String message) {
+    /**
+     * @return the one based number of the row, after the name of its sheet if it is not on the first sheet of the
+     *         workbook, such as <code>Branch 2:7</code>
+     */
+    private static String rowLabel(StatementRow row) {
+        final String rowNum = String.valueOf(row.getRowNum() + 1);
+        return row.getSheetName() == null ? rowNum : row.getSheetName() + ":" + rowNum;
+    }
+
+    private void addError(ProjectedRow row, String message) {
         errorsList.add(formatErrorMessage(row, message));
-        if (!errorRowNums.contains(row.getRowNum())) {
+        if (watermark != null) {
+            Date completed = completionTime(row);
+            if (completed != null) {
+                watermark.failed(completed);
+            }
+        }
+        if (!errorRowNums.contains(rowLabel(row))) {
             try {
                 BigDecimal amount = null;
-                if (isLoanDisbursement(row)) {
-                    amount = BigDecimal.valueOf(row.getCell(WITHDRAWN).getNumericCellValue()).abs();
+                if (row.isLoanDisbursement()) {
+                    amount = BigDecimal.valueOf(row.number(WITHDRAWN)).abs();
                 } else {
-                    amount = BigDecimal.valueOf(row.getCell(PAID_IN).getNumericCellValue());
+                    amount = BigDecimal.valueOf(row.number(PAID_IN));
                 }
                 totalAmountOfErrorRows = totalAmountOfErrorRows.add(amount);
             } catch (Exception e) {
                 // paid in couldn't be extracted, so skip this row
             }
         }
-        errorRowNums.add(row.getRowNum());
+        errorRowNums.add(rowLabel(row));
     }
 
-    private void addIgnoredMessage(Row row, String message) {
+    private void addIgnoredMessage(ProjectedRow row, String message) {
         errorsList.add(formatIgnoredErrorMessage(row, message));
-        ignoredRowNums.add(row.getRowNum());
+        ignoredRowNums.add(rowLabel(row));
     }
 
     private ByteArrayInputStream copyInputIntoByteInput(InputStream input) throws IOException {
         return new ByteArrayInputStream(IOUtils.toByteArray(input));
     }
 
-    private String getPhoneNumberCandidate(Row row) {
-        String cellContents = cellStringValue(row.getCell(OTHER_PARTY_INFO));
-        String[] splitted = cellContents.split(" ");
-        if (splitted == null || splitted.length == 0) {
-            return null;
-        }
-        return splitted[0];
-    }
-
     /**
      * Returns validated phone number or null if there is no valid phone number in the row
      */
-    private String validatePhoneNumber(Row row) {
-        String phoneNumber = getPhoneNumberCandidate(row);
+    private String validatePhoneNumber(ProjectedRow row) {
+        String phoneNumber = row.phoneNumberCandidate();
         if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
             addError(row, messages.getString(MPesaConstants.CANNOT_READ_PHONE_NUMBER));
             return null;
         }
-        List<CustomerDto> customers = getCustomerSearchService().findCustomersWithGivenPhoneNumber(phoneNumber);
+        if (customersByPhoneNumber.containsKey(phoneNumber)) {
+            return phoneNumber;
+        }
+        List<CustomerDto> customers = customersFound.containsKey(phoneNumber) ? customersFound.get(phoneNumber)
+                : getCustomerSearchService().findCustomersWithGivenPhoneNumber(phoneNumber);
         if (customers == null || customers.isEmpty()) {
             addError(row, String.format(messages.getString(MPesaConstants.CLIENT_NOT_FOUND), phoneNumber));
             return null;
@@ -250,23 +293,40 @@ public class MPesaXlsImporter extends StandardImport {
             addError(row, String.format(messages.getString(MPesaConstants.TOO_MANY_MATCHES), phoneNumber));
             return null;
         }
+        customersByPhoneNumber.put(phoneNumber, customers.get(0));
         return phoneNumber;
     }
 
+    /**
+     * Only valid for phone numbers which already passed {@link #validatePhoneNumber(ProjectedRow)} during this import, so the
+     * customer is looked up once per phone number rather than once per payment.
+     */
     private CustomerDto customerWithPhoneNumber(String phoneNumber) {
-        return getCustomerSearchService().findCustomersWithGivenPhoneNumber(phoneNumber).get(0);
+        return customersByPhoneNumber.get(phoneNumber);
     }
 
     private void initializeParser() {
-        cumulativeAmountByAccount = new HashMap<AccountReferenceDto, BigDecimal>();
-        pmts = new ArrayList<AccountPaymentParametersDto>();
+        parseStarted();
+        cumulativeAmountByAccount = new RunningTotalByAccount();
+        pmts = newPaymentBuffer();
         errorsList = new LinkedList<String>();
         successfullyParsedRows = 0;
-        errorRowNums = new HashSet<Integer>();
-        ignoredRowNums = new HashSet<Integer>();
+        errorRowNums = new HashSet<String>();
+        ignoredRowNums = new HashSet<String>();
         totalAmountOfErrorRows = BigDecimal.ZERO;
-        ReceiptIDList = new LinkedList<String>();
-        disbursals = new HashMap<String, BigDecimal>();
+        receiptIds = new HashSet<String>();
+        disbursementCandidates = new DisbursementCandidates();
+        pendingDisbursals = new ArrayList<PendingDisbursal>();
+        pendingDisbursalReceipts = new HashSet<String>();
+        customersByPhoneNumber = new HashMap<String, CustomerDto>();
+        minorUnits = null;
+        paybillAccount = null;
+        watermark = null;
+        watermarks = new LinkedHashMap<String, ReceiptWatermark>();
+        receiptsFound = new HashMap<String, Boolean>();
+        customersFound = new HashMap<String, List<CustomerDto>>();
+        receiptIndex = openReceiptIndex();
+        rowsImportedBefore = 0;
         String language = getAccountService().getMifosConfiguration(LANGUAGECODE).toString();
         String country = getAccountService().getMifosConfiguration(COUNTRYCODE).toString();
         Locale currentLocale = new Locale(language, country);
@@ -288,16 +348,11 @@ public class MPesaXlsImporter extends StandardImport {
         return false;
     }
 
-    private boolean checkDuplicates(Row row, String receipt) {
-        for (String ReceiptID : ReceiptIDList) {
-            if (ReceiptID.equals(receipt)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean checkDuplicates(ProjectedRow row, String receipt) {
+        return receiptIds.contains(receipt) || pendingDisbursalReceipts.contains(receipt);
     }
 
-    private boolean moreThanOneAccountMatchesProductCode(Row row, String phoneNumber, List<String> productNames) {
+    private boolean moreThanOneAccountMatchesProductCode(ProjectedRow row, String phoneNumber, List<String> productNames) {
         for (String productName : productNames) {
             if (getAccountService().existsMoreThanOneLoanAccount(phoneNumber, productName)
                     || getAccountService().existsMoreThanOneSavingsAccount(phoneNumber, productName)) {
@@ -312,46 +367,62 @@ public class MPesaXlsImporter extends StandardImport {
         return Integer.parseInt((String) getAccountService().getMifosConfiguration(DIGITS_AFTER_DECIMAL));
     }
 
-    private boolean isLoanDisbursement(Row row) {
-        return DISBURSAL_TRANSACTION_TYPE.equals(cellStringValue(row.getCell(TRANSACTION_TYPE)))
-                && row.getCell(DETAILS) != null
-                && cellStringValue(row.getCell(DETAILS)) != null
-                && cellStringValue(row.getCell(DETAILS)).startsWith(DISBURSAL_DETAILS_PREFIX);
+    /**
+     * @return the amount withdrawn in the row, or null if it has more fraction digits than the currency
+     */
+    private BigDecimal withdrawnAmount(ProjectedRow row) {
+        final double withdrawn = Math.abs(row.number(WITHDRAWN));
+        final long withdrawnMinorUnits = minorUnits.fromDouble(withdrawn);
+        if (withdrawnMinorUnits == MinorUnits.INVALID) {
+            addError(row, String.format(messages.getString(MPesaConstants.FRACTION_DIGITS_IS_TOO_MUCH_WITHDRAWN),
+                    MinorUnits.scaleOf(withdrawn), minorUnits.getDigitsAfterDecimal()));
+            return null;
+        }
+        return minorUnits.toBigDecimal(withdrawnMinorUnits);
     }
 
     public AccountPaymentParametersDto parseLoanDisbursement(Row row, String receipt, LocalDate paymentDate, String phoneNumber) throws Exception {
-        final BigDecimal withdrawnAmount = BigDecimal.valueOf(row.getCell(WITHDRAWN).getNumericCellValue()).abs();
-        final String accountId = row.getCell(TRANSACTION_PARTY_DETAILS).getStringCellValue();
+        return parseLoanDisbursement(PoiStatementRow.of(row), receipt, paymentDate, phoneNumber);
+    }
 
-         if (withdrawnAmount.scale() > configuredDigitsAfterDecimal()) {
-            // when we create BigDecimal from double, then the scale is always greater than 0
-            boolean nonZeroFractionalPart = false;
+    /**
+     * During a parse the disbursal rows of the statement are counted and their loans loaded first, by
+     * {@link #parsePendingDisbursals()}. A row whose loans have not been loaded, such as one parsed on its own, looks
+     * them up itself and is taken to be the only row disbursing its amount to its client.
+     */
+    public AccountPaymentParametersDto parseLoanDisbursement(StatementRow statementRow, String receipt, LocalDate paymentDate, String phoneNumber) throws Exception {
+        final ProjectedRow row = ProjectedRow.of(statementRow);
+        final BigDecimal withdrawnAmount = withdrawnAmount(row);
+        if (withdrawnAmount == null) {
+            return null;
+        }
+        if (!disbursementCandidates.isLoaded(phoneNumber, withdrawnAmount)) {
+            disbursementCandidates.expect(phoneNumber, withdrawnAmount);
+            final AsyncAccountService accountService = new AsyncAccountService(getAccountService(), null, 1);
             try {
-                withdrawnAmount.toBigIntegerExact();
-            } catch (ArithmeticException e) {
-                nonZeroFractionalPart = true;
-            }
-            if (withdrawnAmount.scale() > 1 || nonZeroFractionalPart) {
-                addError(row, String.format(messages.getString(MPesaConstants.FRACTION_DIGITS_IS_TOO_MUCH_WITHDRAWN), withdrawnAmount.scale(),
-                        configuredDigitsAfterDecimal()));
-                return null;
+                disbursementCandidates.load(accountService);
+            } finally {
+                accountService.close();
             }
         }
-
-        final List<AccountReferenceDto> accounts = getAccountService().lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(phoneNumber, withdrawnAmount);
-
-        if (accounts.size() > 1) {
+        final String failure = disbursementCandidates.getFailure(phoneNumber, withdrawnAmount);
+        if (failure != null) {
+            addError(row, failure);
+            return null;
+        }
+        if (disbursementCandidates.isAmbiguous(phoneNumber, withdrawnAmount)) {
             addError(row, String.format(messages.getString(MPesaConstants.MORE_THAN_1_LOAN_FOUND),
                     phoneNumber, withdrawnAmount.toString()));
             return null;
         }
-        if (accounts.isEmpty() || (disbursals.get(phoneNumber)!= null && disbursals.get(phoneNumber).compareTo(withdrawnAmount) == 0)) {
+        final AccountReferenceDto account = disbursementCandidates.claim(phoneNumber, withdrawnAmount);
+        if (account == null) {
             addError(row, String.format(messages.getString(MPesaConstants.NO_APPROVED_LOANS_FOUND),
                     phoneNumber, withdrawnAmount.toString()));
             return null;
         }
         final AccountPaymentParametersDto loanAccDisbursementPayment = new AccountPaymentParametersDto(
-                getUserReferenceDto(), accounts.get(0), withdrawnAmount, paymentDate, paymentTypeForLoanDisbursals, "", new LocalDate(), receipt,
+                getUserReferenceDto(), account, withdrawnAmount, paymentDate, paymentTypeForLoanDisbursals, "", new LocalDate(), receipt,
                 customerWithPhoneNumber(phoneNumber));
         loanAccDisbursementPayment.setTransactionType(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL);
         if (isLoanDisbursalValid(row, loanAccDisbursementPayment)) {
@@ -360,7 +431,51 @@ public class MPesaXlsImporter extends StandardImport {
         return null;
     }
 
+    /**
+     * Disbursal rows are parsed once the whole statement has been read, when it is known how many rows disburse each
+     * amount to each client, so that their loans are looked up once and each loan is claimed by one row. Their
+     * payments and errors therefore come after those of the other rows. A receipt only counts as imported once its
+     * disbursal has been parsed, though rows repeating it are ignored as duplicates from when it is read.
+     */
+    private void parsePendingDisbursals() {
+        final AsyncAccountService accountService = newAsyncAccountService();
+        try {
+            disbursementCandidates.load(accountService);
+        } finally {
+            accountService.close();
+        }
+        for (PendingDisbursal disbursal : pendingDisbursals) {
+            checkCancelled();
+            watermark = disbursal.watermark;
+            try {
+                AccountPaymentParametersDto result = parseLoanDisbursement(disbursal.row, disbursal.receipt,
+                        LocalDate.fromDateFields(disbursal.completed), disbursal.phoneNumber);
+                if (result != null) {
+                    successfullyParsedRows += 1;
+                    pmts.add(result);
+                    receiptIds.add(disbursal.receipt);
+                    if (watermark != null) {
+                        watermark.imported(disbursal.completed, disbursal.receipt);
+                    }
+                }
+            } catch (Exception e) {
+                final ImportCancelledException cancelled = ImportCancelledException.causing(e);
+                if (cancelled != null) {
+                    throw cancelled;
+                }
+                /* catch row specific exception and continue for other rows */
+                e.printStackTrace();
+                addError(disbursal.row, e.getMessage());
+            }
+        }
+    }
+
     public boolean isLoanDisbursalValid(Row row, AccountPaymentParametersDto cumulativePayment) throws Exception {
+        return isLoanDisbursalValid(PoiStatementRow.of(row), cumulativePayment);
+    }
+
+    public boolean isLoanDisbursalValid(StatementRow statementRow, AccountPaymentParametersDto cumulativePayment) throws Exception {
+        final ProjectedRow row = ProjectedRow.of(statementRow);
         final List<InvalidPaymentReason> errors = getAccountService().validateLoanDisbursement(cumulativePayment);
 
         if (!errors.isEmpty()) {
@@ -405,260 +520,366 @@ public class MPesaXlsImporter extends StandardImport {
         initializeParser();
 
         try {
-            Iterator<Row> rowIterator = null;
-            // Copy input into byte input to try two implementations of POI parsers: HSSF and XSSF (XML formats)
-            ByteArrayInputStream copiedInput = copyInputIntoByteInput(input);
-            copiedInput.mark(0);
-            try {
-                rowIterator = new HSSFWorkbook(copiedInput).getSheetAt(0).iterator();
-            } catch (Exception e) {
-                copiedInput.reset();
-                try {
-                    rowIterator = new XSSFWorkbook(copiedInput).getSheetAt(0).iterator();
-                } catch (Exception e2) {
-                    e2.printStackTrace();
-                    throw new MPesaXlsImporterException(messages.getString(MPesaConstants.UNKNOW_FILE_FORMAT));
-                }
-            }
-            int friendlyRowNum = 0;
-            Row row = null;
+            final List<Iterable<StatementRow>> sheets = sheets(input);
 
             setPaymentType();
+            minorUnits = new MinorUnits(configuredDigitsAfterDecimal());
 
-            skipToTransactionData(rowIterator);
+            // a preview only looks up the rows it samples
+            if (sheets.size() > 1 && !isPreviewing()) {
+                checkSheetsAtOnce(sheets);
+            }
+            boolean transactionDataFound = false;
+            for (Iterable<StatementRow> sheet : sheets) {
+                final Iterator<StatementRow> rowIterator = sheet.iterator();
+                paybillAccount = null;
+                if (!skipToTransactionData(rowIterator)) {
+                    continue;
+                }
+                transactionDataFound = true;
+                watermark = loadWatermark();
+                parseTransactionData(rowIterator);
+            }
 
-            if (!errorsList.isEmpty()) {
+            if (!transactionDataFound) {
+                errorsList.add(messages.getString(MPesaConstants.NO_ROWS_FOUND_WITH_IMPORT_DATA));
+                parseFinished();
                 return new ParseResultDto(errorsList, pmts);
             }
+            parsePendingDisbursals();
+        } catch (ImportCancelledException e) {
+            throw e;
+        } catch (Exception e) {
+            /* Catch any exception in the process */
+            e.printStackTrace();
+            errorsList.add(e.getMessage() + ". " + messages.getString(MPesaConstants.GOT_ERROR_BEFORE_READING_ROWS));
 
-            /* Parse transaction data */
+        }
+        return parsingResult();
+    }
 
-            while (rowIterator.hasNext()) {
-                try {
-                    row = rowIterator.next();
+    /**
+     * Parses the transactions of a sheet. Sheets are parsed one after another in the order of the workbook, since the
+     * running totals of the accounts and the receipts already seen carry over from one sheet to the next.
+     */
+    private void parseTransactionData(final Iterator<StatementRow> rowIterator) {
+        int friendlyRowNum = 0;
+        ProjectedRow row = null;
 
-                    friendlyRowNum = row.getRowNum() + 1;
+        /* Parse transaction data */
 
-                    if (!isRowValid(row, friendlyRowNum, errorsList)) {
-                        continue;
-                    }
+        while (rowIterator.hasNext()) {
+            rowRead();
+            try {
+                row = ProjectedRow.of(rowIterator.next());
 
-                    String receipt = cellStringValue(row.getCell(RECEIPT));
+                friendlyRowNum = row.getRowNum() + 1;
 
-                    if (checkDuplicates(row, receipt)) {
-                        addIgnoredMessage(row, messages.getString(MPesaConstants.RECEIPT_ID_DUPLICATED));
-                        continue;
-                    }
+                if (isImportedBefore(row)) {
+                    rowsImportedBefore += 1;
+                    ignoredRowNums.add(rowLabel(row));
+                    continue;
+                }
 
-                    Date transDate;
-                    try {
-                        transDate = getDate(row.getCell(TRANSACTION_DATE));
-                    } catch (Exception e) {
-                        addError(row, messages.getString(MPesaConstants.INVALID_FORMAT_DATE));
-                        continue;
-                    }
+                if (!isRowSampled()) {
+                    continue;
+                }
+                rowValidated();
 
-                    String phoneNumber = validatePhoneNumber(row);
-                    if (phoneNumber == null) {
-                        continue;
-                    }
+                if (!isRowValid(row, friendlyRowNum, errorsList)) {
+                    continue;
+                }
 
-                    final LocalDate paymentDate = LocalDate.fromDateFields(transDate);
-
-                    // For default we import laon/savings payments, loan disbursements are handled in a different method
-                    if (isLoanDisbursement(row)) {
-                        AccountPaymentParametersDto result = parseLoanDisbursement(row, receipt, paymentDate, phoneNumber);
-                        if (result != null) {
-                            successfullyParsedRows += 1;
-                            pmts.add(result);
-                            ReceiptIDList.add(receipt);
-                            disbursals.put(phoneNumber, result.getPaymentAmount());
-                        }
-                        continue;
-                    }
+                String receipt = row.text(RECEIPT);
+
+                if (checkDuplicates(row, receipt)) {
+                    addIgnoredMessage(row, messages.getString(MPesaConstants.RECEIPT_ID_DUPLICATED));
+                    continue;
+                }
+
+                Date transDate;
+                try {
+                    transDate = row.completed();
+                } catch (Exception e) {
+                    addError(row, messages.getString(MPesaConstants.INVALID_FORMAT_DATE));
+                    continue;
+                }
 
+                String phoneNumber = validatePhoneNumber(row);
+                if (phoneNumber == null) {
+                    continue;
+                }
 
-                    String transactionPartyDetails = null;
+                final LocalDate paymentDate = LocalDate.fromDateFields(transDate);
 
-                    if (row.getCell(TRANSACTION_PARTY_DETAILS).getCellType() == Cell.CELL_TYPE_NUMERIC) {
-                        transactionPartyDetails = row.getCell(TRANSACTION_PARTY_DETAILS).getNumericCellValue() + "";
-                        if (transactionPartyDetails.endsWith(".0")) {
-                            transactionPartyDetails = transactionPartyDetails.replace(".0", "");
-                        } else {
-                            throw new IllegalArgumentException(messages.getString(MPesaConstants.UNKNOWN_FORMAT_OF_CELL) + " " + TRANSACTION_PARTY_DETAILS);
-                        }
-                    } else if (row.getCell(TRANSACTION_PARTY_DETAILS).getCellType() == Cell.CELL_TYPE_STRING) {
-                        transactionPartyDetails = row.getCell(TRANSACTION_PARTY_DETAILS).getStringCellValue();
+                // For default we import laon/savings payments, loan disbursements are handled in a different method
+                if (row.isLoanDisbursement()) {
+                    final BigDecimal withdrawnAmount = withdrawnAmount(row);
+                    if (withdrawnAmount != null) {
+                        disbursementCandidates.expect(phoneNumber, withdrawnAmount);
+                        pendingDisbursals.add(new PendingDisbursal(row.copy(), receipt, transDate, phoneNumber,
+                                watermark));
+                        pendingDisbursalReceipts.add(receipt);
                     }
+                    continue;
+                }
+
+
+                String transactionPartyDetails = null;
 
-                    String userDefinedProduct = getUserDefinedProduct(transactionPartyDetails);
-                    List<String> parameters;
-                    if (userDefinedProduct != null && !userDefinedProduct.isEmpty()) {
-                        if (moreThanOneAccountMatchesProductCode(row, phoneNumber, Arrays.asList(userDefinedProduct))) {
-                            continue;
-                        }
-                        if (userDefinedProductValid(userDefinedProduct, phoneNumber)) {
-                            parameters = Arrays.asList(userDefinedProduct);
-                        }
-                        else {
-                            parameters = getConfiguredProducts();
-                        }
+                if (row.getCell(TRANSACTION_PARTY_DETAILS).getCellType() == Cell.CELL_TYPE_NUMERIC) {
+                    transactionPartyDetails = row.number(TRANSACTION_PARTY_DETAILS) + "";
+                    if (transactionPartyDetails.endsWith(".0")) {
+                        transactionPartyDetails = transactionPartyDetails.replace(".0", "");
                     } else {
-                        parameters = getConfiguredProducts();
+                        throw new IllegalArgumentException(messages.getString(MPesaConstants.UNKNOWN_FORMAT_OF_CELL) + " " + TRANSACTION_PARTY_DETAILS);
                     }
+                } else if (row.getCell(TRANSACTION_PARTY_DETAILS).getCellType() == Cell.CELL_TYPE_STRING) {
+                    transactionPartyDetails = row.string(TRANSACTION_PARTY_DETAILS);
+                }
 
-                    if (moreThanOneAccountMatchesProductCode(row, phoneNumber, parameters)) {
+                String userDefinedProduct = getUserDefinedProduct(transactionPartyDetails);
+                List<String> parameters;
+                if (userDefinedProduct != null && !userDefinedProduct.isEmpty()) {
+                    if (moreThanOneAccountMatchesProductCode(row, phoneNumber, Arrays.asList(userDefinedProduct))) {
                         continue;
                     }
-
-                    List<String> loanPrds = new LinkedList<String>();
-                    String lastInTheOrderProdSName = parameters.get(parameters.size() - 1);
-                    loanPrds.addAll(parameters.subList(0, parameters.size() - 1));
-
-                    checkBlank(lastInTheOrderProdSName, messages.getString(MPesaConstants.SAVINGS_PRODUCT_SHORT_NAME), row);
-
-                    BigDecimal paidInAmount = BigDecimal.ZERO;
-
-                    // FIXME: possible data loss converting double to BigDecimal?
-                    paidInAmount = BigDecimal.valueOf(row.getCell(PAID_IN).getNumericCellValue());
-                    if (paidInAmount.scale() > configuredDigitsAfterDecimal()) {
-                        // when we create BigDecimal from double, then the scale is always greater than 0
-                        boolean nonZeroFractionalPart = false;
-                        try {
-                            paidInAmount.toBigIntegerExact();
-                        } catch (ArithmeticException e) {
-                            nonZeroFractionalPart = true;
-                        }
-                        if (paidInAmount.scale() > 1 || nonZeroFractionalPart) {
-                            addError(row,
-                                    String.format(messages.getString(MPesaConstants.FRACTION_DIGITS_IS_TOO_MUCH_PAID_IN),
-                                    paidInAmount.scale(), configuredDigitsAfterDecimal()));
-                            continue;
-                        }
+                    if (userDefinedProductValid(userDefinedProduct, phoneNumber)) {
+                        parameters = Arrays.asList(userDefinedProduct);
                     }
-                    boolean cancelTransactionFlag = false;
-
-                    List<AccountPaymentParametersDto> loanPaymentList = new ArrayList<AccountPaymentParametersDto>();
-
-                    for (String loanPrd : loanPrds) {
-                        BigDecimal loanAccountPaymentAmount = BigDecimal.ZERO;
-                        BigDecimal loanAccountTotalDueAmount = BigDecimal.ZERO;
-
-                        final AccountReferenceDto loanAccountReference = getLoanAccount(phoneNumber, loanPrd);
-
-                        // skip not found accounts as per specs P1 4.9 M-Pesa plugin
-                        if (loanAccountReference == null) {
-                            continue;
-                        }
-
-                        loanAccountTotalDueAmount = getTotalPaymentDueAmount(loanAccountReference);
-
-                        if (cumulativeAmountByAccount.get(loanAccountReference) != null) {
-                            if (loanAccountTotalDueAmount.compareTo(cumulativeAmountByAccount.get(loanAccountReference)) > 0) {
-                                loanAccountTotalDueAmount = loanAccountTotalDueAmount.subtract(cumulativeAmountByAccount.get(loanAccountReference));
-                            } else if (loanAccountTotalDueAmount.compareTo(cumulativeAmountByAccount.get(loanAccountReference)) == 0) {
-                                loanAccountTotalDueAmount = BigDecimal.ZERO;
-                            }
-                        }
-
-                        if (paidInAmount.compareTo(BigDecimal.ZERO) > 0) {
-                            if (paidInAmount.compareTo(loanAccountTotalDueAmount) > 0) {
-                                loanAccountPaymentAmount = loanAccountTotalDueAmount;
-                                paidInAmount = paidInAmount.subtract(loanAccountTotalDueAmount);
-                            } else {
-                                loanAccountPaymentAmount = paidInAmount;
-                                paidInAmount = BigDecimal.ZERO;
-                            }
-                        } else {
-                            loanAccountPaymentAmount = BigDecimal.ZERO;
-                        }
-
-                        AccountPaymentParametersDto cumulativeLoanPayment = createPaymentParametersDto(
-                                loanAccountReference, loanAccountPaymentAmount, paymentDate);
-
-                        if (!isPaymentValid(cumulativeLoanPayment, row)) {
-                            cancelTransactionFlag = true;
-                            break;
-                        }
-                        if (loanAccountPaymentAmount.compareTo(BigDecimal.ZERO) > 0) {
-                            loanPaymentList.add(new AccountPaymentParametersDto(getUserReferenceDto(),
-                                    loanAccountReference, loanAccountPaymentAmount, paymentDate, getPaymentTypeDto(), "", new LocalDate(), receipt,
-                                    customerWithPhoneNumber(phoneNumber)));
-                        }
-
+                    else {
+                        parameters = getConfiguredProducts();
                     }
+                } else {
+                    parameters = getConfiguredProducts();
+                }
+
+                if (moreThanOneAccountMatchesProductCode(row, phoneNumber, parameters)) {
+                    continue;
+                }
 
-                    if (cancelTransactionFlag) {
+                List<String> loanPrds = new LinkedList<String>();
+                String lastInTheOrderProdSName = parameters.get(parameters.size() - 1);
+                loanPrds.addAll(parameters.subList(0, parameters.size() - 1));
+
+                checkBlank(lastInTheOrderProdSName, messages.getString(MPesaConstants.SAVINGS_PRODUCT_SHORT_NAME), row);
+
+                final double paidIn = row.number(PAID_IN);
+                final long paidInAmount = minorUnits.fromDouble(paidIn);
+                if (paidInAmount == MinorUnits.INVALID) {
+                    addError(row, String.format(messages.getString(MPesaConstants.FRACTION_DIGITS_IS_TOO_MUCH_PAID_IN),
+                            MinorUnits.scaleOf(paidIn), minorUnits.getDigitsAfterDecimal()));
+                    continue;
+                }
+                final List<AccountReferenceDto> loanAccounts = new ArrayList<AccountReferenceDto>();
+                final List<PaymentWaterfall.Account> loans = new ArrayList<PaymentWaterfall.Account>();
+                for (String loanPrd : loanPrds) {
+                    final AccountReferenceDto loanAccountReference = getLoanAccount(phoneNumber, loanPrd);
+
+                    // skip not found accounts as per specs P1 4.9 M-Pesa plugin
+                    if (loanAccountReference == null) {
                         continue;
                     }
+                    loanAccounts.add(loanAccountReference);
+                    loans.add(waterfallAccount(loanAccountReference, true));
+                }
 
-                    BigDecimal lastInOrderAmount;
-                    AccountReferenceDto lastInOrderAcc;
-                    lastInOrderAcc = getSavingsAccount(phoneNumber, lastInTheOrderProdSName);
-
-                    if (lastInOrderAcc == null) {
-                        lastInOrderAcc = getLoanAccount(phoneNumber, lastInTheOrderProdSName);
-                        if (lastInOrderAcc != null) {
-                            BigDecimal totalPaymentDueAmount = getTotalPaymentDueAmount(lastInOrderAcc);
-                            if (cumulativeAmountByAccount.get(lastInOrderAcc) != null) {
-                                if (totalPaymentDueAmount.compareTo(cumulativeAmountByAccount.get(lastInOrderAcc)) > 0) {
-                                    totalPaymentDueAmount = totalPaymentDueAmount.subtract(cumulativeAmountByAccount.get(lastInOrderAcc));
-                                } else if (totalPaymentDueAmount.compareTo(cumulativeAmountByAccount.get(lastInOrderAcc)) == 0) {
-                                    totalPaymentDueAmount = BigDecimal.ZERO;
-                                }
-                            }
-                            if (paidInAmount.compareTo(totalPaymentDueAmount) > 0) {
-                                addError(row, messages.getString(MPesaConstants.TOTAL_PAID_IN_AMOUNT_IS_GREATER_THAN_THE_TOTAL_DUE_AMOUNT));
-                                continue;
-                            }
-                        }
+                AccountReferenceDto lastInOrderAcc = getSavingsAccount(phoneNumber, lastInTheOrderProdSName);
+                PaymentWaterfall.Account last = null;
+                if (lastInOrderAcc != null) {
+                    last = waterfallAccount(lastInOrderAcc, false);
+                } else {
+                    lastInOrderAcc = getLoanAccount(phoneNumber, lastInTheOrderProdSName);
+                    if (lastInOrderAcc != null) {
+                        last = waterfallAccount(lastInOrderAcc, true);
                     }
+                }
 
-                    if (lastInOrderAcc == null && paidInAmount.compareTo(BigDecimal.ZERO) != 0) {
-                        addError(row, messages.getString(MPesaConstants.NO_VALID_ACCOUNTS_FOUND));
-                        continue;
-                    }
+                final PaymentWaterfall.Allocation allocation = PaymentWaterfall.allocate(paidInAmount, loans, last);
 
-                    if (paidInAmount.compareTo(BigDecimal.ZERO) > 0) {
-                        lastInOrderAmount = paidInAmount;
-                        paidInAmount = BigDecimal.ZERO;
-                    } else {
-                        lastInOrderAmount = BigDecimal.ZERO;
+                boolean cancelTransactionFlag = false;
+
+                List<AccountPaymentParametersDto> loanPaymentList = new ArrayList<AccountPaymentParametersDto>();
+
+                for (int i = 0; i < loanAccounts.size(); i++) {
+                    final AccountReferenceDto loanAccountReference = loanAccounts.get(i);
+                    final long loanAccountPaymentAmount = allocation.getLoanAmount(i);
+                    final RunningTotalByAccount.Posting posting = cumulativeAmountByAccount.post(
+                            loanAccountReference.getAccountId(), loanAccountPaymentAmount);
+                    AccountPaymentParametersDto cumulativeLoanPayment = createPaymentParametersDto(
+                            loanAccountReference, posting.getTotal(), paymentDate);
+
+                    if (!isPaymentValid(cumulativeLoanPayment, row)) {
+                        cancelTransactionFlag = true;
+                        break;
                     }
-                    if(lastInOrderAcc != null && lastInOrderAmount.compareTo(BigDecimal.ZERO) > 0) {
-                        final AccountPaymentParametersDto cumulativePaymentlastAcc = createPaymentParametersDto(lastInOrderAcc,
-                            lastInOrderAmount, paymentDate);
-                        final AccountPaymentParametersDto lastInTheOrderAccPayment = new AccountPaymentParametersDto(
-                            getUserReferenceDto(), lastInOrderAcc, lastInOrderAmount, paymentDate, getPaymentTypeDto(), "", new LocalDate(), receipt,
-                            customerWithPhoneNumber(phoneNumber));
-                        if (!isPaymentValid(cumulativePaymentlastAcc, row)) {
-                            continue;
-                        }
-                        pmts.add(lastInTheOrderAccPayment);
+                    if (loanAccountPaymentAmount > 0) {
+                        loanPaymentList.add(new AccountPaymentParametersDto(getUserReferenceDto(),
+                                loanAccountReference, minorUnits.toBigDecimal(loanAccountPaymentAmount), paymentDate,
+                                getPaymentTypeDto(), "", new LocalDate(), receipt,
+                                customerWithPhoneNumber(phoneNumber)));
                     }
-                    successfullyParsedRows += 1;
+                }
 
-                    for (AccountPaymentParametersDto loanPayment : loanPaymentList) {
-                        pmts.add(loanPayment);
-                    }
-                    ReceiptIDList.add(receipt);
-                } catch (Exception e) {
-                    /* catch row specific exception and continue for other rows */
-                    e.printStackTrace();
-                    addError(row, e.getMessage());
+                if (cancelTransactionFlag) {
+                    continue;
+                }
+
+                if (allocation.getRefusal() == PaymentWaterfall.Refusal.REMAINDER_GREATER_THAN_DUE) {
+                    addError(row, messages.getString(MPesaConstants.TOTAL_PAID_IN_AMOUNT_IS_GREATER_THAN_THE_TOTAL_DUE_AMOUNT));
+                    continue;
+                }
+
+                if (allocation.getRefusal() == PaymentWaterfall.Refusal.NO_ACCOUNT_FOR_REMAINDER) {
+                    addError(row, messages.getString(MPesaConstants.NO_VALID_ACCOUNTS_FOUND));
                     continue;
                 }
+
+                final long lastInOrderAmount = allocation.getLastAmount();
+                if (lastInOrderAcc != null && lastInOrderAmount > 0) {
+                    final RunningTotalByAccount.Posting posting = cumulativeAmountByAccount.post(
+                        lastInOrderAcc.getAccountId(), lastInOrderAmount);
+                    final AccountPaymentParametersDto cumulativePaymentlastAcc = createPaymentParametersDto(lastInOrderAcc,
+                        posting.getTotal(), paymentDate);
+                    final AccountPaymentParametersDto lastInTheOrderAccPayment = new AccountPaymentParametersDto(
+                        getUserReferenceDto(), lastInOrderAcc, minorUnits.toBigDecimal(lastInOrderAmount), paymentDate,
+                        getPaymentTypeDto(), "", new LocalDate(), receipt, customerWithPhoneNumber(phoneNumber));
+                    if (!isPaymentValid(cumulativePaymentlastAcc, row)) {
+                        continue;
+                    }
+                    pmts.add(lastInTheOrderAccPayment);
+                }
+                successfullyParsedRows += 1;
+
+                for (AccountPaymentParametersDto loanPayment : loanPaymentList) {
+                    pmts.add(loanPayment);
+                }
+                receiptIds.add(receipt);
+                if (watermark != null) {
+                    watermark.imported(transDate, receipt);
+                }
+            } catch (Exception e) {
+                final ImportCancelledException cancelled = ImportCancelledException.causing(e);
+                if (cancelled != null) {
+                    throw cancelled;
+                }
+                /* catch row specific exception and continue for other rows */
+                e.printStackTrace();
+                addError(row, e.getMessage());
+                continue;
             }
+        }
+    }
+
+    /**
+     * Reads every sheet of an Excel 97 or Excel 2007 workbook.
+     */
+    protected List<Iterable<StatementRow>> sheets(final InputStream input) throws Exception {
+        // Copy input into byte input to try two implementations of POI parsers: HSSF and XSSF (XML formats)
+        ByteArrayInputStream copiedInput = copyInputIntoByteInput(input);
+        copiedInput.mark(0);
+        try {
+            return workbookSheets(new HSSFWorkbook(copiedInput));
         } catch (Exception e) {
-            /* Catch any exception in the process */
-            e.printStackTrace();
-            errorsList.add(e.getMessage() + ". " + messages.getString(MPesaConstants.GOT_ERROR_BEFORE_READING_ROWS));
+            copiedInput.reset();
+            try {
+                return workbookSheets(new XSSFWorkbook(copiedInput));
+            } catch (Exception e2) {
+                e2.printStackTrace();
+                throw new MPesaXlsImporterException(messages.getString(MPesaConstants.UNKNOW_FILE_FORMAT));
+            }
+        }
+    }
+
+    /**
+     * The rows of a workbook are known before they are read, so the progress of the parse can tell how long it has to go.
+     * They include the few rows above the transactions.
+     */
+    private List<Iterable<StatementRow>> workbookSheets(final Workbook workbook) {
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            expectRows(workbook.getSheetAt(i).getPhysicalNumberOfRows());
+        }
+        return PoiStatementRow.sheets(workbook);
+    }
 
+    /**
+     * Statements of several branches or days may come as one workbook with a sheet for each. Whether the receipts of
+     * the sheets are already in Mifos, and who the clients paying are, do not depend on the other rows, so when more
+     * than one sheet holds transactions they are asked for all sheets at once, on as many threads as
+     * <code>LookupThreads</code> allows. The rows are then parsed in order with the answers at hand, so the outcome is
+     * the same however the calls were scheduled. A call which failed is made again when its row is parsed, so that the
+     * failure is reported against the row.
+     */
+    private void checkSheetsAtOnce(final List<Iterable<StatementRow>> sheets) throws IOException {
+        final Set<String> receipts = new LinkedHashSet<String>();
+        final Set<String> phoneNumbers = new LinkedHashSet<String>();
+        int sheetsWithTransactionData = 0;
+        for (Iterable<StatementRow> sheet : sheets) {
+            final Iterator<StatementRow> rowIterator = sheet.iterator();
+            paybillAccount = null;
+            if (!skipToTransactionData(rowIterator)) {
+                continue;
+            }
+            sheetsWithTransactionData++;
+            watermark = loadWatermark();
+            while (rowIterator.hasNext()) {
+                checkCancelled();
+                final ProjectedRow row = ProjectedRow.of(rowIterator.next());
+                if (row.getLastCellNum() < MAX_CELL_NUM || row.getCell(RECEIPT) == null
+                        || row.getCell(OTHER_PARTY_INFO) == null || isImportedBefore(row)) {
+                    continue;
+                }
+                final String receipt = row.text(RECEIPT);
+                if (!receipt.isEmpty() && !isNewReceipt(receipt)) {
+                    receipts.add(receipt);
+                }
+                final String phoneNumber = row.phoneNumberCandidate();
+                if (phoneNumber != null && !phoneNumber.trim().isEmpty()) {
+                    phoneNumbers.add(phoneNumber);
+                }
+            }
+        }
+        paybillAccount = null;
+        watermark = null;
+        if (sheetsWithTransactionData < 2) {
+            return;
+        }
+
+        final Map<String, Future<Boolean>> receiptsExisting = new LinkedHashMap<String, Future<Boolean>>();
+        final Map<String, Future<List<CustomerDto>>> customers = new LinkedHashMap<String, Future<List<CustomerDto>>>();
+        final AsyncAccountService accountService = newAsyncAccountService();
+        try {
+            for (String receipt : receipts) {
+                receiptsExisting.put(receipt, accountService.receiptExists(receipt));
+            }
+            for (String phoneNumber : phoneNumbers) {
+                customers.put(phoneNumber, accountService.findCustomersWithGivenPhoneNumber(phoneNumber));
+            }
+            for (Map.Entry<String, Future<Boolean>> receipt : receiptsExisting.entrySet()) {
+                try {
+                    receiptsFound.put(receipt.getKey(), receipt.getValue().get());
+                } catch (Exception e) {
+                    continue;
+                }
+            }
+            for (Map.Entry<String, Future<List<CustomerDto>>> customer : customers.entrySet()) {
+                try {
+                    customersFound.put(customer.getKey(), customer.getValue().get());
+                } catch (Exception e) {
+                    continue;
+                }
+            }
+        } finally {
+            accountService.close();
         }
-        return parsingResult();
     }
 
     private ParseResultDto parsingResult() {
+        parseFinished();
+        if (rowsImportedBefore > 0) {
+            errorsList.add(String.format(messages.getString(MPesaConstants.ROWS_IMPORTED_BEFORE), rowsImportedBefore,
+                    StringUtils.join(watermarks.keySet(), ", ")));
+        }
         ParseResultDto result = new ParseResultDto(errorsList, pmts);
         result.setNumberOfErrorRows(errorRowNums.size());
         result.setNumberOfIgnoredRows(ignoredRowNums.size());
@@ -712,12 +933,32 @@ public class MPesaXlsImporter extends StandardImport {
         return products;
     }
 
+    /**
+     * @param totalPaymentAmountForAccount running total for the account, including this payment, in minor units
+     */
     private AccountPaymentParametersDto createPaymentParametersDto(final AccountReferenceDto accountReference,
-            final BigDecimal paymentAmount, final LocalDate paymentDate) {
-        BigDecimal totalPaymentAmountForAccount = addToRunningTotalForAccount(paymentAmount, cumulativeAmountByAccount,
-                accountReference);
-        return new AccountPaymentParametersDto(getUserReferenceDto(), accountReference, totalPaymentAmountForAccount,
-                paymentDate, getPaymentTypeDto(), "");
+            final long totalPaymentAmountForAccount, final LocalDate paymentDate) {
+        return new AccountPaymentParametersDto(getUserReferenceDto(), accountReference,
+                minorUnits.toBigDecimal(totalPaymentAmountForAccount), paymentDate, getPaymentTypeDto(), "");
+    }
+
+    /**
+     * The amount due on a loan is asked of Mifos the first time the loan is paid into during an import, and kept with
+     * its running total from then on, so that a client who pays several times costs one round trip.
+     *
+     * @return the account as it stands before the payment of the row, to be split by {@link PaymentWaterfall}
+     */
+    private PaymentWaterfall.Account waterfallAccount(final AccountReferenceDto account, final boolean loan)
+            throws Exception {
+        final int slot = cumulativeAmountByAccount.slotFor(account.getAccountId());
+        if (!loan) {
+            return new PaymentWaterfall.Account(account.getAccountId(), false, 0, cumulativeAmountByAccount.totalAt(slot));
+        }
+        if (!cumulativeAmountByAccount.hasTotalDueAt(slot)) {
+            cumulativeAmountByAccount.setTotalDueAt(slot, minorUnits.fromBigDecimal(getTotalPaymentDueAmount(account)));
+        }
+        return new PaymentWaterfall.Account(account.getAccountId(), true, cumulativeAmountByAccount.totalDueAt(slot),
+                cumulativeAmountByAccount.totalAt(slot));
     }
 
     /**
@@ -737,16 +978,16 @@ public class MPesaXlsImporter extends StandardImport {
         }
     }
 
-    private boolean isRowValid(final Row row, final int friendlyRowNum, List<String> errorsList) throws Exception {
+    private boolean isRowValid(final ProjectedRow row, final int friendlyRowNum, List<String> errorsList) throws Exception {
         if (row.getLastCellNum() < MAX_CELL_NUM) {
             addError(row, messages.getString(MPesaConstants.MISSING_REQUIRED_DATA));
             return false;
         }
-        if (row.getCell(RECEIPT) == null || row.getCell(RECEIPT).getStringCellValue() == null) {
+        if (row.getCell(RECEIPT) == null || row.string(RECEIPT) == null) {
             addError(row, messages.getString(MPesaConstants.MISSING_REQUIRED_DATA_RECEIPT));
             return false;
         }
-        if (row.getCell(STATUS) == null || row.getCell(STATUS).getStringCellValue() == null) {
+        if (row.getCell(STATUS) == null || row.string(STATUS) == null) {
             addError(row, messages.getString(MPesaConstants.MISSING_REQUIRED_DATA_STATUS));
             return false;
         }
@@ -754,34 +995,34 @@ public class MPesaXlsImporter extends StandardImport {
             addError(row, messages.getString(MPesaConstants.OTHER_ACTIVE_LOANS_FOR_THE_SAME_PRODUCT));
             return false;
         }
-        if (!row.getCell(STATUS).getStringCellValue().trim().equals(EXPECTED_STATUS)) {
+        if (!row.string(STATUS).trim().equals(EXPECTED_STATUS)) {
             addIgnoredMessage(row, String.format(messages.getString(MPesaConstants.INVALID_STATUS), row.getCell(STATUS)));
             return false;
         }
-        if (row.getCell(TRANSACTION_TYPE) == null || row.getCell(TRANSACTION_TYPE).getStringCellValue() == null) {
+        if (row.getCell(TRANSACTION_TYPE) == null || row.string(TRANSACTION_TYPE) == null) {
             addError(row, messages.getString(MPesaConstants.MISSING_REQUIRED_DATA));
             return false;
         }
-        if (isLoanDisbursement(row)) { // DISBURSALS
+        if (row.isLoanDisbursement()) { // DISBURSALS
             if (null == row.getCell(WITHDRAWN)) {
                 addError(row, messages.getString(MPesaConstants.MISSING_REQUIRED_DATA_WITHDRAWN));
                 return false;
             }
-            if(BigDecimal.valueOf(row.getCell(WITHDRAWN).getNumericCellValue()).compareTo(BigDecimal.ZERO) == 0) {
+            if (row.number(WITHDRAWN) == 0) {
                 addError(row, messages.getString(MPesaConstants.AMOUNT_MUST_BE_GREATER_THAN_0));
                 return false;
             }
         }
-        else if(DISBURSAL_TRANSACTION_TYPE.equals(cellStringValue(row.getCell(TRANSACTION_TYPE)))) {
+        else if(DISBURSAL_TRANSACTION_TYPE.equals(row.text(TRANSACTION_TYPE))) {
             if(row.getCell(DETAILS) == null
-            || cellStringValue(row.getCell(DETAILS)) == null
-            || !cellStringValue(row.getCell(DETAILS)).startsWith(DISBURSAL_DETAILS_PREFIX)) {
+            || row.text(DETAILS) == null
+            || !row.text(DETAILS).startsWith(DISBURSAL_DETAILS_PREFIX)) {
                 addError(row, messages.getString(MPesaConstants.FIELD_IS_INAPPROPRIATE_DETAILS));
                 return false;
             }
         }
         else { // PAYMENTS
-            if (!row.getCell(TRANSACTION_TYPE).getStringCellValue().trim().equalsIgnoreCase(PAYMENT_TRANSACTION_TYPE)) {
+            if (!row.string(TRANSACTION_TYPE).trim().equalsIgnoreCase(PAYMENT_TRANSACTION_TYPE)) {
                 addIgnoredMessage(row, String.format(messages.getString(MPesaConstants.INVALID_TRANSACTION_TYPE), row.getCell(TRANSACTION_TYPE),PAYMENT_TRANSACTION_TYPE));
                 return false;
             }
@@ -793,7 +1034,7 @@ public class MPesaXlsImporter extends StandardImport {
                 addError(row, messages.getString(MPesaConstants.MISSING_REQUIRED_DATA_PAID_IN));
                 return false;
             }
-            if(BigDecimal.valueOf(row.getCell(PAID_IN).getNumericCellValue()).compareTo(BigDecimal.ZERO) <= 0) {
+            if (row.number(PAID_IN) <= 0) {
                 addError(row, messages.getString(MPesaConstants.AMOUNT_MUST_BE_GREATER_THAN_0));
                 return false;
             }
@@ -806,9 +1047,11 @@ public class MPesaXlsImporter extends StandardImport {
             addError(row, messages.getString(MPesaConstants.STATUS_FIELD_IS_EMPTY));
             return false;
         } else {
-            String receiptNumber = cellStringValue(row.getCell(RECEIPT));
+            String receiptNumber = row.text(RECEIPT);
             if (receiptNumber != null && !receiptNumber.isEmpty()) {
-                if (getAccountService().receiptExists(receiptNumber)) {
+                final Boolean found = receiptsFound.get(receiptNumber);
+                if (found != null ? found.booleanValue() : !isNewReceipt(receiptNumber)
+                        && getAccountService().receiptExists(receiptNumber)) {
                     addError(row, messages.getString(MPesaConstants.INVALID_RECEIPT));
                     return false;
                 }
@@ -817,13 +1060,13 @@ public class MPesaXlsImporter extends StandardImport {
         return true;
     }
 
-    private void checkBlank(final String value, final String name, final Row row) {
+    private void checkBlank(final String value, final String name, final ProjectedRow row) {
         if (StringUtils.isBlank(value)) {
             addError(row, name + " " + messages.getString(MPesaConstants.COULD_NOT_BE_EXTRACTED));
         }
     }
 
-    private boolean isPaymentValid(final AccountPaymentParametersDto cumulativePayment, final Row row)
+    private boolean isPaymentValid(final AccountPaymentParametersDto cumulativePayment, final ProjectedRow row)
             throws Exception {
         final List<InvalidPaymentReason> errors = getAccountService().validatePayment(cumulativePayment);
 
@@ -886,33 +1129,267 @@ public class MPesaXlsImporter extends StandardImport {
         return account;
     }
 
-    private void skipToTransactionData(final Iterator<Row> rowIterator) {
-        boolean skippingRowsBeforeTransactionData = true;
-        while (errorsList.isEmpty() && skippingRowsBeforeTransactionData) {
-            if (!rowIterator.hasNext()) {
-                errorsList.add(messages.getString(MPesaConstants.NO_ROWS_FOUND_WITH_IMPORT_DATA));
-                break;
+    /**
+     * Skips the rows above the transactions, noting the paybill account they name.
+     *
+     * @return <code>false</code> if the sheet holds no transaction data
+     */
+    private boolean skipToTransactionData(final Iterator<StatementRow> rowIterator) {
+        while (rowIterator.hasNext()) {
+            final StatementRow row = rowIterator.next();
+            if (isAccountNumber(row)) {
+                paybillAccount = cellStringValue(row.getCell(1)).trim();
             }
-            final Row row = rowIterator.next();
-            if (row.getCell(0) != null && row.getCell(0).getStringCellValue().trim().equals("Transactions")) {
-                skippingRowsBeforeTransactionData = false;
+            if (isColumnHeadings(row)) {
+                return true;
+            } else if (row.getCell(0) != null && row.getCell(0).getStringCellValue().trim().equals("Transactions")) {
                 /* skip row with column descriptions */
                 rowIterator.next();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAccountNumber(final StatementRow row) {
+        return row.getCell(0) != null && row.getCell(0).getCellType() == Cell.CELL_TYPE_STRING
+                && row.getCell(0).getStringCellValue().trim().equals(ACCOUNT_NUMBER) && row.getCell(1) != null;
+    }
+
+    /**
+     * Statements of a paybill account often overlap. With <code>IncrementalImport</code> set to <code>true</code>,
+     * rows of the account which were stored by an earlier import are skipped before any service is asked about them,
+     * so that a daily import costs time in proportion to the rows which are new. The watermark of each account is
+     * kept in <code>WatermarkDirectory</code>, <code>~/.mifos/mpesa</code> unless configured. Statements which do not
+     * name their account are imported in full.
+     *
+     * @return the watermark of the account of the sheet, or null if rows are not to be skipped
+     */
+    private ReceiptWatermark loadWatermark() throws IOException {
+        if (watermarks.containsKey(paybillAccount)) {
+            return watermarks.get(paybillAccount);
+        }
+        if (paybillAccount == null || paybillAccount.isEmpty()
+                || !Boolean.parseBoolean(String.valueOf(getAccountService().getMifosConfiguration(
+                        MPesaXlsImporter.class.getCanonicalName() + "." + INCREMENTAL_IMPORT)))) {
+            return null;
+        }
+        Object directory = getAccountService().getMifosConfiguration(
+                MPesaXlsImporter.class.getCanonicalName() + "." + WATERMARK_DIRECTORY);
+        if (directory == null) {
+            directory = System.getProperty("user.home") + File.separator + ".mifos" + File.separator + "mpesa";
+        }
+        final ReceiptWatermark loaded = ReceiptWatermark.load(new File(directory.toString()), paybillAccount);
+        watermarks.put(paybillAccount, loaded);
+        return loaded;
+    }
+
+    /**
+     * Only reads the receipt and completion time, so that a row stored before costs no service calls.
+     */
+    private boolean isImportedBefore(final ProjectedRow row) {
+        if (watermark == null || row.getCell(RECEIPT) == null) {
+            return false;
+        }
+        Date completed = completionTime(row);
+        return completed != null && watermark.covers(completed, row.text(RECEIPT));
+    }
+
+    private Date completionTime(final ProjectedRow row) {
+        if (row == null || row.getCell(TRANSACTION_DATE) == null) {
+            return null;
+        }
+        try {
+            return row.completed();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Moves the watermarks of the accounts past the rows just stored.
+     */
+    private void advanceWatermark() throws IOException {
+        if (watermarks == null) {
+            return;
+        }
+        for (ReceiptWatermark accountWatermark : watermarks.values()) {
+            accountWatermark.advance();
+            accountWatermark.save();
+        }
+    }
+
+    @Override
+    public void store(InputStream input) throws Exception {
+        startReceiptIndexUpdate();
+        try {
+            super.store(input);
+        } catch (Exception e) {
+            finishReceiptIndexUpdate(e);
+            throw e;
+        }
+        finishReceiptIndexUpdate(null);
+        advanceWatermark();
+    }
+
+    @Override
+    public List<AccountTrxDto> storeForUndoImport(InputStream input) throws Exception {
+        startReceiptIndexUpdate();
+        List<AccountTrxDto> transactions;
+        try {
+            transactions = super.storeForUndoImport(input);
+        } catch (Exception e) {
+            finishReceiptIndexUpdate(e);
+            throw e;
+        }
+        finishReceiptIndexUpdate(null);
+        advanceWatermark();
+        return transactions;
+    }
+
+    /**
+     * Replaces the receipts of the index named by <code>ReceiptIndexFile</code> with the receipts already in Mifos, so
+     * that it can tell new receipts without asking Mifos. The account service can not list receipts, so they are read
+     * from an export of the database, one a line. Rebuild from an empty export if no M-PESA receipts have been
+     * imported yet.
+     *
+     * @return whether an index is configured
+     */
+    public boolean rebuildReceiptIndex(InputStream receiptsInMifos) throws IOException {
+        final ReceiptIndex index = openReceiptIndex();
+        if (index == null) {
+            return false;
+        }
+        final BufferedReader lines = new BufferedReader(new InputStreamReader(receiptsInMifos, "UTF-8"));
+        index.rebuild(new Iterator<String>() {
+            private String next = readLine();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                final String line = next;
+                next = readLine();
+                return line;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
+
+            private String readLine() {
+                try {
+                    return lines.readLine();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return the index of receipts in Mifos kept in the file named by <code>ReceiptIndexFile</code>, or
+     *         <code>null</code> if none is configured or the file can not be used, in which case Mifos is asked about
+     *         every receipt
+     */
+    private ReceiptIndex openReceiptIndex() {
+        final Object indexFile = getAccountService().getMifosConfiguration(
+                MPesaXlsImporter.class.getCanonicalName() + "." + RECEIPT_INDEX_FILE);
+        if (indexFile == null) {
+            return null;
+        }
+        try {
+            return ReceiptIndex.open(new File(indexFile.toString()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
     }
+
+    /**
+     * @return whether the receipt is certainly not in Mifos, according to the receipt index
+     */
+    private boolean isNewReceipt(String receipt) {
+        return receiptIndex != null && receiptIndex.isNew(receipt);
+    }
+
+    /**
+     * The update itself only starts once the first batch is about to be committed, so that the parse of the store can
+     * still rely on the index.
+     */
+    private void startReceiptIndexUpdate() {
+        receiptIndexUpdated = openReceiptIndex();
+        receiptIndexUpdating = false;
+    }
+
+    @Override
+    protected void paymentsCommitting(List<AccountPaymentParametersDto> payments) {
+        if (receiptIndexUpdated != null && !receiptIndexUpdating) {
+            receiptIndexUpdated.startUpdate();
+            receiptIndexUpdating = true;
+        }
+    }
+
+    @Override
+    protected void paymentsCommitted(List<AccountPaymentParametersDto> payments) {
+        if (receiptIndexUpdated == null) {
+            return;
+        }
+        final List<String> receipts = new ArrayList<String>(payments.size());
+        for (AccountPaymentParametersDto payment : payments) {
+            receipts.add(payment.getReceiptId());
+        }
+        try {
+            receiptIndexUpdated.add(receipts);
+        } catch (IOException e) {
+            e.printStackTrace();
+            receiptIndexUpdated.abandonUpdate();
+            receiptIndexUpdated = null;
+            receiptIndexUpdating = false;
+        }
+    }
+
+    /**
+     * The index stays complete if the store succeeded, or was cancelled before committing what it had not added, and is
+     * left incomplete otherwise, as it is not known whether the payments of a failed call reached Mifos.
+     */
+    private void finishReceiptIndexUpdate(Exception failure) {
+        if (!receiptIndexUpdating) {
+            receiptIndexUpdated = null;
+            return;
+        }
+        if (failure == null || ImportCancelledException.causing(failure) != null) {
+            receiptIndexUpdated.finishUpdate();
+        } else {
+            receiptIndexUpdated.abandonUpdate();
+        }
+        receiptIndexUpdated = null;
+        receiptIndexUpdating = false;
+    }
+
+    /**
+     * Statements exported from a workbook have a row of column headings after a row saying "Transactions", which is
+     * how the data is found. Other formats may start with the headings.
+     *
+     * @return whether the row holds the headings of the columns, the transaction data starting on the next row
+     */
+    protected boolean isColumnHeadings(final StatementRow row) {
+        return false;
+    }
+
     protected static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
 
     protected Date getDate(final Cell transDateCell) throws ParseException {
-        Date date = null;
-        if (transDateCell.getCellType() == Cell.CELL_TYPE_STRING) {
-            final SimpleDateFormat dateAsText = new SimpleDateFormat(DATE_FORMAT, Locale.ENGLISH);
-            dateAsText.setLenient(false);
-            date = dateAsText.parse(transDateCell.getStringCellValue());
-        } else if (transDateCell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
-            date = transDateCell.getDateCellValue();
-        }
-        return date;
+        return getDate(PoiStatementRow.cell(transDateCell));
+    }
+
+    protected Date getDate(final StatementCell transDateCell) throws ParseException {
+        return StatementTime.of(transDateCell);
     }
 
     /**
@@ -926,6 +1403,24 @@ public class MPesaXlsImporter extends StandardImport {
         return successfullyParsedRows;
     }
 
+    private static final class PendingDisbursal {
+        final ProjectedRow row;
+        final String receipt;
+        final Date completed;
+        final String phoneNumber;
+        /** Watermark of the account of the sheet the row is on. */
+        final ReceiptWatermark watermark;
+
+        PendingDisbursal(ProjectedRow row, String receipt, Date completed, String phoneNumber,
+                ReceiptWatermark watermark) {
+            this.row = row;
+            this.receipt = receipt;
+            this.completed = completed;
+            this.phoneNumber = phoneNumber;
+            this.watermark = watermark;
+        }
+    }
+
     class MPesaXlsImporterException extends RuntimeException {
 
         private static final long serialVersionUID = 731436914098659043L;
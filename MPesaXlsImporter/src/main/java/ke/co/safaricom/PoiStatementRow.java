@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * A row of an Excel statement, as read by POI.
+ */
+final class PoiStatementRow implements StatementRow {
+    private final Row row;
+    private final String sheetName;
+
+    PoiStatementRow(Row row, String sheetName) {
+        this.row = row;
+        this.sheetName = sheetName;
+    }
+
+    /**
+     * @return the rows of each sheet of the workbook, in the order of the sheets. POI keeps the whole workbook, so the
+     *         rows of a sheet can be read more than once.
+     */
+    static List<Iterable<StatementRow>> sheets(final Workbook workbook) {
+        final List<Iterable<StatementRow>> sheets = new ArrayList<Iterable<StatementRow>>();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            final Sheet sheet = workbook.getSheetAt(i);
+            final String sheetName = i == 0 ? null : workbook.getSheetName(i);
+            sheets.add(new Iterable<StatementRow>() {
+                @Override
+                public Iterator<StatementRow> iterator() {
+                    return rows(sheet.iterator(), sheetName);
+                }
+            });
+        }
+        return sheets;
+    }
+
+    /**
+     * @return the row, its sheet named as {@link #sheets(Workbook)} names it
+     */
+    static StatementRow of(final Row row) {
+        final Sheet sheet = row.getSheet();
+        return new PoiStatementRow(row, sheet.getWorkbook().getSheetIndex(sheet) == 0 ? null : sheet.getSheetName());
+    }
+
+    static Iterator<StatementRow> rows(final Iterator<Row> rows, final String sheetName) {
+        return new Iterator<StatementRow>() {
+            @Override
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            @Override
+            public StatementRow next() {
+                return new PoiStatementRow(rows.next(), sheetName);
+            }
+
+            @Override
+            public void remove() {
+                rows.remove();
+            }
+        };
+    }
+
+    static StatementCell cell(Cell cell) {
+        return cell == null ? null : new PoiStatementCell(cell);
+    }
+
+    @Override
+    public int getRowNum() {
+        return row.getRowNum();
+    }
+
+    @Override
+    public String getSheetName() {
+        return sheetName;
+    }
+
+    @Override
+    public int getLastCellNum() {
+        return row.getLastCellNum();
+    }
+
+    @Override
+    public StatementCell getCell(int column) {
+        return cell(row.getCell(column));
+    }
+
+    /**
+     * POI keeps the whole sheet, so the row stays as it is.
+     */
+    @Override
+    public StatementRow copy() {
+        return this;
+    }
+
+    private static final class PoiStatementCell implements StatementCell {
+        private final Cell cell;
+
+        PoiStatementCell(Cell cell) {
+            this.cell = cell;
+        }
+
+        @Override
+        public int getCellType() {
+            return cell.getCellType();
+        }
+
+        @Override
+        public String getStringCellValue() {
+            return cell.getStringCellValue();
+        }
+
+        @Override
+        public double getNumericCellValue() {
+            return cell.getNumericCellValue();
+        }
+
+        @Override
+        public Date getDateCellValue() {
+            return cell.getDateCellValue();
+        }
+
+        @Override
+        public String toString() {
+            return cell.toString();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.text.ParseException;
+import java.util.Date;
+
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * A row of an M-PESA statement whose columns are each decoded once, however many of the checks of the importer read
+ * them. A column is decoded the first time it is read, into the slots of the row; a value which could not be decoded is
+ * kept as the exception thrown, which is thrown again whenever the column is read, just as reading the cell again would.
+ * <p>
+ * Neither this nor the rows it wraps are safe for use by more than one thread.
+ */
+final class ProjectedRow implements StatementRow {
+
+    private static final int COLUMNS = MPesaXlsImporter.MAX_CELL_NUM;
+
+    private final StatementRow row;
+
+    private final boolean[] cellRead = new boolean[COLUMNS];
+    private final StatementCell[] cells = new StatementCell[COLUMNS];
+    private final Object[] texts = new Object[COLUMNS];
+    private final Object[] strings = new Object[COLUMNS];
+    private final Object[] numbers = new Object[COLUMNS];
+
+    private Object completed;
+    private Boolean loanDisbursement;
+    private Object phoneNumberCandidate;
+
+    private ProjectedRow(StatementRow row) {
+        this.row = row;
+    }
+
+    /**
+     * @return the row, decoding each of its columns once, or <code>null</code> if there is no row
+     */
+    static ProjectedRow of(StatementRow row) {
+        if (row == null || row instanceof ProjectedRow) {
+            return (ProjectedRow) row;
+        }
+        return new ProjectedRow(row);
+    }
+
+    @Override
+    public int getRowNum() {
+        return row.getRowNum();
+    }
+
+    @Override
+    public String getSheetName() {
+        return row.getSheetName();
+    }
+
+    @Override
+    public int getLastCellNum() {
+        return row.getLastCellNum();
+    }
+
+    @Override
+    public StatementCell getCell(int column) {
+        if (column < 0 || column >= COLUMNS) {
+            return row.getCell(column);
+        }
+        if (!cellRead[column]) {
+            cells[column] = row.getCell(column);
+            cellRead[column] = true;
+        }
+        return cells[column];
+    }
+
+    /**
+     * The copy keeps the columns decoded so far.
+     */
+    @Override
+    public ProjectedRow copy() {
+        final StatementRow copied = row.copy();
+        if (copied == row) {
+            return this;
+        }
+        final ProjectedRow copy = new ProjectedRow(copied);
+        System.arraycopy(cellRead, 0, copy.cellRead, 0, COLUMNS);
+        System.arraycopy(cells, 0, copy.cells, 0, COLUMNS);
+        System.arraycopy(texts, 0, copy.texts, 0, COLUMNS);
+        System.arraycopy(strings, 0, copy.strings, 0, COLUMNS);
+        System.arraycopy(numbers, 0, copy.numbers, 0, COLUMNS);
+        copy.completed = completed;
+        copy.loanDisbursement = loanDisbursement;
+        copy.phoneNumberCandidate = phoneNumberCandidate;
+        return copy;
+    }
+
+    /**
+     * @return the text of the cell, or the number in it written as by {@link Double#toString(double)}
+     * @throws NullPointerException if the cell holds nothing
+     */
+    String text(int column) {
+        if (texts[column] == null) {
+            try {
+                final StatementCell cell = getCell(column);
+                texts[column] = slot(cell.getCellType() == Cell.CELL_TYPE_NUMERIC ? Double.toString(cell
+                        .getNumericCellValue()) : cell.getStringCellValue());
+            } catch (RuntimeException e) {
+                texts[column] = e;
+            }
+        }
+        return (String) valueOf(texts[column]);
+    }
+
+    /**
+     * @return the text of the cell, as {@link StatementCell#getStringCellValue()} returns it
+     * @throws NullPointerException if the cell holds nothing
+     */
+    String string(int column) {
+        if (strings[column] == null) {
+            try {
+                strings[column] = slot(getCell(column).getStringCellValue());
+            } catch (RuntimeException e) {
+                strings[column] = e;
+            }
+        }
+        return (String) valueOf(strings[column]);
+    }
+
+    /**
+     * @throws NullPointerException if the cell holds nothing
+     */
+    double number(int column) {
+        if (numbers[column] == null) {
+            try {
+                numbers[column] = Double.valueOf(getCell(column).getNumericCellValue());
+            } catch (RuntimeException e) {
+                numbers[column] = e;
+            }
+        }
+        return ((Double) valueOf(numbers[column])).doubleValue();
+    }
+
+    /**
+     * @return when the transaction was completed, or <code>null</code> if the cell holds neither text nor a date
+     * @throws NullPointerException if the cell holds nothing
+     */
+    Date completed() throws ParseException {
+        if (completed == null) {
+            try {
+                completed = slot(StatementTime.of(getCell(MPesaXlsImporter.TRANSACTION_DATE)));
+            } catch (ParseException e) {
+                completed = e;
+            } catch (RuntimeException e) {
+                completed = e;
+            }
+        }
+        if (completed instanceof ParseException) {
+            throw (ParseException) completed;
+        }
+        return (Date) valueOf(completed);
+    }
+
+    /**
+     * @return whether the row pays out a loan rather than paying into accounts
+     * @throws NullPointerException if the transaction type is missing
+     */
+    boolean isLoanDisbursement() {
+        if (loanDisbursement == null) {
+            final boolean disbursement = MPesaXlsImporter.DISBURSAL_TRANSACTION_TYPE
+                    .equals(text(MPesaXlsImporter.TRANSACTION_TYPE))
+                    && getCell(MPesaXlsImporter.DETAILS) != null
+                    && text(MPesaXlsImporter.DETAILS) != null
+                    && text(MPesaXlsImporter.DETAILS).startsWith(MPesaXlsImporter.DISBURSAL_DETAILS_PREFIX);
+            loanDisbursement = Boolean.valueOf(disbursement);
+        }
+        return loanDisbursement.booleanValue();
+    }
+
+    /**
+     * The phone number is the text of the other party information up to the first space, which may be nothing.
+     *
+     * @return the phone number, or <code>null</code> if the other party information is only spaces
+     * @throws NullPointerException if the other party information is missing
+     */
+    String phoneNumberCandidate() {
+        if (phoneNumberCandidate == null) {
+            try {
+                phoneNumberCandidate = slot(firstToken(text(MPesaXlsImporter.OTHER_PARTY_INFO)));
+            } catch (RuntimeException e) {
+                phoneNumberCandidate = e;
+            }
+        }
+        return (String) valueOf(phoneNumberCandidate);
+    }
+
+    /**
+     * Reads what <code>text.split(" ")[0]</code> would, without a pattern or an array.
+     */
+    static String firstToken(String text) {
+        final int space = text.indexOf(' ');
+        if (space < 0) {
+            return text;
+        }
+        for (int i = space + 1; i < text.length(); i++) {
+            if (text.charAt(i) != ' ') {
+                return text.substring(0, space);
+            }
+        }
+        return space == 0 ? null : text.substring(0, space);
+    }
+
+    private static Object slot(Object value) {
+        return value == null ? Nothing.NOTHING : value;
+    }
+
+    private static Object valueOf(Object slot) {
+        if (slot instanceof RuntimeException) {
+            throw (RuntimeException) slot;
+        }
+        return slot == Nothing.NOTHING ? null : slot;
+    }
+
+    /**
+     * Marks a column decoded to <code>null</code>.
+     */
+    private enum Nothing {
+        NOTHING
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The receipts imported into Mifos, kept in a file so that a receipt can be told to be new without asking Mifos. The
+ * file is an open addressing hash table of receipts packed into longs, mapped into memory, so a look up costs a few
+ * memory reads however many receipts there are.
+ * <p>
+ * The index only says a receipt is new if it is <em>complete</em>, that is if it holds every receipt in Mifos. It is
+ * made complete by {@link #rebuild(Iterator)} from the receipts in the database, and stays complete as long as every
+ * store that adds receipts to Mifos adds them here too: {@link #startUpdate()} marks it incomplete in the file before
+ * payments are committed, and {@link #finishUpdate()} marks it complete again once their receipts are added. An
+ * update which is never finished, because the store failed or the process died, leaves it incomplete until rebuilt.
+ * A receipt found in the index may still have been undone in Mifos, so finding one is only a hint.
+ * <p>
+ * Receipts of up to 12 digits and capital letters, as M-PESA receipts are, are packed; any other receipt is never
+ * said to be new. One index is kept open per file, shared by all importers.
+ */
+final class ReceiptIndex {
+
+    private static final int MAGIC = 0x4d504958;
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 4;
+    private static final int COMPLETE_AT = 8;
+    private static final int CAPACITY_AT = 12;
+    private static final int SIZE_AT = 16;
+    private static final int HEADER_BYTES = 32;
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final int MAX_PACKED_LENGTH = 12;
+    /** Digits and capital letters are 1 to 36, leaving 0 for an empty slot. */
+    private static final int RADIX = 37;
+
+    private static final Map<File, ReceiptIndex> OPEN = new HashMap<File, ReceiptIndex>();
+
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private boolean complete;
+    private int updates;
+
+    private ReceiptIndex(RandomAccessFile file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the index kept in the file, which is made, empty and incomplete, if there is none
+     */
+    static ReceiptIndex open(File indexFile) throws IOException {
+        final File key = indexFile.getCanonicalFile();
+        synchronized (OPEN) {
+            ReceiptIndex index = OPEN.get(key);
+            if (index == null) {
+                final File directory = key.getParentFile();
+                if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Could not make " + directory);
+                }
+                index = new ReceiptIndex(new RandomAccessFile(key, "rw"));
+                index.load();
+                OPEN.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    private void load() throws IOException {
+        if (file.length() < HEADER_BYTES) {
+            map(MIN_CAPACITY);
+            clear(false);
+            return;
+        }
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (buffer.getInt(MAGIC_AT) != MAGIC || buffer.getInt(VERSION_AT) != VERSION) {
+            throw new IOException("Not a receipt index: " + file);
+        }
+        final int storedCapacity = buffer.getInt(CAPACITY_AT);
+        if (Integer.bitCount(storedCapacity) != 1 || file.length() < HEADER_BYTES + (long) storedCapacity * 8) {
+            throw new IOException("Damaged receipt index: " + file);
+        }
+        map(storedCapacity);
+        size = buffer.getInt(SIZE_AT);
+        complete = buffer.getInt(COMPLETE_AT) != 0;
+    }
+
+    /**
+     * @return whether the receipt is certainly not in Mifos
+     */
+    synchronized boolean isNew(String receipt) {
+        // receipts of an update under way may be in Mifos already
+        if (!complete || updates > 0) {
+            return false;
+        }
+        final long packed = pack(receipt);
+        return packed != 0 && !contains(packed);
+    }
+
+    synchronized boolean isComplete() {
+        return complete;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Marks the index incomplete until {@link #finishUpdate()}, before receipts are added to Mifos.
+     */
+    synchronized void startUpdate() {
+        if (updates++ == 0 && complete) {
+            buffer.putInt(COMPLETE_AT, 0);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Adds receipts now in Mifos.
+     */
+    synchronized void add(Iterable<String> receipts) throws IOException {
+        for (String receipt : receipts) {
+            final long packed = pack(receipt);
+            if (packed == 0 || contains(packed)) {
+                continue;
+            }
+            if ((size + 1) * 2 > capacity) {
+                grow();
+            }
+            insert(packed);
+        }
+        buffer.putInt(SIZE_AT, size);
+    }
+
+    /**
+     * Marks the index complete again, if it was before the update, once the receipts of the update have been added.
+     */
+    synchronized void finishUpdate() {
+        if (updates > 0 && --updates == 0 && complete) {
+            buffer.putInt(COMPLETE_AT, 1);
+        }
+        buffer.force();
+    }
+
+    /**
+     * Leaves the index incomplete, as an update failed and it is not known which of its receipts reached Mifos.
+     */
+    synchronized void abandonUpdate() {
+        if (updates > 0) {
+            updates--;
+        }
+        complete = false;
+        buffer.putInt(COMPLETE_AT, 0);
+        buffer.force();
+    }
+
+    /**
+     * Replaces the receipts of the index with the receipts in Mifos, making it complete.
+     */
+    synchronized void rebuild(Iterator<String> receiptsInMifos) throws IOException {
+        clear(false);
+        buffer.force();
+        while (receiptsInMifos.hasNext()) {
+            final long packed = pack(receiptsInMifos.next().trim());
+            if (packed == 0 || contains(packed)) {
+                continue;
+            }
+            if ((size + 1) * 2 > capacity) {
+                grow();
+            }
+            insert(packed);
+        }
+        buffer.putInt(SIZE_AT, size);
+        complete = true;
+        updates = 0;
+        buffer.putInt(COMPLETE_AT, 1);
+        buffer.force();
+    }
+
+    /**
+     * @return the receipt as a number, or 0 if it can not be packed
+     */
+    static long pack(String receipt) {
+        if (receipt == null || receipt.length() == 0 || receipt.length() > MAX_PACKED_LENGTH) {
+            return 0;
+        }
+        long packed = 0;
+        for (int i = 0; i < receipt.length(); i++) {
+            final char c = receipt.charAt(i);
+            final int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0' + 1;
+            } else if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A' + 11;
+            } else {
+                return 0;
+            }
+            packed = packed * RADIX + digit;
+        }
+        return packed;
+    }
+
+    private boolean contains(long packed) {
+        final int mask = capacity - 1;
+        for (int slot = mix(packed) & mask;; slot = (slot + 1) & mask) {
+            final long stored = buffer.getLong(HEADER_BYTES + slot * 8);
+            if (stored == packed) {
+                return true;
+            }
+            if (stored == 0) {
+                return false;
+            }
+        }
+    }
+
+    private void insert(long packed) {
+        final int mask = capacity - 1;
+        int slot = mix(packed) & mask;
+        while (buffer.getLong(HEADER_BYTES + slot * 8) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        buffer.putLong(HEADER_BYTES + slot * 8, packed);
+        size++;
+    }
+
+    /**
+     * Doubles the table, marking the file incomplete meanwhile since its receipts are moved about.
+     */
+    private void grow() throws IOException {
+        final long[] receipts = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            final long stored = buffer.getLong(HEADER_BYTES + slot * 8);
+            if (stored != 0) {
+                receipts[count++] = stored;
+            }
+        }
+        final boolean wasComplete = buffer.getInt(COMPLETE_AT) != 0;
+        buffer.putInt(COMPLETE_AT, 0);
+        buffer.force();
+        map(capacity * 2);
+        clear(true);
+        for (int i = 0; i < count; i++) {
+            insert(receipts[i]);
+        }
+        buffer.putInt(SIZE_AT, size);
+        if (wasComplete) {
+            buffer.putInt(COMPLETE_AT, 1);
+        }
+    }
+
+    private void map(int newCapacity) throws IOException {
+        capacity = newCapacity;
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * 8);
+    }
+
+    /**
+     * Empties the table, leaving the index incomplete unless only the receipts are being moved.
+     */
+    private void clear(boolean keepComplete) {
+        for (int slot = 0; slot < capacity; slot++) {
+            buffer.putLong(HEADER_BYTES + slot * 8, 0);
+        }
+        size = 0;
+        buffer.putInt(MAGIC_AT, MAGIC);
+        buffer.putInt(VERSION_AT, VERSION);
+        buffer.putInt(CAPACITY_AT, capacity);
+        buffer.putInt(SIZE_AT, 0);
+        if (!keepComplete) {
+            complete = false;
+            buffer.putInt(COMPLETE_AT, 0);
+        }
+    }
+
+    private static int mix(long packed) {
+        long h = packed * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h;
+    }
+}
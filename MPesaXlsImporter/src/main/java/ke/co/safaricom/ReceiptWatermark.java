@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * How far the statements of one paybill account have been imported, so that rows of an overlapping statement which
+ * were imported before can be skipped without asking Mifos about them.
+ * <p>
+ * Every row completed before the watermark time has been imported or was ignored. Of the rows completed at the
+ * watermark time only those whose receipt is kept were imported, so a row on the boundary is skipped only if its
+ * receipt is known. A row which failed holds the watermark back to its completion time, so that it is read again
+ * once the problem is fixed.
+ * <p>
+ * The watermark is kept in a properties file named after the account, and moves only when the rows read by
+ * {@link #imported(Date, String)} and {@link #failed(Date)} have been stored.
+ */
+final class ReceiptWatermark {
+    private static final String TIME = "time";
+    private static final String RECEIPTS = "receipts";
+
+    private final File file;
+    private Date time;
+    private Set<String> receipts = new HashSet<String>();
+
+    private final Map<String, Date> importedReceipts = new LinkedHashMap<String, Date>();
+    private Date earliestFailure;
+
+    private ReceiptWatermark(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the watermark of the account, which is before every row if none has been saved
+     */
+    static ReceiptWatermark load(File directory, String paybillAccount) throws IOException {
+        ReceiptWatermark watermark = new ReceiptWatermark(new File(directory, fileName(paybillAccount)));
+        if (!watermark.file.exists()) {
+            return watermark;
+        }
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(watermark.file);
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        try {
+            watermark.time = dateFormat().parse(properties.getProperty(TIME));
+        } catch (ParseException e) {
+            throw new IOException("Unreadable watermark in " + watermark.file + ": " + e.getMessage());
+        }
+        for (String receipt : StringUtils.split(properties.getProperty(RECEIPTS, ""), ',')) {
+            watermark.receipts.add(receipt);
+        }
+        return watermark;
+    }
+
+    private static String fileName(String paybillAccount) {
+        return paybillAccount.trim().replaceAll("[^A-Za-z0-9_-]", "_") + ".properties";
+    }
+
+    /**
+     * The format of completion times in statements, which are in local time like the watermark.
+     */
+    private static SimpleDateFormat dateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(MPesaXlsImporter.DATE_FORMAT, Locale.ENGLISH);
+        format.setLenient(false);
+        return format;
+    }
+
+    Date getTime() {
+        return time;
+    }
+
+    /**
+     * @return whether the row completed at the given time with the given receipt was imported before
+     */
+    boolean covers(Date completed, String receipt) {
+        if (time == null) {
+            return false;
+        }
+        return completed.before(time) || completed.equals(time) && receipts.contains(receipt);
+    }
+
+    /**
+     * Notes a row of the statement being imported which will be stored.
+     */
+    void imported(Date completed, String receipt) {
+        importedReceipts.put(receipt, completed);
+    }
+
+    /**
+     * Notes a row of the statement being imported which will not be stored because of an error.
+     */
+    void failed(Date completed) {
+        if (earliestFailure == null || completed.before(earliestFailure)) {
+            earliestFailure = completed;
+        }
+    }
+
+    /**
+     * Moves the watermark past the rows noted since the last call, which have now been stored.
+     */
+    void advance() {
+        Date latest = time;
+        for (Date completed : importedReceipts.values()) {
+            if (latest == null || completed.after(latest)) {
+                latest = completed;
+            }
+        }
+        if (earliestFailure != null && latest != null && earliestFailure.before(latest)) {
+            latest = earliestFailure;
+        }
+        if (latest != null && (time == null || latest.after(time))) {
+            time = latest;
+            receipts = new HashSet<String>();
+        }
+        for (Map.Entry<String, Date> imported : importedReceipts.entrySet()) {
+            if (imported.getValue().equals(time)) {
+                receipts.add(imported.getKey());
+            }
+        }
+        importedReceipts.clear();
+        earliestFailure = null;
+    }
+
+    /**
+     * Writes the watermark to a new file which then replaces the old one, so that a failure part way leaves the old
+     * watermark in place.
+     */
+    void save() throws IOException {
+        if (time == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        properties.setProperty(TIME, dateFormat().format(time));
+        properties.setProperty(RECEIPTS, StringUtils.join(receipts, ','));
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File written = File.createTempFile(file.getName(), ".tmp", directory);
+        OutputStream output = new FileOutputStream(written);
+        try {
+            properties.store(output, "M-PESA receipt watermark");
+        } finally {
+            output.close();
+        }
+        if (!written.renameTo(file) && !(file.delete() && written.renameTo(file))) {
+            written.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+}
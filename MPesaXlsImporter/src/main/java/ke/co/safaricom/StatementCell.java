@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.util.Date;
+
+/**
+ * A cell of a {@link StatementRow}, read the way the POI usermodel reads a spreadsheet cell.
+ */
+public interface StatementCell {
+
+    /**
+     * @return one of the <code>CELL_TYPE</code> constants of {@link org.apache.poi.ss.usermodel.Cell}
+     */
+    int getCellType();
+
+    String getStringCellValue();
+
+    double getNumericCellValue();
+
+    Date getDateCellValue();
+}
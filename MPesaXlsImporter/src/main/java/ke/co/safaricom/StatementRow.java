@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+/**
+ * A row of an M-PESA statement, whether read from a workbook or from a CSV file.
+ */
+public interface StatementRow {
+
+    /**
+     * @return zero based number of the row
+     */
+    int getRowNum();
+
+    /**
+     * @return name of the sheet the row is on, or <code>null</code> if it is on the first sheet of a workbook or the
+     *         statement has no sheets
+     */
+    String getSheetName();
+
+    /**
+     * @return one more than the column of the last cell holding something, or -1 if there is none
+     */
+    int getLastCellNum();
+
+    /**
+     * @return the cell in the column, or <code>null</code> if it holds nothing
+     */
+    StatementCell getCell(int column);
+
+    /**
+     * @return a row holding the same cells, which can still be read once later rows of the statement have been
+     */
+    StatementRow copy();
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * Reads the completion times of an M-PESA statement. Times written as text in the
+ * {@link MPesaXlsImporter#DATE_FORMAT} layout are read digit by digit into a calendar kept by each thread, rather than
+ * by a <code>SimpleDateFormat</code> made for every cell; any other text is left to a <code>SimpleDateFormat</code>,
+ * so that the same times are accepted and rejected either way.
+ */
+final class StatementTime {
+
+    /** Length of the text of a time in the layout, such as <code>2011-01-03 10:00:00</code>. */
+    private static final int LENGTH = 19;
+
+    private static final ThreadLocal<Calendar> CALENDAR = new ThreadLocal<Calendar>() {
+        @Override
+        protected Calendar initialValue() {
+            final Calendar calendar = new GregorianCalendar(Locale.ENGLISH);
+            calendar.setLenient(false);
+            return calendar;
+        }
+    };
+
+    private StatementTime() {
+    }
+
+    /**
+     * @return the time in the cell, written as text or as an Excel date, or null if the cell holds neither
+     */
+    static Date of(final StatementCell cell) throws ParseException {
+        if (cell.getCellType() == Cell.CELL_TYPE_STRING) {
+            return parse(cell.getStringCellValue());
+        } else if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+            return cell.getDateCellValue();
+        }
+        return null;
+    }
+
+    static Date parse(final String text) throws ParseException {
+        if (!isInLayout(text)) {
+            final SimpleDateFormat dateAsText = new SimpleDateFormat(MPesaXlsImporter.DATE_FORMAT, Locale.ENGLISH);
+            dateAsText.setLenient(false);
+            return dateAsText.parse(text);
+        }
+        final Calendar calendar = CALENDAR.get();
+        calendar.clear();
+        calendar.set(digits(text, 0, 4), digits(text, 5, 2) - 1, digits(text, 8, 2), digits(text, 11, 2),
+                digits(text, 14, 2), digits(text, 17, 2));
+        try {
+            return calendar.getTime();
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unparseable date: \"" + text + "\"", 0);
+        }
+    }
+
+    /**
+     * Like <code>SimpleDateFormat</code>, text after the seconds is ignored, as long as it does not carry on the number.
+     */
+    private static boolean isInLayout(final String text) {
+        if (text.length() < LENGTH || text.length() > LENGTH && isDigit(text.charAt(LENGTH))) {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            final char c = text.charAt(i);
+            switch (i) {
+            case 4:
+            case 7:
+                if (c != '-') {
+                    return false;
+                }
+                break;
+            case 10:
+                if (c != ' ') {
+                    return false;
+                }
+                break;
+            case 13:
+            case 16:
+                if (c != ':') {
+                    return false;
+                }
+                break;
+            default:
+                if (!isDigit(c)) {
+                    return false;
+                }
+                break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int digits(final String text, final int from, final int length) {
+        int value = 0;
+        for (int i = from; i < from + length; i++) {
+            value = value * 10 + text.charAt(i) - '0';
+        }
+        return value;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.junit.Test;
+import org.mifos.InMemoryAccountService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+
+public class MPesaCsvImporterTest {
+
+    @Test
+    public void givesTheSameResultAsTheExcelImporter() throws Exception {
+        String testDataFilename = this.getClass().getResource("/example_import.xls").getFile();
+        byte[] xls = toByteArray(new FileInputStream(testDataFilename));
+        assertSameResult(parse(new MPesaXlsImporter(), xls, 1), parse(new MPesaCsvImporter(), toCsv(xls), 1));
+    }
+
+    @Test
+    public void givesTheSameResultWhenReadOnSeveralThreads() throws Exception {
+        byte[] xls = MPesaXlsImporterAllocationTest.generateStatement(5000);
+        ParseResultDto fromXls = parse(new MPesaXlsImporter(), xls, 1);
+        assertThat(fromXls.getSuccessfullyParsedPayments().isEmpty(), is(false));
+        assertSameResult(fromXls, parse(new MPesaCsvImporter(), toCsv(xls), 4));
+    }
+
+    @Test
+    public void readsStatementExportedStraightToCsv() throws Exception {
+        String csv = "\ufeffReceipt No.,Completion Time,Details,Transaction Status,Withdrawn,Paid In,Balance,"
+                + "Balance Confirmed,Reason Type,Other Party Info,Linked Transaction ID\r\n"
+                + "C94ZH942,2008-10-23 17:47:33,\"Payment received from 0729914044, Acc. 90982\",Completed,,"
+                + "\"2,750.00\",\"8,711.00\",true,Pay Utility,0729914044 - SALLY O.JIMA,3029149635 ALA NLA SA\r\n";
+        ParseResultDto result = parse(new MPesaCsvImporter(), csv.getBytes("UTF-8"), 1);
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(result.getNumberOfReadRows(), is(1));
+        assertThat(result.getTotalAmountOfTransactionsImported().doubleValue(), is(2750.0));
+    }
+
+    @Test
+    public void readsTheConfiguredDelimiterAndCharset() throws Exception {
+        String csv = "Receipt No.;Completion Time;Details;Transaction Status;Withdrawn;Paid In;Balance;"
+                + "Balance Confirmed;Reason Type;Other Party Info;Linked Transaction ID\r\n"
+                + "C94ZH942;2008-10-23 17:47:33;Payment received from 0729914044, Acc. 90982;Completed;;"
+                + "2,750.00;8,711.00;true;Pay Utility;0729914044 - S\u00e9VERINE O.JIMA;3029149635 ALA NLA SA\r\n";
+        MPesaCsvImporter importer = new MPesaCsvImporter();
+        ParseResultDto result = parse(importer, csv.getBytes("ISO-8859-1"), services(1)
+                .withConfiguration("ke.co.safaricom.MPesaCsvImporter.Delimiter", ";")
+                .withConfiguration("ke.co.safaricom.MPesaCsvImporter.Charset", "ISO-8859-1"));
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(result.getTotalAmountOfTransactionsImported().doubleValue(), is(2750.0));
+    }
+
+    private static ParseResultDto parse(MPesaXlsImporter importer, byte[] statement, int readerThreads)
+            throws Exception {
+        return parse(importer, statement, services(readerThreads));
+    }
+
+    private static ParseResultDto parse(MPesaXlsImporter importer, byte[] statement, InMemoryAccountService services)
+            throws Exception {
+        importer.setAccountService(services.accountService());
+        importer.setCustomerSearchService(services.customerSearchService());
+        importer.setUserReferenceDto(new UserReferenceDto((short) 1));
+        return importer.parse(new ByteArrayInputStream(statement));
+    }
+
+    private static InMemoryAccountService services(int readerThreads) {
+        return new InMemoryAccountService()
+                .withConfiguration("ke.co.safaricom.MPesaXlsImporter.ImportTransactionOrder",
+                        Arrays.asList("ALA", "NLA", "SA"))
+                .withConfiguration("ke.co.safaricom.MPesaCsvImporter.ReaderThreads", String.valueOf(readerThreads))
+                .withConfiguration("AccountingRules.DigitsAfterDecimal", "2")
+                .withConfiguration("Localization.LanguageCode", "EN")
+                .withConfiguration("Localization.CountryCode", "GB")
+                .withPaymentType(new PaymentTypeDto((short) 1, MPesaXlsImporter.PAYMENT_TYPE))
+                .withProducts("ALA", "NLA", "SA");
+    }
+
+    private static void assertSameResult(ParseResultDto expected, ParseResultDto actual) {
+        assertThat(actual.getParseErrors(), is(expected.getParseErrors()));
+        assertThat(actual.getNumberOfReadRows(), is(expected.getNumberOfReadRows()));
+        assertThat(actual.getNumberOfErrorRows(), is(expected.getNumberOfErrorRows()));
+        assertThat(actual.getNumberOfIgnoredRows(), is(expected.getNumberOfIgnoredRows()));
+        List<AccountPaymentParametersDto> expectedPayments = expected.getSuccessfullyParsedPayments();
+        List<AccountPaymentParametersDto> actualPayments = actual.getSuccessfullyParsedPayments();
+        assertThat(actualPayments.size(), is(expectedPayments.size()));
+        for (int i = 0; i < expectedPayments.size(); i++) {
+            assertThat(actualPayments.get(i).getReceiptId(), is(expectedPayments.get(i).getReceiptId()));
+            assertThat(actualPayments.get(i).getPaymentAmount(), is(expectedPayments.get(i).getPaymentAmount()));
+            assertThat(actualPayments.get(i).getPaymentDate(), is(expectedPayments.get(i).getPaymentDate()));
+            assertThat(actualPayments.get(i).getAccount().getAccountId(), is(expectedPayments.get(i).getAccount()
+                    .getAccountId()));
+        }
+    }
+
+    /**
+     * Saves the first sheet of a workbook as CSV, one line per row whether the row exists or not, so that records are
+     * numbered as the rows were.
+     */
+    private static byte[] toCsv(byte[] xls) throws Exception {
+        StringBuilder csv = new StringBuilder();
+        int lines = 0;
+        for (Row row : new HSSFWorkbook(new ByteArrayInputStream(xls)).getSheetAt(0)) {
+            for (; lines < row.getRowNum(); lines++) {
+                csv.append("\r\n");
+            }
+            for (int column = 0; column < row.getLastCellNum(); column++) {
+                if (column > 0) {
+                    csv.append(',');
+                }
+                Cell cell = row.getCell(column);
+                if (cell != null && cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+                    csv.append(NumberToTextConverter.toText(cell.getNumericCellValue()));
+                } else if (cell != null && cell.getCellType() == Cell.CELL_TYPE_STRING) {
+                    csv.append('"').append(cell.getStringCellValue().replace("\"", "\"\"")).append('"');
+                }
+            }
+            csv.append("\r\n");
+            lines++;
+        }
+        return csv.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] toByteArray(InputStream input) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+            bytes.write(buffer, 0, read);
+        }
+        input.close();
+        return bytes.toByteArray();
+    }
+}
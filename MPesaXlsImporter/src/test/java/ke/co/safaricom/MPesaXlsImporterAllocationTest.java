@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.junit.Before;
+import org.junit.Test;
+import org.mifos.InMemoryAccountService;
+import org.mifos.ThreadAllocation;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+
+/**
+ * Allocation budget for {@link MPesaXlsImporter#parse(java.io.InputStream)}. A generated statement is parsed against an
+ * in-memory service and the bytes allocated by the importing thread, decoding of the workbook included, are compared
+ * with those allocated in the same run by decoding the workbook and reading every cell, which is the least any importer
+ * has to do with it. Object layout, and so the bytes both take, differs between JVMs and heap settings, but the ratio
+ * between them changes little, so the budget catches the importer allocating more per row rather than a JVM laying
+ * objects out differently. Lower {@link #MAX_RATIO_TO_DECODING} when a change reduces allocation, so that the saving
+ * cannot silently regress.
+ */
+public class MPesaXlsImporterAllocationTest {
+    private static final int ROWS = 10000;
+    private static final int DISTINCT_PHONE_NUMBERS = 1000;
+
+    /**
+     * Checked-in threshold: how many times the bytes allocated by decoding a statement alone the importing thread may
+     * allocate to parse it. Measured at 2.3 to 2.5 on JDK 17 with and without compressed pointers and with different
+     * collectors and heap sizes; the rest is headroom for JVMs not measured.
+     */
+    private static final double MAX_RATIO_TO_DECODING = 3.0;
+
+    private MPesaXlsImporter importer;
+    private byte[] statement;
+
+    @Before
+    public void setUp() throws Exception {
+        InMemoryAccountService services = new InMemoryAccountService()
+                .withConfiguration("ke.co.safaricom.MPesaXlsImporter.ImportTransactionOrder", Arrays.asList("ALA", "NLA", "SA"))
+                .withConfiguration("AccountingRules.DigitsAfterDecimal", "2")
+                .withConfiguration("Localization.LanguageCode", "EN")
+                .withConfiguration("Localization.CountryCode", "GB")
+                .withPaymentType(new PaymentTypeDto((short) 1, MPesaXlsImporter.PAYMENT_TYPE))
+                .withProducts("ALA", "NLA", "SA");
+        importer = new MPesaXlsImporter();
+        importer.setAccountService(services.accountService());
+        importer.setCustomerSearchService(services.customerSearchService());
+        importer.setUserReferenceDto(new UserReferenceDto((short) 1));
+        statement = generateStatement(ROWS);
+    }
+
+    @Test
+    public void parseStaysWithinAllocationBudget() throws Exception {
+        assumeTrue(ThreadAllocation.isSupported());
+        // first pass loads classes and warms up the JIT, neither of which should count against the budget
+        importer.parse(new ByteArrayInputStream(statement));
+        decode(statement);
+
+        long before = ThreadAllocation.allocatedBytes();
+        decode(statement);
+        long decoding = ThreadAllocation.allocatedBytes() - before;
+
+        before = ThreadAllocation.allocatedBytes();
+        ParseResultDto result = importer.parse(new ByteArrayInputStream(statement));
+        long parsing = ThreadAllocation.allocatedBytes() - before;
+        double ratio = (double) parsing / decoding;
+
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(importer.getSuccessfullyParsedRows(), is(ROWS));
+        assertTrue(String.format("allocated %d bytes per row, %.2f times the %d of decoding; budget is %.2f times",
+                parsing / ROWS, ratio, decoding / ROWS, MAX_RATIO_TO_DECODING), ratio <= MAX_RATIO_TO_DECODING);
+    }
+
+    /**
+     * Decodes a statement and reads the value of every cell.
+     */
+    private static void decode(byte[] statement) throws Exception {
+        HSSFSheet sheet = new HSSFWorkbook(new ByteArrayInputStream(statement)).getSheetAt(0);
+        for (Row row : sheet) {
+            for (Cell cell : row) {
+                if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+                    cell.getNumericCellValue();
+                } else {
+                    cell.getRichStringCellValue().getString();
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds a statement in the layout of <code>example_import.xls</code>: a "Transactions" marker, a row of column
+     * headings and then one "Pay Utility" row per payment, paid by a rotating set of customers.
+     */
+    static byte[] generateStatement(int rows) throws Exception {
+        HSSFWorkbook workbook = new HSSFWorkbook();
+        HSSFSheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("Transactions");
+        sheet.createRow(1).createCell(0).setCellValue("Receipt");
+        for (int i = 0; i < rows; i++) {
+            String phoneNumber = "07" + (22000000 + i % DISTINCT_PHONE_NUMBERS);
+            HSSFRow row = sheet.createRow(i + 2);
+            row.createCell(MPesaXlsImporter.RECEIPT).setCellValue("R" + (1000000 + i));
+            row.createCell(MPesaXlsImporter.TRANSACTION_DATE).setCellValue(
+                    String.format("2011-01-%02d %02d:%02d:%02d", 1 + i % 28, i % 24, i % 60, i % 60));
+            row.createCell(MPesaXlsImporter.DETAILS).setCellValue("Payment received from " + phoneNumber);
+            row.createCell(MPesaXlsImporter.STATUS).setCellValue("Completed");
+            row.createCell(MPesaXlsImporter.WITHDRAWN).setCellValue(0.0);
+            row.createCell(MPesaXlsImporter.PAID_IN).setCellValue(150 + i % 7 * 25.5);
+            row.createCell(MPesaXlsImporter.BALANCE).setCellValue(0.0);
+            row.createCell(MPesaXlsImporter.BALANCE_CONFIRMED).setCellValue("true");
+            row.createCell(MPesaXlsImporter.TRANSACTION_TYPE).setCellValue(MPesaXlsImporter.PAYMENT_TRANSACTION_TYPE);
+            row.createCell(MPesaXlsImporter.OTHER_PARTY_INFO).setCellValue(phoneNumber + " - CUSTOMER " + i % DISTINCT_PHONE_NUMBERS);
+            row.createCell(MPesaXlsImporter.TRANSACTION_PARTY_DETAILS).setCellValue((double) (80000 + i));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        workbook.write(bytes);
+        return bytes.toByteArray();
+    }
+}
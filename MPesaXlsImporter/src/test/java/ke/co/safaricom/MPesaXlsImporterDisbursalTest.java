@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.joda.time.LocalDate;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MPesaXlsImporterDisbursalTest {
+
+    MPesaXlsImporter importer;
+    @Mock
+    AccountService accountService;
+    @Mock
+    CustomerSearchService customerSearchService;
+    @Mock
+    PaymentTypeDto paymentTypeDto;
+
+    @Before
+    public void setUp() throws Exception {
+        when(accountService.validateLoanDisbursement(any(AccountPaymentParametersDto.class))).thenReturn(
+                new ArrayList<InvalidPaymentReason>());
+        when(customerSearchService.findCustomersWithGivenPhoneNumber(anyString())).thenReturn(
+                Arrays.asList(new CustomerDto(1, "John Foo Bar", (short) 1, "")));
+        when(accountService.getMifosConfiguration("AccountingRules.DigitsAfterDecimal")).thenReturn("2");
+        when(accountService.getMifosConfiguration("Localization.LanguageCode")).thenReturn("EN");
+        when(accountService.getMifosConfiguration("Localization.CountryCode")).thenReturn("GB");
+        when(paymentTypeDto.getName()).thenReturn(MPesaXlsImporter.PAYMENT_TYPE);
+        List<PaymentTypeDto> paymentTypeList = Arrays.asList(paymentTypeDto);
+        when(accountService.getLoanPaymentTypes()).thenReturn(paymentTypeList);
+        when(accountService.getLoanDisbursementTypes()).thenReturn(paymentTypeList);
+        importer = new MPesaXlsImporter();
+        importer.setAccountService(accountService);
+        importer.setUserReferenceDto(new UserReferenceDto((short) 1));
+        importer.setCustomerSearchService(customerSearchService);
+    }
+
+    @Test
+    public void eachLoanIsDisbursedByOneRow() throws Exception {
+        loans("0722000001", "1000.00", 11, 12);
+        ParseResultDto result = parse(
+                disbursal("R1", "0722000001", 1000),
+                disbursal("R2", "0722000001", 1000));
+
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(accountIds(result), is(Arrays.asList(11, 12)));
+        verify(accountService, times(1)).lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(
+                anyString(), any(BigDecimal.class));
+    }
+
+    @Test
+    public void moreLoansThanRowsAreAmbiguous() throws Exception {
+        loans("0722000002", "500.00", 21, 22);
+        ParseResultDto result = parse(disbursal("R3", "0722000002", 500));
+
+        assertThat(result.getParseErrors().size(), is(1));
+        assertThat(result.getParseErrors().get(0).contains("More than 1 loan found"), is(true));
+        assertThat(result.getSuccessfullyParsedPayments().size(), is(0));
+    }
+
+    @Test
+    public void rowsBeyondTheLoansFindNone() throws Exception {
+        loans("0722000003", "700.00", 31);
+        loans("0722000003", "800.00", 32);
+        ParseResultDto result = parse(
+                disbursal("R4", "0722000003", 700),
+                disbursal("R5", "0722000003", 800),
+                disbursal("R6", "0722000003", 700));
+
+        assertThat(accountIds(result), is(Arrays.asList(31, 32)));
+        assertThat(result.getParseErrors().size(), is(1));
+        assertThat(result.getParseErrors().get(0).contains("R6"), is(true));
+        assertThat(result.getParseErrors().get(0).contains("No approved loans found"), is(true));
+    }
+
+    @Test
+    public void rowParsedOnItsOwnLooksUpItsLoans() throws Exception {
+        loans("0722000004", "900.00", 41);
+        loans("0722000005", "400.00", 51);
+        parse(disbursal("R7", "0722000004", 900));
+
+        HSSFRow row = statement(disbursal("R8", "0722000005", 400)).getSheetAt(0).getRow(2);
+        AccountPaymentParametersDto payment = importer.parseLoanDisbursement(row, "R8", new LocalDate(2011, 1, 3),
+                "0722000005");
+
+        assertThat(payment.getAccount().getAccountId(), is(51));
+        verify(accountService, times(1)).lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(
+                "0722000005", new BigDecimal("400.00"));
+    }
+
+    private void loans(String phoneNumber, String amount, Integer... accountIds) throws Exception {
+        List<AccountReferenceDto> accounts = new ArrayList<AccountReferenceDto>();
+        for (Integer accountId : accountIds) {
+            accounts.add(new AccountReferenceDto(accountId));
+        }
+        when(accountService.lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(phoneNumber,
+                new BigDecimal(amount))).thenReturn(Collections.unmodifiableList(accounts));
+    }
+
+    private static List<Integer> accountIds(ParseResultDto result) {
+        List<Integer> accountIds = new ArrayList<Integer>();
+        for (AccountPaymentParametersDto payment : result.getSuccessfullyParsedPayments()) {
+            assertThat(payment.getTransactionType(), is(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL));
+            accountIds.add(payment.getAccount().getAccountId());
+        }
+        return accountIds;
+    }
+
+    private static String[] disbursal(String receipt, String phoneNumber, double withdrawn) {
+        return new String[] { receipt, phoneNumber, String.valueOf(withdrawn) };
+    }
+
+    private ParseResultDto parse(String[]... disbursals) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        statement(disbursals).write(bytes);
+        return importer.parse(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static HSSFWorkbook statement(String[]... disbursals) {
+        HSSFWorkbook workbook = new HSSFWorkbook();
+        HSSFSheet sheet = workbook.createSheet();
+        sheet.createRow(0).createCell(0).setCellValue("Transactions");
+        sheet.createRow(1).createCell(0).setCellValue("Receipt");
+        for (int i = 0; i < disbursals.length; i++) {
+            HSSFRow row = sheet.createRow(i + 2);
+            row.createCell(MPesaXlsImporter.RECEIPT).setCellValue(disbursals[i][0]);
+            row.createCell(MPesaXlsImporter.TRANSACTION_DATE).setCellValue("2011-01-03 10:00:0" + i);
+            row.createCell(MPesaXlsImporter.DETAILS).setCellValue("Payment to " + disbursals[i][1]);
+            row.createCell(MPesaXlsImporter.STATUS).setCellValue("Completed");
+            row.createCell(MPesaXlsImporter.WITHDRAWN).setCellValue(-Double.parseDouble(disbursals[i][2]));
+            row.createCell(MPesaXlsImporter.PAID_IN).setCellValue(0.0);
+            row.createCell(MPesaXlsImporter.BALANCE).setCellValue(0.0);
+            row.createCell(MPesaXlsImporter.BALANCE_CONFIRMED).setCellValue("true");
+            row.createCell(MPesaXlsImporter.TRANSACTION_TYPE).setCellValue(MPesaXlsImporter.DISBURSAL_TRANSACTION_TYPE);
+            row.createCell(MPesaXlsImporter.OTHER_PARTY_INFO).setCellValue(disbursals[i][1] + " - CUSTOMER");
+            row.createCell(MPesaXlsImporter.TRANSACTION_PARTY_DETAILS).setCellValue("");
+        }
+        return workbook;
+    }
+}
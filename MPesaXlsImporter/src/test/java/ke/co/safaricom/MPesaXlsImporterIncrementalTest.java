@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.matches;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MPesaXlsImporterIncrementalTest {
+    /** Paybill account named in the summary of <code>example_import.xls</code>. */
+    private static final String PAYBILL_ACCOUNT = "1499911-17";
+
+    MPesaXlsImporter importer;
+    @Mock
+    AccountService accountService;
+    @Mock
+    CustomerSearchService customerSearchService;
+    @Mock
+    AccountReferenceDto account;
+    @Mock
+    PaymentTypeDto paymentTypeDto;
+
+    File watermarkDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        watermarkDirectory = File.createTempFile("watermarks", "");
+        watermarkDirectory.delete();
+        when(accountService.validatePayment(any(AccountPaymentParametersDto.class))).thenReturn(
+                new ArrayList<InvalidPaymentReason>());
+        when(accountService.lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName(anyString(), matches("(ALA|NLA|SA)"))).thenReturn(account);
+        when(accountService.lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName(anyString(), matches("(ALA|NLA|SA)"))).thenReturn(account);
+        when(customerSearchService.findCustomersWithGivenPhoneNumber(anyString())).thenReturn(
+                Arrays.asList(new CustomerDto(1, "John Foo Bar", (short) 1, "")));
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.ImportTransactionOrder")).thenReturn(Arrays.asList("ALA", "NLA", "SA"));
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.IncrementalImport")).thenReturn("true");
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.WatermarkDirectory")).thenReturn(watermarkDirectory.getPath());
+        when(accountService.getMifosConfiguration("AccountingRules.DigitsAfterDecimal")).thenReturn("4");
+        when(accountService.getMifosConfiguration("Localization.LanguageCode")).thenReturn("EN");
+        when(accountService.getMifosConfiguration("Localization.CountryCode")).thenReturn("GB");
+        when(accountService.getTotalPaymentDueAmount(any(AccountReferenceDto.class))).thenReturn(BigDecimal.valueOf(1000.0));
+        when(account.getAccountId()).thenReturn(2);
+        when(paymentTypeDto.getName()).thenReturn(MPesaXlsImporter.PAYMENT_TYPE);
+        List<PaymentTypeDto> paymentTypeList = Arrays.asList(paymentTypeDto);
+        when(accountService.getLoanPaymentTypes()).thenReturn(paymentTypeList);
+        when(accountService.getLoanDisbursementTypes()).thenReturn(paymentTypeList);
+        importer = new MPesaXlsImporter();
+        importer.setAccountService(accountService);
+        importer.setUserReferenceDto(new UserReferenceDto((short) 1));
+        importer.setCustomerSearchService(customerSearchService);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = watermarkDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        watermarkDirectory.delete();
+    }
+
+    private FileInputStream exampleImport() throws Exception {
+        return new FileInputStream(this.getClass().getResource("/example_import.xls").getFile());
+    }
+
+    @Test
+    public void rowsStoredBeforeAreSkippedWithoutServiceCalls() throws Exception {
+        importer.store(exampleImport());
+        verify(accountService, times(3)).receiptExists(anyString());
+
+        ParseResultDto result = importer.parse(exampleImport());
+
+        assertThat(result.getSuccessfullyParsedPayments().size(), is(0));
+        assertThat(result.getNumberOfIgnoredRows(), is(3));
+        assertThat(result.getParseErrors().size(), is(1));
+        verify(accountService, times(3)).receiptExists(anyString());
+        verify(customerSearchService, times(3)).findCustomersWithGivenPhoneNumber(anyString());
+    }
+
+    @Test
+    public void parsingAloneLeavesTheWatermark() throws Exception {
+        importer.parse(exampleImport());
+        ParseResultDto result = importer.parse(exampleImport());
+
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(importer.getSuccessfullyParsedRows(), is(3));
+    }
+
+    @Test
+    public void onlyKnownReceiptsAreSkippedOnTheBoundary() throws Exception {
+        ReceiptWatermark watermark = ReceiptWatermark.load(watermarkDirectory, PAYBILL_ACCOUNT);
+        watermark.imported(time("2008-10-23 17:30:30"), "A");
+        watermark.imported(time("2008-10-23 17:47:33"), "B");
+        watermark.advance();
+        watermark.save();
+
+        watermark = ReceiptWatermark.load(watermarkDirectory, PAYBILL_ACCOUNT);
+        assertThat(watermark.getTime(), is(time("2008-10-23 17:47:33")));
+        assertThat(watermark.covers(time("2008-10-23 17:30:30"), "A"), is(true));
+        assertThat(watermark.covers(time("2008-10-23 17:47:33"), "B"), is(true));
+        assertThat(watermark.covers(time("2008-10-23 17:47:33"), "C"), is(false));
+        assertThat(watermark.covers(time("2008-10-23 17:47:34"), "D"), is(false));
+    }
+
+    @Test
+    public void failedRowHoldsTheWatermarkBack() throws Exception {
+        ReceiptWatermark watermark = ReceiptWatermark.load(watermarkDirectory, PAYBILL_ACCOUNT);
+        watermark.imported(time("2008-10-23 17:30:30"), "A");
+        watermark.failed(time("2008-10-23 17:46:42"));
+        watermark.imported(time("2008-10-23 17:47:33"), "B");
+        watermark.advance();
+
+        assertThat(watermark.getTime(), is(time("2008-10-23 17:46:42")));
+        assertThat(watermark.covers(time("2008-10-23 17:30:30"), "A"), is(true));
+        assertThat(watermark.covers(time("2008-10-23 17:46:42"), "F"), is(false));
+        assertThat(watermark.covers(time("2008-10-23 17:47:33"), "B"), is(false));
+    }
+
+    private static Date time(String completed) throws Exception {
+        return new SimpleDateFormat(MPesaXlsImporter.DATE_FORMAT, Locale.ENGLISH).parse(completed);
+    }
+}
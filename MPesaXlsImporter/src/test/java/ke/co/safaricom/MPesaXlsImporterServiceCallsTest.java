@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.matches;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.FileInputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.accounts.api.TransactionImport;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+/**
+ * Upper bounds on the number of service round trips made while importing <code>example_import.xls</code>. Every
+ * budget is expressed per data row or per import; a change which adds a call to the per-row path fails here just
+ * like a functional regression would. Lower a budget when a change removes calls, so that they stay removed.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MPesaXlsImporterServiceCallsTest {
+    /** Number of transaction rows in <code>example_import.xls</code>. */
+    private static final int ROWS = 3;
+
+    TransactionImport transactionImport;
+    @Mock
+    AccountService accountService;
+    @Mock
+    CustomerSearchService customerSearchService;
+    @Mock
+    AccountReferenceDto account;
+    @Mock
+    UserReferenceDto userReferenceDto;
+    @Mock
+    PaymentTypeDto paymentTypeDto;
+
+    CustomerDto customerDTO = new CustomerDto(1, "John Foo Bar", (short)1, "");
+
+    List<InvalidPaymentReason> noErrors = new ArrayList<InvalidPaymentReason>();
+
+    /**
+     * Would rather use {@link BeforeClass}, but this causes Mockito to throw an exception insisting that
+     * "MockitoRunner can only be used with Junit 4.4 or higher."
+     */
+    @Before
+    public void setUpBeforeMethod() throws Exception {
+        when(accountService.validatePayment(any(AccountPaymentParametersDto.class))).thenReturn(noErrors);
+        when(accountService.lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName(anyString(), matches("(ALA|NLA|SA)"))).thenReturn(account);
+        when(accountService.lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName(anyString(), matches("(ALA|NLA|SA)"))).thenReturn(account);
+        when(customerSearchService.findCustomersWithGivenPhoneNumber(anyString())).thenReturn(Arrays.asList(customerDTO));
+        List<String> importTransactionOrder = new ArrayList<String>();
+        importTransactionOrder.add("ALA");
+        importTransactionOrder.add("NLA");
+        importTransactionOrder.add("SA");
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.ImportTransactionOrder")).thenReturn(importTransactionOrder);
+        when(accountService.getMifosConfiguration("AccountingRules.DigitsAfterDecimal")).thenReturn("4");
+        when(accountService.getMifosConfiguration("Localization.LanguageCode")).thenReturn("EN");
+        when(accountService.getMifosConfiguration("Localization.CountryCode")).thenReturn("GB");
+        when(accountService.getTotalPaymentDueAmount(any(AccountReferenceDto.class))).thenReturn(BigDecimal.valueOf(1000.0));
+        when(account.getAccountId()).thenReturn(2);
+        when(paymentTypeDto.getName()).thenReturn(MPesaXlsImporter.PAYMENT_TYPE);
+        List<PaymentTypeDto> paymentTypeList = new ArrayList<PaymentTypeDto>();
+        paymentTypeList.add(paymentTypeDto);
+        when(accountService.getLoanPaymentTypes()).thenReturn(paymentTypeList);
+        when(accountService.getLoanDisbursementTypes()).thenReturn(paymentTypeList);
+        transactionImport = new MPesaXlsImporter();
+        transactionImport.setAccountService(accountService);
+        transactionImport.setUserReferenceDto(userReferenceDto);
+        transactionImport.setCustomerSearchService(customerSearchService);
+    }
+
+    /**
+     * Would rather use {@link AfterClass}, but this causes Mockito to throw an exception insisting that
+     * "MockitoRunner can only be used with Junit 4.4 or higher."
+     */
+    @After
+    public void tearDownAfterMethod() {
+        transactionImport = null;
+    }
+
+    private static int perRow(int calls) {
+        return calls * ROWS;
+    }
+
+    private ParseResultDto parseExampleImport() throws Exception {
+        String testDataFilename = this.getClass().getResource("/example_import.xls").getFile();
+        ParseResultDto result = transactionImport.parse(new FileInputStream(testDataFilename));
+        assertThat(result.getParseErrors().toString(), result.getParseErrors().size(), is(0));
+        assertThat(transactionImport.getSuccessfullyParsedRows(), is(ROWS));
+        return result;
+    }
+
+    @Test
+    public void perImportLookupsAreMadeOnce() throws Exception {
+        parseExampleImport();
+        verify(accountService, atMost(1)).getMifosConfiguration("Localization.LanguageCode");
+        verify(accountService, atMost(1)).getMifosConfiguration("Localization.CountryCode");
+        verify(accountService, atMost(1)).getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.ImportTransactionOrder");
+        verify(accountService, atMost(1)).getLoanPaymentTypes();
+        verify(accountService, atMost(1)).getLoanDisbursementTypes();
+        // every lookup finds the same account, whose amount due is asked once
+        verify(accountService, atMost(1)).getTotalPaymentDueAmount(any(AccountReferenceDto.class));
+    }
+
+    @Test
+    public void perRowLookupsStayWithinBudget() throws Exception {
+        parseExampleImport();
+        verify(accountService, atMost(1)).getMifosConfiguration("AccountingRules.DigitsAfterDecimal");
+        verify(accountService, atMost(perRow(1))).receiptExists(anyString());
+        verify(customerSearchService, atMost(perRow(1))).findCustomersWithGivenPhoneNumber(anyString());
+        verify(accountService, atMost(perRow(4))).existsMoreThanOneLoanAccount(anyString(), anyString());
+        verify(accountService, atMost(perRow(4))).existsMoreThanOneSavingsAccount(anyString(), anyString());
+        verify(accountService, atMost(perRow(3))).lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName(anyString(), anyString());
+        verify(accountService, atMost(perRow(2))).lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName(anyString(), anyString());
+        verify(accountService, atMost(perRow(3))).validatePayment(any(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void paymentRowsMakeNoDisbursalLookups() throws Exception {
+        parseExampleImport();
+        verify(accountService, never()).lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(anyString(), any(BigDecimal.class));
+        verify(accountService, never()).validateLoanDisbursement(any(AccountPaymentParametersDto.class));
+    }
+
+    @Test
+    public void parsingNeverWrites() throws Exception {
+        parseExampleImport();
+        verify(accountService, never()).makePayments(anyListOf(AccountPaymentParametersDto.class));
+        verify(accountService, never()).makePaymentsForImport(anyListOf(AccountPaymentParametersDto.class));
+        verify(accountService, never()).disburseLoans(anyListOf(AccountPaymentParametersDto.class), any(Locale.class));
+    }
+
+    @Test
+    public void storeWritesAllPaymentsInOneCall() throws Exception {
+        String testDataFilename = this.getClass().getResource("/example_import.xls").getFile();
+        transactionImport.store(new FileInputStream(testDataFilename));
+        verify(accountService, atMost(1)).makePayments(anyListOf(AccountPaymentParametersDto.class));
+        verify(accountService, never()).disburseLoans(anyListOf(AccountPaymentParametersDto.class), any(Locale.class));
+        verify(customerSearchService, atMost(perRow(1))).findCustomersWithGivenPhoneNumber(anyString());
+    }
+}
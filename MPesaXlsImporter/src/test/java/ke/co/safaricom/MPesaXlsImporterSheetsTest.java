@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.hssf.usermodel.HSSFRow;
+import org.apache.poi.hssf.usermodel.HSSFSheet;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MPesaXlsImporterSheetsTest {
+
+    MPesaXlsImporter importer;
+    @Mock
+    AccountService accountService;
+    @Mock
+    CustomerSearchService customerSearchService;
+    @Mock
+    PaymentTypeDto paymentTypeDto;
+
+    @Before
+    public void setUp() throws Exception {
+        when(accountService.validateLoanDisbursement(any(AccountPaymentParametersDto.class))).thenReturn(
+                new ArrayList<InvalidPaymentReason>());
+        when(customerSearchService.findCustomersWithGivenPhoneNumber(anyString())).thenReturn(
+                Arrays.asList(new CustomerDto(1, "John Foo Bar", (short) 1, "")));
+        when(accountService.lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount("0722000001",
+                new BigDecimal("1000.00"))).thenReturn(Arrays.asList(new AccountReferenceDto(11),
+                new AccountReferenceDto(12)));
+        when(accountService.getMifosConfiguration("AccountingRules.DigitsAfterDecimal")).thenReturn("2");
+        when(accountService.getMifosConfiguration("Localization.LanguageCode")).thenReturn("EN");
+        when(accountService.getMifosConfiguration("Localization.CountryCode")).thenReturn("GB");
+        when(paymentTypeDto.getName()).thenReturn(MPesaXlsImporter.PAYMENT_TYPE);
+        List<PaymentTypeDto> paymentTypeList = Arrays.asList(paymentTypeDto);
+        when(accountService.getLoanPaymentTypes()).thenReturn(paymentTypeList);
+        when(accountService.getLoanDisbursementTypes()).thenReturn(paymentTypeList);
+        importer = new MPesaXlsImporter();
+        importer.setAccountService(accountService);
+        importer.setUserReferenceDto(new UserReferenceDto((short) 1));
+        importer.setCustomerSearchService(customerSearchService);
+    }
+
+    @Test
+    public void everySheetOfTransactionsIsImported() throws Exception {
+        ParseResultDto result = importer.parse(branchesWorkbook());
+
+        assertThat(accountIds(result), is(Arrays.asList(11, 12)));
+        assertThat(result.getNumberOfIgnoredRows(), is(1));
+        assertThat(result.getParseErrors().size(), is(1));
+        assertThat(result.getParseErrors().get(0), result.getParseErrors().get(0).contains("<Branch 2:4>"), is(true));
+        verify(customerSearchService, times(1)).findCustomersWithGivenPhoneNumber("0722000001");
+        verify(accountService, times(2)).receiptExists(anyString());
+    }
+
+    @Test
+    public void sheetsCheckedOnSeveralThreadsGiveTheSameOutcome() throws Exception {
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.LookupThreads")).thenReturn("4");
+        ParseResultDto result = importer.parse(branchesWorkbook());
+
+        assertThat(accountIds(result), is(Arrays.asList(11, 12)));
+        assertThat(result.getParseErrors().size(), is(1));
+        assertThat(result.getParseErrors().get(0).contains("<Branch 2:4>"), is(true));
+    }
+
+    /**
+     * A sheet of each branch, with a sheet of notes between them. The last row repeats a receipt of the first branch.
+     */
+    private ByteArrayInputStream branchesWorkbook() throws Exception {
+        HSSFWorkbook workbook = new HSSFWorkbook();
+        disbursals(workbook.createSheet("Branch 1"), "R1");
+        workbook.createSheet("Notes").createRow(0).createCell(0).setCellValue("Statements of 3 January 2011");
+        disbursals(workbook.createSheet("Branch 2"), "R2", "R1");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        workbook.write(bytes);
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    private static void disbursals(HSSFSheet sheet, String... receipts) {
+        sheet.createRow(0).createCell(0).setCellValue("Transactions");
+        sheet.createRow(1).createCell(0).setCellValue("Receipt");
+        for (int i = 0; i < receipts.length; i++) {
+            HSSFRow row = sheet.createRow(i + 2);
+            row.createCell(MPesaXlsImporter.RECEIPT).setCellValue(receipts[i]);
+            row.createCell(MPesaXlsImporter.TRANSACTION_DATE).setCellValue("2011-01-03 10:00:0" + i);
+            row.createCell(MPesaXlsImporter.DETAILS).setCellValue("Payment to 0722000001");
+            row.createCell(MPesaXlsImporter.STATUS).setCellValue("Completed");
+            row.createCell(MPesaXlsImporter.WITHDRAWN).setCellValue(-1000.0);
+            row.createCell(MPesaXlsImporter.PAID_IN).setCellValue(0.0);
+            row.createCell(MPesaXlsImporter.BALANCE).setCellValue(0.0);
+            row.createCell(MPesaXlsImporter.BALANCE_CONFIRMED).setCellValue("true");
+            row.createCell(MPesaXlsImporter.TRANSACTION_TYPE).setCellValue(MPesaXlsImporter.DISBURSAL_TRANSACTION_TYPE);
+            row.createCell(MPesaXlsImporter.OTHER_PARTY_INFO).setCellValue("0722000001 - CUSTOMER");
+            row.createCell(MPesaXlsImporter.TRANSACTION_PARTY_DETAILS).setCellValue("");
+        }
+    }
+
+    private static List<Integer> accountIds(ParseResultDto result) {
+        List<Integer> accountIds = new ArrayList<Integer>();
+        for (AccountPaymentParametersDto payment : result.getSuccessfullyParsedPayments()) {
+            accountIds.add(payment.getAccount().getAccountId());
+        }
+        return accountIds;
+    }
+}
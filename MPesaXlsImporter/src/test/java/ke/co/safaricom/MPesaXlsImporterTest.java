@@ -31,6 +31,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.Assert;
 
@@ -41,6 +42,8 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mifos.ImportCancelledException;
+import org.mifos.ImportPreview;
 import org.mifos.accounts.api.AccountService;
 import org.mifos.accounts.api.CustomerSearchService;
 import org.mifos.accounts.api.InvalidPaymentReason;
@@ -141,6 +144,40 @@ public class MPesaXlsImporterTest {
         assertThat(result.getSuccessfullyParsedPayments().get(1).getAccount().getAccountId(), is(fakeMifosAccountId));
     }
     
+    @Test
+    public void parsingAgainLeavesTheSpilledPaymentsOfTheLastParse() throws Exception {
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.PaymentSpillThreshold"))
+                .thenReturn("1");
+        String testDataFilename = this.getClass().getResource("/example_import.xls").getFile();
+        ParseResultDto first = transactionImport.parse(new FileInputStream(testDataFilename));
+        ParseResultDto second = transactionImport.parse(new FileInputStream(testDataFilename));
+        assertThat(first.getSuccessfullyParsedPayments().size(), is(8));
+        assertThat(first.getSuccessfullyParsedPayments().get(7).getReceiptId(),
+                is(second.getSuccessfullyParsedPayments().get(7).getReceiptId()));
+    }
+
+    @Test
+    public void fullValidationOfAPreviewLeavesTheImporterAlone() throws Exception {
+        String testDataFilename = this.getClass().getResource("/example_import.xls").getFile();
+        ImportPreview preview = concreteImporter.preview(new FileInputStream(testDataFilename), 1, 0);
+        int previewPayments = preview.getResult().getSuccessfullyParsedPayments().size();
+        assertThat(concreteImporter.getSuccessfullyParsedRows(), is(1));
+
+        ParseResultDto full = preview.validateAll().get(10, TimeUnit.SECONDS);
+
+        assertThat(full.getSuccessfullyParsedPayments().size(), is(8));
+        assertThat(preview.getResult().getSuccessfullyParsedPayments().size(), is(previewPayments));
+        assertThat(concreteImporter.getSuccessfullyParsedRows(), is(1));
+    }
+
+    @Test(expected = ImportCancelledException.class)
+    public void cancellingWhileARowIsValidatedStopsTheParse() throws Exception {
+        when(accountService.validatePayment(any(AccountPaymentParametersDto.class))).thenThrow(
+                new ImportCancelledException());
+        String testDataFilename = this.getClass().getResource("/example_import.xls").getFile();
+        transactionImport.parse(new FileInputStream(testDataFilename));
+    }
+
     @Test
     public void getLoanAccountReturnsNull() throws Exception {
         String govId = "12345";
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProjectedRowTest {
+
+    @Mock
+    StatementRow row;
+    @Mock
+    StatementCell type;
+    @Mock
+    StatementCell details;
+    @Mock
+    StatementCell paidIn;
+
+    @Test
+    public void decodesEachColumnOnce() {
+        when(row.getCell(MPesaXlsImporter.TRANSACTION_TYPE)).thenReturn(type);
+        when(row.getCell(MPesaXlsImporter.DETAILS)).thenReturn(details);
+        when(row.getCell(MPesaXlsImporter.PAID_IN)).thenReturn(paidIn);
+        when(type.getCellType()).thenReturn(Cell.CELL_TYPE_STRING);
+        when(type.getStringCellValue()).thenReturn(MPesaXlsImporter.DISBURSAL_TRANSACTION_TYPE);
+        when(details.getCellType()).thenReturn(Cell.CELL_TYPE_STRING);
+        when(details.getStringCellValue()).thenReturn("Payment to 254700000001");
+        when(paidIn.getNumericCellValue()).thenThrow(new IllegalStateException("text"));
+
+        final ProjectedRow projected = ProjectedRow.of(row);
+        for (int i = 0; i < 3; i++) {
+            assertThat(projected.isLoanDisbursement(), is(true));
+            assertThat(projected.text(MPesaXlsImporter.DETAILS), is("Payment to 254700000001"));
+            try {
+                projected.number(MPesaXlsImporter.PAID_IN);
+                fail();
+            } catch (IllegalStateException e) {
+                assertThat(e.getMessage(), is("text"));
+            }
+        }
+        verify(row, times(1)).getCell(MPesaXlsImporter.DETAILS);
+        verify(details, times(1)).getStringCellValue();
+        verify(type, times(1)).getStringCellValue();
+        verify(paidIn, times(1)).getNumericCellValue();
+    }
+
+    @Test
+    public void firstTokenIsWhatSplittingOnSpacesGives() {
+        for (String text : new String[] { "", "254700000001", "254700000001 - Jane Doe", " 254700000001", "  ",
+                "254700000001   ", "a  b" }) {
+            final String[] split = text.split(" ");
+            assertThat(text, ProjectedRow.firstToken(text), is(split.length == 0 ? null : split[0]));
+        }
+    }
+
+    @Test
+    public void readsTimesAsSimpleDateFormatDoes() throws Exception {
+        final SimpleDateFormat format = new SimpleDateFormat(MPesaXlsImporter.DATE_FORMAT, Locale.ENGLISH);
+        format.setLenient(false);
+        for (String text : new String[] { "2011-01-03 10:00:00", "2012-02-29 23:59:59", "2011-01-03 10:00:00 EAT",
+                "2011-02-29 10:00:00", "2011-01-03 24:00:00", "2011-13-03 10:00:00", "2011-01-03 10:00:000",
+                "2011-1-3 10:00:00", "03/01/2011", "" }) {
+            Object expected;
+            try {
+                expected = format.parse(text);
+            } catch (ParseException e) {
+                expected = null;
+            }
+            Object actual;
+            try {
+                actual = StatementTime.parse(text);
+            } catch (ParseException e) {
+                actual = null;
+            }
+            assertThat(text, actual, is(expected));
+        }
+    }
+}
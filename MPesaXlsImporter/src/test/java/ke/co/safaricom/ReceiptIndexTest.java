@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+package ke.co.safaricom;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.matches;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReceiptIndexTest {
+
+    MPesaXlsImporter importer;
+    @Mock
+    AccountService accountService;
+    @Mock
+    CustomerSearchService customerSearchService;
+    @Mock
+    AccountReferenceDto account;
+    @Mock
+    PaymentTypeDto paymentTypeDto;
+
+    File indexFile;
+
+    @Before
+    public void setUp() throws Exception {
+        indexFile = File.createTempFile("receipts", ".index");
+        indexFile.delete();
+        when(accountService.validatePayment(any(AccountPaymentParametersDto.class))).thenReturn(
+                new ArrayList<InvalidPaymentReason>());
+        when(accountService.lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName(anyString(), matches("(ALA|NLA|SA)"))).thenReturn(account);
+        when(accountService.lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName(anyString(), matches("(ALA|NLA|SA)"))).thenReturn(account);
+        when(customerSearchService.findCustomersWithGivenPhoneNumber(anyString())).thenReturn(
+                Arrays.asList(new CustomerDto(1, "John Foo Bar", (short) 1, "")));
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.ImportTransactionOrder")).thenReturn(Arrays.asList("ALA", "NLA", "SA"));
+        when(accountService.getMifosConfiguration("ke.co.safaricom.MPesaXlsImporter.ReceiptIndexFile")).thenReturn(indexFile.getPath());
+        when(accountService.getMifosConfiguration("AccountingRules.DigitsAfterDecimal")).thenReturn("4");
+        when(accountService.getMifosConfiguration("Localization.LanguageCode")).thenReturn("EN");
+        when(accountService.getMifosConfiguration("Localization.CountryCode")).thenReturn("GB");
+        when(accountService.getTotalPaymentDueAmount(any(AccountReferenceDto.class))).thenReturn(BigDecimal.valueOf(1000.0));
+        when(account.getAccountId()).thenReturn(2);
+        when(paymentTypeDto.getName()).thenReturn(MPesaXlsImporter.PAYMENT_TYPE);
+        List<PaymentTypeDto> paymentTypeList = Arrays.asList(paymentTypeDto);
+        when(accountService.getLoanPaymentTypes()).thenReturn(paymentTypeList);
+        when(accountService.getLoanDisbursementTypes()).thenReturn(paymentTypeList);
+        importer = new MPesaXlsImporter();
+        importer.setAccountService(accountService);
+        importer.setUserReferenceDto(new UserReferenceDto((short) 1));
+        importer.setCustomerSearchService(customerSearchService);
+    }
+
+    @After
+    public void tearDown() {
+        indexFile.delete();
+    }
+
+    private FileInputStream exampleImport() throws Exception {
+        return new FileInputStream(this.getClass().getResource("/example_import.xls").getFile());
+    }
+
+    @Test
+    public void onlyReceiptsWhichMayBeDuplicatesAreLookedUp() throws Exception {
+        importer.parse(exampleImport());
+        verify(accountService, times(3)).receiptExists(anyString());
+
+        importer.rebuildReceiptIndex(new ByteArrayInputStream("OTHER1\nOTHER2\n".getBytes("UTF-8")));
+        importer.store(exampleImport());
+        verify(accountService, times(3)).receiptExists(anyString());
+
+        importer.parse(exampleImport());
+        verify(accountService, times(6)).receiptExists(anyString());
+    }
+
+    @Test
+    public void saysNothingIsNewUnlessComplete() throws Exception {
+        final ReceiptIndex index = ReceiptIndex.open(indexFile);
+        assertThat(index.isNew("BX12AB34CD"), is(false));
+
+        final List<String> receipts = new ArrayList<String>();
+        for (int i = 0; i < 3000; i++) {
+            receipts.add("BX" + Integer.toString(i, 36).toUpperCase());
+        }
+        index.rebuild(receipts.iterator());
+        assertThat(index.size(), is(3000));
+        assertThat(index.isNew("BX0"), is(false));
+        assertThat(index.isNew("BX2BB"), is(false));
+        assertThat(index.isNew("BX12AB34CD"), is(true));
+        assertThat(index.isNew("bx12ab34cd"), is(false));
+
+        index.startUpdate();
+        assertThat(index.isNew("BX12AB34CD"), is(false));
+        index.add(Collections.singletonList("BX12AB34CD"));
+        index.finishUpdate();
+        assertThat(index.isNew("BX12AB34CD"), is(false));
+        assertThat(index.isNew("BX12AB34CE"), is(true));
+
+        index.startUpdate();
+        index.abandonUpdate();
+        assertThat(index.isComplete(), is(false));
+        assertThat(index.isNew("BX12AB34CE"), is(false));
+    }
+}
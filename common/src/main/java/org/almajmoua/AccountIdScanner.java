@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.almajmoua;
+
+/**
+ * Reads the account embedded in the description of a Bank Audi credit, which starts with <code>PMTMAJ </code> and
+ * then one of:
+ * <ul>
+ * <li>a 15 digit Mifos global account number followed by a space,</li>
+ * <li>a 7 digit Mifos account id followed by a space, or</li>
+ * <li>an account code of a word character, the loan type letter (<code>A</code>, <code>Z</code> or <code>C</code>)
+ * and a 5 digit external id, then 3 digits or spaces and a space.</li>
+ * </ul>
+ * The description is scanned once from the left, without regular expressions, and only the returned id is allocated.
+ */
+final class AccountIdScanner {
+
+    private static final String PREFIX = "PMTMAJ ";
+    private static final int START = PREFIX.length();
+    private static final int GLOBAL_ACCOUNT_NUMBER_LENGTH = 15;
+    private static final int ACCOUNT_ID_LENGTH = 7;
+    private static final int EXTERNAL_ID_LENGTH = 5;
+
+    private AccountIdScanner() {
+    }
+
+    /**
+     * @return the global account number, the account id, or the external id with its group or Lebanese pound prefix;
+     *         an empty string if the description holds none of them
+     */
+    static String accountId(String description, String groupPrefix, String lbpPrefix) {
+        if (!description.startsWith(PREFIX)) {
+            return "";
+        }
+        int length = description.length();
+
+        int end = START;
+        while (end < length && isDigit(description.charAt(end))) {
+            end++;
+        }
+        int digits = end - START;
+        if ((digits == GLOBAL_ACCOUNT_NUMBER_LENGTH || digits == ACCOUNT_ID_LENGTH) && end < length
+                && description.charAt(end) == ' ') {
+            return description.substring(START, end);
+        }
+
+        // account code, external id, three digits or spaces and a space
+        if (length < START + 2 + EXTERNAL_ID_LENGTH + 4 || !isWordCharacter(description.charAt(START))) {
+            return "";
+        }
+        char loanType = description.charAt(START + 1);
+        if (loanType != 'A' && loanType != 'Z' && loanType != 'C') {
+            return "";
+        }
+        int externalIdStart = START + 2;
+        int externalIdEnd = externalIdStart + EXTERNAL_ID_LENGTH;
+        for (int i = externalIdStart; i < externalIdEnd; i++) {
+            if (!isDigit(description.charAt(i))) {
+                return "";
+            }
+        }
+        for (int i = externalIdEnd; i < externalIdEnd + 3; i++) {
+            char c = description.charAt(i);
+            if (c != ' ' && !isDigit(c)) {
+                return "";
+            }
+        }
+        if (description.charAt(externalIdEnd + 3) != ' ') {
+            return "";
+        }
+        String externalId = description.substring(externalIdStart, externalIdEnd);
+        if (loanType == 'Z') {
+            // group loan
+            return groupPrefix + " " + externalId;
+        } else if (loanType == 'C') {
+            // loan in Lebanese pounds
+            return lbpPrefix + " " + externalId;
+        }
+        return externalId;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /** Same as <code>\w</code> in a {@link java.util.regex.Pattern} without flags. */
+    private static boolean isWordCharacter(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+}
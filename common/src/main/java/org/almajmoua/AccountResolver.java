@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.almajmoua;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.mifos.AsyncAccountService;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountReferenceDto;
+
+/**
+ * Resolves the loan accounts named in a Bank Audi statement. The ids found by {@link AudiBankImporter#getAccountId}
+ * are collected by kind while the rows are read, then {@link #resolve()} looks up each distinct id once, however many
+ * payments the statement holds for it. A lookup which fails is remembered as well, so that every row naming the id
+ * can report the failure without asking again. Once resolved, the accounts not yet known to the group loan memo are
+ * also checked for membership of a group loan in one go, each account once.
+ * <p>
+ * The account service only looks up one account at a time, so each distinct id still costs one round trip. The
+ * round trips are made as many at once as the {@link AsyncAccountService} given allows.
+ */
+final class AccountResolver {
+
+    private final AccountService accountService;
+    private final AsyncAccountService lookups;
+    private final GroupLoanMembers groupLoanMembers;
+
+    private final Set<String> internalIds = new LinkedHashSet<String>();
+    private final Set<String> externalIds = new LinkedHashSet<String>();
+    private final Set<String> globalAccountNumbers = new LinkedHashSet<String>();
+
+    private final Map<String, AccountReferenceDto> accounts = new HashMap<String, AccountReferenceDto>();
+    private final Map<String, String> failures = new HashMap<String, String>();
+
+    AccountResolver(AccountService accountService) {
+        this(accountService, new GroupLoanMembers(0));
+    }
+
+    /**
+     * @param groupLoanMembers memo of group loan membership, which may be shared with other imports
+     */
+    AccountResolver(AccountService accountService, GroupLoanMembers groupLoanMembers) {
+        this(accountService, groupLoanMembers, new AsyncAccountService(accountService, null, 1));
+    }
+
+    /**
+     * @param lookups
+     *            adapter of the account service which the ids are looked up through
+     */
+    AccountResolver(AccountService accountService, GroupLoanMembers groupLoanMembers, AsyncAccountService lookups) {
+        this.accountService = accountService;
+        this.groupLoanMembers = groupLoanMembers;
+        this.lookups = lookups;
+    }
+
+    /**
+     * Queues an id, as returned by {@link AudiBankImporter#getAccountId}, for the next {@link #resolve()}.
+     */
+    void add(String accountId) {
+        if (isKnown(accountId)) {
+            return;
+        }
+        if (AudiBankImporter.accountIdIsAnInternalId(accountId)) {
+            internalIds.add(accountId);
+        } else if (AudiBankImporter.accountIdIsAnExternalId(accountId)) {
+            externalIds.add(accountId);
+        } else {
+            globalAccountNumbers.add(accountId);
+        }
+    }
+
+    /**
+     * Looks up every id queued since the last call, and whether the accounts found belong to a group loan.
+     */
+    void resolve() {
+        final int resolvedBefore = accounts.size();
+        final Map<String, Future<AccountReferenceDto>> resolving = new LinkedHashMap<String, Future<AccountReferenceDto>>();
+        for (String accountId : internalIds) {
+            try {
+                resolving.put(accountId, lookups.lookupLoanAccountReferenceFromId(Integer.valueOf(accountId)));
+            } catch (Exception e) {
+                failures.put(accountId, e.getMessage());
+            }
+        }
+        for (String accountId : externalIds) {
+            resolving.put(accountId, lookups.lookupLoanAccountReferenceFromExternalId(accountId));
+        }
+        for (String accountId : globalAccountNumbers) {
+            resolving.put(accountId, lookups.lookupLoanAccountReferenceFromGlobalAccountNumber(accountId));
+        }
+        for (Map.Entry<String, Future<AccountReferenceDto>> lookup : resolving.entrySet()) {
+            try {
+                resolved(lookup.getKey(), lookup.getValue().get());
+            } catch (ExecutionException e) {
+                failures.put(lookup.getKey(), e.getCause().getMessage());
+            } catch (Exception e) {
+                failures.put(lookup.getKey(), e.getMessage());
+            }
+        }
+        internalIds.clear();
+        externalIds.clear();
+        globalAccountNumbers.clear();
+
+        if (accounts.size() > resolvedBefore) {
+            final List<Integer> accountIds = new ArrayList<Integer>(accounts.size());
+            for (AccountReferenceDto account : accounts.values()) {
+                if (account != null) {
+                    accountIds.add(account.getAccountId());
+                }
+            }
+            groupLoanMembers.prefetch(lookups, accountIds);
+        }
+    }
+
+    boolean isResolved(String accountId) {
+        return accounts.containsKey(accountId);
+    }
+
+    /**
+     * @return the account the id was resolved to, as returned by the account service
+     */
+    AccountReferenceDto getAccount(String accountId) {
+        return accounts.get(accountId);
+    }
+
+    /**
+     * @return whether the account is that of a member of a group loan, which payments can not be made to
+     */
+    boolean isGroupLoanMember(AccountReferenceDto account) {
+        return groupLoanMembers.isGroupLoanMember(accountService, account.getAccountId());
+    }
+
+    /**
+     * @return message of the exception thrown when looking up an id which could not be resolved
+     */
+    String getFailure(String accountId) {
+        return failures.get(accountId);
+    }
+
+    private void resolved(String accountId, AccountReferenceDto account) {
+        accounts.put(accountId, account);
+    }
+
+    private boolean isKnown(String accountId) {
+        return accounts.containsKey(accountId) || failures.containsKey(accountId);
+    }
+}
@@ -20,20 +20,12 @@
 
 package org.almajmoua;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import org.mifos.StandardImport;
 
 public abstract class AudiBankImporter extends StandardImport {
     static final int TRANS_DATE = 0, SERIAL = 1, VALUE_DATE = 2, REFERENCE = 3, DEBIT_OR_CREDIT = 4, AMOUNT = 5,
             BALANCE = 6, DESCRIPTION = 7, MAX_CELL_NUM = 8;
 
-    private static final Pattern descriptionPatternForExternalId = Pattern
-            .compile("^PMTMAJ \\w([AZC])([0-9]{5})[0-9 ]{3} ");
-    private static final Pattern descriptionPatternForAccountId = Pattern.compile("^PMTMAJ ([0-9]{7}) ");
-    private static final Pattern descriptionPatternForGlobalAccountNumber = Pattern.compile("^PMTMAJ ([0-9]{15}) ");
-
     /**
      * If the second letter in the "account code" (the two letters following "PMTMAJ") is "Z" it is a group loan, "A" is
      * an individual loan, "C" is Lebanese pounds. So, if the second letter is "A" the plugin should continue working as
@@ -42,30 +34,7 @@ public abstract class AudiBankImporter extends StandardImport {
      * looking up and trying to apply the payment to that account.
      */
     static String getAccountId(String stringWithEmbeddedId) {
-        final Matcher matcherGlobalAccountNum = descriptionPatternForGlobalAccountNumber.matcher(stringWithEmbeddedId);
-        if (matcherGlobalAccountNum.find()) {
-            return matcherGlobalAccountNum.group(1);
-        }
-
-        final Matcher matcherInternalId = descriptionPatternForAccountId.matcher(stringWithEmbeddedId);
-        if (matcherInternalId.find()) {
-            return matcherInternalId.group(1);
-        }
-
-        final Matcher matcherExternalId = descriptionPatternForExternalId.matcher(stringWithEmbeddedId);
-        if (matcherExternalId.find()) {
-            if (matcherExternalId.group(1).equals("Z")) {
-                // group loan
-                return GROUP_PREFIX + " " + matcherExternalId.group(2);
-            } else if (matcherExternalId.group(1).equals("C")) {
-                // loan in Lebanese pounds
-                return LBP_PREFIX + " " + matcherExternalId.group(2);
-            } else {
-                return matcherExternalId.group(2);
-            }
-        }
-
-        return "";
+        return AccountIdScanner.accountId(stringWithEmbeddedId, GROUP_PREFIX, LBP_PREFIX);
     }
 
     static boolean accountIdIsAnInternalId(String accountId) {
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.almajmoua;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.mifos.AsyncAccountService;
+import org.mifos.LookupCache;
+import org.mifos.accounts.api.AccountService;
+
+/**
+ * Remembers which loan accounts belong to a member of a group loan, so that the account service is asked once per
+ * account. Payments can not be applied to such accounts, and whether an account is one does not change while a
+ * statement is imported.
+ * <p>
+ * With a time to live of zero answers never expire, which suits a memo kept for a single import. The memo shared
+ * between imports, {@link #shared(long)}, is given a time to live, after which the account service is asked again,
+ * and forgets the accounts which the {@link LookupCache} is told have been paid.
+ * <p>
+ * The memo is only locked to read or remember an answer: the account service is asked without holding the lock, so
+ * that a slow answer for one import does not hold up the others sharing the memo. Two imports missing the same
+ * account at once may therefore both ask for it.
+ */
+final class GroupLoanMembers {
+
+    private static GroupLoanMembers shared;
+
+    private final long timeToLiveMillis;
+    private final Map<Integer, Boolean> members = new HashMap<Integer, Boolean>();
+    private final Map<Integer, Long> checkedAt = new HashMap<Integer, Long>();
+    private long purgedAt;
+    private long forgotten;
+
+    GroupLoanMembers(long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    /**
+     * @return the memo shared by every import in the process, started afresh if the time to live is changed
+     */
+    static synchronized GroupLoanMembers shared(long timeToLiveMillis) {
+        if (shared == null) {
+            LookupCache.shared().addAccountListener(new LookupCache.AccountListener() {
+                @Override
+                public void accountsInvalidated(Collection<Integer> accountIds) {
+                    final GroupLoanMembers members;
+                    synchronized (GroupLoanMembers.class) {
+                        members = shared;
+                    }
+                    members.forget(accountIds);
+                }
+            });
+        }
+        if (shared == null || shared.timeToLiveMillis != timeToLiveMillis) {
+            shared = new GroupLoanMembers(timeToLiveMillis);
+        }
+        return shared;
+    }
+
+    synchronized void forget(Collection<Integer> accountIds) {
+        for (Integer accountId : accountIds) {
+            members.remove(accountId);
+            checkedAt.remove(accountId);
+        }
+        forgotten++;
+    }
+
+    boolean isGroupLoanMember(AccountService accountService, int accountId) {
+        return isGroupLoanMember(accountService, accountId, System.currentTimeMillis());
+    }
+
+    boolean isGroupLoanMember(AccountService accountService, int accountId, long now) {
+        final long forgottenBefore;
+        synchronized (this) {
+            Boolean member = remembered(accountId, now);
+            if (member != null) {
+                return member;
+            }
+            forgottenBefore = forgotten;
+        }
+        boolean member = accountService.isAccountGroupLoanMember(accountId);
+        remember(accountId, member, now, forgottenBefore);
+        return member;
+    }
+
+    /**
+     * Asks about every account not remembered at once, as many at a time as the lookups allow. An account which can
+     * not be asked about is left for {@link #isGroupLoanMember} to ask again, and fail, for the row paying it.
+     */
+    void prefetch(AsyncAccountService lookups, Collection<Integer> accountIds) {
+        final long now = System.currentTimeMillis();
+        final long forgottenBefore;
+        final Map<Integer, Future<Boolean>> asking = new LinkedHashMap<Integer, Future<Boolean>>();
+        synchronized (this) {
+            for (Integer accountId : accountIds) {
+                if (!asking.containsKey(accountId) && remembered(accountId, now) == null) {
+                    asking.put(accountId, null);
+                }
+            }
+            forgottenBefore = forgotten;
+        }
+        for (Map.Entry<Integer, Future<Boolean>> ask : asking.entrySet()) {
+            ask.setValue(lookups.isAccountGroupLoanMember(ask.getKey()));
+        }
+        for (Map.Entry<Integer, Future<Boolean>> ask : asking.entrySet()) {
+            try {
+                remember(ask.getKey(), ask.getValue().get(), now, forgottenBefore);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // asked again by the row paying the account, which reports the failure
+                continue;
+            }
+        }
+    }
+
+    /**
+     * @return the answer remembered for the account, or null if there is none or it has expired
+     */
+    private Boolean remembered(int accountId, long now) {
+        Boolean member = members.get(accountId);
+        if (member == null || isExpired(accountId, now)) {
+            purgeExpired(now);
+            return null;
+        }
+        return member;
+    }
+
+    /**
+     * Remembers an answer unless accounts have been forgotten since it was asked for, in which case it may already be
+     * out of date.
+     */
+    private synchronized void remember(int accountId, boolean member, long now, long forgottenBefore) {
+        if (forgotten == forgottenBefore) {
+            members.put(accountId, member);
+            checkedAt.put(accountId, now);
+        }
+    }
+
+    /**
+     * Forgets expired answers now and then, so that a memo shared between imports does not grow without bound.
+     */
+    private void purgeExpired(long now) {
+        if (timeToLiveMillis <= 0 || now - purgedAt < timeToLiveMillis) {
+            return;
+        }
+        for (Iterator<Map.Entry<Integer, Long>> i = checkedAt.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<Integer, Long> entry = i.next();
+            if (now - entry.getValue() >= timeToLiveMillis) {
+                members.remove(entry.getKey());
+                i.remove();
+            }
+        }
+        purgedAt = now;
+    }
+
+    private boolean isExpired(int accountId, long now) {
+        return timeToLiveMillis > 0 && now - checkedAt.get(accountId) >= timeToLiveMillis;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.Closeable;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.accounts.api.InvalidPaymentReason;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+
+/**
+ * Makes the lookups and validations of the account and customer search services on a pool of threads, so that an
+ * import can ask about many rows at once and wait for the database once rather than once per row. Each call returns a
+ * {@link Future} at once, whose {@link Future#get()} returns what the service returned or throws what it threw, wrapped
+ * in an {@link java.util.concurrent.ExecutionException}.
+ * <p>
+ * At most as many calls as there are threads are in flight at any time: asking for more blocks until one of them is
+ * done, so that a large statement does not queue a call for every row. With one thread, calls are made on the thread
+ * asking for them before they are returned, exactly as if the services were called directly. The services must be safe
+ * to call from as many threads as are given, and should have a database connection for each.
+ */
+public final class AsyncAccountService implements Closeable {
+
+    private final AccountService accountService;
+    private final CustomerSearchService customerSearchService;
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+
+    /**
+     * @param threads
+     *            most calls to make at once
+     */
+    public AsyncAccountService(AccountService accountService, CustomerSearchService customerSearchService, int threads) {
+        this.accountService = accountService;
+        this.customerSearchService = customerSearchService;
+        this.executor = threads > 1 ? DaemonThreads.newFixedPool("account-service", threads) : null;
+        this.inFlight = new Semaphore(Math.max(1, threads));
+    }
+
+    public Future<AccountReferenceDto> lookupLoanAccountReferenceFromId(final Integer id) {
+        return submit(new Callable<AccountReferenceDto>() {
+            @Override
+            public AccountReferenceDto call() throws Exception {
+                return accountService.lookupLoanAccountReferenceFromId(id);
+            }
+        });
+    }
+
+    public Future<AccountReferenceDto> lookupLoanAccountReferenceFromExternalId(final String externalId) {
+        return submit(new Callable<AccountReferenceDto>() {
+            @Override
+            public AccountReferenceDto call() throws Exception {
+                return accountService.lookupLoanAccountReferenceFromExternalId(externalId);
+            }
+        });
+    }
+
+    public Future<AccountReferenceDto> lookupLoanAccountReferenceFromGlobalAccountNumber(
+            final String globalAccountNumber) {
+        return submit(new Callable<AccountReferenceDto>() {
+            @Override
+            public AccountReferenceDto call() throws Exception {
+                return accountService.lookupLoanAccountReferenceFromGlobalAccountNumber(globalAccountNumber);
+            }
+        });
+    }
+
+    public Future<AccountReferenceDto> lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName(
+            final String phoneNumber, final String loanProductShortName) {
+        return submit(new Callable<AccountReferenceDto>() {
+            @Override
+            public AccountReferenceDto call() throws Exception {
+                return accountService.lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName(
+                        phoneNumber, loanProductShortName);
+            }
+        });
+    }
+
+    public Future<AccountReferenceDto> lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName(
+            final String phoneNumber, final String savingsProductShortName) {
+        return submit(new Callable<AccountReferenceDto>() {
+            @Override
+            public AccountReferenceDto call() throws Exception {
+                return accountService.lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName(
+                        phoneNumber, savingsProductShortName);
+            }
+        });
+    }
+
+    public Future<List<AccountReferenceDto>> lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(
+            final String phoneNumber, final BigDecimal withdrawAmount) {
+        return submit(new Callable<List<AccountReferenceDto>>() {
+            @Override
+            public List<AccountReferenceDto> call() throws Exception {
+                return accountService.lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount(phoneNumber,
+                        withdrawAmount);
+            }
+        });
+    }
+
+    public Future<Boolean> isAccountGroupLoanMember(final Integer accountId) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return accountService.isAccountGroupLoanMember(accountId);
+            }
+        });
+    }
+
+    public Future<BigDecimal> getTotalPaymentDueAmount(final AccountReferenceDto account) {
+        return submit(new Callable<BigDecimal>() {
+            @Override
+            public BigDecimal call() throws Exception {
+                return accountService.getTotalPaymentDueAmount(account);
+            }
+        });
+    }
+
+    public Future<List<InvalidPaymentReason>> validatePayment(final AccountPaymentParametersDto payment) {
+        return submit(new Callable<List<InvalidPaymentReason>>() {
+            @Override
+            public List<InvalidPaymentReason> call() throws Exception {
+                return accountService.validatePayment(payment);
+            }
+        });
+    }
+
+    public Future<List<InvalidPaymentReason>> validateLoanDisbursement(final AccountPaymentParametersDto payment) {
+        return submit(new Callable<List<InvalidPaymentReason>>() {
+            @Override
+            public List<InvalidPaymentReason> call() throws Exception {
+                return accountService.validateLoanDisbursement(payment);
+            }
+        });
+    }
+
+    public Future<Boolean> doesTransactionIntroduceOverpayment(final AccountPaymentParametersDto payment) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return accountService.doesTransactionIntroduceOverpayment(payment);
+            }
+        });
+    }
+
+    public Future<Boolean> receiptExists(final String receiptNumber) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return accountService.receiptExists(receiptNumber);
+            }
+        });
+    }
+
+    public Future<List<CustomerDto>> findCustomersWithGivenPhoneNumber(final String phoneNumber) {
+        return submit(new Callable<List<CustomerDto>>() {
+            @Override
+            public List<CustomerDto> call() {
+                return customerSearchService.findCustomersWithGivenPhoneNumber(phoneNumber);
+            }
+        });
+    }
+
+    /**
+     * Stops the threads, abandoning calls not yet made.
+     */
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a call to be done if as many as allowed are in flight, then makes the call on a thread of the pool, or
+     * on this thread if there is no pool. If interrupted while waiting, or once closed, the call is not made and its
+     * future is cancelled.
+     */
+    private <T> Future<T> submit(Callable<T> call) {
+        final FutureTask<T> task = new FutureTask<T>(call) {
+            @Override
+            protected void done() {
+                inFlight.release();
+            }
+        };
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return cancelled(call);
+        }
+        if (executor == null) {
+            task.run();
+            return task;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed
+            task.cancel(false);
+        }
+        return task;
+    }
+
+    /**
+     * @return a future for a call which was never in flight, so gives no permit back
+     */
+    private static <T> Future<T> cancelled(Callable<T> call) {
+        final FutureTask<T> task = new FutureTask<T>(call);
+        task.cancel(false);
+        return task;
+    }
+}
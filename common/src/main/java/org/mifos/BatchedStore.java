@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountTrxDto;
+
+/**
+ * Stores the payments parsed by an import in Mifos: the payments in batches of
+ * <code>&lt;plugin class name&gt;.PaymentBatchSize</code> (500 unless configured), each one committed on its own so
+ * that a large file does not hold the database in a single transaction, then the loan disbursals in one go. If a later
+ * batch fails the ones before it stay committed, and a {@link PartiallyStoredImportException} says how many. The same
+ * goes for an import cancelled through its {@link ImportMonitor}, which is looked at before each batch.
+ * <p>
+ * After each batch the lookups of the {@link LookupCache} about the accounts paid are forgotten, as the payments may
+ * have closed them. Importers override {@link #paymentsCommitting(List)} and {@link #paymentsCommitted(List)} to keep
+ * track of what they stored.
+ */
+public class BatchedStore {
+
+    private static final String PAYMENT_BATCH_SIZE = "PaymentBatchSize";
+    private static final int DEFAULT_PAYMENT_BATCH_SIZE = 500;
+
+    private final AccountService accountService;
+    private final ImportMonitor monitor;
+    private final int batchSize;
+
+    public BatchedStore(AccountService accountService, ImportMonitor monitor, int batchSize) {
+        this.accountService = accountService;
+        this.monitor = monitor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param importer
+     *            class of the plugin, whose canonical name the batch size is configured under
+     * @return how many payments to make, or reverse, in each batch
+     */
+    public static int configuredBatchSize(AccountService accountService, Class<?> importer) {
+        Object batchSize = accountService.getMifosConfiguration(importer.getCanonicalName() + "." + PAYMENT_BATCH_SIZE);
+        if (batchSize == null) {
+            return DEFAULT_PAYMENT_BATCH_SIZE;
+        }
+        return Math.max(1, Integer.parseInt(batchSize.toString().trim()));
+    }
+
+    /**
+     * @param trxIds
+     *            if not <code>null</code>, the transactions made are added to it so that they can be undone. If a
+     *            batch fails, the {@link PartiallyStoredImportException} holds those of the batches committed before.
+     * @param journal
+     *            if not <code>null</code>, records each batch committed, loan disbursals included. Should a batch
+     *            committed fail to be recorded, the store stops there.
+     */
+    public void store(List<AccountPaymentParametersDto> parsedPayments, List<AccountTrxDto> trxIds,
+            UndoJournal journal) throws Exception {
+        final List<AccountTrxDto> made = trxIds == null ? new ArrayList<AccountTrxDto>() : trxIds;
+        final List<AccountPaymentParametersDto> payments = loanDisbursals(parsedPayments, false);
+        final List<AccountPaymentParametersDto> disbursals = loanDisbursals(parsedPayments, true);
+        monitor.storeStarted(payments.size() + disbursals.size());
+        for (int from = 0; from < payments.size(); from += batchSize) {
+            final int madeBefore = made.size();
+            try {
+                monitor.checkCancelled();
+                makePayments(batch(payments, from), trxIds);
+            } catch (Exception e) {
+                if (from == 0) {
+                    throw e;
+                }
+                throw new PartiallyStoredImportException(from, made, e);
+            }
+            try {
+                if (journal != null) {
+                    journal.paymentsMade(made.subList(madeBefore, made.size()));
+                }
+            } catch (IOException e) {
+                throw new PartiallyStoredImportException(Math.min(from + batchSize, payments.size()), made, e);
+            }
+        }
+        if (!disbursals.isEmpty()) {
+            try {
+                monitor.checkCancelled();
+                disburseLoans(disbursals);
+            } catch (Exception e) {
+                if (payments.isEmpty()) {
+                    throw e;
+                }
+                throw new PartiallyStoredImportException(payments.size(), made, e);
+            }
+            try {
+                if (journal != null) {
+                    journal.loansDisbursed(disbursals);
+                }
+            } catch (IOException e) {
+                throw new PartiallyStoredImportException(payments.size() + disbursals.size(), made, e);
+            }
+        }
+    }
+
+    /**
+     * Called before each batch of payments, or the loan disbursals, are sent to Mifos.
+     */
+    protected void paymentsCommitting(List<AccountPaymentParametersDto> payments) {
+        // nothing to do unless the importer keeps track of what it stored
+    }
+
+    /**
+     * Called as each batch of payments, or the loan disbursals, have been committed. The payments are in Mifos by now,
+     * so this should not fail the store.
+     */
+    protected void paymentsCommitted(List<AccountPaymentParametersDto> payments) {
+        // nothing to do unless the importer keeps track of what it stored
+    }
+
+    private void makePayments(List<AccountPaymentParametersDto> batch, List<AccountTrxDto> trxIds) throws Exception {
+        paymentsCommitting(batch);
+        try {
+            if (trxIds == null) {
+                accountService.makePayments(batch);
+            } else {
+                trxIds.addAll(accountService.makePaymentsForImport(batch));
+            }
+        } finally {
+            LookupCache.shared().invalidate(batch);
+        }
+        monitor.committed(batch.size());
+        paymentsCommitted(batch);
+    }
+
+    private void disburseLoans(List<AccountPaymentParametersDto> disbursals) throws Exception {
+        List<AccountPaymentParametersDto> loans = new ArrayList<AccountPaymentParametersDto>(disbursals);
+        paymentsCommitting(loans);
+        try {
+            accountService.disburseLoans(loans, Locale.ENGLISH);
+        } finally {
+            LookupCache.shared().invalidate(loans);
+        }
+        monitor.committed(loans.size());
+        paymentsCommitted(loans);
+    }
+
+    /**
+     * @return the payments of one batch, made into DTOs only now if they were held in a {@link PaymentBuffer}
+     */
+    private List<AccountPaymentParametersDto> batch(List<AccountPaymentParametersDto> payments, int from) {
+        return new ArrayList<AccountPaymentParametersDto>(
+                payments.subList(from, Math.min(from + batchSize, payments.size())));
+    }
+
+    /**
+     * @return the parsed payments which are loan disbursals, or those which are not. Payments held in a
+     *         {@link PaymentBuffer} are picked out without making their DTOs.
+     */
+    private static List<AccountPaymentParametersDto> loanDisbursals(List<AccountPaymentParametersDto> parsedPayments,
+            boolean disbursals) {
+        if (parsedPayments instanceof PaymentBuffer) {
+            return ((PaymentBuffer) parsedPayments).loanDisbursals(disbursals);
+        }
+        List<AccountPaymentParametersDto> picked = new ArrayList<AccountPaymentParametersDto>();
+        for (AccountPaymentParametersDto payment : parsedPayments) {
+            if (payment.getTransactionType().equals(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL) == disbursals) {
+                picked.add(payment);
+            }
+        }
+        return picked;
+    }
+}
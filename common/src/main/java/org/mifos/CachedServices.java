@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+
+/**
+ * The services an importer was given, answering lookups from the {@link LookupCache} shared by all imports if it is
+ * configured. Each service is wrapped once, and again only if the importer is given another.
+ */
+public final class CachedServices {
+
+    private AccountService uncachedAccountService;
+    private AccountService cachedAccountService;
+    private CustomerSearchService uncachedCustomerSearchService;
+    private CustomerSearchService cachedCustomerSearchService;
+
+    public synchronized AccountService accountService(AccountService accountService) {
+        if (accountService != uncachedAccountService) {
+            uncachedAccountService = accountService;
+            cachedAccountService = LookupCache.shared().cached(accountService);
+        }
+        return cachedAccountService;
+    }
+
+    /**
+     * Call {@link #accountService(AccountService)} first, which sizes the cache.
+     */
+    public synchronized CustomerSearchService customerSearchService(CustomerSearchService customerSearchService) {
+        if (customerSearchService != uncachedCustomerSearchService) {
+            uncachedCustomerSearchService = customerSearchService;
+            cachedCustomerSearchService = LookupCache.shared().cached(customerSearchService);
+        }
+        return cachedCustomerSearchService;
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the records of a CSV file, as written by Excel and most bank systems: fields are separated by a delimiter,
+ * and a field in double quotes may hold delimiters, line breaks and doubled quotes. Lines may end in CR LF, LF or CR,
+ * and lines with nothing on them are skipped. A byte order mark at the start of the file selects UTF-8 or UTF-16
+ * whatever charset was asked for; characters which can not be decoded are replaced rather than rejected.
+ * <p>
+ * Bytes are read through a channel into a buffer and decoded into a second one, both of which are reused, and every
+ * record is read into the same {@link CsvRecord}. Reading a large file therefore allocates next to nothing beyond the
+ * strings asked for.
+ * <p>
+ * {@link #readAll(ByteBuffer, Charset, char, int)} reads a file held in memory in chunks on several threads, for
+ * charsets in which the delimiter, quotes and line breaks can not be part of another character.
+ */
+public final class CsvReader implements Iterator<CsvRecord>, Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int END = -1;
+    private static final char QUOTE = '"';
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Below this many bytes per thread a file is not worth splitting. */
+    private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    private static final String CHARSET = "Charset";
+    private static final String DELIMITER = "Delimiter";
+    private static final String READER_THREADS = "ReaderThreads";
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer bytes;
+    private final CharBuffer chars;
+    private final char delimiter;
+    private final CharsetDecoder decoder;
+    private boolean endOfInput;
+    private boolean flushed;
+
+    private final CsvRecord record = new CsvRecord();
+    private boolean pending;
+    private int recordsRead;
+    private int lookahead = END - 1;
+
+    public CsvReader(InputStream input, Charset charset, char delimiter) throws IOException {
+        this(Channels.newChannel(input), ByteBuffer.allocate(BUFFER_SIZE), charset, delimiter);
+    }
+
+    /**
+     * Reads the bytes left in a buffer, without a channel. A byte order mark is not looked for, since the bytes may be
+     * a chunk from the middle of a file.
+     */
+    CsvReader(ByteBuffer input, Charset charset, char delimiter) {
+        this.channel = null;
+        this.bytes = input;
+        this.delimiter = delimiter;
+        this.endOfInput = true;
+        this.decoder = newDecoder(charset);
+        this.chars = emptyCharBuffer();
+    }
+
+    private CsvReader(ReadableByteChannel channel, ByteBuffer bytes, Charset charset, char delimiter)
+            throws IOException {
+        this.channel = channel;
+        this.bytes = bytes;
+        this.delimiter = delimiter;
+        bytes.limit(0);
+        do {
+            fill();
+        } while (!endOfInput && bytes.remaining() < 3);
+        this.decoder = newDecoder(charsetAfterByteOrderMark(bytes, charset));
+        this.chars = emptyCharBuffer();
+    }
+
+    private static CharsetDecoder newDecoder(Charset charset) {
+        return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+                CodingErrorAction.REPLACE);
+    }
+
+    private static CharBuffer emptyCharBuffer() {
+        final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+        chars.limit(0);
+        return chars;
+    }
+
+    /**
+     * Opens the records of a file as configured for a plugin, with keys starting with the canonical name of the plugin
+     * class:
+     * <ul>
+     * <li><code>.Charset</code>, the charset of files without a byte order mark (UTF-8 unless configured),</li>
+     * <li><code>.Delimiter</code>, the character between fields (a comma unless configured), and</li>
+     * <li><code>.ReaderThreads</code>, the number of threads reading a file at once (one unless configured).</li>
+     * </ul>
+     */
+    public static Iterator<CsvRecord> records(StandardImport plugin, InputStream input) throws IOException {
+        final String prefix = plugin.getClass().getCanonicalName() + ".";
+        final Object charset = plugin.getAccountService().getMifosConfiguration(prefix + CHARSET);
+        final Object delimiter = plugin.getAccountService().getMifosConfiguration(prefix + DELIMITER);
+        final Object threads = plugin.getAccountService().getMifosConfiguration(prefix + READER_THREADS);
+        return records(input, charset == null ? UTF_8 : Charset.forName(charset.toString().trim()),
+                delimiter == null || delimiter.toString().length() == 0 ? ',' : delimiter.toString().charAt(0),
+                threads == null ? 1 : Integer.parseInt(threads.toString().trim()));
+    }
+
+    /**
+     * Opens the records of a file. With more than one thread the whole file is read into memory, or mapped into it if
+     * it is a file on disk, and split between the threads; otherwise it is read as the records are.
+     */
+    public static Iterator<CsvRecord> records(InputStream input, Charset charset, char delimiter, int threads)
+            throws IOException {
+        if (threads <= 1) {
+            return new CsvReader(input, charset, delimiter);
+        }
+        final ByteBuffer contents;
+        if (input instanceof FileInputStream) {
+            final FileChannel file = ((FileInputStream) input).getChannel();
+            contents = file.map(FileChannel.MapMode.READ_ONLY, file.position(), file.size() - file.position());
+        } else {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            contents = ByteBuffer.wrap(output.toByteArray());
+        }
+        return readAll(contents, charset, delimiter, threads).iterator();
+    }
+
+    /**
+     * Reads every record of a file held in memory. The file is cut into chunks at line breaks outside quotes, one per
+     * thread, which are read at the same time and put back together in order.
+     *
+     * @return copies of the records, numbered as if read in one go
+     */
+    public static List<CsvRecord> readAll(ByteBuffer input, Charset charset, final char delimiter, int threads)
+            throws IOException {
+        final ByteBuffer contents = input.duplicate();
+        final Charset actualCharset = charsetAfterByteOrderMark(contents, charset);
+        final List<ByteBuffer> chunks = isAsciiCompatible(actualCharset) && delimiter < 0x80 ? split(contents,
+                delimiter, threads) : Collections.singletonList(contents);
+        if (chunks.size() == 1) {
+            return readChunk(chunks.get(0), actualCharset, delimiter).records;
+        }
+        final ExecutorService executor = DaemonThreads.newFixedPool("csv-reader", chunks.size());
+        try {
+            final List<Future<Chunk>> readings = new ArrayList<Future<Chunk>>(chunks.size());
+            for (final ByteBuffer chunk : chunks) {
+                readings.add(executor.submit(new Callable<Chunk>() {
+                    @Override
+                    public Chunk call() throws IOException {
+                        return readChunk(chunk, actualCharset, delimiter);
+                    }
+                }));
+            }
+            final List<CsvRecord> records = new ArrayList<CsvRecord>();
+            int recordsBefore = 0;
+            for (Future<Chunk> reading : readings) {
+                final Chunk chunk = reading.get();
+                for (CsvRecord record : chunk.records) {
+                    record.renumber(recordsBefore + record.getRecordNum());
+                    records.add(record);
+                }
+                recordsBefore += chunk.recordsRead;
+            }
+            return records;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading CSV", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not read CSV", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!pending) {
+            try {
+                pending = readRecord();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return the next record, which is only good until this is called again
+     */
+    @Override
+    public CsvRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        pending = false;
+        return record;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return number of records read so far, blank lines included
+     */
+    public int getRecordsRead() {
+        return recordsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private boolean readRecord() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == END) {
+                return false;
+            }
+            record.clear(recordsRead++);
+            while (true) {
+                if (c == QUOTE) {
+                    c = readQuoted();
+                }
+                while (c != delimiter && c != '\n' && c != '\r' && c != END) {
+                    record.append((char) c);
+                    c = read();
+                }
+                record.endField();
+                if (c != delimiter) {
+                    break;
+                }
+                c = read();
+            }
+            if (c == '\r') {
+                c = read();
+                if (c != '\n') {
+                    lookahead = c;
+                }
+            }
+            if (!record.isBlankLine()) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reads a quoted field up to its closing quote.
+     *
+     * @return the character after the closing quote
+     */
+    private int readQuoted() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == END) {
+                return END;
+            }
+            if (c == QUOTE) {
+                c = read();
+                if (c != QUOTE) {
+                    return c;
+                }
+            }
+            record.append((char) c);
+        }
+    }
+
+    private int read() throws IOException {
+        if (lookahead >= END) {
+            final int c = lookahead;
+            lookahead = END - 1;
+            return c;
+        }
+        if (!chars.hasRemaining() && !decode()) {
+            return END;
+        }
+        return chars.get();
+    }
+
+    /**
+     * @return <code>false</code> once every character has been read
+     */
+    private boolean decode() throws IOException {
+        chars.clear();
+        while (chars.position() == 0) {
+            if (flushed) {
+                break;
+            }
+            final CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isUnderflow()) {
+                if (endOfInput) {
+                    decoder.flush(chars);
+                    flushed = true;
+                } else {
+                    fill();
+                }
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    private void fill() throws IOException {
+        bytes.compact();
+        final int read = channel.read(bytes);
+        bytes.flip();
+        if (read == -1) {
+            endOfInput = true;
+        }
+    }
+
+    /**
+     * Skips a byte order mark at the start of the bytes.
+     *
+     * @return the charset it stands for, or the one given if there is none
+     */
+    private static Charset charsetAfterByteOrderMark(ByteBuffer bytes, Charset charset) {
+        final int start = bytes.position();
+        if (bytes.remaining() >= 3 && (bytes.get(start) & 0xff) == 0xef && (bytes.get(start + 1) & 0xff) == 0xbb
+                && (bytes.get(start + 2) & 0xff) == 0xbf) {
+            bytes.position(start + 3);
+            return UTF_8;
+        }
+        if (bytes.remaining() >= 2) {
+            final int first = bytes.get(start) & 0xff;
+            final int second = bytes.get(start + 1) & 0xff;
+            if (first == 0xfe && second == 0xff) {
+                bytes.position(start + 2);
+                return Charset.forName("UTF-16BE");
+            }
+            if (first == 0xff && second == 0xfe) {
+                bytes.position(start + 2);
+                return Charset.forName("UTF-16LE");
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * @return whether every ASCII character is a single byte of the same value, which is never part of another
+     *         character
+     */
+    static boolean isAsciiCompatible(Charset charset) {
+        final String name = charset.name();
+        return "UTF-8".equals(name) || "US-ASCII".equals(name) || name.startsWith("ISO-8859-")
+                || name.startsWith("windows-125");
+    }
+
+    /**
+     * Cuts the bytes into at most the given number of chunks, each starting on a record. The bytes are scanned with the
+     * same rules as the records are read with, to tell line breaks in quoted fields from those between records.
+     */
+    static List<ByteBuffer> split(ByteBuffer contents, char delimiter, int chunks) {
+        final List<ByteBuffer> result = new ArrayList<ByteBuffer>();
+        final int start = contents.position();
+        final int end = contents.limit();
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, (end - start) / Math.max(1, chunks) + 1);
+        int chunkStart = start;
+        int nextCut = start + chunkSize;
+        boolean fieldStart = true;
+        boolean quoted = false;
+        for (int i = start; i < end && nextCut < end; i++) {
+            final byte b = contents.get(i);
+            if (quoted) {
+                if (b == QUOTE) {
+                    if (i + 1 < end && contents.get(i + 1) == QUOTE) {
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                }
+            } else if (fieldStart && b == QUOTE) {
+                quoted = true;
+                fieldStart = false;
+            } else if (b == delimiter || b == '\r') {
+                fieldStart = true;
+            } else if (b == '\n') {
+                fieldStart = true;
+                if (i + 1 >= nextCut) {
+                    result.add(slice(contents, chunkStart, i + 1));
+                    chunkStart = i + 1;
+                    nextCut = chunkStart + chunkSize;
+                }
+            } else {
+                fieldStart = false;
+            }
+        }
+        result.add(slice(contents, chunkStart, end));
+        return result;
+    }
+
+    private static ByteBuffer slice(ByteBuffer contents, int from, int to) {
+        final ByteBuffer chunk = contents.duplicate();
+        chunk.limit(to);
+        chunk.position(from);
+        return chunk.slice();
+    }
+
+    private static Chunk readChunk(ByteBuffer chunk, Charset charset, char delimiter) throws IOException {
+        final CsvReader reader = new CsvReader(chunk, charset, delimiter);
+        final List<CsvRecord> records = new ArrayList<CsvRecord>();
+        while (reader.hasNext()) {
+            records.add(reader.next().copy());
+        }
+        return new Chunk(records, reader.getRecordsRead());
+    }
+
+    /**
+     * Records read from a chunk, numbered from the start of the chunk.
+     */
+    private static final class Chunk {
+        final List<CsvRecord> records;
+        final int recordsRead;
+
+        Chunk(List<CsvRecord> records, int recordsRead) {
+            this.records = records;
+            this.recordsRead = recordsRead;
+        }
+    }
+}
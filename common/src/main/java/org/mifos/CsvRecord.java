@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+/**
+ * One record of a CSV file, as read by {@link CsvReader}. The characters of all fields are kept in one array, so that
+ * reading a record allocates nothing once the array has grown to the longest record; a {@link String} is only made
+ * for a field which is asked for.
+ * <p>
+ * A reader fills the same record over and over, so a record returned by it is only good until the next one is read.
+ * Keep a {@link #copy()} to hold on to it.
+ */
+public final class CsvRecord {
+
+    private char[] chars;
+    private int length;
+    private int[] fieldEnds;
+    private int size;
+    private int recordNum;
+
+    CsvRecord() {
+        this(new char[256], new int[16]);
+    }
+
+    private CsvRecord(char[] chars, int[] fieldEnds) {
+        this.chars = chars;
+        this.fieldEnds = fieldEnds;
+    }
+
+    /**
+     * @return zero based number of the record in the file, blank lines included
+     */
+    public int getRecordNum() {
+        return recordNum;
+    }
+
+    /**
+     * @return number of fields in the record
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the field, unquoted; an empty string for a field past the end of the record
+     */
+    public String get(int field) {
+        if (field >= size) {
+            return "";
+        }
+        final int start = start(field);
+        return new String(chars, start, fieldEnds[field] - start);
+    }
+
+    /**
+     * @return whether the field is empty or past the end of the record
+     */
+    public boolean isEmpty(int field) {
+        return field >= size || fieldEnds[field] == start(field);
+    }
+
+    /**
+     * @return a record holding the same fields, which later reads do not change
+     */
+    public CsvRecord copy() {
+        final char[] copiedChars = new char[length];
+        System.arraycopy(chars, 0, copiedChars, 0, length);
+        final int[] copiedFieldEnds = new int[size];
+        System.arraycopy(fieldEnds, 0, copiedFieldEnds, 0, size);
+        final CsvRecord copy = new CsvRecord(copiedChars, copiedFieldEnds);
+        copy.length = length;
+        copy.size = size;
+        copy.recordNum = recordNum;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder();
+        for (int field = 0; field < size; field++) {
+            if (field > 0) {
+                text.append(", ");
+            }
+            text.append('[').append(chars, start(field), fieldEnds[field] - start(field)).append(']');
+        }
+        return text.toString();
+    }
+
+    void clear(int newRecordNum) {
+        recordNum = newRecordNum;
+        length = 0;
+        size = 0;
+    }
+
+    void renumber(int newRecordNum) {
+        recordNum = newRecordNum;
+    }
+
+    void append(char c) {
+        if (length == chars.length) {
+            final char[] moreChars = new char[chars.length * 2];
+            System.arraycopy(chars, 0, moreChars, 0, length);
+            chars = moreChars;
+        }
+        chars[length++] = c;
+    }
+
+    void endField() {
+        if (size == fieldEnds.length) {
+            final int[] moreFieldEnds = new int[fieldEnds.length * 2];
+            System.arraycopy(fieldEnds, 0, moreFieldEnds, 0, size);
+            fieldEnds = moreFieldEnds;
+        }
+        fieldEnds[size++] = length;
+    }
+
+    /**
+     * @return whether the record is a line with nothing on it
+     */
+    boolean isBlankLine() {
+        return size == 1 && length == 0;
+    }
+
+    private int start(int field) {
+        return field == 0 ? 0 : fieldEnds[field - 1];
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pools of daemon threads for the work an import spreads over several threads, so that a pool which is not shut down
+ * does not keep the server from stopping. Threads are named after the pool and numbered, such as
+ * <code>csv-reader-2</code>, so that they can be told apart in a thread dump.
+ */
+public final class DaemonThreads {
+
+    private DaemonThreads() {
+    }
+
+    /**
+     * @return a pool of a fixed number of threads, queueing the tasks it has no thread free for
+     */
+    public static ThreadPoolExecutor newFixedPool(final String name, final int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                newFactory(name));
+    }
+
+    /**
+     * Like {@link #newFixedPool(String, int)}, letting its threads end once idle for the given time, so that a pool
+     * kept for the life of the application holds no threads while unused.
+     */
+    public static ThreadPoolExecutor newFixedPool(final String name, final int threads, final long idleSeconds) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, idleSeconds, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), newFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static ThreadFactory newFactory(final String name) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
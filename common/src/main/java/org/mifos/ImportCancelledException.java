@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+/**
+ * Thrown by an import which saw its {@link CancellationToken} cancelled. If payments had been committed already,
+ * storing throws a {@link PartiallyStoredImportException} caused by this instead.
+ */
+public class ImportCancelledException extends RuntimeException {
+
+    private static final long serialVersionUID = 5121648802306651725L;
+
+    public ImportCancelledException() {
+        super("the import was cancelled");
+    }
+
+    /**
+     * @return the cancellation among the causes of the exception, or <code>null</code> if there is none
+     */
+    public static ImportCancelledException causing(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ImportCancelledException) {
+                return (ImportCancelledException) cause;
+            }
+        }
+        return null;
+    }
+}
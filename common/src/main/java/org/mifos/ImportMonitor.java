@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the rows and payments of an import for its {@link ImportProgressListener}, and stops it once its
+ * {@link CancellationToken} is cancelled. An importer tells it when a stage starts, as each row is read and validated,
+ * and as each batch of payments is committed. The listener is told of rows at most every {@value #NOTIFY_MILLIS} ms,
+ * so counting a row costs next to nothing, of each batch committed, and when a stage starts and ends. Undoing an import
+ * with its {@link UndoJournal} is followed the same way, each batch reversed counting as committed.
+ * <p>
+ * A monitor follows one import at a time, on the thread running it. The listener and token may be changed between
+ * imports.
+ */
+public final class ImportMonitor {
+
+    static final long NOTIFY_MILLIS = 200;
+
+    private final long notifyNanos;
+
+    private volatile ImportProgressListener listener;
+    private volatile CancellationToken cancellationToken;
+
+    private ImportProgress.Stage stage = ImportProgress.Stage.PARSING;
+    private int rowsRead;
+    private int rowsExpected;
+    private int rowsValidated;
+    private int paymentsCommitted;
+    private int paymentsToCommit;
+
+    private long notifiedAt;
+    private int countNotified;
+    private double perSecond;
+    private int countAtNextCheck;
+
+    public ImportMonitor() {
+        this(TimeUnit.MILLISECONDS.toNanos(NOTIFY_MILLIS));
+    }
+
+    ImportMonitor(long notifyNanos) {
+        this.notifyNanos = notifyNanos;
+    }
+
+    public void setListener(ImportProgressListener listener) {
+        this.listener = listener;
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Starts counting the rows of a parse.
+     */
+    public void parseStarted() {
+        checkCancelled();
+        stage = ImportProgress.Stage.PARSING;
+        rowsRead = 0;
+        rowsExpected = -1;
+        rowsValidated = 0;
+        paymentsCommitted = 0;
+        paymentsToCommit = 0;
+        started();
+    }
+
+    /**
+     * @param rows about how many more rows the statement has than thought so far
+     */
+    public void expectRows(int rows) {
+        rowsExpected = Math.max(rowsExpected, 0) + rows;
+    }
+
+    /**
+     * @throws ImportCancelledException if the import has been cancelled
+     */
+    public void rowRead() {
+        checkCancelled();
+        rowsRead++;
+        if (rowsRead >= countAtNextCheck) {
+            progressed(rowsRead, false, false);
+        }
+    }
+
+    public void rowValidated() {
+        rowsValidated++;
+    }
+
+    public void parseFinished() {
+        progressed(rowsRead, true, true);
+    }
+
+    /**
+     * Starts counting the payments committed of a store, the parse being done.
+     *
+     * @throws ImportCancelledException if the import has been cancelled
+     */
+    public void storeStarted(int payments) {
+        checkCancelled();
+        stage = ImportProgress.Stage.STORING;
+        paymentsCommitted = 0;
+        paymentsToCommit = payments;
+        started();
+    }
+
+    /**
+     * Starts counting the payments and disbursals reversed of an undo, with {@link #committed(int)}.
+     *
+     * @throws ImportCancelledException if the undo has been cancelled
+     */
+    public void undoStarted(int transactions) {
+        checkCancelled();
+        stage = ImportProgress.Stage.UNDOING;
+        paymentsCommitted = 0;
+        paymentsToCommit = transactions;
+        started();
+    }
+
+    public void committed(int payments) {
+        paymentsCommitted += payments;
+        // batches are few, so each one is told
+        progressed(paymentsCommitted, paymentsCommitted >= paymentsToCommit, true);
+    }
+
+    /**
+     * @throws ImportCancelledException if the import has been cancelled
+     */
+    public void checkCancelled() {
+        final CancellationToken token = cancellationToken;
+        if (token != null && token.isCancelled()) {
+            throw new ImportCancelledException();
+        }
+    }
+
+    private void started() {
+        notifiedAt = System.nanoTime();
+        countNotified = 0;
+        perSecond = 0;
+        countAtNextCheck = 1;
+        final ImportProgressListener current = listener;
+        if (current != null) {
+            current.progressed(snapshot(false));
+        }
+    }
+
+    /**
+     * Works out the rate since the listener was last told, looking at the clock only every so many rows so that a fast
+     * parse does not spend its time reading it.
+     */
+    private void progressed(int count, boolean finished, boolean always) {
+        final ImportProgressListener current = listener;
+        if (current == null) {
+            countAtNextCheck = Integer.MAX_VALUE;
+            return;
+        }
+        final long now = System.nanoTime();
+        final long elapsed = now - notifiedAt;
+        if (elapsed < notifyNanos && !always) {
+            // about when the listener is next due, at the rate so far
+            final int step = count - countNotified;
+            countAtNextCheck = count + Math.max(1, step / 2);
+            return;
+        }
+        if (elapsed > 0 && count > countNotified) {
+            perSecond = (count - countNotified) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        }
+        notifiedAt = now;
+        countNotified = count;
+        countAtNextCheck = count + 1;
+        current.progressed(snapshot(finished));
+    }
+
+    private ImportProgress snapshot(boolean finished) {
+        long millisRemaining = -1;
+        final int remaining = stage == ImportProgress.Stage.PARSING ? rowsExpected - rowsRead : paymentsToCommit
+                - paymentsCommitted;
+        if (finished) {
+            millisRemaining = 0;
+        } else if (perSecond > 0 && (stage != ImportProgress.Stage.PARSING || rowsExpected >= 0)) {
+            millisRemaining = Math.round(Math.max(0, remaining) * 1000 / perSecond);
+        }
+        return new ImportProgress(stage, finished, rowsRead, rowsExpected, rowsValidated, paymentsCommitted,
+                paymentsToCommit, perSecond, millisRemaining);
+    }
+}
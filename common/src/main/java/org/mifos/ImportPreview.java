@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.ParseResultDto;
+
+/**
+ * What {@link StandardImport#preview(java.io.InputStream)} makes of a statement from the rows it validated, and what the
+ * whole statement is likely to come to. Projections scale what was seen by the number of rows read over the number
+ * validated, as if the rows validated were typical of the statement; once every row has been validated they are exact.
+ * <p>
+ * Rows which are not validated are skipped altogether, so they add nothing to the running totals by account or to the
+ * receipts seen. A validated row which the full parse would refuse for overpaying a loan paid by skipped rows, or for
+ * repeating the receipt of a skipped row, is projected as a payment, and the projections of a statement with many
+ * such rows come out high.
+ * <p>
+ * {@link #validateAll()} validates the whole statement in the background, on an importer of its own. Full validations
+ * of all imports are made one after another on a single daemon thread, so that previews do not load the database with
+ * many at once.
+ */
+public final class ImportPreview {
+
+    private static final long IDLE_SECONDS = 60;
+
+    private static final ThreadPoolExecutor VALIDATIONS = DaemonThreads.newFixedPool("import-validation", 1,
+            IDLE_SECONDS);
+
+    private final ParseResultDto result;
+    private final int rowsRead;
+    private final int rowsValidated;
+    private final int errorRows;
+    private final int payments;
+    private final BigDecimal amount;
+    private final Callable<ParseResultDto> fullValidation;
+
+    private FutureTask<ParseResultDto> validation;
+
+    ImportPreview(ParseResultDto result, int rowsRead, int rowsValidated, Callable<ParseResultDto> fullValidation) {
+        this.result = result;
+        this.rowsRead = rowsRead;
+        this.rowsValidated = rowsValidated;
+        this.fullValidation = fullValidation;
+        // counted once, as a buffer of payments makes a new DTO each time one is read
+        BigDecimal sum = BigDecimal.ZERO;
+        int count = 0;
+        for (AccountPaymentParametersDto payment : result.getSuccessfullyParsedPayments()) {
+            if (payment.getPaymentAmount() != null) {
+                sum = sum.add(payment.getPaymentAmount());
+            }
+            count++;
+        }
+        this.amount = sum;
+        this.payments = count;
+        if (result.getNumberOfReadRows() > 0) {
+            this.errorRows = result.getNumberOfErrorRows();
+        } else {
+            // importers which do not count rows report one error per row as a rule
+            this.errorRows = Math.min(result.getParseErrors().size(), Math.max(rowsValidated, 1));
+        }
+    }
+
+    /**
+     * @return the result of parsing the rows validated, including any errors found before the rows were read
+     */
+    public ParseResultDto getResult() {
+        return result;
+    }
+
+    /**
+     * @return number of rows of transactions in the statement
+     */
+    public int getRowsRead() {
+        return rowsRead;
+    }
+
+    public int getRowsValidated() {
+        return rowsValidated;
+    }
+
+    /**
+     * @return whether every row was validated, so that the result is that of a full parse
+     */
+    public boolean isComplete() {
+        return rowsValidated == rowsRead;
+    }
+
+    /**
+     * @return the share of the rows validated which had errors, from 0 to 1
+     */
+    public double getErrorRate() {
+        return rowsValidated == 0 ? 0 : Math.min(1.0, (double) errorRows / rowsValidated);
+    }
+
+    public int getProjectedErrorRows() {
+        return project(errorRows);
+    }
+
+    public int getProjectedPayments() {
+        return project(payments);
+    }
+
+    /**
+     * @return the projected sum of the payments of the statement, to as many fraction digits as the payments have
+     */
+    public BigDecimal getProjectedAmount() {
+        if (rowsValidated == 0 || isComplete()) {
+            return amount;
+        }
+        return amount.multiply(BigDecimal.valueOf(rowsRead)).divide(BigDecimal.valueOf(rowsValidated),
+                amount.scale(), RoundingMode.HALF_EVEN);
+    }
+
+    /**
+     * Starts validating every row of the statement, unless already started. The validation is made on a new importer
+     * of the same kind, so the importer previewed may parse other statements meanwhile; the result is remembered by
+     * the importer previewed as any parse of its own is, so storing the statement soon after does not validate it
+     * again.
+     *
+     * @return the result of the full validation, once made
+     */
+    public synchronized Future<ParseResultDto> validateAll() {
+        if (validation == null) {
+            validation = new FutureTask<ParseResultDto>(fullValidation);
+            VALIDATIONS.execute(validation);
+        }
+        return validation;
+    }
+
+    private int project(int validated) {
+        if (rowsValidated == 0 || isComplete()) {
+            return validated;
+        }
+        return (int) Math.round((double) validated * rowsRead / rowsValidated);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+/**
+ * How far an import has got, as told to an {@link ImportProgressListener}.
+ */
+public final class ImportProgress {
+
+    public enum Stage {
+        /** Reading and validating the rows of the statement. */
+        PARSING,
+        /** Committing the payments parsed. */
+        STORING,
+        /** Reversing the payments and disbursals of an import, which are counted as payments committed. */
+        UNDOING
+    }
+
+    private final Stage stage;
+    private final boolean finished;
+    private final int rowsRead;
+    private final int rowsExpected;
+    private final int rowsValidated;
+    private final int paymentsCommitted;
+    private final int paymentsToCommit;
+    private final double perSecond;
+    private final long millisRemaining;
+
+    ImportProgress(Stage stage, boolean finished, int rowsRead, int rowsExpected, int rowsValidated,
+            int paymentsCommitted, int paymentsToCommit, double perSecond, long millisRemaining) {
+        this.stage = stage;
+        this.finished = finished;
+        this.rowsRead = rowsRead;
+        this.rowsExpected = rowsExpected;
+        this.rowsValidated = rowsValidated;
+        this.paymentsCommitted = paymentsCommitted;
+        this.paymentsToCommit = paymentsToCommit;
+        this.perSecond = perSecond;
+        this.millisRemaining = millisRemaining;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * @return whether the stage is over
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public int getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @return about how many rows the statement has, or -1 if the importer can not tell before reading them
+     */
+    public int getRowsExpected() {
+        return rowsExpected;
+    }
+
+    /**
+     * @return number of rows checked against Mifos so far, which leaves out rows refused as they were read
+     */
+    public int getRowsValidated() {
+        return rowsValidated;
+    }
+
+    public int getPaymentsCommitted() {
+        return paymentsCommitted;
+    }
+
+    /**
+     * @return number of payments being stored, or reversed, or 0 while parsing
+     */
+    public int getPaymentsToCommit() {
+        return paymentsToCommit;
+    }
+
+    /**
+     * @return rows read a second while parsing, or payments committed or reversed a second, lately
+     */
+    public double getPerSecond() {
+        return perSecond;
+    }
+
+    /**
+     * @return about how long the stage will go on for at the current rate, or -1 if not known
+     */
+    public long getMillisRemaining() {
+        return millisRemaining;
+    }
+
+    @Override
+    public String toString() {
+        return stage + (finished ? " finished" : "") + ": " + rowsRead + " rows read, " + rowsValidated
+                + " validated, " + paymentsCommitted + " payments committed, " + Math.round(perSecond) + "/s";
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.IOException;
+
+import org.mifos.accounts.api.AccountService;
+
+/**
+ * What an importer needs to record its stores in an {@link UndoJournal} and undo them later: the id the next store is
+ * recorded under, the id the last one was, and the {@link TransactionReverser} to undo them with. Importers hold one
+ * each and hand their <code>setImportId</code>, <code>getImportId</code>, <code>setTransactionReverser</code> and
+ * <code>undoImport</code> on to it, so that every plugin names, journals and undoes its imports the same way.
+ */
+public final class ImportUndo {
+
+    private final Class<?> importer;
+
+    private volatile String nextImportId;
+    private volatile String importId;
+    private volatile TransactionReverser transactionReverser;
+
+    /**
+     * @param importer
+     *            class of the plugin, whose canonical name starts the keys configuring the journal
+     */
+    public ImportUndo(Class<?> importer) {
+        this.importer = importer;
+    }
+
+    /**
+     * @param importId
+     *            id which the next store is recorded under, or <code>null</code> for the SHA-1 of the file stored, in
+     *            hex. Ids are made of letters, digits, '_', '-' and '.'.
+     */
+    public void setImportId(String importId) {
+        this.nextImportId = importId;
+    }
+
+    /**
+     * @return id which the last store was recorded under
+     */
+    public String getImportId() {
+        return importId;
+    }
+
+    public void setTransactionReverser(TransactionReverser transactionReverser) {
+        this.transactionReverser = transactionReverser;
+    }
+
+    /**
+     * Takes the id of a store about to be made, and starts its journal.
+     *
+     * @param upload
+     *            the file stored
+     * @return the journal to record each batch committed in, or <code>null</code> if none is configured
+     */
+    public UndoJournal storeStarted(AccountService accountService, SpooledUpload upload) throws IOException {
+        final String id = nextImportId != null ? nextImportId : UndoJournal.importIdOfDigest(upload.getDigest());
+        nextImportId = null;
+        importId = id;
+        final UndoJournal journal = UndoJournal.configured(accountService, importer, id);
+        if (journal != null) {
+            journal.storeStarted();
+        }
+        return journal;
+    }
+
+    /**
+     * Reverses everything an import recorded in its journal, newest first, in batches of the given size. If it fails
+     * or is cancelled, calling it again carries on from there.
+     *
+     * @return number of payments and disbursals reversed by this call
+     */
+    public int undoImport(AccountService accountService, String importId, int batchSize, ImportMonitor monitor)
+            throws Exception {
+        final UndoJournal journal = UndoJournal.configured(accountService, importer, importId);
+        if (journal == null || !journal.exists()) {
+            throw new IllegalArgumentException("no undo journal for import " + importId);
+        }
+        final TransactionReverser reverser = transactionReverser;
+        if (reverser == null) {
+            throw new IllegalStateException("no transaction reverser to undo import " + importId);
+        }
+        return journal.reverse(reverser, batchSize, monitor);
+    }
+}
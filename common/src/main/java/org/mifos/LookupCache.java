@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+
+/**
+ * Lookups shared by every import made in the process, so that the customers, accounts and payment types resolved by
+ * one upload are not asked of Mifos again by the next. Only lookups whose answers rarely change are kept: amounts due,
+ * validations and receipts always go to Mifos. Entries expire after a time to live, and those naming an account are
+ * dropped once payments to the account are stored, as storing them may close it. So are the lookups by the phone
+ * number of a client paid or disbursed to, as a loan disbursed or closed changes which accounts the number has.
+ * <p>
+ * Lists answered from the cache are read only, as the same list is handed to every import asking.
+ * <p>
+ * The cache holds at most <code>org.mifos.LookupCache.MaximumSize</code> entries, and is off unless that is
+ * configured. Entries live for <code>org.mifos.LookupCache.TimeToLiveSeconds</code>, ten minutes unless configured.
+ * When the cache is full a new entry only displaces the least recently used one if it has been asked for more often
+ * lately, so that a one-off statement does not flush the lookups every import makes.
+ */
+public final class LookupCache {
+
+    /**
+     * Told of the accounts whose entries are dropped, so that memos kept outside the cache can drop theirs as well.
+     * Listeners are told whether or not the cache is on.
+     */
+    public interface AccountListener {
+        void accountsInvalidated(Collection<Integer> accountIds);
+    }
+
+    public static final String MAXIMUM_SIZE = LookupCache.class.getCanonicalName() + ".MaximumSize";
+    public static final String TIME_TO_LIVE_SECONDS = LookupCache.class.getCanonicalName() + ".TimeToLiveSeconds";
+    private static final long DEFAULT_TIME_TO_LIVE_SECONDS = 10 * 60;
+
+    private static final Set<String> ACCOUNT_LOOKUPS = new HashSet<String>(Arrays.asList(
+            "lookupLoanAccountReferenceFromId",
+            "lookupLoanAccountReferenceFromExternalId",
+            "lookupLoanAccountReferenceFromGlobalAccountNumber",
+            "lookupLoanAccountReferenceFromClientGovernmentIdAndLoanProductShortName",
+            "lookupSavingsAccountReferenceFromClientGovernmentIdAndSavingsProductShortName",
+            "lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName",
+            "lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName",
+            "existsMoreThanOneLoanAccount",
+            "existsMoreThanOneSavingsAccount",
+            "isAccountGroupLoanMember",
+            "getLoanPaymentTypes",
+            "getLoanDisbursementTypes"));
+
+    /** Lookups taking an account id as their argument. */
+    private static final Set<String> BY_ACCOUNT_ID = new HashSet<String>(Arrays.asList(
+            "lookupLoanAccountReferenceFromId",
+            "isAccountGroupLoanMember"));
+
+    private static final Set<String> CUSTOMER_LOOKUPS = Collections.singleton("findCustomersWithGivenPhoneNumber");
+
+    /** Lookups taking the phone number of a client as their first argument. */
+    private static final Set<String> BY_PHONE_NUMBER = new HashSet<String>(Arrays.asList(
+            "lookupLoanAccountReferenceFromClientPhoneNumberAndLoanProductShortName",
+            "lookupSavingsAccountReferenceFromClientPhoneNumberAndSavingsProductShortName",
+            "existsMoreThanOneLoanAccount",
+            "existsMoreThanOneSavingsAccount",
+            "findCustomersWithGivenPhoneNumber"));
+
+    private static final LookupCache SHARED = new LookupCache();
+
+    private int maximumSize;
+    private long timeToLiveMillis;
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true);
+    private FrequencySketch sketch;
+    private final List<AccountListener> listeners = new CopyOnWriteArrayList<AccountListener>();
+    private final AtomicLong stores = new AtomicLong();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    LookupCache() {
+    }
+
+    /**
+     * @return the cache shared by every import in the process
+     */
+    public static LookupCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sizes the cache as configured in Mifos.
+     *
+     * @return the account service, answering the lookups it can from the cache if the cache is on
+     */
+    public AccountService cached(AccountService accountService) {
+        if (accountService == null) {
+            return null;
+        }
+        Object size = accountService.getMifosConfiguration(MAXIMUM_SIZE);
+        Object timeToLive = accountService.getMifosConfiguration(TIME_TO_LIVE_SECONDS);
+        configure(size == null ? 0 : Integer.parseInt(size.toString().trim()),
+                1000 * (timeToLive == null ? DEFAULT_TIME_TO_LIVE_SECONDS : Long.parseLong(timeToLive.toString().trim())));
+        if (!isEnabled()) {
+            return accountService;
+        }
+        return (AccountService) Proxy.newProxyInstance(AccountService.class.getClassLoader(),
+                new Class<?>[] { AccountService.class }, new CachingHandler(accountService, ACCOUNT_LOOKUPS));
+    }
+
+    /**
+     * @return the customer search service, answering lookups from the cache if the cache has been turned on by
+     *         {@link #cached(AccountService)}
+     */
+    public CustomerSearchService cached(CustomerSearchService customerSearchService) {
+        if (customerSearchService == null || !isEnabled()) {
+            return customerSearchService;
+        }
+        return (CustomerSearchService) Proxy.newProxyInstance(CustomerSearchService.class.getClassLoader(),
+                new Class<?>[] { CustomerSearchService.class }, new CachingHandler(customerSearchService,
+                        CUSTOMER_LOOKUPS));
+    }
+
+    synchronized void configure(int maximumSize, long timeToLiveMillis) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        if (maximumSize == this.maximumSize) {
+            return;
+        }
+        this.maximumSize = Math.max(0, maximumSize);
+        entries.clear();
+        sketch = this.maximumSize > 0 ? new FrequencySketch(this.maximumSize) : null;
+    }
+
+    /**
+     * @return number of batches of payments stored so far in the process, as told to {@link #invalidate(List)}, so
+     *         that what was looked up before a store can be told apart from what was looked up after
+     */
+    public long getStoreCount() {
+        return stores.get();
+    }
+
+    public void addAccountListener(AccountListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized boolean isEnabled() {
+        return maximumSize > 0;
+    }
+
+    /**
+     * Drops the entries naming any of the accounts the payments were made to, and the lookups by the phone numbers of
+     * their clients.
+     */
+    public void invalidate(List<AccountPaymentParametersDto> payments) {
+        stores.incrementAndGet();
+        Set<Integer> accountIds = new HashSet<Integer>();
+        Set<Integer> customerIds = new HashSet<Integer>();
+        for (AccountPaymentParametersDto payment : payments) {
+            if (payment.getAccount() != null) {
+                accountIds.add(payment.getAccount().getAccountId());
+            }
+            if (payment.getCustomer() != null && payment.getCustomer().getCustomerId() != null) {
+                customerIds.add(payment.getCustomer().getCustomerId());
+            }
+        }
+        invalidate(accountIds, customerIds);
+    }
+
+    /**
+     * Drops the entries looked up by any of the accounts, or answering with one of them, and the lookups by the phone
+     * numbers found to have one of them.
+     */
+    public void invalidateAccounts(Collection<Integer> accountIds) {
+        invalidate(accountIds, Collections.<Integer> emptySet());
+    }
+
+    /**
+     * Phone numbers are not part of a payment, so those of its client are the ones which a cached lookup answered with
+     * the account paid or the client.
+     */
+    private void invalidate(Collection<Integer> accountIds, Collection<Integer> customerIds) {
+        if (!accountIds.isEmpty()) {
+            for (AccountListener listener : listeners) {
+                listener.accountsInvalidated(accountIds);
+            }
+        }
+        invalidateEntries(accountIds, customerIds);
+    }
+
+    private synchronized void invalidateEntries(Collection<Integer> accountIds, Collection<Integer> customerIds) {
+        if (accountIds.isEmpty() && customerIds.isEmpty() || entries.isEmpty()) {
+            return;
+        }
+        Set<Object> phoneNumbers = new HashSet<Object>();
+        for (Map.Entry<List<Object>, Entry> entry : entries.entrySet()) {
+            List<Object> key = entry.getKey();
+            if (key.size() > 2 && BY_PHONE_NUMBER.contains(key.get(1))
+                    && names(entry.getValue().value, accountIds, customerIds)) {
+                phoneNumbers.add(key.get(2));
+            }
+        }
+        for (Iterator<Map.Entry<List<Object>, Entry>> i = entries.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<List<Object>, Entry> entry = i.next();
+            List<Object> key = entry.getKey();
+            if (key.size() < 3) {
+                continue;
+            }
+            Object value = entry.getValue().value;
+            if (BY_ACCOUNT_ID.contains(key.get(1)) && accountIds.contains(key.get(2))
+                    || BY_PHONE_NUMBER.contains(key.get(1)) && phoneNumbers.contains(key.get(2))
+                    || value instanceof AccountReferenceDto
+                    && accountIds.contains(((AccountReferenceDto) value).getAccountId())) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * @return whether the value is, or holds, one of the accounts or customers
+     */
+    private static boolean names(Object value, Collection<Integer> accountIds, Collection<Integer> customerIds) {
+        if (value instanceof AccountReferenceDto) {
+            return accountIds.contains(((AccountReferenceDto) value).getAccountId());
+        }
+        if (value instanceof CustomerDto) {
+            return customerIds.contains(((CustomerDto) value).getCustomerId());
+        }
+        if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                if (names(element, accountIds, customerIds)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return hit rate, size and evictions, for the administration page of the plugins; empty if the cache is off
+     */
+    public synchronized Map<String, String> getStatistics() {
+        Map<String, String> statistics = new LinkedHashMap<String, String>();
+        if (!isEnabled()) {
+            return statistics;
+        }
+        long lookups = hits + misses;
+        statistics.put("Lookup cache hit rate", String.format("%.1f%% (%d hits, %d misses)",
+                lookups == 0 ? 0.0 : 100.0 * hits / lookups, hits, misses));
+        statistics.put("Lookup cache size", entries.size() + " of " + maximumSize);
+        statistics.put("Lookup cache evictions", evictions + " (" + rejections + " entries not admitted)");
+        return statistics;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the value kept for the key, or {@link Entry#MISSING} if there is none or it has expired
+     */
+    synchronized Object get(List<Object> key, long now) {
+        if (sketch == null) {
+            return Entry.MISSING;
+        }
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry != null && now >= entry.expiresAt) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return Entry.MISSING;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    synchronized void put(List<Object> key, Object value, long now) {
+        if (sketch == null) {
+            return;
+        }
+        if (entries.size() >= maximumSize && !entries.containsKey(key)) {
+            Iterator<Map.Entry<List<Object>, Entry>> eldest = entries.entrySet().iterator();
+            Map.Entry<List<Object>, Entry> victim = eldest.next();
+            if (now < victim.getValue().expiresAt && sketch.frequency(key) <= sketch.frequency(victim.getKey())) {
+                rejections++;
+                return;
+            }
+            eldest.remove();
+            evictions++;
+        }
+        entries.put(key, new Entry(value, now + timeToLiveMillis));
+    }
+
+    static final class Entry {
+        static final Object MISSING = new Object();
+
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Counts how often keys were asked for lately, in a few counters per key shared with other keys, taking the
+     * smallest as the estimate. All counts are halved every so often, so that what was popular earlier fades.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAXIMUM_COUNT = 15;
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private final int[] counts;
+        private final int mask;
+        private final int sampleSize;
+        private int increments;
+
+        FrequencySketch(int maximumSize) {
+            int width = 16;
+            while (width < maximumSize && width < (1 << 24)) {
+                width <<= 1;
+            }
+            counts = new int[DEPTH * width];
+            mask = width - 1;
+            sampleSize = 10 * Math.max(width, maximumSize);
+        }
+
+        void increment(Object key) {
+            final int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                final int index = indexOf(hash, row);
+                if (counts[index] < MAXIMUM_COUNT) {
+                    counts[index]++;
+                }
+            }
+            if (++increments >= sampleSize) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] >>>= 1;
+                }
+                increments = 0;
+            }
+        }
+
+        int frequency(Object key) {
+            final int hash = key.hashCode();
+            int frequency = MAXIMUM_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, counts[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+
+    /**
+     * Answers the cacheable lookups of a service from the cache, and passes everything else on.
+     */
+    private final class CachingHandler implements InvocationHandler {
+        private final Object service;
+        private final Set<String> cacheable;
+
+        CachingHandler(Object service, Set<String> cacheable) {
+            this.service = service;
+            this.cacheable = cacheable;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!cacheable.contains(method.getName())) {
+                return invokeService(method, args);
+            }
+            List<Object> key = new ArrayList<Object>(2 + (args == null ? 0 : args.length));
+            key.add(service);
+            key.add(method.getName());
+            if (args != null) {
+                key.addAll(Arrays.asList(args));
+            }
+            final long now = System.currentTimeMillis();
+            Object value = get(key, now);
+            if (value != Entry.MISSING) {
+                return value;
+            }
+            value = invokeService(method, args);
+            // accounts not found may well be opened before the entry would expire
+            if (value != null && !(value instanceof Collection && ((Collection<?>) value).isEmpty())) {
+                if (value instanceof List) {
+                    value = Collections.unmodifiableList(new ArrayList<Object>((List<?>) value));
+                }
+                put(key, value, now);
+            }
+            return value;
+        }
+
+        private Object invokeService(Method method, Object[] args) throws Throwable {
+            try {
+                return method.invoke(service, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
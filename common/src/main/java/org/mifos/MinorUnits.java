@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * Money amounts as <code>long</code> counts of the smallest currency unit, scaled to the configured
+ * <code>AccountingRules.DigitsAfterDecimal</code>. With two digits after the decimal, 12.5 is held as 1250.
+ * <p>
+ * Spreadsheet cells hold binary doubles, but Excel only ever shows and stores 15 significant decimal digits. Amounts
+ * are read at that precision, so a cell showing 120.99 is exactly 12099 minor units and its scale is 2, where
+ * <code>BigDecimal.valueOf(double)</code> can report a longer expansion (and reports a scale of 1 for whole numbers).
+ * Checking the scale never throws, and nothing is allocated until {@link #toBigDecimal(long)} is called to fill in a
+ * DTO.
+ */
+public final class MinorUnits {
+
+    /** Returned in place of an amount which can not be held at the configured scale. */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    /** Significant decimal digits kept by Excel for a number. */
+    private static final int SIGNIFICANT_DIGITS = 15;
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final int digitsAfterDecimal;
+
+    public MinorUnits(int digitsAfterDecimal) {
+        if (digitsAfterDecimal < 0 || digitsAfterDecimal > 8) {
+            throw new IllegalArgumentException("unsupported number of digits after decimal: " + digitsAfterDecimal);
+        }
+        this.digitsAfterDecimal = digitsAfterDecimal;
+    }
+
+    public int getDigitsAfterDecimal() {
+        return digitsAfterDecimal;
+    }
+
+    /**
+     * @return number of digits after the decimal point in the value as the spreadsheet shows it, ignoring trailing
+     *         zeros (so 0 for whole numbers)
+     */
+    public static int scaleOf(double value) {
+        if (value == 0 || Double.isNaN(value) || Double.isInfinite(value)) {
+            return 0;
+        }
+        double magnitude = Math.abs(value);
+        int scale = SIGNIFICANT_DIGITS - 1 - (int) Math.floor(Math.log10(magnitude));
+        if (scale <= 0) {
+            return 0;
+        }
+        if (scale >= POWERS_OF_TEN.length) {
+            // smaller than any currency unit
+            return new BigDecimal(magnitude).round(new MathContext(SIGNIFICANT_DIGITS)).stripTrailingZeros()
+                    .scale();
+        }
+        long digits = Math.round(magnitude * POWERS_OF_TEN[scale]);
+        if (digits >= POWERS_OF_TEN[SIGNIFICANT_DIGITS] && scale > 0) {
+            // log10 rounded up across a power of ten
+            scale--;
+            digits = Math.round(magnitude * POWERS_OF_TEN[scale]);
+        }
+        while (scale > 0 && digits % 10 == 0) {
+            digits /= 10;
+            scale--;
+        }
+        return scale;
+    }
+
+    public boolean hasAcceptableScale(double value) {
+        return scaleOf(value) <= digitsAfterDecimal;
+    }
+
+    /**
+     * @return the value in minor units, or {@link #INVALID} if it has more digits after the decimal than configured or
+     *         is not a finite number within range
+     */
+    public long fromDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)
+                || Math.abs(value) >= POWERS_OF_TEN[SIGNIFICANT_DIGITS - digitsAfterDecimal]) {
+            return INVALID;
+        }
+        if (!hasAcceptableScale(value)) {
+            return INVALID;
+        }
+        return Math.round(value * POWERS_OF_TEN[digitsAfterDecimal]);
+    }
+
+    /**
+     * Parses a plain decimal such as <code>-1250.5</code> or <code>.75</code>, as found in text cells and CSV files.
+     *
+     * @return the value in minor units, or {@link #INVALID} if the text is not a decimal number, has more digits after
+     *         the decimal than configured or is out of range
+     */
+    public long parse(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < length && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long units = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            if (scale >= 0) {
+                if (c == '0') {
+                    // trailing zeros beyond the configured scale are harmless; count them and check at the end
+                    scale++;
+                    if (scale > digitsAfterDecimal) {
+                        digits++;
+                        continue;
+                    }
+                } else if (++scale > digitsAfterDecimal) {
+                    return INVALID;
+                }
+            }
+            if (units > (Long.MAX_VALUE - 9) / 10) {
+                return INVALID;
+            }
+            units = units * 10 + (c - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            return INVALID;
+        }
+        int keptScale = Math.max(0, Math.min(scale, digitsAfterDecimal));
+        long factor = POWERS_OF_TEN[digitsAfterDecimal - keptScale];
+        if (units > Long.MAX_VALUE / factor) {
+            return INVALID;
+        }
+        units *= factor;
+        return negative ? -units : units;
+    }
+
+    /**
+     * Converts a service-supplied amount, rounding half up to the configured scale.
+     */
+    public long fromBigDecimal(BigDecimal amount) {
+        return amount.setScale(digitsAfterDecimal, RoundingMode.HALF_UP).unscaledValue().longValue();
+    }
+
+    public BigDecimal toBigDecimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, digitsAfterDecimal);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.util.List;
+
+import org.mifos.dto.domain.AccountTrxDto;
+
+/**
+ * Thrown when storing an import fails after some batches of payments have already been committed.
+ */
+public class PartiallyStoredImportException extends Exception {
+
+    private static final long serialVersionUID = -3468193349460371152L;
+
+    private final int storedPayments;
+    private final List<AccountTrxDto> storedTransactions;
+
+    public PartiallyStoredImportException(int storedPayments, List<AccountTrxDto> storedTransactions, Exception cause) {
+        super(storedPayments + " payments were stored before: " + cause.getMessage(), cause);
+        this.storedPayments = storedPayments;
+        this.storedTransactions = storedTransactions;
+    }
+
+    /**
+     * @return number of payments committed before the failure
+     */
+    public int getStoredPayments() {
+        return storedPayments;
+    }
+
+    /**
+     * @return transactions committed before the failure, if the import was stored for undo
+     */
+    public List<AccountTrxDto> getStoredTransactions() {
+        return storedTransactions;
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.LocalDate;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+
+/**
+ * The payments parsed from a statement, kept as fixed width records rather than as
+ * {@link AccountPaymentParametersDto}s, so that a large statement does not fill the heap. Amounts and dates are held
+ * as numbers, and receipts of up to {@value #MAX_INLINE_RECEIPT} ASCII characters as bytes of the record; accounts,
+ * customers and the like as indexes into pools holding each distinct one once. The few longer receipts are kept in a
+ * list on the heap.
+ * <p>
+ * Records are kept on the heap until there are more than the spill threshold, and in a temporary file from then on,
+ * mapped into memory a segment of the same size at a time. Segments are only ever added, as Java has no way to unmap
+ * one; they are released once the buffer is garbage collected. The file is deleted as soon as it is opened where the
+ * system allows, and otherwise on {@link #close()} or when the JVM exits, so a buffer which is never closed does not
+ * leave it behind.
+ * <p>
+ * A DTO is made again whenever a payment is read, so callers should read a batch at a time, and not count on getting
+ * the same object twice.
+ */
+public final class PaymentBuffer extends AbstractList<AccountPaymentParametersDto> implements Closeable {
+
+    /** Payments kept on the heap before spilling to a file, unless configured. */
+    public static final int DEFAULT_SPILL_THRESHOLD = 100000;
+
+    /** Payments in each segment of the file mapped into memory. */
+    static final int DEFAULT_RECORDS_PER_SEGMENT = 128 * 1024;
+
+    static final int MAX_INLINE_RECEIPT = 16;
+
+    private static final int ACCOUNT = 0;
+    private static final int UNSCALED_AMOUNT = 4;
+    private static final int SCALE = 12;
+    private static final int TRANSACTION_TYPE = 13;
+    private static final int OPTIONS = 14;
+    private static final int RECEIPT_LENGTH = 15;
+    private static final int PAYMENT_DATE = 16;
+    private static final int RECEIPT_DATE = 20;
+    private static final int CUSTOMER = 24;
+    private static final int PAYMENT_TYPE = 28;
+    private static final int USER = 32;
+    private static final int COMMENT = 36;
+    /** The characters of the receipt, or the index of a long receipt. */
+    private static final int RECEIPT = 40;
+    private static final int RECORD_SIZE = RECEIPT + MAX_INLINE_RECEIPT;
+
+    private static final int NONE = -1;
+    private static final byte LONG_RECEIPT = Byte.MAX_VALUE;
+    private static final int NO_DATE = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final AccountPaymentParametersDto.TransactionType[] TRANSACTION_TYPES =
+            AccountPaymentParametersDto.TransactionType.values();
+    private static final AccountPaymentParametersDto.PaymentOptions[] PAYMENT_OPTIONS =
+            AccountPaymentParametersDto.PaymentOptions.values();
+
+    private final int spillThreshold;
+    private final int recordsPerSegment;
+    private ByteBuffer records;
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+    private int size;
+    private File spillFile;
+    private RandomAccessFile spilled;
+
+    private final List<String> longReceipts = new ArrayList<String>();
+    private final Pool<AccountReferenceDto> accounts = new Pool<AccountReferenceDto>(new HashMap<Object, Integer>());
+    private final Pool<String> comments = new Pool<String>(new HashMap<Object, Integer>());
+    private final Pool<CustomerDto> customers = new Pool<CustomerDto>(new IdentityHashMap<Object, Integer>());
+    private final Pool<PaymentTypeDto> paymentTypes = new Pool<PaymentTypeDto>(new IdentityHashMap<Object, Integer>());
+    private final Pool<UserReferenceDto> users = new Pool<UserReferenceDto>(new IdentityHashMap<Object, Integer>());
+
+    public PaymentBuffer() {
+        this(DEFAULT_SPILL_THRESHOLD);
+    }
+
+    /**
+     * @param spillThreshold number of payments kept on the heap before spilling to a file
+     */
+    public PaymentBuffer(int spillThreshold) {
+        this(spillThreshold, DEFAULT_RECORDS_PER_SEGMENT);
+    }
+
+    PaymentBuffer(int spillThreshold, int recordsPerSegment) {
+        this.spillThreshold = spillThreshold;
+        this.recordsPerSegment = recordsPerSegment;
+        this.records = ByteBuffer.allocate(RECORD_SIZE * Math.max(1, Math.min(spillThreshold, INITIAL_CAPACITY)));
+    }
+
+    @Override
+    public boolean add(AccountPaymentParametersDto payment) {
+        final BigDecimal amount = payment.getPaymentAmount();
+        if (amount.unscaledValue().bitLength() > 63 || amount.scale() < Byte.MIN_VALUE
+                || amount.scale() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Amount out of range: " + amount);
+        }
+        ensureCapacity(size + 1);
+        final ByteBuffer buffer = recordsOf(size);
+        final int offset = offsetOf(size);
+        buffer.putInt(offset + ACCOUNT, accounts.indexOf(payment.getAccount(),
+                payment.getAccount() == null ? null : Integer.valueOf(payment.getAccount().getAccountId())));
+        buffer.putLong(offset + UNSCALED_AMOUNT, amount.unscaledValue().longValue());
+        buffer.put(offset + SCALE, (byte) amount.scale());
+        buffer.put(offset + TRANSACTION_TYPE, (byte) payment.getTransactionType().ordinal());
+        byte options = 0;
+        for (AccountPaymentParametersDto.PaymentOptions option : payment.getPaymentOptions()) {
+            options |= 1 << option.ordinal();
+        }
+        buffer.put(offset + OPTIONS, options);
+        buffer.putInt(offset + PAYMENT_DATE, packed(payment.getPaymentDate()));
+        buffer.putInt(offset + RECEIPT_DATE, packed(payment.getReceiptDate()));
+        putReceipt(buffer, offset, payment.getReceiptId());
+        buffer.putInt(offset + CUSTOMER, customers.indexOf(payment.getCustomer(), payment.getCustomer()));
+        buffer.putInt(offset + PAYMENT_TYPE, paymentTypes.indexOf(payment.getPaymentType(), payment.getPaymentType()));
+        buffer.putInt(offset + USER, users.indexOf(payment.getUserMakingPayment(), payment.getUserMakingPayment()));
+        buffer.putInt(offset + COMMENT, comments.indexOf(payment.getComment(), payment.getComment()));
+        size++;
+        modCount++;
+        return true;
+    }
+
+    /**
+     * @return a new DTO holding the payment
+     */
+    @Override
+    public AccountPaymentParametersDto get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        final ByteBuffer buffer = recordsOf(index);
+        final int offset = offsetOf(index);
+        final AccountPaymentParametersDto payment = new AccountPaymentParametersDto(
+                users.get(buffer.getInt(offset + USER)),
+                accounts.get(buffer.getInt(offset + ACCOUNT)),
+                BigDecimal.valueOf(buffer.getLong(offset + UNSCALED_AMOUNT), buffer.get(offset + SCALE)),
+                unpacked(buffer.getInt(offset + PAYMENT_DATE)),
+                paymentTypes.get(buffer.getInt(offset + PAYMENT_TYPE)),
+                comments.get(buffer.getInt(offset + COMMENT)),
+                unpacked(buffer.getInt(offset + RECEIPT_DATE)),
+                receiptAt(buffer, offset),
+                customers.get(buffer.getInt(offset + CUSTOMER)));
+        payment.setTransactionType(transactionTypeAt(index));
+        final byte options = buffer.get(offset + OPTIONS);
+        for (AccountPaymentParametersDto.PaymentOptions option : PAYMENT_OPTIONS) {
+            if ((options & 1 << option.ordinal()) != 0) {
+                payment.addPaymentOption(option);
+            }
+        }
+        return payment;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return whether the payments have been spilled to a file
+     */
+    public boolean isSpilled() {
+        return spilled != null;
+    }
+
+    /**
+     * Picks out the loan disbursals, or the other payments, reading only their transaction types.
+     *
+     * @return a view of the payments picked, made into DTOs as they are read
+     */
+    public List<AccountPaymentParametersDto> loanDisbursals(boolean disbursals) {
+        int count = 0;
+        final int[] indexes = new int[size];
+        for (int i = 0; i < size; i++) {
+            if ((transactionTypeAt(i) == AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL) == disbursals) {
+                indexes[count++] = i;
+            }
+        }
+        final int selected = count;
+        return new AbstractList<AccountPaymentParametersDto>() {
+            @Override
+            public AccountPaymentParametersDto get(int index) {
+                if (index >= selected) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + selected);
+                }
+                return PaymentBuffer.this.get(indexes[index]);
+            }
+
+            @Override
+            public int size() {
+                return selected;
+            }
+        };
+    }
+
+    /**
+     * Closes the file payments were spilled to, if any, and deletes it if it is still there. The payments can not be
+     * read afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        records = ByteBuffer.allocate(0);
+        segments.clear();
+        longReceipts.clear();
+        size = 0;
+        if (spilled != null) {
+            try {
+                spilled.close();
+            } finally {
+                spilled = null;
+                spillFile.delete();
+            }
+        }
+    }
+
+    private ByteBuffer recordsOf(int index) {
+        return spilled == null ? records : segments.get(index / recordsPerSegment);
+    }
+
+    private int offsetOf(int index) {
+        return (spilled == null ? index : index % recordsPerSegment) * RECORD_SIZE;
+    }
+
+    private AccountPaymentParametersDto.TransactionType transactionTypeAt(int index) {
+        return TRANSACTION_TYPES[recordsOf(index).get(offsetOf(index) + TRANSACTION_TYPE)];
+    }
+
+    private void putReceipt(ByteBuffer buffer, int offset, String receipt) {
+        if (receipt == null) {
+            buffer.put(offset + RECEIPT_LENGTH, (byte) NONE);
+            return;
+        }
+        if (receipt.length() <= MAX_INLINE_RECEIPT && isAscii(receipt)) {
+            buffer.put(offset + RECEIPT_LENGTH, (byte) receipt.length());
+            for (int i = 0; i < receipt.length(); i++) {
+                buffer.put(offset + RECEIPT + i, (byte) receipt.charAt(i));
+            }
+            return;
+        }
+        buffer.put(offset + RECEIPT_LENGTH, LONG_RECEIPT);
+        buffer.putInt(offset + RECEIPT, longReceipts.size());
+        longReceipts.add(receipt);
+    }
+
+    private String receiptAt(ByteBuffer buffer, int offset) {
+        final byte length = buffer.get(offset + RECEIPT_LENGTH);
+        if (length == NONE) {
+            return null;
+        }
+        if (length == LONG_RECEIPT) {
+            return longReceipts.get(buffer.getInt(offset + RECEIPT));
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer.get(offset + RECEIPT + i);
+        }
+        return new String(chars);
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int payments) {
+        try {
+            if (spilled == null && payments > spillThreshold) {
+                spill();
+            }
+            if (spilled != null) {
+                while ((long) segments.size() * recordsPerSegment < payments) {
+                    mapSegment();
+                }
+                return;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot spill payments to a file", e);
+        }
+        if ((long) payments * RECORD_SIZE <= records.capacity()) {
+            return;
+        }
+        final int capacity = Math.min(Math.max(payments, records.capacity() / RECORD_SIZE * 2), spillThreshold);
+        final ByteBuffer larger = ByteBuffer.allocate(capacity * RECORD_SIZE);
+        records.clear();
+        larger.put(records);
+        records = larger;
+    }
+
+    /**
+     * Moves the records on the heap to the first segments of a new file.
+     */
+    private void spill() throws IOException {
+        spillFile = File.createTempFile("payments", ".bin");
+        spilled = new RandomAccessFile(spillFile, "rw");
+        if (!spillFile.delete()) {
+            spillFile.deleteOnExit();
+        }
+        while ((long) segments.size() * recordsPerSegment < size) {
+            final ByteBuffer segment = mapSegment();
+            final ByteBuffer heap = records.duplicate();
+            final int from = (segments.size() - 1) * recordsPerSegment * RECORD_SIZE;
+            heap.position(from);
+            heap.limit(Math.min(from + recordsPerSegment * RECORD_SIZE, size * RECORD_SIZE));
+            segment.put(heap);
+        }
+        records = ByteBuffer.allocate(0);
+    }
+
+    private ByteBuffer mapSegment() throws IOException {
+        final long segmentSize = (long) recordsPerSegment * RECORD_SIZE;
+        final ByteBuffer segment = spilled.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                segments.size() * segmentSize, segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    private static int packed(LocalDate date) {
+        return date == null ? NO_DATE : date.getYear() * 10000 + date.getMonthOfYear() * 100 + date.getDayOfMonth();
+    }
+
+    private static LocalDate unpacked(int date) {
+        return date == NO_DATE ? null : new LocalDate(date / 10000, date / 100 % 100, date % 100);
+    }
+
+    /**
+     * Values stored once each, looked up by a key.
+     */
+    private static final class Pool<T> {
+        private final Map<Object, Integer> indexes;
+        private final List<T> values = new ArrayList<T>();
+
+        Pool(Map<Object, Integer> indexes) {
+            this.indexes = indexes;
+        }
+
+        int indexOf(T value, Object key) {
+            if (value == null) {
+                return NONE;
+            }
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = values.size();
+                values.add(value);
+                indexes.put(key, index);
+            }
+            return index;
+        }
+
+        T get(int index) {
+            return index == NONE ? null : values.get(index);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.util.List;
+
+/**
+ * Splits a payment across the accounts of a client in a fixed order, as configured by the M-PESA
+ * <code>ImportTransactionOrder</code>: each loan in turn is paid what is due on it, and whatever is left goes to the
+ * last account, usually a savings account. Amounts are in {@link MinorUnits}.
+ * <p>
+ * The split is worked out from snapshots of the accounts taken beforehand, without looking anything up or keeping any
+ * state, so it can be tested on its own and used from several threads at once. Checking the resulting payments with
+ * Mifos is left to the caller.
+ */
+public final class PaymentWaterfall {
+
+    /** Why a payment could not be split. */
+    public enum Refusal {
+        /** Something is left over, and there is no last account to put it in. */
+        NO_ACCOUNT_FOR_REMAINDER,
+        /** The last account is a loan, and what is left over is more than is due on it. */
+        REMAINDER_GREATER_THAN_DUE
+    }
+
+    /**
+     * An account of the client as it stands before the payment. The same account may be given more than once, when
+     * several products of the order resolve to it.
+     */
+    public static final class Account {
+        private final int accountId;
+        private final boolean loan;
+        private final long totalDue;
+        private final long paid;
+
+        /**
+         * @param totalDue amount due on a loan before the import; ignored for savings accounts
+         * @param paid total of the payments made to the account earlier in the import
+         */
+        public Account(int accountId, boolean loan, long totalDue, long paid) {
+            this.accountId = accountId;
+            this.loan = loan;
+            this.totalDue = totalDue;
+            this.paid = paid;
+        }
+
+        public int getAccountId() {
+            return accountId;
+        }
+
+        public boolean isLoan() {
+            return loan;
+        }
+
+        public long getTotalDue() {
+            return totalDue;
+        }
+
+        public long getPaid() {
+            return paid;
+        }
+    }
+
+    /**
+     * How a payment is split: an amount for each loan, which may be zero, and the remainder for the last account.
+     */
+    public static final class Allocation {
+        private final long[] loanAmounts;
+        private final long lastAmount;
+        private final Refusal refusal;
+
+        Allocation(long[] loanAmounts, long lastAmount, Refusal refusal) {
+            this.loanAmounts = loanAmounts;
+            this.lastAmount = lastAmount;
+            this.refusal = refusal;
+        }
+
+        /**
+         * @return amount for the loan at the index in the list passed to {@link PaymentWaterfall#allocate}
+         */
+        public long getLoanAmount(int index) {
+            return loanAmounts[index];
+        }
+
+        public long getLastAmount() {
+            return lastAmount;
+        }
+
+        /**
+         * @return why the payment can not be made, or null if it can
+         */
+        public Refusal getRefusal() {
+            return refusal;
+        }
+    }
+
+    private PaymentWaterfall() {
+    }
+
+    /**
+     * @param paidIn amount paid in, not negative
+     * @param loans loan accounts of the client, in the order they are paid; products the client has no account for
+     *            are left out
+     * @param last account taking the remainder, or null if the client has none
+     */
+    public static Allocation allocate(long paidIn, List<Account> loans, Account last) {
+        final long[] loanAmounts = new long[loans.size()];
+        long remainder = paidIn;
+        for (int i = 0; i < loanAmounts.length && remainder > 0; i++) {
+            final long due = remainingDue(loans.get(i), loans, loanAmounts, i);
+            loanAmounts[i] = remainder > due ? due : remainder;
+            remainder -= loanAmounts[i];
+        }
+        if (last == null) {
+            return new Allocation(loanAmounts, 0, remainder != 0 ? Refusal.NO_ACCOUNT_FOR_REMAINDER : null);
+        }
+        if (last.isLoan() && remainder > remainingDue(last, loans, loanAmounts, loanAmounts.length)) {
+            return new Allocation(loanAmounts, 0, Refusal.REMAINDER_GREATER_THAN_DUE);
+        }
+        return new Allocation(loanAmounts, remainder, null);
+    }
+
+    /**
+     * @param allocated number of loans already given their amounts, which count as paid if they are the same account
+     * @return what is still due on the account. If the payments already add up to more than is due, the whole amount
+     *         due is taken to remain, as the M-PESA importer has always done.
+     */
+    private static long remainingDue(Account account, List<Account> loans, long[] loanAmounts, int allocated) {
+        long paid = account.getPaid();
+        for (int i = 0; i < allocated; i++) {
+            if (loans.get(i).getAccountId() == account.getAccountId()) {
+                paid += loanAmounts[i];
+            }
+        }
+        return account.getTotalDue() >= paid ? account.getTotalDue() - paid : account.getTotalDue();
+    }
+}
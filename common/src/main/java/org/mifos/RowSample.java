@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.util.Random;
+
+/**
+ * Picks the rows of a statement validated by a preview: the first rows in full, then each later row at random with the
+ * same chance. The rows are counted as the importer reads them, so nothing needs to be known of the statement up front.
+ */
+final class RowSample {
+
+    private final int headRows;
+    private final double rate;
+    private final Random random;
+
+    private int rowsRead;
+    private int rowsValidated;
+
+    /**
+     * @param headRows
+     *            number of rows validated at the start of the statement
+     * @param rate
+     *            chance of validating each later row, from 0 to 1
+     */
+    RowSample(int headRows, double rate, Random random) {
+        this.headRows = headRows;
+        this.rate = rate;
+        this.random = random;
+    }
+
+    /**
+     * Counts the next row of the statement.
+     *
+     * @return whether the row is to be validated
+     */
+    boolean next() {
+        rowsRead++;
+        if (rowsRead <= headRows || rate >= 1 || rate > 0 && random.nextDouble() < rate) {
+            rowsValidated++;
+            return true;
+        }
+        return false;
+    }
+
+    int getRowsRead() {
+        return rowsRead;
+    }
+
+    int getRowsValidated() {
+        return rowsValidated;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+/**
+ * Running totals of the payments made to each account during one import, in {@link MinorUnits}. Mifos validates a
+ * payment against everything paid into the account so far, so the importers keep one of these per parse.
+ * <p>
+ * Totals are kept in an open addressing table keyed by account id, so adding to a total neither boxes nor allocates.
+ * Callers that look at an account more than once per row can resolve its slot with {@link #slotFor(int)} and then
+ * use the slot-based methods, which skip the hashing.
+ * <p>
+ * The amount due on each account before the import may be kept alongside its total with
+ * {@link #setTotalDueAt(int, long)}, so that it is asked of Mifos once per import rather than once per payment.
+ * {@link #post(int, long)} then adds a payment and gives back both the new total and what is still due in one lookup.
+ */
+public final class RunningTotalByAccount {
+
+    /**
+     * Where {@link #post(int, long)} left an account. Each table hands back the same instance from every call, so that
+     * posting does not allocate; read it before posting again.
+     */
+    public static final class Posting {
+        private long total;
+        private long remainingDue;
+
+        Posting() {
+        }
+
+        /**
+         * @return total paid into the account so far, including the amount posted
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return whether the amount due on the account had been set, and so {@link #getRemainingDue()} is known
+         */
+        public boolean isRemainingDueKnown() {
+            return remainingDue != UNKNOWN;
+        }
+
+        /**
+         * @return what is still due once the amount posted is paid, as {@link RunningTotalByAccount#remainingDueAt(int)}
+         */
+        public long getRemainingDue() {
+            if (remainingDue == UNKNOWN) {
+                throw new IllegalStateException("Amount due on the account is not known");
+            }
+            return remainingDue;
+        }
+    }
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    private int[] accountIds;
+    private long[] totals;
+    private long[] totalsDue;
+    private boolean[] used;
+    private int size;
+    private final Posting posting = new Posting();
+
+    public RunningTotalByAccount() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedAccounts number of distinct accounts expected, to size the table up front
+     */
+    public RunningTotalByAccount(int expectedAccounts) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedAccounts * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Finds the slot holding the running total for the account, adding one with a total of zero if the account has not
+     * been seen yet. Slots stay valid until the next account is added.
+     */
+    public int slotFor(int accountId) {
+        int mask = accountIds.length - 1;
+        int slot = mix(accountId) & mask;
+        while (used[slot]) {
+            if (accountIds[slot] == accountId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 2 > accountIds.length) {
+            grow();
+            return slotFor(accountId);
+        }
+        used[slot] = true;
+        accountIds[slot] = accountId;
+        totalsDue[slot] = UNKNOWN;
+        size++;
+        return slot;
+    }
+
+    public long totalAt(int slot) {
+        return totals[slot];
+    }
+
+    /**
+     * @return total so far, including the passed in amount
+     */
+    public long addAt(int slot, long amount) {
+        totals[slot] += amount;
+        return totals[slot];
+    }
+
+    /**
+     * @param totalDue amount due on the account before this import
+     * @return what is still due once the payments of this import so far are made. If they already add up to more than
+     *         is due, <code>totalDue</code> is returned unchanged, as the M-PESA importer has always done.
+     */
+    public long remainingDueAt(int slot, long totalDue) {
+        long paid = totals[slot];
+        return totalDue >= paid ? totalDue - paid : totalDue;
+    }
+
+    /**
+     * @return whether the amount due on the account has been set
+     */
+    public boolean hasTotalDueAt(int slot) {
+        return totalsDue[slot] != UNKNOWN;
+    }
+
+    /**
+     * @param totalDue amount due on the account before this import
+     */
+    public void setTotalDueAt(int slot, long totalDue) {
+        totalsDue[slot] = totalDue;
+    }
+
+    /**
+     * @return the amount due set with {@link #setTotalDueAt(int, long)}
+     */
+    public long totalDueAt(int slot) {
+        if (totalsDue[slot] == UNKNOWN) {
+            throw new IllegalStateException("Amount due on account " + accountIds[slot] + " is not known");
+        }
+        return totalsDue[slot];
+    }
+
+    /**
+     * Like {@link #remainingDueAt(int, long)}, for the amount due set with {@link #setTotalDueAt(int, long)}.
+     */
+    public long remainingDueAt(int slot) {
+        return remainingDueAt(slot, totalDueAt(slot));
+    }
+
+    /**
+     * Adds the amount to the running total of the account, and works out what is then still due on it if the amount due
+     * has been set.
+     *
+     * @return the posting of this table, holding the new total and the amount still due until the next call
+     */
+    public Posting post(int accountId, long amount) {
+        final int slot = slotFor(accountId);
+        posting.total = addAt(slot, amount);
+        posting.remainingDue = totalsDue[slot] == UNKNOWN ? UNKNOWN : remainingDueAt(slot, totalsDue[slot]);
+        return posting;
+    }
+
+    /**
+     * @return total so far, including the passed in amount
+     */
+    public long add(int accountId, long amount) {
+        return addAt(slotFor(accountId), amount);
+    }
+
+    /**
+     * @return total paid into the account so far, zero for accounts not seen yet
+     */
+    public long total(int accountId) {
+        int mask = accountIds.length - 1;
+        int slot = mix(accountId) & mask;
+        while (used[slot]) {
+            if (accountIds[slot] == accountId) {
+                return totals[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void allocate(int capacity) {
+        accountIds = new int[capacity];
+        totals = new long[capacity];
+        totalsDue = new long[capacity];
+        used = new boolean[capacity];
+        size = 0;
+    }
+
+    private void grow() {
+        int[] oldAccountIds = accountIds;
+        long[] oldTotals = totals;
+        long[] oldTotalsDue = totalsDue;
+        boolean[] oldUsed = used;
+        allocate(oldAccountIds.length * 2);
+        for (int i = 0; i < oldAccountIds.length; i++) {
+            if (oldUsed[i]) {
+                int slot = slotFor(oldAccountIds[i]);
+                totals[slot] = oldTotals[i];
+                totalsDue[slot] = oldTotalsDue[i];
+            }
+        }
+    }
+
+    /** Account ids are mostly sequential, so spread them before masking. */
+    private static int mix(int accountId) {
+        int h = accountId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.mifos.accounts.api.TransactionImport;
+import org.mifos.dto.domain.ParseResultDto;
+
+/**
+ * A file uploaded to be stored, copied to a temporary file as it is read and digested on the way, so that it can be
+ * recognised by its SHA-1 and parsed from the file without being held in memory. Close it to delete the file.
+ */
+public final class SpooledUpload implements Closeable {
+
+    private final File file;
+    private final byte[] digest;
+
+    private SpooledUpload(File file, byte[] digest) {
+        this.file = file;
+        this.digest = digest;
+    }
+
+    /**
+     * Reads the upload to its end, without closing it.
+     */
+    public static SpooledUpload spool(InputStream input) throws IOException {
+        final MessageDigest sha1;
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final File file = File.createTempFile("upload", ".bin");
+        boolean spooled = false;
+        try {
+            final OutputStream output = new FileOutputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+                    sha1.update(buffer, 0, read);
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+            spooled = true;
+        } finally {
+            if (!spooled) {
+                file.delete();
+            }
+        }
+        return new SpooledUpload(file, sha1.digest());
+    }
+
+    /**
+     * @return SHA-1 of the upload
+     */
+    public byte[] getDigest() {
+        return digest.clone();
+    }
+
+    /**
+     * @return the upload, read again from the start. Close it once read.
+     */
+    public InputStream open() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * @return the result of parsing the upload with the importer
+     */
+    public ParseResultDto parse(TransactionImport importer) throws IOException {
+        final InputStream input = open();
+        try {
+            return importer.parse(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
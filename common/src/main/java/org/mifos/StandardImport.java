@@ -20,24 +20,59 @@
 
 package org.mifos;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigDecimal;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
 
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
 import org.mifos.accounts.api.TransactionImport;
 import org.mifos.dto.domain.AccountPaymentParametersDto;
 import org.mifos.dto.domain.AccountReferenceDto;
 import org.mifos.dto.domain.AccountTrxDto;
+import org.mifos.dto.domain.ParseResultDto;
 import org.mifos.dto.domain.PaymentTypeDto;
 
 
 public abstract class StandardImport extends TransactionImport {
 
+    private static final String PAYMENT_SPILL_THRESHOLD = "PaymentSpillThreshold";
+    private static final String LOOKUP_THREADS = "LookupThreads";
+    private static final String PREVIEW_ROWS = "PreviewRows";
+    private static final int DEFAULT_PREVIEW_ROWS = 100;
+    private static final String PREVIEW_SAMPLE_PERCENT = "PreviewSamplePercent";
+    private static final int DEFAULT_PREVIEW_SAMPLE_PERCENT = 5;
+
+    /** How long the result of parsing a file may be reused to store the same file. */
+    private static final long PARSE_RESULT_REUSE_MILLIS = 10 * 60 * 1000;
+
     private PaymentTypeDto paymentTypeDto = null;
 
+    private byte[] parsedDigest;
+    private ParseResultDto parsedResult;
+    private long parsedAt;
+    private long parsedStoreCount;
+
+    private final CachedServices cachedServices = new CachedServices();
+
+    private final ImportMonitor monitor = new ImportMonitor();
+
+    private final ImportUndo undo = new ImportUndo(getClass());
+
+    /** Rows to validate of the preview being parsed on each thread. */
+    private final ThreadLocal<RowSample> rowSample = new ThreadLocal<RowSample>();
+
     public PaymentTypeDto getPaymentTypeDto() {
         return this.paymentTypeDto;
     }
@@ -86,46 +121,480 @@ public abstract class StandardImport extends TransactionImport {
         return p;
     }
 
+    /**
+     * @return the account service, answering lookups from the {@link LookupCache} shared by all imports if configured
+     */
+    @Override
+    public AccountService getAccountService() {
+        return cachedServices.accountService(super.getAccountService());
+    }
+
+    /**
+     * @return the customer search service, answering lookups from the {@link LookupCache} shared by all imports if
+     *         configured
+     */
+    @Override
+    public CustomerSearchService getCustomerSearchService() {
+        // sizes the cache
+        getAccountService();
+        return cachedServices.customerSearchService(super.getCustomerSearchService());
+    }
+
+    /**
+     * @return how well the shared {@link LookupCache} is doing, if it is configured
+     */
+    @Override
+    public Map<String, String> getPropertiesForAdminDisplay() {
+        getAccountService();
+        return LookupCache.shared().getStatistics();
+    }
+
+    /**
+     * Payments are made in batches of <code>&lt;plugin class name&gt;.PaymentBatchSize</code> (500 unless configured),
+     * each one committed on its own, so that a large file does not hold the database in a single transaction. If a
+     * later batch fails the ones before it stay committed, and a {@link PartiallyStoredImportException} says how many.
+     * The same goes for an import cancelled with its {@link CancellationToken}, which is looked at before each batch,
+     * and for loan disbursals failing after the payments, which are made last.
+     * <p>
+     * The statement is copied to a temporary file as it is read, and digested on the way to tell whether it is the one
+     * last parsed, so a store holds no more of it in memory than the importer's parse does. Payments held in a
+     * {@link PaymentBuffer} are closed once stored if the store parsed them itself; those of a parse remembered from
+     * before are left to whoever holds its result.
+     */
     @Override
     public void store(InputStream input) throws Exception {
-        List<AccountPaymentParametersDto> payments = new ArrayList<AccountPaymentParametersDto>();
-        List<AccountPaymentParametersDto> disbursals = new ArrayList<AccountPaymentParametersDto>();
-        List<AccountPaymentParametersDto> parsedPayments = parse(input).getSuccessfullyParsedPayments();
-        for (AccountPaymentParametersDto payment : parsedPayments) {
-            if (payment.getTransactionType().equals(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL)) {
-                disbursals.add(payment);
-            } else {
-                payments.add(payment);
-            }
+        final SpooledUpload upload = SpooledUpload.spool(input);
+        try {
+            store(upload);
+        } finally {
+            upload.close();
         }
-        if (!payments.isEmpty()) {
-            getAccountService().makePayments(payments);
+    }
+
+    private void store(SpooledUpload upload) throws Exception {
+        ParseResultDto parsed = rememberedParse(upload.getDigest());
+        final boolean ownParse = parsed == null;
+        if (ownParse) {
+            parsed = parseForStore(upload);
         }
-        if (!disbursals.isEmpty()) {
-            getAccountService().disburseLoans(disbursals, Locale.ENGLISH);
+        try {
+            batchedStore().store(parsed.getSuccessfullyParsedPayments(), null, null);
+        } finally {
+            if (ownParse) {
+                closeBuffer(parsed.getSuccessfullyParsedPayments());
+            }
         }
     }
-    
+
+    /**
+     * Like {@link #store(InputStream)}, returning the transactions made so that the import can be undone. If a batch
+     * fails, the {@link PartiallyStoredImportException} holds the transactions of the batches committed before it.
+     * <p>
+     * Loan disbursals are not among the transactions returned, as Mifos gives back none for them. Only the journal
+     * records them, so only {@link #undoImport(String)} undoes an import which disbursed loans in full.
+     * <p>
+     * If <code>&lt;plugin class name&gt;.UndoJournalDirectory</code> is configured, each batch committed, loan
+     * disbursals included, is also recorded in the {@link UndoJournal} of the import, for {@link #undoImport(String)}.
+     * Should a batch committed fail to be recorded, the store stops there.
+     */
     @Override
     public List<AccountTrxDto> storeForUndoImport(InputStream input) throws Exception {
-        List<AccountPaymentParametersDto> payments = new ArrayList<AccountPaymentParametersDto>();
-        List<AccountPaymentParametersDto> disbursals = new ArrayList<AccountPaymentParametersDto>();
-        List<AccountPaymentParametersDto> parsedPayments = parse(input).getSuccessfullyParsedPayments();
-        for (AccountPaymentParametersDto payment : parsedPayments) {
-            if (payment.getTransactionType().equals(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL)) {
-                disbursals.add(payment);
-            } else {
-                payments.add(payment);
+        final SpooledUpload upload = SpooledUpload.spool(input);
+        try {
+            return storeForUndoImport(upload);
+        } finally {
+            upload.close();
+        }
+    }
+
+    private List<AccountTrxDto> storeForUndoImport(SpooledUpload upload) throws Exception {
+        final UndoJournal journal = undo.storeStarted(getAccountService(), upload);
+        ParseResultDto parsed = rememberedParse(upload.getDigest());
+        final boolean ownParse = parsed == null;
+        if (ownParse) {
+            parsed = parseForStore(upload);
+        }
+        try {
+            List<AccountTrxDto> trxIds = new ArrayList<AccountTrxDto>();
+            batchedStore().store(parsed.getSuccessfullyParsedPayments(), trxIds, journal);
+            return trxIds;
+        } finally {
+            if (ownParse) {
+                closeBuffer(parsed.getSuccessfullyParsedPayments());
+            }
+        }
+    }
+
+    /**
+     * @return a store in batches of the configured size, telling this importer of each batch it commits
+     */
+    private BatchedStore batchedStore() {
+        return new BatchedStore(getAccountService(), monitor, paymentBatchSize()) {
+            @Override
+            protected void paymentsCommitting(List<AccountPaymentParametersDto> payments) {
+                StandardImport.this.paymentsCommitting(payments);
+            }
+
+            @Override
+            protected void paymentsCommitted(List<AccountPaymentParametersDto> payments) {
+                StandardImport.this.paymentsCommitted(payments);
+            }
+        };
+    }
+
+    /**
+     * Called before each batch of payments, or the loan disbursals, of a store are sent to Mifos.
+     */
+    protected void paymentsCommitting(List<AccountPaymentParametersDto> payments) {
+        // nothing to do unless the importer keeps track of what it stored
+    }
+
+    /**
+     * Called as each batch of payments, or the loan disbursals, of a store have been committed. The payments are in
+     * Mifos by now, so this should not fail the store.
+     */
+    protected void paymentsCommitted(List<AccountPaymentParametersDto> payments) {
+        // nothing to do unless the importer keeps track of what it stored
+    }
+
+    private static void closeBuffer(List<AccountPaymentParametersDto> parsedPayments) throws IOException {
+        if (parsedPayments instanceof PaymentBuffer) {
+            ((PaymentBuffer) parsedPayments).close();
+        }
+    }
+
+    /**
+     * @return a buffer for the payments of a parse, keeping <code>&lt;plugin class name&gt;.PaymentSpillThreshold</code>
+     *         payments on the heap (100000 unless configured) before spilling them to a file
+     */
+    protected PaymentBuffer newPaymentBuffer() {
+        Object threshold = getAccountService().getMifosConfiguration(
+                getClass().getCanonicalName() + "." + PAYMENT_SPILL_THRESHOLD);
+        if (threshold == null) {
+            return new PaymentBuffer();
+        }
+        return new PaymentBuffer(Math.max(1, Integer.parseInt(threshold.toString().trim())));
+    }
+
+    /**
+     * @return an adapter making the lookups of a parse on <code>&lt;plugin class name&gt;.LookupThreads</code> threads
+     *         at once, or on the parsing thread unless configured. Close it once the parse is done.
+     */
+    protected AsyncAccountService newAsyncAccountService() {
+        Object threads = getAccountService().getMifosConfiguration(
+                getClass().getCanonicalName() + "." + LOOKUP_THREADS);
+        return new AsyncAccountService(getAccountService(), getCustomerSearchService(), threads == null ? 1
+                : Integer.parseInt(threads.toString().trim()));
+    }
+
+    private int paymentBatchSize() {
+        return BatchedStore.configuredBatchSize(getAccountService(), getClass());
+    }
+
+    /**
+     * @param listener
+     *            told how the imports of this importer are getting on, or <code>null</code>
+     */
+    public void setProgressListener(ImportProgressListener listener) {
+        monitor.setListener(listener);
+    }
+
+    /**
+     * @param cancellationToken
+     *            stops the imports of this importer once cancelled, between rows while parsing and between batches of
+     *            payments while storing, or <code>null</code>
+     */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        monitor.setCancellationToken(cancellationToken);
+    }
+
+    /**
+     * @param importId
+     *            id which the next {@link #storeForUndoImport(InputStream)} is recorded under, or <code>null</code> for
+     *            the SHA-1 of the file stored, in hex. Ids are made of letters, digits, '_', '-' and '.'.
+     */
+    public void setImportId(String importId) {
+        undo.setImportId(importId);
+    }
+
+    /**
+     * @return id which the last {@link #storeForUndoImport(InputStream)} was recorded under
+     */
+    public String getImportId() {
+        return undo.getImportId();
+    }
+
+    /**
+     * @param transactionReverser
+     *            reverses what imports stored, for {@link #undoImport(String)}
+     */
+    public void setTransactionReverser(TransactionReverser transactionReverser) {
+        undo.setTransactionReverser(transactionReverser);
+    }
+
+    /**
+     * Reverses everything an import recorded in its {@link UndoJournal}, newest first, in batches of
+     * <code>&lt;plugin class name&gt;.PaymentBatchSize</code>. The progress listener follows it as it goes, and the
+     * cancellation token stops it between batches. If it fails or is stopped, calling it again carries on from there.
+     *
+     * @return number of payments and disbursals reversed by this call
+     */
+    public int undoImport(String importId) throws Exception {
+        return undo.undoImport(getAccountService(), importId, paymentBatchSize(), monitor);
+    }
+
+    /**
+     * Importers call this as a parse starts, and then {@link #rowRead()} for each row of transactions.
+     *
+     * @throws ImportCancelledException if the import has been cancelled
+     */
+    protected void parseStarted() {
+        monitor.parseStarted();
+    }
+
+    /**
+     * @param rows
+     *            about how many rows of the statement are left to read, if known before reading them
+     */
+    protected void expectRows(int rows) {
+        monitor.expectRows(rows);
+    }
+
+    /**
+     * Counts a row read, before it is validated. Importers should let the exception through their handling of errors
+     * in a row, so that the parse stops.
+     *
+     * @throws ImportCancelledException if the import has been cancelled
+     */
+    protected void rowRead() {
+        monitor.rowRead();
+    }
+
+    /**
+     * Counts a row being checked against Mifos.
+     */
+    protected void rowValidated() {
+        monitor.rowValidated();
+    }
+
+    protected void parseFinished() {
+        monitor.parseFinished();
+    }
+
+    /**
+     * @throws ImportCancelledException if the import has been cancelled
+     */
+    protected void checkCancelled() {
+        monitor.checkCancelled();
+    }
+
+    /**
+     * Validates the first <code>&lt;plugin class name&gt;.PreviewRows</code> rows of a statement (100 unless
+     * configured) and <code>&lt;plugin class name&gt;.PreviewSamplePercent</code> percent of the rest, picked at random
+     * (5 unless configured), so that the user sees what a large statement is likely to come to without waiting for
+     * every row to be looked up. Importers which do not pick rows with {@link #isRowSampled()} validate every row.
+     */
+    public ImportPreview preview(InputStream input) throws IOException {
+        return preview(input, previewRows(), previewSamplePercent() / 100.0);
+    }
+
+    /**
+     * @param headRows
+     *            number of rows validated at the start of the statement
+     * @param sampleRate
+     *            chance of validating each later row, from 0 to 1
+     */
+    public ImportPreview preview(InputStream input, int headRows, double sampleRate) throws IOException {
+        final byte[] contents = readFully(input);
+        final RowSample sample = new RowSample(headRows, sampleRate, new Random());
+        final ParseResultDto result;
+        rowSample.set(sample);
+        try {
+            result = parse(new ByteArrayInputStream(contents));
+        } finally {
+            rowSample.remove();
+        }
+        return new ImportPreview(result, sample.getRowsRead(), sample.getRowsValidated(),
+                new Callable<ParseResultDto>() {
+                    @Override
+                    public ParseResultDto call() throws Exception {
+                        return parseOnCopy(contents);
+                    }
+                });
+    }
+
+    /**
+     * @return a new importer of the same kind, for {@link ImportPreview#validateAll()} to parse with while this one is
+     *         in use. Importers without a public constructor taking no arguments, or with settings of their own beyond
+     *         the services and user, override this.
+     */
+    protected StandardImport newInstance() throws Exception {
+        return getClass().newInstance();
+    }
+
+    /**
+     * Parses a statement on an importer of its own, with the services and user of this one, so that nothing a parse
+     * keeps on the importer is shared with a parse this one makes meanwhile. The result is then remembered by this
+     * importer, as if it had made the parse itself.
+     */
+    private ParseResultDto parseOnCopy(byte[] contents) throws Exception {
+        final StandardImport copy = newInstance();
+        copy.setAccountService(super.getAccountService());
+        copy.setCustomerSearchService(super.getCustomerSearchService());
+        copy.setUserReferenceDto(getUserReferenceDto());
+        final ParseResultDto result = copy.parse(new ByteArrayInputStream(contents));
+        final byte[] digest;
+        final long storeCount;
+        final long at;
+        synchronized (copy) {
+            if (copy.parsedResult != result) {
+                return result;
             }
+            digest = copy.parsedDigest;
+            storeCount = copy.parsedStoreCount;
+            at = copy.parsedAt;
         }
-        List<AccountTrxDto> trxIds = new ArrayList<AccountTrxDto>();
-        if (!payments.isEmpty()) {
-            trxIds = getAccountService().makePaymentsForImport(payments);
+        synchronized (this) {
+            parsedDigest = digest;
+            parsedResult = result;
+            parsedAt = at;
+            parsedStoreCount = storeCount;
         }
-        if (!disbursals.isEmpty()) {
-            getAccountService().disburseLoans(disbursals, Locale.ENGLISH);
+        return result;
+    }
+
+    /**
+     * Importers call this once for each row of transactions, in the order of the statement, before validating it.
+     *
+     * @return whether to validate the row, which is always the case unless previewing
+     */
+    protected boolean isRowSampled() {
+        final RowSample sample = rowSample.get();
+        return sample == null || sample.next();
+    }
+
+    /**
+     * @return whether the parse under way is that of a {@link #preview(InputStream)}, which only validates some rows
+     */
+    protected boolean isPreviewing() {
+        return rowSample.get() != null;
+    }
+
+    private int previewRows() {
+        Object rows = getAccountService().getMifosConfiguration(getClass().getCanonicalName() + "." + PREVIEW_ROWS);
+        if (rows == null) {
+            return DEFAULT_PREVIEW_ROWS;
+        }
+        return Math.max(0, Integer.parseInt(rows.toString().trim()));
+    }
+
+    private int previewSamplePercent() {
+        Object percent = getAccountService().getMifosConfiguration(
+                getClass().getCanonicalName() + "." + PREVIEW_SAMPLE_PERCENT);
+        if (percent == null) {
+            return DEFAULT_PREVIEW_SAMPLE_PERCENT;
+        }
+        return Math.min(100, Math.max(0, Integer.parseInt(percent.toString().trim())));
+    }
+
+    /**
+     * Wraps the input of {@link #parse(InputStream)} so that its contents can be recognised when the same file is
+     * stored. Pass the wrapped stream and the result to {@link #rememberParseResult(InputStream, ParseResultDto)}.
+     */
+    protected InputStream digesting(InputStream input) {
+        return new ParseInput(input);
+    }
+
+    /**
+     * Keeps the result of parsing a file wrapped by {@link #digesting(InputStream)}, so that storing the same file
+     * shortly after does not parse it, and look up every account, again. The result of a preview is not kept, as it
+     * leaves rows out. Nor is the result used once payments have been stored since the parse started, by any import
+     * in the process, as they may have made rows of the file duplicates or changed the accounts it pays.
+     *
+     * @return the result passed in
+     */
+    protected ParseResultDto rememberParseResult(InputStream digestingInput, ParseResultDto result) {
+        if (!(digestingInput instanceof ParseInput) || isPreviewing()) {
+            return result;
+        }
+        ParseInput input = (ParseInput) digestingInput;
+        try {
+            // parsers may stop short of the end of the file
+            byte[] buffer = new byte[8192];
+            while (input.read(buffer) != -1) {
+                continue;
+            }
+        } catch (IOException e) {
+            return result;
+        }
+        byte[] digest = input.getMessageDigest().digest();
+        synchronized (this) {
+            parsedDigest = digest;
+            parsedResult = result;
+            parsedAt = System.currentTimeMillis();
+            parsedStoreCount = input.storeCount;
+        }
+        return result;
+    }
+
+    /**
+     * @param digest
+     *            SHA-1 of the file to store
+     * @return the remembered result if the same file was parsed recently, otherwise <code>null</code>
+     */
+    private ParseResultDto rememberedParse(byte[] digest) {
+        synchronized (this) {
+            ParseResultDto result = parsedResult;
+            boolean reusable = result != null && Arrays.equals(digest, parsedDigest)
+                    && System.currentTimeMillis() - parsedAt < PARSE_RESULT_REUSE_MILLIS
+                    && LookupCache.shared().getStoreCount() == parsedStoreCount;
+            // a result is stored at most once
+            parsedResult = null;
+            parsedDigest = null;
+            return reusable ? result : null;
+        }
+    }
+
+    /**
+     * Parses a file to store it. The result is not remembered, as its payments are closed once stored.
+     */
+    private ParseResultDto parseForStore(SpooledUpload upload) throws IOException {
+        final ParseResultDto result = upload.parse(this);
+        synchronized (this) {
+            if (parsedResult == result) {
+                parsedResult = null;
+                parsedDigest = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Input of a parse, digested as it is read, which remembers how many stores had been made when the parse started.
+     */
+    private static final class ParseInput extends DigestInputStream {
+        final long storeCount = LookupCache.shared().getStoreCount();
+
+        ParseInput(InputStream input) {
+            super(input, sha1());
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = input.read(buffer); read != -1; read = input.read(buffer)) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
-        return trxIds;
     }
 
     @Override
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.util.List;
+
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
+
+/**
+ * Reverses what an import stored, for {@link UndoJournal#reverse}. Mifos adjusts payments and undoes disbursals one
+ * at a time, so each call is given a batch, and should reverse all of it or fail.
+ */
+public interface TransactionReverser {
+
+    /**
+     * @param transactions
+     *            transactions of payments made by an import, newest first
+     */
+    void reversePayments(List<AccountTrxDto> transactions) throws Exception;
+
+    /**
+     * @param loanAccounts
+     *            loans disbursed by an import, newest first, to be put back as they were before the disbursal
+     */
+    void reverseDisbursals(List<AccountReferenceDto> loanAccounts) throws Exception;
+}
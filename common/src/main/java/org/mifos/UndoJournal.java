@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
+
+/**
+ * Records what an import stored, so that the whole import can be reversed later: the transactions of its payments,
+ * and the loans it disbursed, which Mifos returns no transactions for. Each import has a file of its own, named after
+ * its id, in the directory given by <code>&lt;plugin class name&gt;.UndoJournalDirectory</code>. Each batch committed
+ * is appended as one write and synced to disk before the next batch is made.
+ * <p>
+ * {@link #reverse} replays the journal backwards in batches, appending how many entries each batch reversed, so that
+ * if it fails or is cancelled, calling it again carries on after the last batch reversed.
+ */
+public final class UndoJournal {
+
+    private static final String UNDO_JOURNAL_DIRECTORY = "UndoJournalDirectory";
+
+    private static final char PAYMENT = 'P';
+    private static final char DISBURSAL = 'D';
+    private static final char REVERSED = 'R';
+
+    private final File file;
+
+    public UndoJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param importer
+     *            class of the plugin, whose canonical name the directory is configured under
+     * @return the journal of the import, or <code>null</code> if the importer has no directory configured for journals
+     */
+    public static UndoJournal configured(AccountService accountService, Class<?> importer, String importId) {
+        Object directory = accountService.getMifosConfiguration(importer.getCanonicalName() + "."
+                + UNDO_JOURNAL_DIRECTORY);
+        if (directory == null) {
+            return null;
+        }
+        if (!importId.matches("[A-Za-z0-9_-][A-Za-z0-9_.-]*")) {
+            throw new IllegalArgumentException("not an import id: " + importId);
+        }
+        return new UndoJournal(new File(directory.toString().trim(), importId + ".undo"));
+    }
+
+    /**
+     * @return id of an import of the file when none is given: the SHA-1 of its contents, in hex
+     */
+    public static String importIdOf(byte[] contents) {
+        try {
+            return importIdOfDigest(MessageDigest.getInstance("SHA-1").digest(contents));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param digest
+     *            SHA-1 of the file imported
+     * @return id of an import of the file when none is given: its SHA-1, in hex
+     */
+    public static String importIdOfDigest(byte[] digest) {
+        final StringBuilder id = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return id.toString();
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * Readies the journal for a store. The journal of an import which was undone is started afresh, so that the same
+     * file can be imported again once corrected.
+     *
+     * @throws IllegalStateException
+     *             if the import is partly undone, which has to be finished first
+     */
+    public synchronized void storeStarted() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        final Contents journal = read();
+        if (journal.reversed == 0) {
+            return;
+        }
+        if (journal.reversed < journal.entries.size()) {
+            throw new IllegalStateException("undoing import " + file.getName() + " has not finished");
+        }
+        if (!file.delete()) {
+            throw new IOException("could not delete " + file);
+        }
+    }
+
+    /**
+     * @param transactions
+     *            transactions made by one batch of payments, as returned by Mifos
+     */
+    public synchronized void paymentsMade(List<AccountTrxDto> transactions) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        for (AccountTrxDto transaction : transactions) {
+            lines.append(PAYMENT).append(' ').append(transaction.getTrxId()).append('\n');
+        }
+        append(lines);
+    }
+
+    public synchronized void loansDisbursed(List<AccountPaymentParametersDto> disbursals) throws IOException {
+        final StringBuilder lines = new StringBuilder();
+        for (AccountPaymentParametersDto disbursal : disbursals) {
+            lines.append(DISBURSAL).append(' ').append(disbursal.getAccount().getAccountId()).append('\n');
+        }
+        append(lines);
+    }
+
+    /**
+     * @return number of payments and disbursals recorded
+     */
+    public synchronized int getEntries() throws IOException {
+        return read().entries.size();
+    }
+
+    /**
+     * @return number of payments and disbursals reversed so far
+     */
+    public synchronized int getReversed() throws IOException {
+        return read().reversed;
+    }
+
+    /**
+     * Reverses what is left of the import, newest first, each batch holding either payments or disbursals. The
+     * monitor is told of each batch reversed, and looked at for a cancellation before each one.
+     *
+     * @return number of payments and disbursals reversed by this call
+     * @throws ImportCancelledException
+     *             if the monitor was cancelled, the batches reversed before it staying reversed
+     */
+    public synchronized int reverse(TransactionReverser reverser, int batchSize, ImportMonitor monitor)
+            throws Exception {
+        final Contents journal = read();
+        int standing = journal.entries.size() - journal.reversed;
+        monitor.undoStarted(standing);
+        int reversed = 0;
+        while (standing > 0) {
+            monitor.checkCancelled();
+            final char kind = journal.entries.get(standing - 1).kind;
+            int from = standing - 1;
+            while (from > 0 && standing - from < batchSize && journal.entries.get(from - 1).kind == kind) {
+                from--;
+            }
+            final List<Entry> batch = journal.entries.subList(from, standing);
+            if (kind == PAYMENT) {
+                final List<AccountTrxDto> transactions = new ArrayList<AccountTrxDto>(batch.size());
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    transactions.add(new AccountTrxDto(batch.get(i).id));
+                }
+                reverser.reversePayments(transactions);
+            } else {
+                final List<AccountReferenceDto> loanAccounts = new ArrayList<AccountReferenceDto>(batch.size());
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    loanAccounts.add(new AccountReferenceDto(batch.get(i).id));
+                }
+                reverser.reverseDisbursals(loanAccounts);
+            }
+            append(new StringBuilder().append(REVERSED).append(' ').append(batch.size()).append('\n'));
+            reversed += batch.size();
+            standing = from;
+            monitor.committed(batch.size());
+        }
+        return reversed;
+    }
+
+    /**
+     * Appends whole lines, dropping first any line left cut short by a crash while appending.
+     */
+    private void append(CharSequence lines) throws IOException {
+        if (lines.length() == 0) {
+            return;
+        }
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create " + directory);
+        }
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            long length = out.length();
+            while (length > 0) {
+                out.seek(length - 1);
+                if (out.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            out.setLength(length);
+            out.seek(length);
+            out.write(lines.toString().getBytes("US-ASCII"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private Contents read() throws IOException {
+        final Contents journal = new Contents();
+        if (!file.exists()) {
+            return journal;
+        }
+        final byte[] bytes;
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        int start = 0;
+        for (int end = 0; end < bytes.length; end++) {
+            if (bytes[end] != '\n') {
+                continue;
+            }
+            final String line = new String(bytes, start, end - start, "US-ASCII");
+            start = end + 1;
+            final char kind = line.charAt(0);
+            final int value = Integer.parseInt(line.substring(2));
+            if (kind == REVERSED) {
+                journal.reversed += value;
+            } else if (kind == PAYMENT || kind == DISBURSAL) {
+                journal.entries.add(new Entry(kind, value));
+            } else {
+                throw new IOException("not an undo journal: " + file);
+            }
+        }
+        return journal;
+    }
+
+    private static final class Contents {
+        final List<Entry> entries = new ArrayList<Entry>();
+        int reversed;
+    }
+
+    private static final class Entry {
+        final char kind;
+        final int id;
+
+        Entry(char kind, int id) {
+            this.kind = kind;
+            this.id = id;
+        }
+    }
+}
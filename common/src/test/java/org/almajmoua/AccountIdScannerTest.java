@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.almajmoua;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Checks {@link AccountIdScanner} against the regular expressions that {@link AudiBankImporter#getAccountId(String)}
+ * used before it, over fuzzed descriptions which mostly come close to one of the three accepted forms.
+ */
+public class AccountIdScannerTest {
+    private static final int CASES = 200000;
+
+    private static final Pattern descriptionPatternForExternalId = Pattern
+            .compile("^PMTMAJ \\w([AZC])([0-9]{5})[0-9 ]{3} ");
+    private static final Pattern descriptionPatternForAccountId = Pattern.compile("^PMTMAJ ([0-9]{7}) ");
+    private static final Pattern descriptionPatternForGlobalAccountNumber = Pattern.compile("^PMTMAJ ([0-9]{15}) ");
+
+    /** Characters the fuzzer draws from, including non-ASCII letters and digits which neither form accepts. */
+    private static final String ALPHABET = "0123456789 AZCEBaz_-.\u00e9\u0663\t";
+
+    private static String regexAccountId(String stringWithEmbeddedId) {
+        final Matcher matcherGlobalAccountNum = descriptionPatternForGlobalAccountNumber.matcher(stringWithEmbeddedId);
+        if (matcherGlobalAccountNum.find()) {
+            return matcherGlobalAccountNum.group(1);
+        }
+        final Matcher matcherInternalId = descriptionPatternForAccountId.matcher(stringWithEmbeddedId);
+        if (matcherInternalId.find()) {
+            return matcherInternalId.group(1);
+        }
+        final Matcher matcherExternalId = descriptionPatternForExternalId.matcher(stringWithEmbeddedId);
+        if (matcherExternalId.find()) {
+            if (matcherExternalId.group(1).equals("Z")) {
+                return "GL " + matcherExternalId.group(2);
+            } else if (matcherExternalId.group(1).equals("C")) {
+                return "LL " + matcherExternalId.group(2);
+            } else {
+                return matcherExternalId.group(2);
+            }
+        }
+        return "";
+    }
+
+    @Test
+    public void agreesWithRegularExpressionsOnFuzzedDescriptions() {
+        Random random = new Random(30);
+        int matched = 0;
+        for (int i = 0; i < CASES; i++) {
+            String description = fuzzedDescription(random);
+            String expected = regexAccountId(description);
+            assertThat("'" + description + "'", AudiBankImporter.getAccountId(description), is(expected));
+            if (expected.length() > 0) {
+                matched++;
+            }
+        }
+        // make sure the corpus exercises the accepting paths as well as the rejecting ones
+        assertThat(matched > CASES / 10, is(true));
+    }
+
+    @Test
+    public void shortAndEmptyDescriptionsHaveNoAccountId() {
+        assertThat(AudiBankImporter.getAccountId(""), is(""));
+        assertThat(AudiBankImporter.getAccountId("PMTMAJ "), is(""));
+        assertThat(AudiBankImporter.getAccountId("PMTMAJ 1234567"), is(""));
+        assertThat(AudiBankImporter.getAccountId("PMTMAJ EA41560 83"), is(""));
+        assertThat(AudiBankImporter.getAccountId(" PMTMAJ 1234567 "), is(""));
+    }
+
+    private static String fuzzedDescription(Random random) {
+        StringBuilder description = new StringBuilder();
+        description.append(random.nextInt(20) == 0 ? mutate("PMTMAJ ", random) : "PMTMAJ ");
+        switch (random.nextInt(4)) {
+        case 0:
+            appendDigits(description, 15, random);
+            break;
+        case 1:
+            appendDigits(description, 7, random);
+            break;
+        case 2:
+            description.append(random.nextBoolean() ? 'E' : randomCharacter(random));
+            description.append("AZC".charAt(random.nextInt(3)));
+            appendDigits(description, 5, random);
+            for (int j = 0; j < 3; j++) {
+                description.append(random.nextBoolean() ? ' ' : (char) ('0' + random.nextInt(10)));
+            }
+            break;
+        default:
+            appendDigits(description, random.nextInt(18), random);
+            break;
+        }
+        description.append(random.nextInt(4) == 0 ? randomCharacter(random) : ' ');
+        int tail = random.nextInt(6);
+        for (int j = 0; j < tail; j++) {
+            description.append(randomCharacter(random));
+        }
+        if (random.nextInt(4) == 0) {
+            return mutate(description.toString(), random);
+        }
+        if (random.nextInt(8) == 0) {
+            return description.substring(0, random.nextInt(description.length() + 1));
+        }
+        return description.toString();
+    }
+
+    private static void appendDigits(StringBuilder description, int count, Random random) {
+        for (int j = 0; j < count; j++) {
+            description.append((char) ('0' + random.nextInt(10)));
+        }
+    }
+
+    private static String mutate(String text, Random random) {
+        if (text.length() == 0) {
+            return text;
+        }
+        char[] chars = text.toCharArray();
+        chars[random.nextInt(chars.length)] = randomCharacter(random);
+        return new String(chars);
+    }
+
+    private static char randomCharacter(Random random) {
+        return ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+    }
+}
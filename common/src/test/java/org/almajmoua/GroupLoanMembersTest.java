@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.almajmoua;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.AsyncAccountService;
+import org.mifos.LookupCache;
+import org.mifos.accounts.api.AccountService;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GroupLoanMembersTest {
+
+    @Mock
+    AccountService accountService;
+
+    @Test
+    public void asksOncePerAccountWithoutTimeToLive() {
+        when(accountService.isAccountGroupLoanMember(7)).thenReturn(true);
+        GroupLoanMembers members = new GroupLoanMembers(0);
+        assertThat(members.isGroupLoanMember(accountService, 7, 0L), is(true));
+        assertThat(members.isGroupLoanMember(accountService, 7, Long.MAX_VALUE), is(true));
+        assertThat(members.isGroupLoanMember(accountService, 8, 0L), is(false));
+        verify(accountService, times(1)).isAccountGroupLoanMember(7);
+        verify(accountService, times(1)).isAccountGroupLoanMember(8);
+    }
+
+    @Test
+    public void asksAgainOnceAnAnswerExpires() {
+        when(accountService.isAccountGroupLoanMember(7)).thenReturn(false, true);
+        GroupLoanMembers members = new GroupLoanMembers(1000);
+        assertThat(members.isGroupLoanMember(accountService, 7, 5000L), is(false));
+        assertThat(members.isGroupLoanMember(accountService, 7, 5999L), is(false));
+        assertThat(members.isGroupLoanMember(accountService, 7, 6000L), is(true));
+        verify(accountService, times(2)).isAccountGroupLoanMember(7);
+    }
+
+    @Test
+    public void sharedMemoForgetsAccountsPaid() {
+        when(accountService.isAccountGroupLoanMember(7)).thenReturn(false, true);
+        GroupLoanMembers members = GroupLoanMembers.shared(60000);
+        LookupCache.shared().invalidateAccounts(Collections.singleton(7));
+        assertThat(members.isGroupLoanMember(accountService, 7), is(false));
+        assertThat(GroupLoanMembers.shared(60000).isGroupLoanMember(accountService, 7), is(false));
+        LookupCache.shared().invalidateAccounts(Collections.singleton(7));
+        assertThat(members.isGroupLoanMember(accountService, 7), is(true));
+        verify(accountService, times(2)).isAccountGroupLoanMember(7);
+    }
+
+    @Test
+    public void prefetchAsksOnlyAboutAccountsNotRemembered() {
+        when(accountService.isAccountGroupLoanMember(8)).thenReturn(true);
+        GroupLoanMembers members = new GroupLoanMembers(0);
+        members.isGroupLoanMember(accountService, 7, 0L);
+        AsyncAccountService lookups = new AsyncAccountService(accountService, null, 4);
+        try {
+            members.prefetch(lookups, Arrays.asList(7, 8, 9, 8));
+        } finally {
+            lookups.close();
+        }
+        assertThat(members.isGroupLoanMember(accountService, 8, 0L), is(true));
+        assertThat(members.isGroupLoanMember(accountService, 9, 0L), is(false));
+        verify(accountService, times(1)).isAccountGroupLoanMember(7);
+        verify(accountService, times(1)).isAccountGroupLoanMember(8);
+        verify(accountService, times(1)).isAccountGroupLoanMember(9);
+    }
+
+    @Test
+    public void slowAnswerDoesNotHoldUpRememberedOnes() throws Exception {
+        final CountDownLatch asked = new CountDownLatch(1);
+        final CountDownLatch answer = new CountDownLatch(1);
+        when(accountService.isAccountGroupLoanMember(8)).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                asked.countDown();
+                answer.await();
+                return true;
+            }
+        });
+        final GroupLoanMembers members = new GroupLoanMembers(0);
+        members.isGroupLoanMember(accountService, 7, 0L);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> slow = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return members.isGroupLoanMember(accountService, 8, 0L);
+                }
+            });
+            assertThat(asked.await(10, TimeUnit.SECONDS), is(true));
+            assertThat(members.isGroupLoanMember(accountService, 7, 0L), is(false));
+            answer.countDown();
+            assertThat(slow.get(10, TimeUnit.SECONDS), is(true));
+        } finally {
+            answer.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
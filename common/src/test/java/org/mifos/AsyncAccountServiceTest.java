@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncAccountServiceTest {
+
+    @Mock
+    AccountService accountService;
+
+    @Test
+    public void callsOnTheAskingThreadWithOneThread() throws Exception {
+        final AccountReferenceDto account = new AccountReferenceDto(7);
+        final Thread caller = Thread.currentThread();
+        when(accountService.lookupLoanAccountReferenceFromExternalId("X7")).thenAnswer(new Answer<AccountReferenceDto>() {
+            @Override
+            public AccountReferenceDto answer(InvocationOnMock invocation) {
+                assertThat(Thread.currentThread(), is(caller));
+                return account;
+            }
+        });
+        when(accountService.lookupLoanAccountReferenceFromExternalId("X8")).thenThrow(new Exception("no such loan"));
+        AsyncAccountService lookups = new AsyncAccountService(accountService, null, 1);
+        Future<AccountReferenceDto> found = lookups.lookupLoanAccountReferenceFromExternalId("X7");
+        Future<AccountReferenceDto> notFound = lookups.lookupLoanAccountReferenceFromExternalId("X8");
+        assertThat(found.isDone(), is(true));
+        assertThat(found.get(), is(account));
+        try {
+            notFound.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("no such loan"));
+        }
+        lookups.close();
+    }
+
+    @Test
+    public void makesNoMoreCallsAtOnceThanThereAreThreads() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger mostInFlight = new AtomicInteger();
+        when(accountService.lookupLoanAccountReferenceFromExternalId(anyString())).thenAnswer(
+                new Answer<AccountReferenceDto>() {
+                    @Override
+                    public AccountReferenceDto answer(InvocationOnMock invocation) throws InterruptedException {
+                        final int calls = inFlight.incrementAndGet();
+                        synchronized (mostInFlight) {
+                            mostInFlight.set(Math.max(mostInFlight.get(), calls));
+                        }
+                        Thread.sleep(5);
+                        inFlight.decrementAndGet();
+                        return new AccountReferenceDto(Integer.parseInt((String) invocation.getArguments()[0]));
+                    }
+                });
+        AsyncAccountService lookups = new AsyncAccountService(accountService, null, 3);
+        try {
+            List<Future<AccountReferenceDto>> accounts = new ArrayList<Future<AccountReferenceDto>>();
+            for (int i = 0; i < 30; i++) {
+                accounts.add(lookups.lookupLoanAccountReferenceFromExternalId(String.valueOf(i)));
+            }
+            for (int i = 0; i < 30; i++) {
+                assertThat(accounts.get(i).get().getAccountId(), is(i));
+            }
+            assertThat(mostInFlight.get() <= 3, is(true));
+        } finally {
+            lookups.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.joda.time.LocalDate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
+import org.mockito.InOrder;
+
+public class BatchedStoreTest {
+
+    AccountService accountService;
+    File file;
+    UndoJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        accountService = mock(AccountService.class);
+        when(accountService.makePaymentsForImport(anyListOf(AccountPaymentParametersDto.class))).thenReturn(
+                Arrays.asList(new AccountTrxDto(1), new AccountTrxDto(2)), Arrays.asList(new AccountTrxDto(3)));
+        file = File.createTempFile("import", ".undo");
+        file.delete();
+        journal = new UndoJournal(file);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void makesPaymentsInBatchesThenDisbursesLoans() throws Exception {
+        final List<AccountPaymentParametersDto> payments = Arrays.asList(payment(false), payment(true),
+                payment(false), payment(false));
+        final List<AccountTrxDto> trxIds = new ArrayList<AccountTrxDto>();
+        new BatchedStore(accountService, new ImportMonitor(), 2).store(payments, trxIds, journal);
+
+        assertThat(trxIds.size(), is(3));
+        assertThat(journal.getEntries(), is(4));
+        InOrder order = inOrder(accountService);
+        order.verify(accountService).makePaymentsForImport(Arrays.asList(payments.get(0), payments.get(2)));
+        order.verify(accountService).makePaymentsForImport(Arrays.asList(payments.get(3)));
+        order.verify(accountService).disburseLoans(Arrays.asList(payments.get(1)), Locale.ENGLISH);
+    }
+
+    @Test
+    public void saysHowManyPaymentsWereStoredBeforeABatchFailed() throws Exception {
+        when(accountService.makePaymentsForImport(anyListOf(AccountPaymentParametersDto.class))).thenReturn(
+                Arrays.asList(new AccountTrxDto(1), new AccountTrxDto(2))).thenThrow(
+                new IllegalStateException("Mifos refused"));
+        try {
+            new BatchedStore(accountService, new ImportMonitor(), 2).store(Arrays.asList(payment(false),
+                    payment(false), payment(false)), new ArrayList<AccountTrxDto>(), journal);
+            fail();
+        } catch (PartiallyStoredImportException e) {
+            assertThat(e.getStoredPayments(), is(2));
+            assertThat(journal.getEntries(), is(2));
+        }
+    }
+
+    @Test
+    public void readsTheBatchSizeOfTheImporter() {
+        when(accountService.getMifosConfiguration(BatchedStoreTest.class.getCanonicalName() + ".PaymentBatchSize"))
+                .thenReturn(" 300 ");
+        assertThat(BatchedStore.configuredBatchSize(accountService, BatchedStoreTest.class), is(300));
+        assertThat(BatchedStore.configuredBatchSize(accountService, Object.class), is(500));
+    }
+
+    private static AccountPaymentParametersDto payment(boolean disbursal) {
+        AccountPaymentParametersDto payment = new AccountPaymentParametersDto(null, new AccountReferenceDto(1),
+                BigDecimal.TEN, new LocalDate(2011, 1, 3), null, "");
+        if (disbursal) {
+            payment.setTransactionType(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL);
+        }
+        return payment;
+    }
+}
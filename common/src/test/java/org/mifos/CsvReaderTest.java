@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CsvReaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void quotedFieldsHoldDelimitersLineBreaksAndQuotes() throws Exception {
+        List<CsvRecord> records = read("a,\"b,c\",\"say \"\"hi\"\"\"\n\"two\nlines\",,x\n", UTF_8);
+        assertThat(records.size(), is(2));
+        assertThat(fields(records.get(0)), is(Arrays.asList("a", "b,c", "say \"hi\"")));
+        assertThat(fields(records.get(1)), is(Arrays.asList("two\nlines", "", "x")));
+        assertThat(records.get(1).isEmpty(1), is(true));
+        assertThat(records.get(1).get(7), is(""));
+    }
+
+    @Test
+    public void linesMayEndInAnyWayAndBlankLinesAreSkipped() throws Exception {
+        List<CsvRecord> records = read("a,b\r\nc\rd\n\r\n\ne,f", UTF_8);
+        assertThat(records.size(), is(4));
+        assertThat(fields(records.get(0)), is(Arrays.asList("a", "b")));
+        assertThat(fields(records.get(3)), is(Arrays.asList("e", "f")));
+        assertThat(records.get(2).getRecordNum(), is(2));
+        assertThat(records.get(3).getRecordNum(), is(5));
+    }
+
+    @Test
+    public void byteOrderMarkSelectsTheCharset() throws Exception {
+        byte[] utf8 = concat(new byte[] { (byte) 0xef, (byte) 0xbb, (byte) 0xbf }, "caf\u00e9,1\n".getBytes("UTF-8"));
+        assertThat(fields(read(utf8, Charset.forName("ISO-8859-1")).get(0)), is(Arrays.asList("caf\u00e9", "1")));
+
+        byte[] utf16 = concat(new byte[] { (byte) 0xff, (byte) 0xfe }, "caf\u00e9,\"1\"\n".getBytes("UTF-16LE"));
+        assertThat(fields(read(utf16, UTF_8).get(0)), is(Arrays.asList("caf\u00e9", "1")));
+    }
+
+    @Test
+    public void readingInChunksGivesTheSameRecordsAsReadingInOneGo() throws Exception {
+        byte[] contents = randomCsv(new Random(37), 40000).getBytes("UTF-8");
+        assertThat(CsvReader.split(ByteBuffer.wrap(contents), ',', 4).size(), is(4));
+
+        List<CsvRecord> inOneGo = read(contents, UTF_8);
+        List<CsvRecord> inChunks = CsvReader.readAll(ByteBuffer.wrap(contents), UTF_8, ',', 4);
+        assertThat(inChunks.size(), is(inOneGo.size()));
+        for (int i = 0; i < inOneGo.size(); i++) {
+            assertThat(inChunks.get(i).getRecordNum(), is(inOneGo.get(i).getRecordNum()));
+            assertThat(fields(inChunks.get(i)), is(fields(inOneGo.get(i))));
+        }
+    }
+
+    private static List<CsvRecord> read(String contents, Charset charset) throws Exception {
+        return read(contents.getBytes(charset.name()), charset);
+    }
+
+    private static List<CsvRecord> read(byte[] contents, Charset charset) throws Exception {
+        CsvReader reader = new CsvReader(new ByteArrayInputStream(contents), charset, ',');
+        List<CsvRecord> records = new ArrayList<CsvRecord>();
+        while (reader.hasNext()) {
+            records.add(reader.next().copy());
+        }
+        return records;
+    }
+
+    private static List<String> fields(CsvRecord record) {
+        List<String> fields = new ArrayList<String>();
+        for (int i = 0; i < record.size(); i++) {
+            fields.add(record.get(i));
+        }
+        return fields;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    /**
+     * Records with quoted line breaks, doubled quotes, stray quotes, blank lines and characters of more than one byte,
+     * so that chunks are cut in awkward places.
+     */
+    private static String randomCsv(Random random, int records) {
+        String[] values = { "plain", "", "\"quoted, with delimiter\"", "\"two\nlines\"", "\"\"\"doubled\"\"\"",
+                "stray\"quote", "\u00e9t\u00e9 \u20ac", "\"\r\n\"" };
+        String[] lineEnds = { "\n", "\r\n", "\r", "\n\n" };
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < records; i++) {
+            int fields = 1 + random.nextInt(6);
+            for (int j = 0; j < fields; j++) {
+                if (j > 0) {
+                    csv.append(',');
+                }
+                csv.append(values[random.nextInt(values.length)]);
+            }
+            csv.append(lineEnds[random.nextInt(lineEnds.length)]);
+        }
+        return csv.toString();
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+public class DaemonThreadsTest {
+
+    @Test
+    public void poolThreadsAreNamedDaemons() throws Exception {
+        final ExecutorService executor = DaemonThreads.newFixedPool("test-pool", 2);
+        try {
+            final Thread thread = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get();
+            assertThat(thread.isDaemon(), is(true));
+            assertThat(thread.getName(), is("test-pool-1"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void idlePoolLetsItsThreadsEnd() {
+        assertThat(DaemonThreads.newFixedPool("test-pool", 1, 60).allowsCoreThreadTimeOut(), is(true));
+    }
+}
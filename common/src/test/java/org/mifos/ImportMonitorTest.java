@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ImportMonitorTest {
+
+    @Mock
+    AccountService accountService;
+
+    final List<ImportProgress> progress = new ArrayList<ImportProgress>();
+
+    final ImportProgressListener recorder = new ImportProgressListener() {
+        @Override
+        public void progressed(ImportProgress update) {
+            progress.add(update);
+        }
+    };
+
+    @Test
+    public void countsRowsAndStopsOnceCancelled() {
+        final CancellationToken token = new CancellationToken();
+        final ImportMonitor monitor = new ImportMonitor(0);
+        monitor.setListener(recorder);
+        monitor.setCancellationToken(token);
+        monitor.parseStarted();
+        monitor.expectRows(4);
+        monitor.rowRead();
+        monitor.rowValidated();
+        monitor.rowRead();
+        token.cancel();
+        try {
+            monitor.rowRead();
+            fail();
+        } catch (ImportCancelledException e) {
+            // expected
+        }
+        final ImportProgress last = progress.get(progress.size() - 1);
+        assertThat(last.getStage(), is(ImportProgress.Stage.PARSING));
+        assertThat(last.getRowsRead(), is(2));
+        assertThat(last.getRowsExpected(), is(4));
+        assertThat(last.getRowsValidated(), is(1));
+        assertThat(last.isFinished(), is(false));
+    }
+
+    @Test
+    public void storeStopsBetweenBatchesOnceCancelled() throws Exception {
+        final CancellationToken token = new CancellationToken();
+        when(accountService.getMifosConfiguration(ThreePayments.class.getCanonicalName() + ".PaymentBatchSize"))
+                .thenReturn("1");
+        final ThreePayments importer = new ThreePayments();
+        importer.setAccountService(accountService);
+        importer.setCancellationToken(token);
+        importer.setProgressListener(new ImportProgressListener() {
+            @Override
+            public void progressed(ImportProgress update) {
+                progress.add(update);
+                if (update.getPaymentsCommitted() == 1) {
+                    token.cancel();
+                }
+            }
+        });
+        try {
+            importer.store(new ByteArrayInputStream(new byte[0]));
+            fail();
+        } catch (PartiallyStoredImportException e) {
+            assertThat(e.getStoredPayments(), is(1));
+            assertThat(e.getCause(), is(instanceOf(ImportCancelledException.class)));
+        }
+        verify(accountService, times(1)).makePayments(anyListOf(AccountPaymentParametersDto.class));
+        final ImportProgress last = progress.get(progress.size() - 1);
+        assertThat(last.getStage(), is(ImportProgress.Stage.STORING));
+        assertThat(last.getPaymentsToCommit(), is(3));
+    }
+
+    private static final class ThreePayments extends StandardImport {
+
+        @Override
+        public String getDisplayName() {
+            return "three payments";
+        }
+
+        @Override
+        public ParseResultDto parse(InputStream input) {
+            final List<AccountPaymentParametersDto> payments = new ArrayList<AccountPaymentParametersDto>();
+            for (int i = 1; i <= 3; i++) {
+                final AccountPaymentParametersDto payment = new AccountPaymentParametersDto(null,
+                        new AccountReferenceDto(i), BigDecimal.TEN, null, null, "");
+                payment.setTransactionType(AccountPaymentParametersDto.TransactionType.PAYMENT);
+                payments.add(payment);
+            }
+            return new ParseResultDto(new ArrayList<String>(), payments);
+        }
+
+        @Override
+        public List<AccountTrxDto> storeForUndoImport(InputStream input) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
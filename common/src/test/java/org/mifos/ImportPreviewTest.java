@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountTrxDto;
+import org.mifos.dto.domain.ParseResultDto;
+
+public class ImportPreviewTest {
+
+    /** 10 rows, the 3rd and 8th of which are refused. */
+    private static final String STATEMENT = "10.00\n10.00\n-1\n10.00\n10.00\n10.00\n10.00\n-1\n10.00\n10.00\n";
+
+    @Test
+    public void projectsTheRowsValidatedOverTheStatement() throws Exception {
+        final AmountsImport importer = new AmountsImport();
+        final ImportPreview preview = importer.preview(statement(), 4, 0);
+        assertThat(importer.rowsValidated, is(4));
+        assertThat(preview.getRowsRead(), is(10));
+        assertThat(preview.getRowsValidated(), is(4));
+        assertThat(preview.isComplete(), is(false));
+        assertThat(preview.getResult().getParseErrors().size(), is(1));
+        assertThat(preview.getErrorRate(), is(0.25));
+        assertThat(preview.getProjectedErrorRows(), is(3));
+        assertThat(preview.getProjectedPayments(), is(8));
+        assertThat(preview.getProjectedAmount(), is(new BigDecimal("75.00")));
+
+        final ParseResultDto full = preview.validateAll().get(10, TimeUnit.SECONDS);
+        assertThat(full.getParseErrors().size(), is(2));
+        assertThat(full.getSuccessfullyParsedPayments().size(), is(8));
+        // validated on an importer of its own, leaving the preview as it was
+        assertThat(importer.rowsValidated, is(4));
+        assertThat(preview.getResult().getParseErrors().size(), is(1));
+    }
+
+    @Test
+    public void samplesEachLaterRowWithTheSameChance() throws Exception {
+        final ImportPreview preview = new AmountsImport().preview(statement(), 0, 1);
+        assertThat(preview.isComplete(), is(true));
+        assertThat(preview.getProjectedAmount(), is(new BigDecimal("80.00")));
+
+        final RowSample sample = new RowSample(2, 0.5, new Random(7));
+        int validated = 0;
+        for (int i = 0; i < 10002; i++) {
+            if (sample.next() && i >= 2) {
+                validated++;
+            }
+        }
+        assertThat(sample.getRowsRead(), is(10002));
+        assertThat(Math.abs(validated - 5000) < 200, is(true));
+    }
+
+    private static InputStream statement() {
+        return new ByteArrayInputStream(STATEMENT.getBytes());
+    }
+
+    /**
+     * Pays each positive amount, one per line, and refuses the rest.
+     */
+    static final class AmountsImport extends StandardImport {
+
+        int rowsValidated;
+
+        @Override
+        public String getDisplayName() {
+            return "amounts";
+        }
+
+        @Override
+        public ParseResultDto parse(InputStream input) {
+            final List<String> errors = new ArrayList<String>();
+            final List<AccountPaymentParametersDto> payments = new ArrayList<AccountPaymentParametersDto>();
+            rowsValidated = 0;
+            try {
+                final BufferedReader lines = new BufferedReader(new InputStreamReader(input));
+                for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                    if (!isRowSampled()) {
+                        continue;
+                    }
+                    rowsValidated++;
+                    final BigDecimal amount = new BigDecimal(line);
+                    if (amount.signum() <= 0) {
+                        errors.add("refused " + line);
+                    } else {
+                        payments.add(new AccountPaymentParametersDto(null, null, amount, null, null, ""));
+                    }
+                }
+            } catch (IOException e) {
+                errors.add(e.toString());
+            }
+            return new ParseResultDto(errors, payments);
+        }
+
+        @Override
+        public void store(InputStream input) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<AccountTrxDto> storeForUndoImport(InputStream input) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
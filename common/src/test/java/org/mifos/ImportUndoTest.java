@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
+
+public class ImportUndoTest {
+
+    File directory;
+    AccountService accountService;
+    ImportUndo undo;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("journals", "");
+        directory.delete();
+        directory.mkdirs();
+        accountService = new InMemoryAccountService().withConfiguration(
+                "org.mifos.ImportUndoTest.UndoJournalDirectory", directory.getPath()).accountService();
+        undo = new ImportUndo(ImportUndoTest.class);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void recordsEachStoreUnderTheIdSetForItOrItsDigest() throws Exception {
+        final byte[] contents = "statement".getBytes("UTF-8");
+        undo.setImportId("first");
+        assertThat(undo.storeStarted(accountService, upload(contents)) == null, is(false));
+        assertThat(undo.getImportId(), is("first"));
+
+        undo.storeStarted(accountService, upload(contents));
+        assertThat(undo.getImportId(), is(UndoJournal.importIdOf(contents)));
+    }
+
+    @Test
+    public void undoesWhatTheJournalRecorded() throws Exception {
+        undo.setImportId("first");
+        undo.storeStarted(accountService, upload(new byte[0])).paymentsMade(Arrays.asList(new AccountTrxDto(1),
+                new AccountTrxDto(2)));
+        try {
+            undo.undoImport(accountService, "first", 10, new ImportMonitor());
+            fail("no reverser was set");
+        } catch (IllegalStateException e) {
+            assertThat(undo.getImportId(), is("first"));
+        }
+        undo.setTransactionReverser(new TransactionReverser() {
+            @Override
+            public void reversePayments(List<AccountTrxDto> transactions) {
+                // reversed
+            }
+
+            @Override
+            public void reverseDisbursals(List<AccountReferenceDto> loanAccounts) {
+                // reversed
+            }
+        });
+        assertThat(undo.undoImport(accountService, "first", 10, new ImportMonitor()), is(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToUndoAnImportWithoutAJournal() throws Exception {
+        undo.undoImport(accountService, "unknown", 10, new ImportMonitor());
+    }
+
+    @Test
+    public void keepsNoJournalUnlessConfigured() throws Exception {
+        assertThat(undo.storeStarted(new InMemoryAccountService().accountService(),
+                upload(new byte[0])), is(nullValue()));
+    }
+
+    /**
+     * @return an upload of the contents, whose file is already deleted as only its digest is wanted
+     */
+    private static SpooledUpload upload(byte[] contents) throws IOException {
+        SpooledUpload upload = SpooledUpload.spool(new ByteArrayInputStream(contents));
+        upload.close();
+        return upload;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+
+/**
+ * A stand-in for the Mifos services for tests which push many rows through an importer. Unlike a Mockito mock it
+ * does not record invocations, so neither its time nor its memory grows with the number of calls, and the allocation
+ * made by the importer under test can be measured.
+ * <p>
+ * Every lookup succeeds, every validation passes and every existence check answers <code>false</code>. The only
+ * exception are lookups by product short name, which find nothing for products not registered with
+ * {@link #withProducts(String...)}. Account lookups return one {@link AccountReferenceDto} per distinct key, so
+ * running totals behave as they would against a real database.
+ */
+public class InMemoryAccountService implements InvocationHandler {
+    private final Map<String, Object> configuration = new HashMap<String, Object>();
+    private final List<PaymentTypeDto> paymentTypes = new ArrayList<PaymentTypeDto>();
+    private final Set<String> products = new HashSet<String>();
+    private final Map<Object, Map<Object, AccountReferenceDto>> accounts = new HashMap<Object, Map<Object, AccountReferenceDto>>();
+    private int numberOfAccounts = 0;
+    private final List<CustomerDto> customers = Collections.singletonList(new CustomerDto(1, "In Memory Customer",
+            (short) 1, ""));
+    private BigDecimal totalPaymentDueAmount = new BigDecimal("1000");
+
+    public InMemoryAccountService withConfiguration(String key, Object value) {
+        configuration.put(key, value);
+        return this;
+    }
+
+    public InMemoryAccountService withPaymentType(PaymentTypeDto paymentType) {
+        paymentTypes.add(paymentType);
+        return this;
+    }
+
+    public InMemoryAccountService withProducts(String... productShortNames) {
+        for (String productShortName : productShortNames) {
+            products.add(productShortName);
+        }
+        return this;
+    }
+
+    public InMemoryAccountService withTotalPaymentDueAmount(BigDecimal amount) {
+        this.totalPaymentDueAmount = amount;
+        return this;
+    }
+
+    public AccountService accountService() {
+        return (AccountService) Proxy.newProxyInstance(AccountService.class.getClassLoader(),
+                new Class[] { AccountService.class }, this);
+    }
+
+    public CustomerSearchService customerSearchService() {
+        return (CustomerSearchService) Proxy.newProxyInstance(CustomerSearchService.class.getClassLoader(),
+                new Class[] { CustomerSearchService.class }, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        final Class<?> returnType = method.getReturnType();
+        if ("getMifosConfiguration".equals(name)) {
+            return configuration.get(args[0]);
+        }
+        if ("getLoanPaymentTypes".equals(name) || "getLoanDisbursementTypes".equals(name)) {
+            return paymentTypes;
+        }
+        if ("findCustomersWithGivenPhoneNumber".equals(name)) {
+            return customers;
+        }
+        if (returnType == AccountReferenceDto.class) {
+            if (name.endsWith("ProductShortName")) {
+                return products.contains(args[1]) ? account(args[1], args[0]) : null;
+            }
+            return account(name, args[0]);
+        }
+        if ("lookupLoanAccountReferencesFromClientPhoneNumberAndWithdrawAmount".equals(name)) {
+            return Collections.singletonList(account(args[1], args[0]));
+        }
+        if (returnType == BigDecimal.class) {
+            return totalPaymentDueAmount;
+        }
+        if (returnType == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if (returnType == int.class) {
+            return Integer.valueOf(0);
+        }
+        if (List.class.isAssignableFrom(returnType)) {
+            return Collections.emptyList();
+        }
+        if ("hashCode".equals(name)) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        if ("equals".equals(name)) {
+            return Boolean.valueOf(proxy == args[0]);
+        }
+        if ("toString".equals(name)) {
+            return InMemoryAccountService.class.getSimpleName();
+        }
+        return null;
+    }
+
+    private AccountReferenceDto account(Object kind, Object key) {
+        Map<Object, AccountReferenceDto> accountsOfKind = accounts.get(kind);
+        if (accountsOfKind == null) {
+            accountsOfKind = new HashMap<Object, AccountReferenceDto>();
+            accounts.put(kind, accountsOfKind);
+        }
+        AccountReferenceDto account = accountsOfKind.get(key);
+        if (account == null) {
+            account = new AccountReferenceDto(++numberOfAccounts);
+            accountsOfKind.put(key, account);
+        }
+        return account;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.accounts.api.CustomerSearchService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LookupCacheTest {
+
+    @Mock
+    AccountService accountService;
+    @Mock
+    CustomerSearchService customerSearchService;
+
+    @Test
+    public void isOffUnlessConfigured() {
+        LookupCache cache = new LookupCache();
+        assertThat(cache.cached(accountService), is(sameInstance(accountService)));
+        assertThat(cache.getStatistics().isEmpty(), is(true));
+    }
+
+    @Test
+    public void answersRepeatedLookupsButNotAmountsDue() throws Exception {
+        AccountReferenceDto account = new AccountReferenceDto(7);
+        when(accountService.getMifosConfiguration(LookupCache.MAXIMUM_SIZE)).thenReturn("100");
+        when(accountService.lookupLoanAccountReferenceFromExternalId("X7")).thenReturn(account);
+        when(accountService.getTotalPaymentDueAmount(account)).thenReturn(BigDecimal.TEN);
+        AccountService cached = new LookupCache().cached(accountService);
+        for (int i = 0; i < 3; i++) {
+            assertThat(cached.lookupLoanAccountReferenceFromExternalId("X7"), is(account));
+            assertThat(cached.getTotalPaymentDueAmount(account), is(BigDecimal.TEN));
+        }
+        verify(accountService, times(1)).lookupLoanAccountReferenceFromExternalId("X7");
+        verify(accountService, times(3)).getTotalPaymentDueAmount(account);
+    }
+
+    @Test
+    public void forgetsEntriesOnceExpiredOrTheirAccountIsPaid() throws Exception {
+        LookupCache cache = new LookupCache();
+        cache.configure(100, 1000);
+        List<Object> byId = Arrays.<Object> asList(accountService, "isAccountGroupLoanMember", 7);
+        List<Object> byName = Arrays.<Object> asList(accountService, "lookupLoanAccountReferenceFromExternalId", "X8");
+        cache.put(byId, Boolean.TRUE, 0);
+        cache.put(byName, new AccountReferenceDto(8), 0);
+        assertThat(cache.get(byId, 999), is((Object) Boolean.TRUE));
+        assertThat(cache.get(byId, 1000), is(sameInstance(LookupCache.Entry.MISSING)));
+
+        cache.put(byId, Boolean.TRUE, 0);
+        cache.invalidateAccounts(Collections.singleton(8));
+        assertThat(cache.get(byName, 0), is(sameInstance(LookupCache.Entry.MISSING)));
+        assertThat(cache.get(byId, 0), is((Object) Boolean.TRUE));
+        cache.invalidateAccounts(Collections.singleton(7));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void forgetsLookupsByThePhoneNumberOfAClientPaid() throws Exception {
+        CustomerDto customer = new CustomerDto(3, "John Foo Bar", (short) 1, "");
+        when(accountService.getMifosConfiguration(LookupCache.MAXIMUM_SIZE)).thenReturn("100");
+        when(accountService.existsMoreThanOneLoanAccount("0722", "NLA")).thenReturn(false, true);
+        when(customerSearchService.findCustomersWithGivenPhoneNumber("0722")).thenReturn(Arrays.asList(customer));
+        LookupCache cache = new LookupCache();
+        AccountService cached = cache.cached(accountService);
+        CustomerSearchService cachedCustomers = cache.cached(customerSearchService);
+        assertThat(cachedCustomers.findCustomersWithGivenPhoneNumber("0722").size(), is(1));
+        assertThat(cached.existsMoreThanOneLoanAccount("0722", "NLA"), is(false));
+        assertThat(cached.existsMoreThanOneLoanAccount("0722", "NLA"), is(false));
+
+        cache.invalidate(Arrays.asList(new AccountPaymentParametersDto(null, new AccountReferenceDto(9),
+                BigDecimal.TEN, null, null, "", null, "R1", customer)));
+        assertThat(cached.existsMoreThanOneLoanAccount("0722", "NLA"), is(true));
+        verify(accountService, times(2)).existsMoreThanOneLoanAccount("0722", "NLA");
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void handsOutListsReadOnly() {
+        when(accountService.getMifosConfiguration(LookupCache.MAXIMUM_SIZE)).thenReturn("100");
+        when(customerSearchService.findCustomersWithGivenPhoneNumber("0722")).thenReturn(
+                new ArrayList<CustomerDto>(Arrays.asList(new CustomerDto(3, "", (short) 1, ""))));
+        LookupCache cache = new LookupCache();
+        cache.cached(accountService);
+        cache.cached(customerSearchService).findCustomersWithGivenPhoneNumber("0722").clear();
+    }
+
+    @Test
+    public void keepsLookupsAskedForOftenOverOneOffs() {
+        LookupCache cache = new LookupCache();
+        cache.configure(2, 60000);
+        List<Object> frequent = Arrays.<Object> asList("frequent");
+        List<Object> alsoFrequent = Arrays.<Object> asList("also frequent");
+        for (int i = 0; i < 5; i++) {
+            cache.get(frequent, 0);
+            cache.get(alsoFrequent, 0);
+        }
+        cache.put(frequent, "a", 0);
+        cache.put(alsoFrequent, "b", 0);
+        List<Object> oneOff = Arrays.<Object> asList("one off");
+        cache.get(oneOff, 0);
+        cache.put(oneOff, "c", 0);
+        assertThat(cache.get(oneOff, 0), is(sameInstance(LookupCache.Entry.MISSING)));
+        assertThat(cache.get(frequent, 0), is((Object) "a"));
+        assertThat(cache.get(alsoFrequent, 0), is((Object) "b"));
+    }
+}
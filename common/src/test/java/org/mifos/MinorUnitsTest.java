@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+public class MinorUnitsTest {
+
+    private final MinorUnits twoDigits = new MinorUnits(2);
+
+    @Test
+    public void wholeNumbersHaveNoScale() {
+        assertThat(MinorUnits.scaleOf(2750.0), is(0));
+        assertThat(MinorUnits.scaleOf(-5000.0), is(0));
+        assertThat(MinorUnits.scaleOf(0.0), is(0));
+    }
+
+    @Test
+    public void scaleIsThatOfTheDisplayedValue() {
+        assertThat(MinorUnits.scaleOf(120.99), is(2));
+        assertThat(MinorUnits.scaleOf(570.123), is(3));
+        assertThat(MinorUnits.scaleOf(184.3), is(1));
+        assertThat(MinorUnits.scaleOf(0.1 + 0.2), is(1));
+        assertThat(MinorUnits.scaleOf(1.005), is(3));
+    }
+
+    @Test
+    public void readsAmountsWithAcceptableScale() {
+        assertThat(twoDigits.fromDouble(120.99), is(12099L));
+        assertThat(twoDigits.fromDouble(0.1 + 0.2), is(30L));
+        assertThat(twoDigits.fromDouble(-184.3), is(-18430L));
+        assertThat(twoDigits.fromDouble(2750.0), is(275000L));
+    }
+
+    @Test
+    public void rejectsAmountsWithTooManyDecimalsWithoutThrowing() {
+        assertThat(twoDigits.hasAcceptableScale(570.123), is(false));
+        assertThat(twoDigits.fromDouble(570.123), is(MinorUnits.INVALID));
+        assertThat(new MinorUnits(0).fromDouble(120.5), is(MinorUnits.INVALID));
+        assertThat(twoDigits.fromDouble(Double.NaN), is(MinorUnits.INVALID));
+        assertThat(twoDigits.fromDouble(1e14), is(MinorUnits.INVALID));
+    }
+
+    @Test
+    public void wholeNumbersAreAcceptableWithoutDecimals() {
+        assertThat(new MinorUnits(0).fromDouble(120.0), is(120L));
+    }
+
+    @Test
+    public void parsesDecimalText() {
+        assertThat(twoDigits.parse("1250.5"), is(125050L));
+        assertThat(twoDigits.parse(".75"), is(75L));
+        assertThat(twoDigits.parse("-3"), is(-300L));
+        assertThat(twoDigits.parse("10.5000"), is(1050L));
+        assertThat(twoDigits.parse("10.001"), is(MinorUnits.INVALID));
+        assertThat(twoDigits.parse("1,250"), is(MinorUnits.INVALID));
+        assertThat(twoDigits.parse(""), is(MinorUnits.INVALID));
+        assertThat(twoDigits.parse("."), is(MinorUnits.INVALID));
+    }
+
+    @Test
+    public void convertsToAndFromBigDecimal() {
+        assertThat(twoDigits.toBigDecimal(12099L), is(new BigDecimal("120.99")));
+        assertThat(twoDigits.fromBigDecimal(new BigDecimal("1000")), is(100000L));
+        assertThat(twoDigits.fromBigDecimal(new BigDecimal("10.005")), is(1001L));
+    }
+}
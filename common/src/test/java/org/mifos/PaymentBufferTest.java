@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.CustomerDto;
+import org.mifos.dto.domain.PaymentTypeDto;
+import org.mifos.dto.domain.UserReferenceDto;
+
+public class PaymentBufferTest {
+
+    private final UserReferenceDto user = new UserReferenceDto((short) 1);
+    private final PaymentTypeDto paymentType = new PaymentTypeDto((short) 1, "MPESA");
+    private final CustomerDto customer = new CustomerDto(1, "John Foo Bar", (short) 1, "");
+
+    @Test
+    public void givesBackWhatWasAdded() throws Exception {
+        PaymentBuffer buffer = new PaymentBuffer();
+        AccountPaymentParametersDto payment = payment(0);
+        payment.addPaymentOption(AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS);
+        buffer.add(payment);
+        buffer.add(new AccountPaymentParametersDto(user, new AccountReferenceDto(8), new BigDecimal("12"),
+                new LocalDate(2011, 1, 3), paymentType, ""));
+
+        assertSame(buffer.get(0), payment);
+        assertThat(buffer.get(0).getPaymentOptions().contains(
+                AccountPaymentParametersDto.PaymentOptions.ALLOW_OVERPAYMENTS), is(true));
+        assertThat(buffer.get(0).getCustomer(), is(sameInstance(customer)));
+        assertThat(buffer.get(1).getReceiptId(), is(nullValue()));
+        assertThat(buffer.get(1).getReceiptDate(), is(nullValue()));
+        assertThat(buffer.get(1).getCustomer(), is(nullValue()));
+        assertThat(buffer.get(1).getPaymentOptions().isEmpty(), is(true));
+        assertThat(buffer.isSpilled(), is(false));
+        buffer.close();
+    }
+
+    @Test
+    public void spillsToAFileAboveTheThreshold() throws Exception {
+        PaymentBuffer buffer = new PaymentBuffer(100);
+        List<AccountPaymentParametersDto> expected = new ArrayList<AccountPaymentParametersDto>();
+        for (int i = 0; i < 5000; i++) {
+            AccountPaymentParametersDto payment = payment(i);
+            expected.add(payment);
+            buffer.add(payment);
+        }
+
+        assertThat(buffer.isSpilled(), is(true));
+        assertThat(buffer.size(), is(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(buffer.get(i), expected.get(i));
+        }
+        buffer.close();
+        assertThat(buffer.size(), is(0));
+    }
+
+    @Test
+    public void addsSegmentsToTheFileWithoutMovingWhatIsInIt() throws Exception {
+        PaymentBuffer buffer = new PaymentBuffer(100, 64);
+        List<AccountPaymentParametersDto> expected = new ArrayList<AccountPaymentParametersDto>();
+        for (int i = 0; i < 1000; i++) {
+            AccountPaymentParametersDto payment = payment(i);
+            expected.add(payment);
+            buffer.add(payment);
+            if (i == 150) {
+                // read back across the boundary of the payments moved from the heap
+                assertSame(buffer.get(99), expected.get(99));
+                assertSame(buffer.get(100), expected.get(100));
+            }
+        }
+
+        assertThat(buffer.isSpilled(), is(true));
+        for (int i = 0; i < expected.size(); i++) {
+            assertSame(buffer.get(i), expected.get(i));
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void keepsReceiptsOfAnyLength() throws Exception {
+        String[] receipts = { null, "", "C94ZH942", "1234567890ABCDEF", "1234567890ABCDEFG", "R\u00e9\u00e7u" };
+        PaymentBuffer buffer = new PaymentBuffer(2);
+        for (String receipt : receipts) {
+            buffer.add(new AccountPaymentParametersDto(user, new AccountReferenceDto(1), BigDecimal.ONE,
+                    new LocalDate(2011, 1, 3), paymentType, "", null, receipt, null));
+        }
+
+        for (int i = 0; i < receipts.length; i++) {
+            assertThat(buffer.get(i).getReceiptId(), is(receipts[i]));
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void picksOutLoanDisbursals() throws Exception {
+        PaymentBuffer buffer = new PaymentBuffer(10);
+        for (int i = 0; i < 30; i++) {
+            buffer.add(payment(i));
+        }
+
+        List<AccountPaymentParametersDto> disbursals = buffer.loanDisbursals(true);
+        List<AccountPaymentParametersDto> payments = buffer.loanDisbursals(false);
+        assertThat(disbursals.size(), is(10));
+        assertThat(payments.size(), is(20));
+        assertThat(disbursals.get(2).getReceiptId(), is("R3"));
+        assertThat(payments.get(2).getReceiptId(), is("R2"));
+        buffer.close();
+    }
+
+    /**
+     * Every third payment is a disbursal; receipts are shared by pairs of payments, as they are by the payments made to
+     * several accounts out of one row.
+     */
+    private AccountPaymentParametersDto payment(int i) {
+        AccountPaymentParametersDto payment = new AccountPaymentParametersDto(user, new AccountReferenceDto(i % 7),
+                BigDecimal.valueOf(10000 + i, i % 3), new LocalDate(2011, 1 + i % 12, 1 + i % 28), paymentType, "",
+                new LocalDate(2011, 2, 1), "R" + i / 2, customer);
+        if (i % 3 == 0) {
+            payment.setTransactionType(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL);
+        }
+        return payment;
+    }
+
+    private static void assertSame(AccountPaymentParametersDto actual, AccountPaymentParametersDto expected) {
+        assertThat(actual.getUserMakingPayment(), is(sameInstance(expected.getUserMakingPayment())));
+        assertThat(actual.getAccount().getAccountId(), is(expected.getAccount().getAccountId()));
+        assertThat(actual.getPaymentAmount(), is(expected.getPaymentAmount()));
+        assertThat(actual.getPaymentDate(), is(expected.getPaymentDate()));
+        assertThat(actual.getPaymentType(), is(sameInstance(expected.getPaymentType())));
+        assertThat(actual.getComment(), is(expected.getComment()));
+        assertThat(actual.getReceiptDate(), is(expected.getReceiptDate()));
+        assertThat(actual.getReceiptId(), is(expected.getReceiptId()));
+        assertThat(actual.getTransactionType(), is(expected.getTransactionType()));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.mifos.PaymentWaterfall.Account;
+import org.mifos.PaymentWaterfall.Allocation;
+import org.mifos.PaymentWaterfall.Refusal;
+
+public class PaymentWaterfallTest {
+
+    private static final Account SAVINGS = new Account(9, false, 0, 0);
+
+    @Test
+    public void paysLoansInOrderThenTheRemainderToTheLastAccount() {
+        Allocation allocation = PaymentWaterfall.allocate(1000,
+                Arrays.asList(new Account(1, true, 300, 0), new Account(2, true, 500, 100)), SAVINGS);
+        assertThat(allocation.getRefusal(), is(nullValue()));
+        assertThat(allocation.getLoanAmount(0), is(300L));
+        assertThat(allocation.getLoanAmount(1), is(400L));
+        assertThat(allocation.getLastAmount(), is(300L));
+    }
+
+    @Test
+    public void laterLoansGetNothingOnceThePaymentRunsOut() {
+        Allocation allocation = PaymentWaterfall.allocate(200,
+                Arrays.asList(new Account(1, true, 300, 0), new Account(2, true, 500, 0)), SAVINGS);
+        assertThat(allocation.getLoanAmount(0), is(200L));
+        assertThat(allocation.getLoanAmount(1), is(0L));
+        assertThat(allocation.getLastAmount(), is(0L));
+    }
+
+    @Test
+    public void remainderWithoutAnAccountIsRefused() {
+        assertThat(PaymentWaterfall.allocate(350, Arrays.asList(new Account(1, true, 300, 0)), null).getRefusal(),
+                is(Refusal.NO_ACCOUNT_FOR_REMAINDER));
+        assertThat(PaymentWaterfall.allocate(300, Arrays.asList(new Account(1, true, 300, 0)), null).getRefusal(),
+                is(nullValue()));
+    }
+
+    @Test
+    public void lastLoanTakesNoMoreThanIsDue() {
+        Account lastLoan = new Account(3, true, 100, 0);
+        assertThat(PaymentWaterfall.allocate(150, Collections.<Account> emptyList(), lastLoan).getRefusal(),
+                is(Refusal.REMAINDER_GREATER_THAN_DUE));
+        assertThat(PaymentWaterfall.allocate(100, Collections.<Account> emptyList(), lastLoan).getLastAmount(),
+                is(100L));
+    }
+
+    @Test
+    public void accountGivenTwiceCountsWhatItWasGivenFirst() {
+        Account loan = new Account(1, true, 1000, 0);
+        Allocation allocation = PaymentWaterfall.allocate(1500, Arrays.asList(loan, loan), loan);
+        assertThat(allocation.getLoanAmount(0), is(1000L));
+        assertThat(allocation.getLoanAmount(1), is(0L));
+        assertThat(allocation.getRefusal(), is(Refusal.REMAINDER_GREATER_THAN_DUE));
+    }
+
+    @Test
+    public void overpaidLoanIsTakenToOweItsWholeAmountDue() {
+        Allocation allocation = PaymentWaterfall.allocate(150, Arrays.asList(new Account(1, true, 100, 120)), SAVINGS);
+        assertThat(allocation.getLoanAmount(0), is(100L));
+        assertThat(allocation.getLastAmount(), is(50L));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RunningTotalByAccountTest {
+
+    @Test
+    public void keepsARunningTotalPerAccount() {
+        RunningTotalByAccount totals = new RunningTotalByAccount();
+        assertThat(totals.add(1, 1025L), is(1025L));
+        assertThat(totals.add(1, 75L), is(1100L));
+        assertThat(totals.add(2, 85L), is(85L));
+        assertThat(totals.total(1), is(1100L));
+        assertThat(totals.total(3), is(0L));
+        assertThat(totals.size(), is(2));
+    }
+
+    @Test
+    public void remainingDueDeductsPaymentsSoFar() {
+        RunningTotalByAccount totals = new RunningTotalByAccount();
+        int slot = totals.slotFor(7);
+        assertThat(totals.remainingDueAt(slot, 5000L), is(5000L));
+        totals.addAt(slot, 3000L);
+        assertThat(totals.remainingDueAt(slot, 5000L), is(2000L));
+        totals.addAt(slot, 2000L);
+        assertThat(totals.remainingDueAt(slot, 5000L), is(0L));
+        totals.addAt(slot, 500L);
+        assertThat(totals.remainingDueAt(slot, 5000L), is(5000L));
+    }
+
+    @Test
+    public void keepsTheAmountDueOfEachAccount() {
+        RunningTotalByAccount totals = new RunningTotalByAccount(1);
+        int slot = totals.slotFor(7);
+        assertThat(totals.hasTotalDueAt(slot), is(false));
+        totals.setTotalDueAt(slot, 5000L);
+        totals.addAt(slot, 3000L);
+        for (int accountId = 100; accountId < 300; accountId++) {
+            assertThat(totals.hasTotalDueAt(totals.slotFor(accountId)), is(false));
+        }
+        slot = totals.slotFor(7);
+        assertThat(totals.hasTotalDueAt(slot), is(true));
+        assertThat(totals.remainingDueAt(slot), is(2000L));
+    }
+
+    @Test
+    public void postsAPaymentAndTellsWhatIsStillDue() {
+        RunningTotalByAccount totals = new RunningTotalByAccount();
+        RunningTotalByAccount.Posting posting = totals.post(7, 3000L);
+        assertThat(posting.getTotal(), is(3000L));
+        assertThat(posting.isRemainingDueKnown(), is(false));
+
+        totals.setTotalDueAt(totals.slotFor(7), 5000L);
+        posting = totals.post(7, 1500L);
+        assertThat(posting.getTotal(), is(4500L));
+        assertThat(posting.getRemainingDue(), is(500L));
+        assertThat(totals.post(8, 10L), is(posting));
+        assertThat(posting.getTotal(), is(10L));
+    }
+
+    @Test
+    public void agreesWithAMapWhileGrowing() {
+        RunningTotalByAccount totals = new RunningTotalByAccount(1);
+        Map<Integer, Long> expected = new HashMap<Integer, Long>();
+        Random random = new Random(28);
+        for (int i = 0; i < 20000; i++) {
+            int accountId = random.nextInt(3000) - 100;
+            long amount = random.nextInt(100000);
+            Long total = expected.get(accountId);
+            long newTotal = (total == null ? 0 : total.longValue()) + amount;
+            expected.put(accountId, newTotal);
+            assertThat(totals.add(accountId, amount), is(newTotal));
+        }
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertThat(totals.total(entry.getKey()), is(entry.getValue()));
+        }
+        assertThat(totals.size(), is(expected.size()));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ * 
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SpooledUploadTest {
+
+    @Test
+    public void readsTheUploadAgainAndDigestsIt() throws Exception {
+        final byte[] contents = new byte[20000];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        final SpooledUpload upload = SpooledUpload.spool(new ByteArrayInputStream(contents));
+        try {
+            assertThat(Arrays.equals(upload.getDigest(), MessageDigest.getInstance("SHA-1").digest(contents)), is(true));
+            for (int reading = 0; reading < 2; reading++) {
+                assertThat(Arrays.equals(readFully(upload.open()), contents), is(true));
+            }
+        } finally {
+            upload.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws Exception {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int read = input.read(); read != -1; read = input.read()) {
+                bytes.write(read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mifos.accounts.api.AccountService;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.ParseResultDto;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StandardImportStoreTest {
+
+    /** Two payments, then a loan disbursal. */
+    private static final String STATEMENT = "P 1\nP 2\nD 3\n";
+
+    @Mock
+    AccountService accountService;
+
+    LinesImport importer;
+
+    @Before
+    public void setUp() {
+        importer = new LinesImport();
+        importer.setAccountService(accountService);
+    }
+
+    @Test
+    public void disbursalsFailingAfterPaymentsSayThePaymentsWereStored() throws Exception {
+        doThrow(new IllegalStateException("loan 3 is not approved")).when(accountService).disburseLoans(
+                anyListOf(AccountPaymentParametersDto.class), any(Locale.class));
+        try {
+            importer.store(statement());
+            fail();
+        } catch (PartiallyStoredImportException e) {
+            assertThat(e.getStoredPayments(), is(2));
+            assertThat(e.getCause().getMessage(), is("loan 3 is not approved"));
+        }
+    }
+
+    @Test
+    public void parseIsNotReusedOncePaymentsHaveBeenStored() throws Exception {
+        importer.parse(statement());
+        importer.store(statement());
+        assertThat(importer.parses, is(1));
+
+        importer.parse(statement());
+        // another import stores its payments meanwhile
+        LookupCache.shared().invalidate(Collections.<AccountPaymentParametersDto> emptyList());
+        importer.store(statement());
+        assertThat(importer.parses, is(3));
+        verify(accountService, times(2)).makePayments(anyListOf(AccountPaymentParametersDto.class));
+    }
+
+    private static InputStream statement() {
+        return new ByteArrayInputStream(STATEMENT.getBytes());
+    }
+
+    /**
+     * Pays, or disburses, the account of each line.
+     */
+    private static final class LinesImport extends StandardImport {
+
+        int parses;
+
+        @Override
+        public String getDisplayName() {
+            return "lines";
+        }
+
+        @Override
+        public ParseResultDto parse(InputStream input) {
+            parses++;
+            final InputStream digestingInput = digesting(input);
+            final List<AccountPaymentParametersDto> payments = new ArrayList<AccountPaymentParametersDto>();
+            try {
+                final BufferedReader lines = new BufferedReader(new InputStreamReader(digestingInput));
+                for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                    final AccountPaymentParametersDto payment = new AccountPaymentParametersDto(null,
+                            new AccountReferenceDto(Integer.parseInt(line.substring(2))), BigDecimal.TEN, null, null,
+                            "");
+                    if (line.startsWith("D")) {
+                        payment.setTransactionType(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL);
+                    }
+                    payments.add(payment);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return rememberParseResult(digestingInput, new ParseResultDto(new ArrayList<String>(), payments));
+        }
+    }
+}
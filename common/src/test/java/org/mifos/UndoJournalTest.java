@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2005-2011 Grameen Foundation USA
+ * All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ *
+ * See also http://www.apache.org/licenses/LICENSE-2.0.html for an
+ * explanation of the license and how it is applied.
+ */
+
+package org.mifos;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mifos.dto.domain.AccountPaymentParametersDto;
+import org.mifos.dto.domain.AccountReferenceDto;
+import org.mifos.dto.domain.AccountTrxDto;
+
+public class UndoJournalTest {
+
+    File file;
+    UndoJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("import", ".undo");
+        file.delete();
+        journal = new UndoJournal(file);
+        journal.paymentsMade(transactions(1, 2, 3));
+        journal.paymentsMade(transactions(4, 5));
+        journal.loansDisbursed(Arrays.asList(disbursal(7), disbursal(8)));
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void reversesNewestFirstInBatchesOfOneKind() throws Exception {
+        final RecordingReverser reverser = new RecordingReverser(-1);
+        assertThat(journal.reverse(reverser, 2, new ImportMonitor()), is(7));
+        assertThat(reverser.batches.toString(), is("[D8 D7, P5 P4, P3 P2, P1]"));
+        assertThat(journal.getEntries(), is(7));
+        assertThat(journal.getReversed(), is(7));
+
+        journal.storeStarted();
+        assertThat(journal.exists(), is(false));
+    }
+
+    @Test
+    public void carriesOnFromTheLastBatchReversed() throws Exception {
+        try {
+            journal.reverse(new RecordingReverser(1), 2, new ImportMonitor());
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(journal.getReversed(), is(2));
+        }
+        try {
+            journal.storeStarted();
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(journal.exists(), is(true));
+        }
+
+        // a line cut short by a crash is dropped as the journal is appended to
+        final FileOutputStream out = new FileOutputStream(file, true);
+        out.write("R 2".getBytes("US-ASCII"));
+        out.close();
+        assertThat(journal.getReversed(), is(2));
+
+        final RecordingReverser reverser = new RecordingReverser(-1);
+        assertThat(journal.reverse(reverser, 10, new ImportMonitor()), is(5));
+        assertThat(reverser.batches.toString(), is("[P5 P4 P3 P2 P1]"));
+        assertThat(journal.getReversed(), is(7));
+    }
+
+    private static List<AccountTrxDto> transactions(int... ids) {
+        final List<AccountTrxDto> transactions = new ArrayList<AccountTrxDto>();
+        for (int id : ids) {
+            transactions.add(new AccountTrxDto(id));
+        }
+        return transactions;
+    }
+
+    private static AccountPaymentParametersDto disbursal(int accountId) {
+        final AccountPaymentParametersDto disbursal = new AccountPaymentParametersDto(null, new AccountReferenceDto(
+                accountId), BigDecimal.TEN, null, null, "");
+        disbursal.setTransactionType(AccountPaymentParametersDto.TransactionType.LOAN_DISBURSAL);
+        return disbursal;
+    }
+
+    private static final class RecordingReverser implements TransactionReverser {
+
+        final List<String> batches = new ArrayList<String>();
+        private final int failingBatch;
+
+        /**
+         * @param failingBatch
+         *            index of the call to fail, or -1
+         */
+        RecordingReverser(int failingBatch) {
+            this.failingBatch = failingBatch;
+        }
+
+        @Override
+        public void reversePayments(List<AccountTrxDto> transactions) {
+            final StringBuilder batch = new StringBuilder();
+            for (AccountTrxDto transaction : transactions) {
+                batch.append(batch.length() == 0 ? "P" : " P").append(transaction.getTrxId());
+            }
+            reversed(batch.toString());
+        }
+
+        @Override
+        public void reverseDisbursals(List<AccountReferenceDto> loanAccounts) {
+            final StringBuilder batch = new StringBuilder();
+            for (AccountReferenceDto account : loanAccounts) {
+                batch.append(batch.length() == 0 ? "D" : " D").append(account.getAccountId());
+            }
+            reversed(batch.toString());
+        }
+
+        private void reversed(String batch) {
+            if (batches.size() == failingBatch) {
+                throw new IllegalStateException("Mifos refused " + batch);
+            }
+            batches.add(batch);
+        }
+    }
+}